@@ -0,0 +1,174 @@
+package com.bank.database;
+
+import com.bank.databasehelper.DatabaseInsertHelper;
+import com.bank.databasehelper.DatabaseSelectHelper;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times AdminTerminal.viewTotalBalance's two halves, the old way and the new way, on a bank with
+ * a given number of accounts held two to a customer. The old way reads every user's account IDs
+ * and then each balance, and leaves each user a notice with its own insert; the new way sums the
+ * balances in one query and leaves every notice with one insert. Each is run a number of times
+ * and the fastest and median times are printed, along with the totals, which must agree.
+ *
+ * <p>Run it from an empty directory, with the SQLite driver on the classpath, since it creates
+ * bank.db there:
+ * <pre>
+ *   java -cp classes:sqlite-jdbc.jar com.bank.database.TotalBalanceBenchmark [accounts] [runs]
+ * </pre>
+ * The accounts default to 100000 and the runs to 3.
+ */
+public class TotalBalanceBenchmark {
+
+  private static final String NOTICE = "System Message: \n A system administrator has "
+      + "reviewed the balance of one or more of your accounts.";
+
+
+  /**
+   * Seeds the bank and times both ways of totalling it and leaving the notices.
+   * @param args the number of accounts and the number of runs, both optional.
+   * @throws Exception if the bank could not be seeded.
+   */
+  public static void main(String[] args) throws Exception {
+    int accounts = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+    if (Files.exists(Paths.get(ConnectionPool.DATABASE_FILE))) {
+      System.out.println("Run this from an empty directory; " + ConnectionPool.DATABASE_FILE
+          + " already exists here.");
+      return;
+    }
+    int users = seed(accounts);
+    System.out.println("Seeded " + accounts + " accounts held by " + users + " customers");
+
+    long[] perAccount = new long[runs];
+    long[] aggregate = new long[runs];
+    long[] perRowNotices = new long[runs];
+    long[] batchedNotices = new long[runs];
+    BigDecimal oldTotal = null;
+    BigDecimal newTotal = null;
+    for (int run = 0; run < runs; run++) {
+      long start = System.nanoTime();
+      oldTotal = totalPerAccount(users);
+      perAccount[run] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      newTotal = DatabaseSelectHelper.getTotalBalance();
+      aggregate[run] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int userId = 1; userId <= users; userId++) {
+        DatabaseInsertHelper.insertMessage(userId, NOTICE);
+      }
+      perRowNotices[run] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      UnitOfWork unit = UnitOfWork.begin();
+      try {
+        DatabaseInsertHelper.broadcastMessage(NOTICE);
+        unit.commit();
+      } finally {
+        unit.close();
+      }
+      batchedNotices[run] = System.nanoTime() - start;
+    }
+    System.out.println("Totals: per account " + oldTotal + ", aggregate " + newTotal
+        + ((oldTotal != null && oldTotal.compareTo(newTotal) == 0) ? " (equal)" : " (DIFFER)"));
+    report("Total, per-account reads", perAccount);
+    report("Total, one SUM query", aggregate);
+    report("Notices, one insert per user", perRowNotices);
+    report("Notices, one broadcast insert", batchedNotices);
+    DatabaseDriver.closeConnections();
+  }
+
+
+  /**
+   * Adds up every balance the way viewTotalBalance used to, one user and one account at a time.
+   * @param users the number of users, whose IDs run from 1.
+   * @return the total balance.
+   */
+  private static BigDecimal totalPerAccount(int users) {
+    BigDecimal total = BigDecimal.ZERO;
+    for (int userId = 1; userId <= users; userId++) {
+      List<Integer> accountIds = DatabaseSelectHelper.getAccountIds(userId);
+      for (Integer accountId : accountIds) {
+        total = total.add(DatabaseSelectHelper.getBalance(accountId));
+      }
+    }
+    return total;
+  }
+
+
+  /**
+   * Creates a bank with one customer role, one account type and the given number of accounts,
+   * two to a customer, in a single transaction.
+   * @param accounts the number of accounts.
+   * @return the number of customers.
+   * @throws Exception if the bank could not be created.
+   */
+  private static int seed(int accounts) throws Exception {
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    DatabaseDriver.initialize(connection);
+    connection.close();
+    int roleId = DatabaseInsertHelper.insertRole("CUSTOMER");
+    int typeId = DatabaseInsertHelper.insertAccountType("CHEQUING", new BigDecimal("0.01"));
+    int users = (accounts + 1) / 2;
+
+    connection = DatabaseDriver.connectOrCreateDataBase();
+    try {
+      connection.setAutoCommit(false);
+      PreparedStatement user = connection.prepareStatement(
+          "INSERT INTO USERS(ID, NAME, AGE, ADDRESS, ROLEID) VALUES(?, ?, 30, 'Address', ?)");
+      for (int userId = 1; userId <= users; userId++) {
+        user.setInt(1, userId);
+        user.setString(2, "Customer " + userId);
+        user.setInt(3, roleId);
+        user.addBatch();
+      }
+      user.executeBatch();
+      PreparedStatement account = connection.prepareStatement("INSERT INTO ACCOUNTS(ID, NAME, "
+          + "BALANCE, TYPE, LASTACCRUED) VALUES(?, ?, ?, ?, ?)");
+      PreparedStatement holder = connection.prepareStatement(
+          "INSERT INTO USERACCOUNT(USERID, ACCOUNTID) VALUES(?, ?)");
+      long now = System.currentTimeMillis();
+      for (int accountId = 1; accountId <= accounts; accountId++) {
+        account.setInt(1, accountId);
+        account.setString(2, "Account " + accountId);
+        // Odd amounts of cents, so a lost or rounded cent shows up in the totals
+        account.setLong(3, 100000L + accountId * 37L % 99991L);
+        account.setInt(4, typeId);
+        account.setLong(5, now);
+        account.addBatch();
+        holder.setInt(1, (accountId + 1) / 2);
+        holder.setInt(2, accountId);
+        holder.addBatch();
+      }
+      account.executeBatch();
+      holder.executeBatch();
+      connection.commit();
+    } finally {
+      connection.setAutoCommit(true);
+      connection.close();
+    }
+    return users;
+  }
+
+
+  /**
+   * Prints the fastest and median of a set of timings.
+   * @param label what was timed.
+   * @param nanos the time each run took, in nanoseconds.
+   */
+  private static void report(String label, long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    System.out.println(String.format("%-32s best %9.1f ms   median %9.1f ms", label,
+        sorted[0] / 1e6, sorted[sorted.length / 2] / 1e6));
+  }
+}
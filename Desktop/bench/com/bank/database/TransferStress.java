@@ -0,0 +1,216 @@
+package com.bank.database;
+
+import com.bank.databasehelper.DatabaseInsertHelper;
+import com.bank.exceptions.InsufficientFundsException;
+import com.bank.interaction.Atm;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a large number of ATM transfers in parallel and checks that none of them deadlocked and
+ * that no money was created or lost. Each customer holds three accounts, and several threads
+ * work on each customer at once, moving random amounts in both directions between the same
+ * accounts, so opposing transfers constantly compete for the same rows. Transfers only ever
+ * move money between one customer's own accounts, so every customer's total must be the same
+ * at the end as at the start, and no account may have been overdrawn.
+ *
+ * <p>Run it from an empty directory, with the SQLite driver on the classpath, since it creates
+ * bank.db there:
+ * <pre>
+ *   java -cp classes:sqlite-jdbc.jar com.bank.database.TransferStress
+ *       [customers] [threads] [transfers per thread] [timeout seconds]
+ * </pre>
+ * The defaults are 8 customers, 32 threads, 100 transfers per thread and 300 seconds. The
+ * program exits with status 1 if the transfers did not all finish in time or a total changed.
+ */
+public class TransferStress {
+
+  private static final int ACCOUNTS_PER_CUSTOMER = 3;
+  private static final String OPENING_BALANCE = "1000.00";
+  private static final String PASSWORD = "stress";
+
+
+  /**
+   * Seeds the bank, runs the transfers and checks the totals.
+   * @param args the number of customers, threads, transfers per thread and the timeout in
+   *     seconds, all optional.
+   * @throws Exception if the bank could not be seeded or read back.
+   */
+  public static void main(String[] args) throws Exception {
+    int customers = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+    int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+    final int transfers = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+    long timeout = (args.length > 3) ? Long.parseLong(args[3]) : 300;
+    if (Files.exists(Paths.get(ConnectionPool.DATABASE_FILE))) {
+      System.out.println("Run this from an empty directory; " + ConnectionPool.DATABASE_FILE
+          + " already exists here.");
+      return;
+    }
+    final int[] customerIds = new int[customers];
+    final int[][] accountIds = new int[customers][ACCOUNTS_PER_CUSTOMER];
+    seed(customerIds, accountIds);
+    Map<Integer, Long> before = totalsByCustomer();
+    System.out.println("Seeded " + customers + " customers with " + ACCOUNTS_PER_CUSTOMER
+        + " accounts each; running " + threads + " threads of " + transfers + " transfers");
+
+    final AtomicInteger completed = new AtomicInteger();
+    final AtomicInteger refused = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    for (int thread = 0; thread < threads; thread++) {
+      final int customer = thread % customers;
+      final long seed = thread;
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          Atm atm = new Atm(customerIds[customer], PASSWORD);
+          int[] own = accountIds[customer];
+          for (int i = 0; i < transfers; i++) {
+            int from = random.nextInt(own.length);
+            int to = (from + 1 + random.nextInt(own.length - 1)) % own.length;
+            BigDecimal amount = BigDecimal.valueOf(1 + random.nextInt(5000), 2);
+            try {
+              if (atm.makeTransfer(amount, own[from], own[to])) {
+                completed.incrementAndGet();
+              } else {
+                failed.incrementAndGet();
+              }
+            } catch (InsufficientFundsException e) {
+              refused.incrementAndGet();
+            } catch (Exception e) {
+              failed.incrementAndGet();
+              e.printStackTrace();
+            }
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    boolean finished = pool.awaitTermination(timeout, TimeUnit.SECONDS);
+    long elapsed = System.nanoTime() - start;
+    if (!finished) {
+      System.out.println("Transfers still running after " + timeout + " seconds:");
+      for (Map.Entry<Thread, StackTraceElement[]> stack : Thread.getAllStackTraces().entrySet()) {
+        if (stack.getKey().getName().startsWith("pool-")) {
+          System.out.println(stack.getKey().getName());
+          for (StackTraceElement frame : stack.getValue()) {
+            System.out.println("    at " + frame);
+          }
+        }
+      }
+      pool.shutdownNow();
+    }
+
+    int attempted = completed.get() + refused.get() + failed.get();
+    System.out.println(String.format("%d transfers in %.1f s (%.0f a second): %d completed, "
+        + "%d refused for insufficient funds, %d failed", attempted, elapsed / 1e9,
+        attempted / (elapsed / 1e9), completed.get(), refused.get(), failed.get()));
+    System.out.println("Writer: " + WriteQueue.getStatistics());
+
+    // Journaled transfers only reach the tables at a checkpoint
+    if (BalanceJournal.isEnabled()) {
+      BalanceJournal.flush();
+    }
+    Map<Integer, Long> after = totalsByCustomer();
+    int changed = 0;
+    for (Map.Entry<Integer, Long> total : before.entrySet()) {
+      if (!total.getValue().equals(after.get(total.getKey()))) {
+        changed++;
+        System.out.println("Customer " + total.getKey() + " had " + total.getValue()
+            + " balance units and now has " + after.get(total.getKey()));
+      }
+    }
+    long overdrawn = countOverdrawn();
+    System.out.println("Customers whose total changed: " + changed + ", accounts overdrawn: "
+        + overdrawn);
+    DatabaseDriver.closeConnections();
+    boolean passed = finished && changed == 0 && overdrawn == 0;
+    System.out.println(passed ? "PASSED" : "FAILED");
+    System.exit(passed ? 0 : 1);
+  }
+
+
+  /**
+   * Creates the customers and their accounts. The accounts earn no interest, so nothing but the
+   * transfers can change a customer's total.
+   * @param customerIds filled in with each customer's ID.
+   * @param accountIds filled in with the IDs of each customer's accounts.
+   * @throws Exception if the bank could not be created.
+   */
+  private static void seed(int[] customerIds, int[][] accountIds) throws Exception {
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    DatabaseDriver.initialize(connection);
+    connection.close();
+    int roleId = DatabaseInsertHelper.insertRole("CUSTOMER");
+    int typeId = DatabaseInsertHelper.insertAccountType("CHEQUING", BigDecimal.ZERO);
+    if (roleId == -1 || typeId == -1) {
+      throw new SQLException("The customer role or chequing type could not be created");
+    }
+    for (int customer = 0; customer < customerIds.length; customer++) {
+      customerIds[customer] = DatabaseInsertHelper.insertNewUser("Customer " + customer, 30,
+          "Address", roleId, PASSWORD);
+      for (int account = 0; account < ACCOUNTS_PER_CUSTOMER; account++) {
+        accountIds[customer][account] = DatabaseInsertHelper.insertAccount("Account " + account,
+            new BigDecimal(OPENING_BALANCE), typeId);
+        DatabaseInsertHelper.insertUserAccount(customerIds[customer],
+            accountIds[customer][account]);
+      }
+    }
+  }
+
+
+  /**
+   * Reads each customer's total balance straight from the tables.
+   * @return each customer's total, in balance units, by user ID.
+   * @throws SQLException if the totals could not be read.
+   */
+  private static Map<Integer, Long> totalsByCustomer() throws SQLException {
+    Map<Integer, Long> totals = new HashMap<Integer, Long>();
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    try {
+      ResultSet results = connection.createStatement().executeQuery("SELECT USERID, "
+          + "SUM(BALANCE) FROM USERACCOUNT JOIN ACCOUNTS ON ACCOUNTS.ID = ACCOUNTID "
+          + "GROUP BY USERID");
+      while (results.next()) {
+        totals.put(results.getInt(1), results.getLong(2));
+      }
+      results.close();
+    } finally {
+      connection.close();
+    }
+    return totals;
+  }
+
+
+  /**
+   * Counts the accounts left with a negative balance.
+   * @return the number of overdrawn accounts.
+   * @throws SQLException if the balances could not be read.
+   */
+  private static long countOverdrawn() throws SQLException {
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    try {
+      ResultSet results = connection.createStatement().executeQuery(
+          "SELECT COUNT(*) FROM ACCOUNTS WHERE BALANCE < 0");
+      long overdrawn = results.next() ? results.getLong(1) : 0;
+      results.close();
+      return overdrawn;
+    } finally {
+      connection.close();
+    }
+  }
+}
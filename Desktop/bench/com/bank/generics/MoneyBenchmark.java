@@ -0,0 +1,231 @@
+package com.bank.generics;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the arithmetic the bank does on every balance, the old BigDecimal way and the Money way:
+ * a deposit and a withdrawal as InteractionMachine.calculateBalance makes them, interest as
+ * Account.addInterest pays it, and totalling balances as AdminTerminal.viewTotalBalance does.
+ * Both ways work through the same random balances, amounts and rates, and each operation is run
+ * a number of times after a warm-up, so the JIT has compiled it before it is timed. The fastest
+ * and median time per operation are printed for each way, along with Money's speed-up at the
+ * median, which is above 1 where Money was faster.
+ *
+ * <p>It needs nothing but the compiled classes:
+ * <pre>
+ *   java -cp classes com.bank.generics.MoneyBenchmark [operations] [runs]
+ * </pre>
+ * The operations per run default to 1000000 and the runs to 15, the first third of which are
+ * the warm-up and not reported.
+ */
+public class MoneyBenchmark {
+
+  /** Results are folded into this, so the JIT cannot drop the work that produced them. */
+  private static long sink = 0;
+
+
+  /**
+   * Times each operation both ways and prints the results.
+   * @param args the number of operations per run and the number of runs, both optional.
+   */
+  public static void main(String[] args) {
+    int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 15;
+    Random random = new Random(1L);
+    BigDecimal[] oldBalances = new BigDecimal[operations];
+    Money[] balances = new Money[operations];
+    BigDecimal[] amounts = new BigDecimal[operations];
+    BigDecimal[] rates = new BigDecimal[operations];
+    for (int i = 0; i < operations; i++) {
+      // Balances up to ten million dollars, amounts entered with up to three decimals
+      balances[i] = Money.ofUnits(random.nextInt(1000000000));
+      oldBalances[i] = balances[i].toBigDecimal();
+      amounts[i] = BigDecimal.valueOf(random.nextInt(10000000), 3);
+      // Interest rates are stored in millionths, between 0 and 1
+      rates[i] = BigDecimal.valueOf(random.nextInt(1000000), 6);
+    }
+
+    int warmUp = runs / 3;
+    long[][] nanos = new long[8][runs - warmUp];
+    for (int run = 0; run < runs; run++) {
+      long[] times = new long[8];
+      long start = System.nanoTime();
+      oldDeposits(oldBalances, amounts);
+      times[0] = System.nanoTime() - start;
+      start = System.nanoTime();
+      deposits(balances, amounts);
+      times[1] = System.nanoTime() - start;
+      start = System.nanoTime();
+      oldWithdrawals(oldBalances, amounts);
+      times[2] = System.nanoTime() - start;
+      start = System.nanoTime();
+      withdrawals(balances, amounts);
+      times[3] = System.nanoTime() - start;
+      start = System.nanoTime();
+      oldInterest(oldBalances, rates);
+      times[4] = System.nanoTime() - start;
+      start = System.nanoTime();
+      interest(balances, rates);
+      times[5] = System.nanoTime() - start;
+      start = System.nanoTime();
+      oldTotal(oldBalances);
+      times[6] = System.nanoTime() - start;
+      start = System.nanoTime();
+      total(balances);
+      times[7] = System.nanoTime() - start;
+      if (run >= warmUp) {
+        for (int i = 0; i < times.length; i++) {
+          nanos[i][run - warmUp] = times[i];
+        }
+      }
+    }
+
+    System.out.println(operations + " operations per run, " + (runs - warmUp) + " runs after "
+        + warmUp + " warm-up runs");
+    String[] labels = {"deposit", "withdrawal", "interest", "total"};
+    for (int i = 0; i < labels.length; i++) {
+      double old = report(labels[i] + " BigDecimal", nanos[2 * i], operations);
+      double money = report(labels[i] + " Money", nanos[2 * i + 1], operations);
+      System.out.println(String.format("%-24s %.2fx", labels[i] + " speed-up", old / money));
+    }
+    // Printed so the sink is used, but only the timings matter
+    System.out.println("checksum " + sink);
+  }
+
+
+  /**
+   * Deposits each amount into each balance the old way, rounding up to the cent.
+   * @param balances the balances.
+   * @param amounts the amounts deposited.
+   */
+  private static void oldDeposits(BigDecimal[] balances, BigDecimal[] amounts) {
+    long result = 0;
+    for (int i = 0; i < balances.length; i++) {
+      result += balances[i].add(amounts[i]).setScale(2, RoundingMode.CEILING).signum();
+    }
+    sink += result;
+  }
+
+
+  /**
+   * Deposits each amount into each balance as Money, rounding the amount up to the cent.
+   * @param balances the balances.
+   * @param amounts the amounts deposited.
+   */
+  private static void deposits(Money[] balances, BigDecimal[] amounts) {
+    long result = 0;
+    for (int i = 0; i < balances.length; i++) {
+      result += balances[i].plus(Money.of(amounts[i], RoundingMode.CEILING)).getUnits();
+    }
+    sink += result;
+  }
+
+
+  /**
+   * Withdraws each amount from each balance the old way, after checking the balance covers it.
+   * @param balances the balances.
+   * @param amounts the amounts withdrawn.
+   */
+  private static void oldWithdrawals(BigDecimal[] balances, BigDecimal[] amounts) {
+    long result = 0;
+    for (int i = 0; i < balances.length; i++) {
+      if (amounts[i].compareTo(balances[i]) != 1) {
+        result += balances[i].subtract(amounts[i]).setScale(2, RoundingMode.CEILING).signum();
+      }
+    }
+    sink += result;
+  }
+
+
+  /**
+   * Withdraws each amount from each balance as Money, after checking the balance covers it.
+   * @param balances the balances.
+   * @param amounts the amounts withdrawn.
+   */
+  private static void withdrawals(Money[] balances, BigDecimal[] amounts) {
+    long result = 0;
+    for (int i = 0; i < balances.length; i++) {
+      if (!Money.of(amounts[i], RoundingMode.CEILING).isGreaterThan(balances[i])) {
+        result += balances[i].minus(Money.of(amounts[i], RoundingMode.FLOOR)).getUnits();
+      }
+    }
+    sink += result;
+  }
+
+
+  /**
+   * Pays interest on each balance the old way, rounding the new balance up to the cent.
+   * @param balances the balances.
+   * @param rates the interest rates.
+   */
+  private static void oldInterest(BigDecimal[] balances, BigDecimal[] rates) {
+    long result = 0;
+    for (int i = 0; i < balances.length; i++) {
+      result += balances[i].add(balances[i].multiply(rates[i])).setScale(2,
+          RoundingMode.CEILING).signum();
+    }
+    sink += result;
+  }
+
+
+  /**
+   * Pays interest on each balance as Money, rounding the interest up to the cent.
+   * @param balances the balances.
+   * @param rates the interest rates.
+   */
+  private static void interest(Money[] balances, BigDecimal[] rates) {
+    long result = 0;
+    for (int i = 0; i < balances.length; i++) {
+      result += balances[i].plus(balances[i].multiply(rates[i], RoundingMode.CEILING))
+          .getUnits();
+    }
+    sink += result;
+  }
+
+
+  /**
+   * Totals the balances the old way.
+   * @param balances the balances.
+   */
+  private static void oldTotal(BigDecimal[] balances) {
+    BigDecimal total = BigDecimal.ZERO;
+    for (BigDecimal balance : balances) {
+      total = total.add(balance);
+    }
+    sink += total.signum();
+  }
+
+
+  /**
+   * Totals the balances as Money.
+   * @param balances the balances.
+   */
+  private static void total(Money[] balances) {
+    Money total = Money.ZERO;
+    for (Money balance : balances) {
+      total = total.plus(balance);
+    }
+    sink += total.getUnits();
+  }
+
+
+  /**
+   * Prints the fastest and median time per operation of a set of timings.
+   * @param label what was timed.
+   * @param nanos the time each run took, in nanoseconds.
+   * @param operations the number of operations in each run.
+   * @return the median time per operation, in nanoseconds.
+   */
+  private static double report(String label, long[] nanos, int operations) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    double best = (double) sorted[0] / operations;
+    double median = (double) sorted[sorted.length / 2] / operations;
+    System.out.println(String.format("%-24s best %7.1f ns/op   median %7.1f ns/op", label, best,
+        median));
+    return median;
+  }
+}
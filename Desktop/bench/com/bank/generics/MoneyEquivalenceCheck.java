@@ -0,0 +1,333 @@
+package com.bank.generics;
+
+import com.bank.database.MoneyCodec;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+
+/**
+ * Checks that Money gives exactly the results of the BigDecimal arithmetic it replaced. Each
+ * case draws a random balance, amount and interest rate, and compares the old and new way of
+ * rounding an amount in every rounding mode, multiplying by a rate, making a deposit or a
+ * withdrawal, paying interest once or compounded, testing the minimum savings balance,
+ * comparing, printing and converting to and from the stored cents. Results must match exactly,
+ * scale included, and where the old code threw an ArithmeticException the new code must too.
+ * Money refuses a result too large for a long number of cents straight away, where the old code
+ * only failed once it came to store it, so such a result is expected to throw.
+ *
+ * <p>It needs nothing but the compiled classes:
+ * <pre>
+ *   java -cp classes com.bank.generics.MoneyEquivalenceCheck [cases] [seed]
+ * </pre>
+ * The cases default to 1000000 and the seed to 1. The program prints the first differences it
+ * finds and exits with status 1 if there were any.
+ */
+public class MoneyEquivalenceCheck {
+
+  private static final int MAX_REPORTED = 20;
+  private static final String THROWS = "ArithmeticException";
+  private static final BigDecimal OLD_MINIMUM_SAVINGS = new BigDecimal(1000.00);
+  private static final Money MINIMUM_SAVINGS = Money.ofUnits(100000);
+
+  private static long comparisons = 0;
+  private static long differences = 0;
+
+
+  /**
+   * Runs the cases and reports how many comparisons differed.
+   * @param args the number of cases and the random seed, both optional.
+   */
+  public static void main(String[] args) {
+    int cases = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    long seed = (args.length > 1) ? Long.parseLong(args[1]) : 1L;
+    Random random = new Random(seed);
+    for (int i = 0; i < cases; i++) {
+      Money balance = Money.ofUnits(randomUnits(random));
+      BigDecimal amount = randomAmount(random);
+      BigDecimal rate = randomRate(random);
+      checkRounding(amount);
+      checkMultiply(balance, rate);
+      checkDeposit(balance, amount.abs());
+      checkWithdrawal(balance, amount.abs());
+      // Interest rates are stored in millionths, between 0 and 1
+      checkInterest(Money.ofUnits(balance.getUnits() % 100000000000000000L),
+          BigDecimal.valueOf(random.nextInt(1000000), 6), 1 + random.nextInt(400));
+      checkArithmetic(balance, Money.ofUnits(randomUnits(random)));
+      checkStorage(balance, amount);
+    }
+    System.out.println(cases + " cases, " + comparisons + " comparisons, " + differences
+        + " differences");
+    System.exit((differences == 0) ? 0 : 1);
+  }
+
+
+  /**
+   * Compares rounding an amount to cents in every mode.
+   * @param amount the amount.
+   */
+  private static void checkRounding(BigDecimal amount) {
+    for (RoundingMode rounding : RoundingMode.values()) {
+      String expected;
+      try {
+        expected = fitting(amount.setScale(2, rounding));
+      } catch (ArithmeticException e) {
+        expected = THROWS;
+      }
+      String actual;
+      try {
+        actual = Money.of(amount, rounding).toString();
+      } catch (ArithmeticException e) {
+        actual = THROWS;
+      }
+      compare("of(" + amount + ", " + rounding + ")", expected, actual);
+    }
+  }
+
+
+  /**
+   * Compares multiplying a balance by a rate in every mode, on the long path and the BigDecimal
+   * fallback alike.
+   * @param balance the balance.
+   * @param rate the rate.
+   */
+  private static void checkMultiply(Money balance, BigDecimal rate) {
+    for (RoundingMode rounding : RoundingMode.values()) {
+      String expected;
+      try {
+        expected = fitting(balance.toBigDecimal().multiply(rate).setScale(2, rounding));
+      } catch (ArithmeticException e) {
+        expected = THROWS;
+      }
+      String actual;
+      try {
+        actual = balance.multiply(rate, rounding).toString();
+      } catch (ArithmeticException e) {
+        actual = THROWS;
+      }
+      compare(balance + " x " + rate + " " + rounding, expected, actual);
+    }
+  }
+
+
+  /**
+   * Compares InteractionMachine.calculateBalance for a deposit.
+   * @param balance the account's balance.
+   * @param funding the amount deposited.
+   */
+  private static void checkDeposit(Money balance, BigDecimal funding) {
+    String expected = fitting(balance.toBigDecimal().add(funding).setScale(2,
+        RoundingMode.CEILING));
+    String actual;
+    try {
+      actual = balance.plus(Money.of(funding, RoundingMode.CEILING)).toString();
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare("deposit " + funding + " into " + balance, expected, actual);
+  }
+
+
+  /**
+   * Compares InteractionMachine.calculateBalance for a withdrawal, including its check that
+   * the account holds enough money.
+   * @param balance the account's balance.
+   * @param funding the amount withdrawn.
+   */
+  private static void checkWithdrawal(Money balance, BigDecimal funding) {
+    BigDecimal oldBalance = balance.toBigDecimal();
+    compare("withdraw " + funding + " from " + balance + " out of bounds",
+        funding.compareTo(oldBalance) == 1,
+        Money.of(funding, RoundingMode.CEILING).isGreaterThan(balance));
+    String expected = fitting(oldBalance.subtract(funding).setScale(2, RoundingMode.CEILING));
+    String actual;
+    try {
+      actual = balance.minus(Money.of(funding, RoundingMode.FLOOR)).toString();
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare("withdraw " + funding + " from " + balance, expected, actual);
+    // The new balance comes back from the helpers in whole cents
+    compare(balance + " below the savings minimum",
+        oldBalance.compareTo(OLD_MINIMUM_SAVINGS) == -1,
+        Money.of(oldBalance).isLessThan(MINIMUM_SAVINGS));
+  }
+
+
+  /**
+   * Compares Account.addInterest and InterestAccrual's compounded interest, each of which was
+   * stored rounded up to the cent.
+   * @param balance the balance earning interest.
+   * @param rate the interest rate per period.
+   * @param periods the number of periods to compound over.
+   */
+  private static void checkInterest(Money balance, BigDecimal rate, int periods) {
+    BigDecimal oldBalance = balance.toBigDecimal();
+    String expected = fitting(oldBalance.add(oldBalance.multiply(rate)).setScale(2,
+        RoundingMode.CEILING));
+    String actual;
+    try {
+      actual = balance.plus(balance.multiply(rate, RoundingMode.CEILING)).toString();
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare("interest on " + balance + " at " + rate, expected, actual);
+
+    // The balance the account is left with, which is what both ways stored
+    expected = fitting(oldBalance.multiply(BigDecimal.ONE.add(rate).pow(periods,
+        MathContext.DECIMAL64)).setScale(2, RoundingMode.CEILING));
+    try {
+      BigDecimal growth = BigDecimal.ONE.add(rate).pow(periods, MathContext.DECIMAL64)
+          .subtract(BigDecimal.ONE);
+      actual = Money.ofUnits(Math.addExact(balance.getUnits(),
+          balance.multiply(growth, RoundingMode.CEILING).getUnits())).toString();
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare("interest on " + balance + " at " + rate + " over " + periods + " periods",
+        expected, actual);
+  }
+
+
+  /**
+   * Compares adding, subtracting, negating, comparing and printing two balances.
+   * @param first one balance.
+   * @param second another balance.
+   */
+  private static void checkArithmetic(Money first, Money second) {
+    BigDecimal a = first.toBigDecimal();
+    BigDecimal b = second.toBigDecimal();
+    String actual;
+    try {
+      actual = first.plus(second).toString();
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare(first + " + " + second, fitting(a.add(b)), actual);
+    try {
+      actual = first.minus(second).toString();
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare(first + " - " + second, fitting(a.subtract(b)), actual);
+    try {
+      actual = first.negate().toString();
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare("-" + first, fitting(a.negate()), actual);
+    compare(first + " as a BigDecimal", a.toString(), first.toString());
+    compare(first + " compared with " + second, a.compareTo(b), first.compareTo(second));
+    compare(first + " < " + second, a.compareTo(b) < 0, first.isLessThan(second));
+    compare(first + " > " + second, a.compareTo(b) > 0, first.isGreaterThan(second));
+    compare("signum of " + first, a.signum(), first.signum());
+  }
+
+
+  /**
+   * Compares MoneyCodec's conversions to and from stored cents with the BigDecimal code it
+   * used before it delegated to Money.
+   * @param balance a balance read from the database.
+   * @param amount an amount about to be stored.
+   */
+  private static void checkStorage(Money balance, BigDecimal amount) {
+    compare("reading " + balance.getUnits() + " cents",
+        BigDecimal.valueOf(balance.getUnits(), 2), MoneyCodec.fromBalanceUnits(balance.getUnits()));
+    String expected;
+    try {
+      expected = Long.toString(amount.setScale(2, RoundingMode.CEILING).unscaledValue()
+          .longValueExact());
+    } catch (ArithmeticException e) {
+      expected = THROWS;
+    }
+    String actual;
+    try {
+      actual = Long.toString(MoneyCodec.toBalanceUnits(amount));
+    } catch (ArithmeticException e) {
+      actual = THROWS;
+    }
+    compare("storing " + amount, expected, actual);
+  }
+
+
+  /**
+   * Prints an old result in cents, or marks it as one the old code could not have stored.
+   * @param result the old result, with two decimal places.
+   * @return the result as printed, or THROWS if it does not fit in a long number of cents.
+   */
+  private static String fitting(BigDecimal result) {
+    return (result.unscaledValue().bitLength() < 64) ? result.toString() : THROWS;
+  }
+
+
+  /**
+   * Draws a number of cents, mostly of everyday sizes but also close to the limits of a long,
+   * where the long arithmetic overflows.
+   * @param random the source of randomness.
+   * @return the number of cents.
+   */
+  private static long randomUnits(Random random) {
+    switch (random.nextInt(5)) {
+      case 0:
+        return random.nextInt(2001) - 1000;
+      case 1:
+        return random.nextInt(10000001) - 5000000;
+      case 2:
+        return random.nextLong() % 1000000000000000L;
+      case 3:
+        return random.nextLong() / 1000;
+      default:
+        return random.nextLong();
+    }
+  }
+
+
+  /**
+   * Draws an amount with anywhere from none to five decimal places, as typed in at a terminal
+   * or worked out by a helper, and small enough to be stored as a long number of cents.
+   * @param random the source of randomness.
+   * @return the amount.
+   */
+  private static BigDecimal randomAmount(Random random) {
+    int scale = random.nextInt(6);
+    long unscaled = (random.nextInt(4) == 0) ? random.nextLong() / 1000
+        : random.nextInt(2000000001) - 1000000000;
+    return BigDecimal.valueOf(unscaled, scale);
+  }
+
+
+  /**
+   * Draws a rate with up to nine decimal places, so both the long multiplication and the
+   * BigDecimal fallback for rates with more than six are exercised.
+   * @param random the source of randomness.
+   * @return the rate.
+   */
+  private static BigDecimal randomRate(Random random) {
+    int scale = random.nextInt(10);
+    BigInteger unscaled = BigInteger.valueOf(random.nextInt(2000001) - 1000000);
+    if (random.nextInt(20) == 0) {
+      // Rates too precise to multiply in a long at all
+      unscaled = unscaled.multiply(BigInteger.TEN.pow(12)).add(BigInteger.ONE);
+    }
+    return new BigDecimal(unscaled, scale);
+  }
+
+
+  /**
+   * Records one comparison, printing it if the results differ.
+   * @param what a description of what was compared.
+   * @param expected the old result.
+   * @param actual the new result.
+   */
+  private static void compare(String what, Object expected, Object actual) {
+    comparisons++;
+    if (!expected.equals(actual)) {
+      differences++;
+      if (differences <= MAX_REPORTED) {
+        System.out.println(what + ": expected " + expected + ", got " + actual);
+      }
+    }
+  }
+}
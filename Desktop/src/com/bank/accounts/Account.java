@@ -3,10 +3,14 @@
 
 package com.bank.accounts;
 
+import com.bank.database.InterestAccrual;
 import com.bank.databasehelper.DatabaseSelectHelper;
 import com.bank.databasehelper.DatabaseUpdateHelper;
+import com.bank.generics.LedgerEntryTypes;
+import com.bank.generics.Money;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 
 public abstract class Account {
@@ -14,7 +18,7 @@ public abstract class Account {
   // Private Account attributes
   protected int id;                  // id is the ID number set by the database
   protected String name;             // name is the Account name
-  protected BigDecimal balance;      // balance is the balance of the account
+  protected Money balance;           // balance is the balance of the account
   protected BigDecimal interestRate; // interest rate for the account type
   protected int type;                // type is the account's Type ID
   private boolean idSet = false;     // Ensure Id can never be changed once set.
@@ -75,6 +79,15 @@ public abstract class Account {
    * @return balance of the Account
    */
   public BigDecimal getBalance() {
+    return (this.balance == null) ? null : this.balance.toBigDecimal();
+  }
+  
+  
+  /**
+   * Returns the balance left in an Account as an amount of money, without converting it.
+   * @return balance of the Account
+   */
+  public Money getBalanceMoney() {
     return this.balance;
   }
   
@@ -89,8 +102,8 @@ public abstract class Account {
     
     // If the balance was changed in the database:
     if (balanceSetDatabase) {
-      // Reflect the change
-      this.balance = balance;
+      // Reflect the change, rounded to the cent as the database stores it
+      this.balance = Money.of(balance);
     }
   }
   
@@ -106,7 +119,8 @@ public abstract class Account {
   
   /**
    * Automatically finds the account's standard interest rate based on its type and
-   * sets that interest rate to the account.
+   * sets that interest rate to the account. With interest accrual enabled, this is the
+   * rate the account earns each accrual period.
    */
   public void findAndSetInterestRate() {
     // Using the account's type ID, obtain its standard interest rate from the database
@@ -115,25 +129,38 @@ public abstract class Account {
   
   
   /**
-   * Uses the interest rate and current balance to update the balance in the account.
+   * Uses the interest rate and current balance to update the balance in the account. With
+   * interest accrual enabled, the account is instead paid whatever it has accrued since it was
+   * last paid, so that no period is paid twice.
    */
   public void addInterest() {
+    // Interest is earned per period, so only bring the account up to date
+    if (InterestAccrual.isEnabled()) {
+      BigDecimal accrued = DatabaseUpdateHelper.accrueInterest(this.id);
+      // If the interest was paid, reflect the change in the class.
+      if (accrued != null) {
+        this.balance = Money.of(accrued);
+      }
+      return;
+    }
+    
     // Get the current balance and interest rate
-    BigDecimal balance = this.balance;
+    Money balance = this.balance;
     BigDecimal interest = this.interestRate;
     
     // Ensure both are defined
-    boolean bothDefined = !(balance == null && interest == null);
+    boolean bothDefined = !(balance == null || interest == null);
     
     // If both defined:
     if (bothDefined) {
-      // Calculate the total interest
-      BigDecimal totalInterest = balance.multiply(interest);
+      // Calculate the total interest, rounding fractions of a cent up
+      Money totalInterest = balance.multiply(interest, RoundingMode.CEILING);
       // Add the total interest to the balance
-      BigDecimal newBalance = balance.add(totalInterest);
+      Money newBalance = balance.plus(totalInterest);
       
       // Update the balance through the database and get an approval token
-      boolean updated = DatabaseUpdateHelper.updateAccountBalance(newBalance, this.id);
+      boolean updated = DatabaseUpdateHelper.updateAccountBalance(newBalance.toBigDecimal(),
+          this.id, LedgerEntryTypes.INTEREST);
       
       // If the update was successful:
       if (updated) {
@@ -143,4 +170,14 @@ public abstract class Account {
     }
   }
   
+  
+  /**
+   * Converts a balance given to a constructor to the amount the account holds.
+   * @param balance the balance, or null if it is unknown
+   * @return the balance rounded up to the cent, or null if it is unknown
+   */
+  protected static Money toMoney(BigDecimal balance) {
+    return (balance == null) ? null : Money.of(balance);
+  }
+  
 }
@@ -17,10 +17,29 @@ public class BalanceOwing extends Account {
     // Set the account's name
     this.name = name;
     // Set the account's balance
-    this.balance = balance;
+    this.balance = toMoney(balance);
     
     // Using the account's unique ID, obtain its type ID from the database
     this.type = DatabaseSelectHelper.getAccountType(id);
   }
   
+  
+  /**
+   * Constructor for BalanceOwing with its type ID.
+   * @param id is the account's unique ID as defined by the database
+   * @param name is the account's name
+   * @param balance is the balance remaining in the account
+   * @param typeId is the account's type ID
+   */
+  public BalanceOwing(int id, String name, BigDecimal balance, int typeId) {
+    // Set the account's ID to the database generated ID
+    this.id = id;
+    // Set the account's name
+    this.name = name;
+    // Set the account's balance
+    this.balance = toMoney(balance);
+    // Set the account's type ID
+    this.type = typeId;
+  }
+  
 }
@@ -0,0 +1,91 @@
+package com.bank.accounts;
+
+import com.bank.generics.LedgerEntryTypes;
+
+import java.math.BigDecimal;
+
+
+public class LedgerEntry {
+
+  // Ledger entries are never changed once written, so every field is final
+  private final long id;                 // id is the entry's position in the ledger
+  private final int accountId;           // accountId is the account whose balance changed
+  private final LedgerEntryTypes type;   // type is what caused the change
+  private final BigDecimal amount;       // amount is the signed change to the balance
+  private final BigDecimal balance;      // balance is the account's balance after the change
+  private final long posted;             // posted is when the change was made, in epoch millis
+
+
+  /**
+   * Creates a ledger entry as read from the database.
+   * @param id is the entry's sequential ID
+   * @param accountId is the ID of the account whose balance changed
+   * @param type is what caused the change
+   * @param amount is the signed change to the balance
+   * @param balance is the account's balance after the change
+   * @param posted is when the change was made, in milliseconds since the epoch
+   */
+  public LedgerEntry(long id, int accountId, LedgerEntryTypes type, BigDecimal amount,
+      BigDecimal balance, long posted) {
+    this.id = id;
+    this.accountId = accountId;
+    this.type = type;
+    this.amount = amount;
+    this.balance = balance;
+    this.posted = posted;
+  }
+
+
+  /**
+   * Returns the entry's sequential ID. Later entries always have larger IDs.
+   * @return the ID of the entry
+   */
+  public long getId() {
+    return this.id;
+  }
+
+
+  /**
+   * Returns the ID of the account whose balance changed.
+   * @return the account's ID
+   */
+  public int getAccountId() {
+    return this.accountId;
+  }
+
+
+  /**
+   * Returns what caused the change, such as a deposit or an interest posting.
+   * @return the type of the entry
+   */
+  public LedgerEntryTypes getType() {
+    return this.type;
+  }
+
+
+  /**
+   * Returns the signed change to the balance, negative when money left the account.
+   * @return the amount of the change
+   */
+  public BigDecimal getAmount() {
+    return this.amount;
+  }
+
+
+  /**
+   * Returns the account's balance once the change had been made.
+   * @return the resulting balance
+   */
+  public BigDecimal getBalance() {
+    return this.balance;
+  }
+
+
+  /**
+   * Returns when the change was made.
+   * @return the time of the change, in milliseconds since the epoch
+   */
+  public long getPosted() {
+    return this.posted;
+  }
+}
@@ -18,5 +18,17 @@ public class RestrictedSavings extends SavingsAccount {
     // Using the account's unique ID, obtain its type ID from the database
     this.type = DatabaseSelectHelper.getAccountType(id);
   }
+  
+  
+  /**
+   * Constructor for a RestrictedSavingsAccount with a known type ID.
+   * @param id is the account's unique ID as defined by the database
+   * @param name is the account's name
+   * @param balance is the balance remaining in the account
+   * @param typeId is the account's type ID
+   */
+  public RestrictedSavings(int id, String name, BigDecimal balance, int typeId) {
+    super(id, name, balance, typeId);
+  }
 
 }
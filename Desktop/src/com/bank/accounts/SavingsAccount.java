@@ -19,9 +19,28 @@ public class SavingsAccount extends Account {
     // Set the account's name
     this.name = name;
     // Set the account's balance
-    this.balance = balance;
+    this.balance = toMoney(balance);
     
     // Using the account's unique ID, obtain its type ID from the database
     this.type = DatabaseSelectHelper.getAccountType(id);
   }
+  
+  
+  /**
+   * Constructor for SavingsAccount that takes the type ID instead of looking it up.
+   * @param id is the account's unique ID as defined by the database
+   * @param name is the account's name
+   * @param balance is the balance remaining in the account
+   * @param typeId is the account's type ID
+   */
+  public SavingsAccount(int id, String name, BigDecimal balance, int typeId) {
+    // Set the account's ID to the database generated ID
+    this.id = id;
+    // Set the account's name
+    this.name = name;
+    // Set the account's balance
+    this.balance = toMoney(balance);
+    // Set the account's type ID
+    this.type = typeId;
+  }
 }
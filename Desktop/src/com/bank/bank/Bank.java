@@ -97,7 +97,6 @@ public class Bank {
    * @param argv unused.
    */
   public static void main(String[] argv) {
-    Connection connection = DatabaseDriverExtender.connectOrCreateDataBase();
     Admin systemAdministrator = null;
     boolean systemSetupComplete = false;
     boolean typeRoleInstalled = false;
@@ -141,7 +140,14 @@ public class Bank {
           
           if (! typeRoleInstalled) {
             // Connect to the database
+            Connection connection = DatabaseDriverExtender.connectOrCreateDataBase();
             DatabaseDriverExtender.initialize(connection);
+            // Hand the connection back to the pool now that the tables are set up
+            try {
+              connection.close();
+            } catch (SQLException e) {
+              System.out.println("Unable to close connection");
+            }
           
             // Define the User Roles.
             DatabaseInsertHelper.insertRole("ADMIN");
@@ -271,6 +277,24 @@ public class Bank {
               System.out.println(" | [12]     View My Messages      |");
               System.out.println(" | [13]     Leave Message         |");
               System.out.println(" |- - - - - - - - - - - - - - - - |");
+              // Interest accrued per account is paid as it falls due, not by a bank-wide run
+              if (currentAdminUser.canPayInterestToAllAccounts()) {
+                System.out.println(" | [14]     Pay interest on all   |");
+                System.out.println(" |          bank accounts         |");
+                System.out.println(" |- - - - - - - - - - - - - - - - |");
+              }
+              System.out.println(" | [15]     Back up live database |");
+              System.out.println(" | [16]     Export changes since  |");
+              System.out.println(" |          the last export       |");
+              System.out.println(" |- - - - - - - - - - - - - - - - |");
+              System.out.println(" | [17]     View database         |");
+              System.out.println(" |          statistics            |");
+              System.out.println(" |- - - - - - - - - - - - - - - - |");
+              System.out.println(" | [18]     Check user balance    |");
+              System.out.println(" |          totals                |");
+              System.out.println(" | [19]     Rebuild user balance  |");
+              System.out.println(" |          totals                |");
+              System.out.println(" |- - - - - - - - - - - - - - - - |");
               System.out.println(" | [OTHER]  Exit to startup menu  |");
               System.out.println(" |________________________________|");  
               
@@ -436,18 +460,16 @@ public class Bank {
                     System.out.println("- - - - - - - - - - - - - - - ");
                     System.out.println("Accounts: ");
                     
-                    // Get the user's accounts from the database
-                    List<Integer> userAccounts = DatabaseSelectHelper.getAccountIds(userSelection);
+                    // Get the user's accounts from the database in a single query
+                    List<Account> userAccounts = DatabaseSelectHelper.getAccounts(userSelection);
                     // If the user has an account(s)...
-                    if (userAccounts.size() > 0) {
+                    if (userAccounts != null && userAccounts.size() > 0) {
                       System.out.println(" ");
                       System.out.println(" NAME  | BALANCE "); 
                       System.out.println(" ");
-                      // Iterate through the user's accounts
-                      for (Integer userAcc : userAccounts) {
-                        // Get the details of each account in order to print out the name and their
-                        // balance. 
-                        Account acc = DatabaseSelectHelper.getAccountDetails(userAcc);
+                      // Iterate through the user's accounts, printing out the name and their
+                      // balance.
+                      for (Account acc : userAccounts) {
                         System.out.println(acc.getName() + " ..... $" + acc.getBalance());
                       }
                       // Print out the sum of all the account balances.
@@ -509,18 +531,14 @@ public class Bank {
                 // [9] If the admin wants to serialize the database
               } else if (adminSelection.equals("9")) {
                 currentAdminUser.serializeDatabase();
-                System.out.println("Database has been written to the file 'database_copy.ser'.");
+                System.out.println("Database has been written to the file "
+                    + "'database_copy.snapshot'.");
                 
                 // [10] If the admin wants to deserialize a given copy of another database
               } else if (adminSelection.equals("10")) {
-                try {
-                  connection.close();
-                } catch (SQLException e) {
-                  System.out.println("Unable to deserialize the file 'database_copy.ser'.");
-                }
                 currentAdminUser.deserializeDatabase();
-                connection = DatabaseDriverExtender.connectOrCreateDataBase();
-                System.out.println("Database has deserialized the file 'database_copy.ser'.");
+                System.out.println("Database has deserialized the file "
+                    + "'database_copy.snapshot'.");
 
                 
                 // [11] If the admin wants to view someone's message
@@ -588,6 +606,104 @@ public class Bank {
                   }
                 }
                 
+                // [14] If the admin wants to pay interest on every account in the bank
+              } else if (adminSelection.equals("14")
+                  && currentAdminUser.canPayInterestToAllAccounts()) {
+                System.out.println("Paying interest on all bank accounts...");
+                final AdminTerminal interestAdmin = currentAdminUser;
+                final String[] interestSummary = new String[1];
+                // Pay the interest in the background and report on it every second
+                Thread interestRun = new Thread(new Runnable() {
+                  @Override
+                  public void run() {
+                    interestSummary[0] = interestAdmin.giveInterestToAllAccounts();
+                  }
+                }, "bank-interest-run");
+                interestRun.start();
+                try {
+                  interestRun.join(1000);
+                  while (interestRun.isAlive()) {
+                    System.out.println(currentAdminUser.viewInterestRunProgress());
+                    interestRun.join(1000);
+                  }
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+                System.out.println("- - - - - - - - - - - - - - - - - - - - -");
+                if (interestSummary[0] == null) {
+                  System.out.println("There were no accounts to pay interest on.");
+                } else {
+                  System.out.println(interestSummary[0]);
+                }
+                
+                // [15] If the admin wants to back up the database while it is in use
+              } else if (adminSelection.equals("15")) {
+                System.out.println("Backing up the database...");
+                final AdminTerminal backupAdmin = currentAdminUser;
+                final String[] backupSummary = new String[1];
+                // Copy the database in the background and report on it every second
+                Thread backup = new Thread(new Runnable() {
+                  @Override
+                  public void run() {
+                    backupSummary[0] = backupAdmin.backUpDatabase();
+                  }
+                }, "bank-online-backup");
+                backup.start();
+                try {
+                  backup.join(1000);
+                  while (backup.isAlive()) {
+                    System.out.println(currentAdminUser.viewBackupProgress());
+                    backup.join(1000);
+                  }
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+                System.out.println("- - - - - - - - - - - - - - - - - - - - -");
+                if (backupSummary[0] == null) {
+                  System.out.println("The database could not be backed up.");
+                } else {
+                  System.out.println(backupSummary[0]);
+                }
+                
+                // [16] If the admin wants to export only what changed since the last export
+              } else if (adminSelection.equals("16")) {
+                if (currentAdminUser.serializeDatabaseChanges()) {
+                  System.out.println("The changes since the last export have been written "
+                      + "after 'database_copy.snapshot'.");
+                }
+                
+                // [17] If the admin wants to see how the database layer is performing
+              } else if (adminSelection.equals("17")) {
+                System.out.println("Connection pool:  "
+                    + DatabaseDriverExtender.getConnectionStatistics());
+                System.out.println("Database writer:  "
+                    + DatabaseDriverExtender.getWriteStatistics());
+                System.out.println("Balance journal:  "
+                    + DatabaseDriverExtender.getJournalStatistics());
+                System.out.println("Interest accrual: "
+                    + DatabaseDriverExtender.getAccrualStatistics());
+                
+                // [18] If the admin wants to check the stored user totals against the accounts
+              } else if (adminSelection.equals("18")) {
+                List<Integer> inconsistentUsers = currentAdminUser.findInconsistentUserTotals();
+                if (inconsistentUsers == null) {
+                  System.out.println("The user balance totals could not be checked.");
+                } else if (inconsistentUsers.isEmpty()) {
+                  System.out.println("Every user's balance total is correct.");
+                } else {
+                  System.out.println("The balance totals of these users are wrong: "
+                      + inconsistentUsers);
+                  System.out.println("Select [19] to rebuild them.");
+                }
+                
+                // [19] If the admin wants to recompute every user's stored total
+              } else if (adminSelection.equals("19")) {
+                if (currentAdminUser.rebuildUserTotals()) {
+                  System.out.println("The user balance totals have been rebuilt.");
+                } else {
+                  System.out.println("The user balance totals could not be rebuilt.");
+                }
+                
               } else {
                 // Exit the input loop
                 exitAdminTerminal = true;
@@ -742,6 +858,7 @@ public class Bank {
                   System.out.println(" | [4]    Give interest           |");
                   System.out.println(" | [5]    Make a deposit          |");
                   System.out.println(" | [6]    Make a withdrawal       |");
+                  System.out.println(" | [14]   Make a transfer         |");
                   System.out.println(" | [7]    Check balance           |");
                   System.out.println(" |--------------------------------|");
                   System.out.println(" | [8]    Close customer session  |");
@@ -930,18 +1047,28 @@ public class Bank {
                     // Check that the typeId and start Balance are valid
                     if (validType && validStartBalance && (! isSavings)) {
                       // Create Account through the teller terminal and link to the current customer
-                      tellerTerminal.makeNewAccount(accountName, balance, selectedAccountType);
-                      // Report success
-                      System.out.println(
-                          "Success. " + accountName + " has been activated.");
+                      if (tellerTerminal.makeNewAccount(accountName, balance,
+                          selectedAccountType)) {
+                        // Report success
+                        System.out.println(
+                            "Success. " + accountName + " has been activated.");
+                      } else {
+                        // Report failure
+                        System.out.println("The account could not be created. Please try again.");
+                      }
                     
                       // If the account is a savings or restricted savings
                     } else if (validType && validStartBalanceSavings && isSavings) {
                       // Create Account through the teller terminal and link to the current customer
-                      tellerTerminal.makeNewAccount(accountName, balance, selectedAccountType);
-                      // Report success
-                      System.out.println(
-                          "Success. " + accountName + " has been activated.");
+                      if (tellerTerminal.makeNewAccount(accountName, balance,
+                          selectedAccountType)) {
+                        // Report success
+                        System.out.println(
+                            "Success. " + accountName + " has been activated.");
+                      } else {
+                        // Report failure
+                        System.out.println("The account could not be created. Please try again.");
+                      }
                     
                     } else if (validType && (! validStartBalanceSavings) && isSavings) {
                       // Report failure
@@ -951,10 +1078,15 @@ public class Bank {
                       // Run a check to see if the account type is a balance owing account
                     } else if (isBalanceOwing) {
                       // Create Account through the teller terminal and link to the current customer
-                      tellerTerminal.makeNewAccount(accountName, balance, selectedAccountType);
-                      // Report success
-                      System.out.println(
-                          "Success. " + accountName + " has been activated.");
+                      if (tellerTerminal.makeNewAccount(accountName, balance,
+                          selectedAccountType)) {
+                        // Report success
+                        System.out.println(
+                            "Success. " + accountName + " has been activated.");
+                      } else {
+                        // Report failure
+                        System.out.println("The account could not be created. Please try again.");
+                      }
                       
                     } else {
                       // Report failure
@@ -982,19 +1114,25 @@ public class Bank {
                     int giveInterestMethod = getInputNumeric();
                     System.out.println("");
                   
+                    boolean interestGiven;
                     if (giveInterestMethod == 1) {
-                      tellerTerminal.giveInterest();
+                      interestGiven = tellerTerminal.giveInterest();
                     } else {
                       // Request the account ID
                       System.out.println(
                           "Please enter the ID of the account to give interest to.");  
                       int accountId = getInputNumeric();
                       // Use the teller terminal and attempt to give interest
-                      tellerTerminal.giveInterest(accountId);
+                      interestGiven = tellerTerminal.giveInterest(accountId);
                     }
                     
-                    // Report that attempt has been made.
-                    System.out.println("Transaction complete.");
+                    // Report whether the attempt went through
+                    if (interestGiven) {
+                      System.out.println("Transaction complete.");
+                    } else {
+                      System.out.println("The transaction could not be completed. "
+                          + "Please try again.");
+                    }
                     
                     // [INPUT 4] and not Both Authenticated -> Fail
                   } else if (tellerSelection.equals("4")
@@ -1099,6 +1237,56 @@ public class Bank {
                     System.out.println("Please check authentication try again.");
                    
                     
+                    // [INPUT 14] and Both Authenticated -> Make a transfer
+                  } else if (tellerSelection.equals("14")
+                      && tellerAuthenticated && customerAuthenticated) {
+                    // Request the account IDs
+                    System.out.println(
+                        "Please enter the ID of the customer account to transfer from:");
+                    int fromAccountId = getInputNumeric();
+                    System.out.println(
+                        "Please enter the ID of the customer account to transfer to:");
+                    int toAccountId = getInputNumeric();
+                    
+                    // Request the transfer amount
+                    System.out.println(
+                        "Please enter the amount that the customer wishes to transfer:");
+                    BigDecimal amount = new BigDecimal(getInputNumericChars());
+                    
+                    // Attempt to transfer through TellerTerminal and get token
+                    boolean success = false;
+                    try {
+                      success = tellerTerminal.makeTransfer(amount, fromAccountId, toAccountId);
+                    } catch (InsufficientPrivilegesException ipe) {
+                      System.out.println("Insufficient Privileges.");
+                    } catch (InsufficientFundsException ise) {
+                      System.out.println("Insufficient Funds to transfer from.");
+                    } catch (IllegalAmountException iae) {
+                      System.out.println("Invalid transfer amount.");
+                      System.out.println("The minimum transfer amount is $0.01.");
+                    }
+                    
+                    // Report whether the request was successful.
+                    if (success) {
+                      // Report both new balances
+                      System.out.println("Transfer Successful.");
+                      System.out.println("Remaining Balance: $"
+                          + DatabaseSelectHelper.getAccountDetails(fromAccountId).getBalance());
+                      System.out.println("New Balance: $"
+                          + DatabaseSelectHelper.getAccountDetails(toAccountId).getBalance());
+                      
+                      // Report whether the request was successful.
+                    } else {
+                      System.out.println("Transfer Failed.");
+                    }
+                    
+                    // [INPUT 14] and not Both Authenticated -> Fail
+                  } else if (tellerSelection.equals("14")
+                          && (!tellerAuthenticated || !customerAuthenticated)) {
+                    // Report failure
+                    System.out.println("Please check authentication try again.");
+                   
+                    
                     // [INPUT 7] and Both Authenticated -> Check Balance
                   } else if (tellerSelection.equals("7")
                       && tellerAuthenticated && customerAuthenticated) {
@@ -1194,19 +1382,17 @@ public class Bank {
                         System.out.println("- - - - - - - - - - - - - - - ");
                         System.out.println("Accounts: ");
                         
-                        // Get the user's accounts from the database
-                        List<Integer> userAccounts = DatabaseSelectHelper.getAccountIds(
+                        // Get the user's accounts from the database in a single query
+                        List<Account> userAccounts = DatabaseSelectHelper.getAccounts(
                             tellerChoice);
                         // If the user has an account(s)...
-                        if (userAccounts.size() > 0) {
+                        if (userAccounts != null && userAccounts.size() > 0) {
                           System.out.println(" ");
                           System.out.println(" NAME  | BALANCE "); 
                           System.out.println(" ");
-                          // Iterate through the user's accounts
-                          for (Integer userAcc : userAccounts) {
-                            // Get the details of each account in order to print out the name and 
-                            // their balance. 
-                            Account acc = DatabaseSelectHelper.getAccountDetails(userAcc);
+                          // Iterate through the user's accounts, printing out the name and 
+                          // their balance.
+                          for (Account acc : userAccounts) {
                             System.out.println(acc.getName() + " ..... $" + acc.getBalance());
                           }
                           // Print out the sum of all the account balances.
@@ -1566,6 +1752,7 @@ public class Bank {
                 System.out.println(" | [1] Make a Deposit             |");
                 System.out.println(" | [2] Check an Account Balance   |");
                 System.out.println(" | [3] Make a Withdrawal          |");
+                System.out.println(" | [6] Make a Transfer            |");
                 System.out.println(" |--------------------------------|");
                 System.out.println(" | [4] Go to My Inbox             |");
                 System.out.println(" |--------------------------------|");
@@ -1687,6 +1874,48 @@ public class Bank {
                     System.out.println("Withdrawal Failed. Please try again.");
                   }
                   
+                  // [INPUT 6] -> Make transfer
+                } else if (customerSelection.equals("6")) {
+                  // Request the account IDs
+                  System.out.println(
+                      "Please enter the ID of the account that you wish to transfer from:");
+                  int fromAccountId = getInputNumeric();
+                  System.out.println(
+                      "Please enter the ID of the account that you wish to transfer to:");
+                  int toAccountId = getInputNumeric();
+                  
+                  // Request the transfer amount
+                  System.out.println(
+                      "Please enter the amount that you would like to transfer:");
+                  BigDecimal amount = new BigDecimal(getInputNumericChars());
+                  
+                  // Attempt to transfer through the ATM and get token
+                  boolean success = false;
+                  try {
+                    success = atmConnection.makeTransfer(amount, fromAccountId, toAccountId);
+                  } catch (InsufficientPrivilegesException ipe) {
+                    System.out.println("Insufficient Privileges");
+                  } catch (InsufficientFundsException ise) {
+                    System.out.println("Insufficient Funds to transfer from.");
+                  } catch (IllegalAmountException iae) {
+                    System.out.println("Invalid transfer amount.");
+                    System.out.println("The minimum transfer amount is $0.01.");
+                  }
+                  
+                  // Report whether the request was successful.
+                  if (success) {
+                    // Report both new balances
+                    System.out.println("Transfer Successful.");
+                    System.out.println("Remaining Balance: $"
+                        + DatabaseSelectHelper.getAccountDetails(fromAccountId).getBalance());
+                    System.out.println("New Balance: $"
+                        + DatabaseSelectHelper.getAccountDetails(toAccountId).getBalance());
+                    
+                    // Report whether the request was successful.
+                  } else {
+                    System.out.println("Transfer Failed. Please try again.");
+                  }
+                  
                   // [INPUT 4] -> View messages
                 } else if (customerSelection.equals("4")) {
                   List<Message> customerMessages = atmConnection.viewOwnMessages();
@@ -1787,12 +2016,9 @@ public class Bank {
       c.printStackTrace();
     
     } finally {
-      try {
-        connection.close();
-      } catch (Exception e) {
-        System.out.println("All connections to the database have now been closed.");
-        e.printStackTrace();
-      }
+      // Close every pooled connection to the database
+      DatabaseDriverExtender.closeConnections();
+      System.out.println("All connections to the database have now been closed.");
     }
     
   }
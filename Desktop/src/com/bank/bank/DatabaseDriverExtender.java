@@ -13,4 +13,24 @@ public class DatabaseDriverExtender extends DatabaseDriver {
   protected static Connection initialize(Connection connection) throws ConnectionFailedException {
     return DatabaseDriver.initialize(connection);
   }
+  
+  protected static void closeConnections() {
+    DatabaseDriver.closeConnections();
+  }
+  
+  protected static String getConnectionStatistics() {
+    return DatabaseDriver.getConnectionStatistics();
+  }
+  
+  protected static String getWriteStatistics() {
+    return DatabaseDriver.getWriteStatistics();
+  }
+  
+  protected static String getJournalStatistics() {
+    return DatabaseDriver.getJournalStatistics();
+  }
+  
+  protected static String getAccrualStatistics() {
+    return DatabaseDriver.getAccrualStatistics();
+  }
 }
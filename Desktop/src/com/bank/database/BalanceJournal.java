@@ -0,0 +1,1093 @@
+package com.bank.database;
+
+import com.bank.generics.LedgerEntryTypes;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An optional journal for the balance changes made at the terminals. When it is enabled,
+ * deposits, withdrawals and transfers are appended to a memory-mapped journal file and
+ * acknowledged without waiting for a SQLite commit. A background thread periodically folds the
+ * journaled changes into ACCOUNTS and LEDGER in a single transaction, recording how far it got
+ * in the JOURNALCHECKPOINT table, and the next time the database is opened any records beyond
+ * that point are replayed.
+ *
+ * <p>The journal is a directory of fixed-size segment files. Each record is framed by its
+ * length and a CRC32 of its contents, so a record torn by a crash is recognised and dropped
+ * along with the rest of the change it belonged to. How often the segments are forced to disk
+ * is set by bank.journal.fsync: "always" before every acknowledgement, "interval" every
+ * bank.journal.fsyncMillis, or "never", leaving it to the operating system.
+ *
+ * <p>Balances read through the helpers include journaled changes straight away. Totals, the
+ * ledger and anything else read straight from the tables catch up at the next checkpoint.
+ *
+ * <p>Changes made inside a UnitOfWork are held back until the unit has committed, which for a
+ * unit run in the writer's group means until the group has, and are then appended as a single
+ * change, so a unit that rolls back or whose group fails leaves nothing in the journal. Until
+ * then, the withdrawals among them are counted against the accounts' balances when other
+ * changes are checked, but the unit's changes are only seen in balances read on its own thread.
+ */
+public class BalanceJournal {
+
+  // Journal location, sizing and timing, each of which may be overridden through a property
+  private static final boolean ENABLED = Boolean.getBoolean("bank.journal.enabled");
+  private static final Path DIRECTORY =
+      Paths.get(System.getProperty("bank.journal.directory", "bank-journal"));
+  private static final int SEGMENT_BYTES =
+      Integer.getInteger("bank.journal.segmentBytes", 4 * 1024 * 1024);
+  private static final String FSYNC_POLICY = System.getProperty("bank.journal.fsync", "always");
+  private static final long FSYNC_MILLIS = Long.getLong("bank.journal.fsyncMillis", 50L);
+  private static final long CHECKPOINT_MILLIS =
+      Long.getLong("bank.journal.checkpointMillis", 200L);
+
+  // Record framing: length and CRC32, then sequence, account, amount, type and flags
+  private static final int HEADER_BYTES = 8;
+  private static final int PAYLOAD_BYTES = 22;
+  private static final int RECORD_BYTES = HEADER_BYTES + PAYLOAD_BYTES;
+  // Set on the last record of a change, so a change is replayed whole or not at all
+  private static final byte END_OF_CHANGE = 1;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".journal";
+
+  private static volatile BalanceJournal instance;
+  // The changes held back by the unit of work open on each thread
+  private static final ThreadLocal<UnitChanges> UNIT_CHANGES = new ThreadLocal<UnitChanges>();
+
+  private final Thread checkpointer;
+  private volatile boolean closed = false;
+
+  // Guarded by this journal's monitor
+  private Segment current;
+  private final List<Segment> fullSegments = new ArrayList<Segment>();
+  private final List<JournalRecord> pendingRecords = new ArrayList<JournalRecord>();
+  private final Map<Integer, Long> pendingUnits = new HashMap<Integer, Long>();
+  // Withdrawals held back by open units of work, which may yet be appended
+  private final Map<Integer, Long> reservedUnits = new HashMap<Integer, Long>();
+  private long lastSequence;
+  private int lastSegmentNumber;
+  // Bumped by every checkpoint, so a balance read across one can tell and be retried
+  private long generation = 0;
+  private boolean checkpointing = false;
+
+  // Only one checkpoint or forced sync runs at a time
+  private final Object checkpointLock = new Object();
+  private final Object syncLock = new Object();
+  private long syncedSequence;
+
+  // Accounting
+  private long appendCount = 0;
+  private long refusedCount = 0;
+  private long checkpointCount = 0;
+  private long lastCheckpointSize = 0;
+  private long syncCount = 0;
+
+
+  /**
+   * Opens the journal, replaying whatever the last run left behind.
+   * @throws IOException if the journal directory could not be read or written.
+   * @throws SQLException if the replayed records could not be applied.
+   */
+  private BalanceJournal() throws IOException, SQLException {
+    Files.createDirectories(DIRECTORY);
+    replay();
+    current = openSegment(++lastSegmentNumber);
+    syncedSequence = lastSequence;
+    checkpointer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        checkpointLoop();
+      }
+    }, "bank-balance-journal");
+    checkpointer.setDaemon(true);
+    checkpointer.start();
+  }
+
+
+  /**
+   * Checks whether balance changes are being journaled.
+   * @return true if the bank.journal.enabled property is set, false otherwise.
+   */
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+
+  /**
+   * Opens the journal, if it is enabled and not already open, replaying any records the last
+   * run did not checkpoint. Called before a connection is handed out, so nothing reads the
+   * accounts before they have caught up.
+   */
+  static void recover() {
+    if (ENABLED && instance == null) {
+      getInstance();
+    }
+  }
+
+
+  /**
+   * Returns the open journal, opening it on first use.
+   * @return the journal, or null if it could not be opened.
+   */
+  private static synchronized BalanceJournal getInstance() {
+    if (instance == null) {
+      try {
+        instance = new BalanceJournal();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    return instance;
+  }
+
+
+  /**
+   * Journals a change to an account's balance. A change that would leave the balance below zero
+   * is refused unless the account is of the exempt type, just as updateAccountBalanceBy would,
+   * and a change of less than a cent is checked but not journaled.
+   * @param amount the amount to add, negative for a withdrawal.
+   * @param accountId the id of the account.
+   * @param exemptTypeName the name of the account type allowed to go below zero.
+   * @return the new balance, or null if the account does not exist, the change was refused or
+   *     it could not be journaled.
+   */
+  public static BigDecimal append(BigDecimal amount, int accountId, String exemptTypeName) {
+    BalanceJournal journal = getInstance();
+    if (journal == null || amount == null) {
+      return null;
+    }
+    long units = MoneyCodec.toBalanceUnits(amount);
+    LedgerEntryTypes type = (units < 0) ? LedgerEntryTypes.WITHDRAWAL : LedgerEntryTypes.DEPOSIT;
+    return journal.journal(new int[] {accountId}, new long[] {units},
+        new LedgerEntryTypes[] {type}, MoneyCodec.toCoveredUnits(amount), exemptTypeName);
+  }
+
+
+  /**
+   * Journals a transfer between two accounts as a single change, which is replayed whole or
+   * not at all. The transfer is refused if it would leave the source below zero, unless the
+   * source is of the exempt type.
+   * @param amount the amount to move, which must be positive.
+   * @param fromId the id of the account being debited.
+   * @param toId the id of the account being credited.
+   * @param exemptTypeName the name of the account type allowed to go below zero.
+   * @return the new balance of the source account, or null if the transfer was refused.
+   */
+  public static BigDecimal transfer(BigDecimal amount, int fromId, int toId,
+      String exemptTypeName) {
+    BalanceJournal journal = getInstance();
+    if (journal == null || amount == null || amount.signum() <= 0 || fromId == toId) {
+      return null;
+    }
+    long units = MoneyCodec.toBalanceUnits(amount);
+    return journal.journal(new int[] {fromId, toId}, new long[] {-units, units},
+        new LedgerEntryTypes[] {LedgerEntryTypes.TRANSFEROUT, LedgerEntryTypes.TRANSFERIN},
+        -units, exemptTypeName);
+  }
+
+
+  /**
+   * Sets an account's balance outright. The journaled changes not yet checkpointed are taken
+   * off the value written, so that once they are folded in the account holds the balance given
+   * here plus only the changes journaled after this call.
+   * @param balance the new balance.
+   * @param accountId the id of the account.
+   * @param type what caused the change, as recorded in the ledger.
+   * @return true if the balance was set, false otherwise.
+   */
+  public static boolean setBalance(BigDecimal balance, int accountId, LedgerEntryTypes type) {
+    BalanceJournal journal = getInstance();
+    if (journal == null) {
+      return false;
+    }
+    // Hold the write lock, so no checkpoint can fold in the changes being taken off
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      long pending = journal.getPendingUnits(accountId) + getUnitUnits(accountId);
+      Connection connection = DatabaseDriver.connectOrCreateDataBase();
+      boolean updated;
+      try {
+        updated = DatabaseUpdater.updateAccountBalance(MoneyCodec.fromBalanceUnits(
+            MoneyCodec.toBalanceUnits(balance) - pending), accountId, type, connection);
+      } finally {
+        connection.close();
+      }
+      return updated && unit.commit();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return false;
+    } finally {
+      unit.close();
+    }
+  }
+
+
+  /**
+   * Returns an account's balance including the changes journaled but not yet checkpointed.
+   * @param accountId the id of the account.
+   * @return the balance, or null if the account does not exist or could not be read.
+   */
+  public static BigDecimal getBalance(int accountId) {
+    BalanceJournal journal = getInstance();
+    if (journal == null) {
+      return null;
+    }
+    while (true) {
+      long stamp = journal.awaitStable();
+      Long stored = readStoredBalance(accountId);
+      synchronized (journal) {
+        if (journal.generation == stamp && !journal.checkpointing) {
+          if (stored == null) {
+            return null;
+          }
+          Long pending = journal.pendingUnits.get(accountId);
+          return MoneyCodec.fromBalanceUnits(stored + ((pending == null) ? 0 : pending)
+              + getUnitUnits(accountId));
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Returns the change to an account that is journaled but not yet checkpointed, along with any
+   * held back by the current thread's unit of work, for callers that have just read the stored
+   * balance themselves. Only the journal's in-memory state is consulted. A checkpoint that
+   * lands between the caller's read and this call can leave the sum short until the next read,
+   * which cannot happen inside a unit of work, since checkpoints wait for the write lock.
+   * @param accountId the id of the account.
+   * @return the change to add to the stored balance, in cents, or 0 if the journal is not open.
+   */
+  public static long getPendingChange(int accountId) {
+    BalanceJournal journal = instance;
+    if (journal == null) {
+      return 0;
+    }
+    return journal.getPendingUnits(accountId) + getUnitUnits(accountId);
+  }
+
+
+  /**
+   * Returns the change the current thread's unit of work has made to an account and not yet
+   * appended.
+   * @param accountId the id of the account.
+   * @return the change held back, in cents.
+   */
+  private static long getUnitUnits(int accountId) {
+    UnitChanges unitChanges = UNIT_CHANGES.get();
+    return (unitChanges == null) ? 0 : unitChanges.getUnits(accountId);
+  }
+
+
+  /**
+   * Checkpoints everything journaled so far and closes the journal. The next use opens it
+   * again, which is what callers need before the database file is deleted or replaced.
+   */
+  static synchronized void shutdown() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+
+  /**
+   * Folds everything journaled so far into the database, for callers about to work from the
+   * balances stored in ACCOUNTS rather than the ones read through the helpers.
+   * @return true if nothing was left to fold in or it was folded in, false otherwise.
+   */
+  static boolean flush() {
+    BalanceJournal journal = instance;
+    return journal == null || journal.checkpoint();
+  }
+
+
+  /**
+   * Returns a summary of the journal's accounting counters.
+   * @return a one line description of the journal's state.
+   */
+  static String getStatistics() {
+    BalanceJournal journal = instance;
+    if (journal == null) {
+      return ENABLED ? "journal=closed" : "journal=disabled";
+    }
+    synchronized (journal) {
+      return "appended=" + journal.appendCount + " refused=" + journal.refusedCount
+          + " pending=" + journal.pendingRecords.size() + " lastSequence=" + journal.lastSequence
+          + " checkpoints=" + journal.checkpointCount
+          + " lastCheckpoint=" + journal.lastCheckpointSize + " syncs=" + journal.syncCount
+          + " segments=" + (journal.fullSegments.size() + 1) + " fsync=" + FSYNC_POLICY;
+    }
+  }
+
+
+  /**
+   * Checks a change against the accounts' balances and appends it to the journal, or holds it
+   * back until the current thread's unit of work commits.
+   * @param accountIds the accounts the change touches; the first is the one guarded.
+   * @param units the signed change to each account, in cents.
+   * @param types the ledger type of each part of the change.
+   * @param coveredUnits the change the first account must be able to cover, in cents, which
+   *     for a withdrawal of part of a cent is more than is taken.
+   * @param exemptTypeName the name of the account type allowed to go below zero.
+   * @return the new balance of the first account, or null if the change was refused.
+   */
+  private BigDecimal journal(int[] accountIds, long[] units, LedgerEntryTypes[] types,
+      long coveredUnits, String exemptTypeName) {
+    long sequence;
+    long newBalance;
+    while (true) {
+      // Read the stored balances outside the lock, then make sure no checkpoint moved them
+      long stamp = awaitStable();
+      long[] stored = new long[accountIds.length];
+      String exemptType = null;
+      boolean exists = true;
+      Connection connection = DatabaseDriver.connectOrCreateDataBase();
+      try {
+        for (int i = 0; i < accountIds.length && exists; i++) {
+          ResultSet results = DatabaseSelector.getBalanceAndTypeName(accountIds[i], connection);
+          exists = results.next();
+          if (exists) {
+            stored[i] = results.getLong("BALANCE");
+            if (i == 0) {
+              exemptType = results.getString("TYPENAME");
+            }
+          }
+          results.close();
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return null;
+      } finally {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          // The pool discards connections it cannot reset
+        }
+      }
+      synchronized (this) {
+        if (generation != stamp || checkpointing) {
+          continue;
+        }
+        if (!exists || closed) {
+          return null;
+        }
+        UnitChanges unitChanges = UNIT_CHANGES.get();
+        Long pending = pendingUnits.get(accountIds[0]);
+        newBalance = stored[0] + ((pending == null) ? 0 : pending) + units[0];
+        // Other units' withdrawals may still be appended, so they are counted as well
+        long guarded = newBalance - units[0] + coveredUnits;
+        Long reserved = reservedUnits.get(accountIds[0]);
+        if (reserved != null) {
+          guarded += reserved;
+        }
+        if (unitChanges != null) {
+          newBalance += unitChanges.getUnits(accountIds[0]);
+          guarded += unitChanges.getUnits(accountIds[0]) - unitChanges.getDebits(accountIds[0]);
+        }
+        if (coveredUnits < 0 && guarded < 0
+            && !exemptTypeName.toLowerCase().equals(exemptType)) {
+          refusedCount++;
+          return null;
+        }
+        // A change of less than a cent leaves the balance as it was, so there is nothing to add
+        if (accountIds.length == 1 && units[0] == 0) {
+          return MoneyCodec.fromBalanceUnits(newBalance);
+        }
+        if (unitChanges == null && UnitOfWork.isActive()) {
+          unitChanges = new UnitChanges();
+          UnitOfWork.register(unitChanges);
+          UNIT_CHANGES.set(unitChanges);
+        }
+        if (unitChanges != null) {
+          unitChanges.add(accountIds, units, types);
+          return MoneyCodec.fromBalanceUnits(newBalance);
+        }
+        try {
+          sequence = write(accountIds, units, types);
+        } catch (IOException e) {
+          e.printStackTrace();
+          return null;
+        }
+        appendCount++;
+        break;
+      }
+    }
+    if (FSYNC_POLICY.equalsIgnoreCase("always")) {
+      sync(sequence);
+    }
+    return MoneyCodec.fromBalanceUnits(newBalance);
+  }
+
+
+  /**
+   * Appends the records of one change to the current segment, starting a new segment if it
+   * does not have room for all of them. Must be called holding the journal's monitor.
+   * @param accountIds the account each record changes.
+   * @param units the signed change each record makes, in cents.
+   * @param types the ledger type of each record.
+   * @return the sequence number of the change's last record.
+   * @throws IOException if a new segment could not be started.
+   */
+  private long write(int[] accountIds, long[] units, LedgerEntryTypes[] types)
+      throws IOException {
+    if (current.buffer.remaining() < RECORD_BYTES * accountIds.length) {
+      // Make the full segment durable before anything is written after it
+      current.buffer.force();
+      current.close();
+      fullSegments.add(current);
+      current = openSegment(++lastSegmentNumber);
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_BYTES);
+    for (int i = 0; i < accountIds.length; i++) {
+      JournalRecord record = new JournalRecord(++lastSequence, accountIds[i], units[i],
+          types[i].getCode(), (i == accountIds.length - 1) ? END_OF_CHANGE : 0);
+      payload.clear();
+      record.writeTo(payload);
+      crc.reset();
+      crc.update(payload.array(), 0, PAYLOAD_BYTES);
+      current.buffer.putInt(PAYLOAD_BYTES);
+      current.buffer.putInt((int) crc.getValue());
+      current.buffer.put(payload.array(), 0, PAYLOAD_BYTES);
+      current.lastSequence = record.sequence;
+      pendingRecords.add(record);
+      Long pending = pendingUnits.get(record.accountId);
+      pendingUnits.put(record.accountId, ((pending == null) ? 0 : pending) + record.units);
+    }
+    return lastSequence;
+  }
+
+
+  /**
+   * Forces the journal to disk up to at least the given record. Appenders that arrive while a
+   * force is running share the next one.
+   * @param sequence the sequence number that must be durable.
+   */
+  private void sync(long sequence) {
+    synchronized (syncLock) {
+      if (syncedSequence >= sequence) {
+        return;
+      }
+      Segment segment;
+      long upTo;
+      synchronized (this) {
+        segment = current;
+        upTo = lastSequence;
+      }
+      // Earlier segments were forced when they filled up
+      segment.buffer.force();
+      syncedSequence = upTo;
+      synchronized (this) {
+        syncCount++;
+      }
+    }
+  }
+
+
+  /**
+   * Waits for any checkpoint in progress to finish.
+   * @return the checkpoint generation the caller's reads belong to.
+   */
+  private synchronized long awaitStable() {
+    while (checkpointing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return generation;
+  }
+
+
+  /**
+   * Returns the change journaled for an account and not yet checkpointed, once any checkpoint
+   * in progress has finished.
+   * @param accountId the id of the account.
+   * @return the pending change, in cents.
+   */
+  private synchronized long getPendingUnits(int accountId) {
+    awaitStable();
+    Long pending = pendingUnits.get(accountId);
+    return (pending == null) ? 0 : pending;
+  }
+
+
+  /**
+   * Reads an account's balance as stored in ACCOUNTS.
+   * @param accountId the id of the account.
+   * @return the stored balance in cents, or null if there is no such account.
+   */
+  private static Long readStoredBalance(int accountId) {
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    try {
+      ResultSet results = DatabaseSelector.getBalanceAndTypeName(accountId, connection);
+      Long balance = results.next() ? results.getLong("BALANCE") : null;
+      results.close();
+      return balance;
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // The pool discards connections it cannot reset
+      }
+    }
+  }
+
+
+  /**
+   * Folds the records journaled so far into the database in one transaction, then drops the
+   * segments holding nothing but checkpointed records.
+   * @return true if the records were applied or there were none, false otherwise.
+   */
+  private boolean checkpoint() {
+    synchronized (checkpointLock) {
+      synchronized (this) {
+        if (pendingRecords.isEmpty()) {
+          return true;
+        }
+      }
+      // Take the write lock before blocking readers, so none of them is holding it meanwhile,
+      // and have the writer commit before lending it to one of them
+      if (UnitOfWork.isActive()) {
+        return false;
+      }
+      UnitOfWork unit = UnitOfWork.begin(true);
+      try {
+        if (!UnitOfWork.isActive()) {
+          return false;
+        }
+        List<JournalRecord> batch;
+        synchronized (this) {
+          checkpointing = true;
+          batch = new ArrayList<JournalRecord>(pendingRecords);
+        }
+        boolean committed = false;
+        try {
+          int[] accountIds = new int[batch.size()];
+          long[] units = new long[batch.size()];
+          int[] typeCodes = new int[batch.size()];
+          for (int i = 0; i < batch.size(); i++) {
+            accountIds[i] = batch.get(i).accountId;
+            units[i] = batch.get(i).units;
+            typeCodes[i] = batch.get(i).typeCode;
+          }
+          long upTo = batch.get(batch.size() - 1).sequence;
+          Connection connection = UnitOfWork.getConnection();
+          try {
+            committed = DatabaseUpdater.applyJournalEntries(accountIds, units, typeCodes, upTo,
+                connection) && unit.commit();
+          } finally {
+            connection.close();
+          }
+        } catch (SQLException e) {
+          e.printStackTrace();
+        } finally {
+          synchronized (this) {
+            if (committed) {
+              for (JournalRecord record : batch) {
+                pendingUnits.put(record.accountId,
+                    pendingUnits.get(record.accountId) - record.units);
+              }
+              // Forget the accounts left with nothing pending
+              for (JournalRecord record : batch) {
+                Long remaining = pendingUnits.get(record.accountId);
+                if (remaining != null && remaining == 0) {
+                  pendingUnits.remove(record.accountId);
+                }
+              }
+              pendingRecords.subList(0, batch.size()).clear();
+              checkpointCount++;
+              lastCheckpointSize = batch.size();
+            }
+            checkpointing = false;
+            generation++;
+            notifyAll();
+          }
+        }
+        if (committed) {
+          deleteCheckpointedSegments(batch.get(batch.size() - 1).sequence);
+        }
+        return committed;
+      } finally {
+        unit.close();
+      }
+    }
+  }
+
+
+  /**
+   * Deletes the full segments whose records have all been checkpointed.
+   * @param checkpointed the sequence number of the last checkpointed record.
+   */
+  private void deleteCheckpointedSegments(long checkpointed) {
+    List<Segment> done = new ArrayList<Segment>();
+    synchronized (this) {
+      while (!fullSegments.isEmpty() && fullSegments.get(0).lastSequence <= checkpointed) {
+        done.add(fullSegments.remove(0));
+      }
+    }
+    for (Segment segment : done) {
+      try {
+        Files.deleteIfExists(segment.path);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+
+  /**
+   * Checkpoints the journal, and forces it to disk under the interval policy, until it is
+   * closed.
+   */
+  private void checkpointLoop() {
+    boolean interval = FSYNC_POLICY.equalsIgnoreCase("interval");
+    long tick = interval ? Math.min(FSYNC_MILLIS, CHECKPOINT_MILLIS) : CHECKPOINT_MILLIS;
+    long nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_MILLIS;
+    while (!closed) {
+      try {
+        Thread.sleep(Math.max(1L, tick));
+      } catch (InterruptedException e) {
+        // Closing interrupts the sleep; the loop condition decides when to stop
+      }
+      try {
+        if (interval) {
+          long upTo;
+          synchronized (this) {
+            upTo = lastSequence;
+          }
+          sync(upTo);
+        }
+        if (System.currentTimeMillis() >= nextCheckpoint) {
+          checkpoint();
+          nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_MILLIS;
+        }
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+
+  /**
+   * Stops the checkpointer, checkpoints what is left and closes the current segment. The
+   * segment files are only deleted once everything in them is in the database.
+   */
+  private void close() {
+    closed = true;
+    checkpointer.interrupt();
+    try {
+      checkpointer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    boolean checkpointed = checkpoint();
+    synchronized (this) {
+      current.buffer.force();
+      current.close();
+      fullSegments.add(current);
+    }
+    if (checkpointed) {
+      deleteCheckpointedSegments(lastSequence);
+    }
+  }
+
+
+  /**
+   * Reads the segments left by the last run and applies the complete changes that were not
+   * checkpointed. Segments of a database that no longer has its tables are set aside with an
+   * .unapplied suffix rather than being replayed into a different database.
+   * @throws IOException if a segment could not be read.
+   * @throws SQLException if the records could not be applied.
+   */
+  private void replay() throws IOException, SQLException {
+    TreeMap<Integer, Path> segments = new TreeMap<Integer, Path>();
+    DirectoryStream<Path> files = Files.newDirectoryStream(DIRECTORY,
+        SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX);
+    try {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        segments.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length())), file);
+      }
+    } finally {
+      files.close();
+    }
+    if (segments.isEmpty()) {
+      return;
+    }
+    lastSegmentNumber = segments.lastKey();
+
+    // Read every intact record, stopping at the first one that is torn or missing
+    List<JournalRecord> records = new ArrayList<JournalRecord>();
+    boolean intact = true;
+    for (Path file : segments.values()) {
+      if (intact) {
+        intact = readSegment(file, records);
+      }
+    }
+    // Drop the records of a change whose last record never made it to disk
+    int complete = records.size();
+    while (complete > 0 && records.get(complete - 1).flags != END_OF_CHANGE) {
+      complete--;
+    }
+    records = records.subList(0, complete);
+    if (!records.isEmpty()) {
+      lastSequence = records.get(records.size() - 1).sequence;
+    }
+
+    Connection connection = ConnectionPool.getInstance().borrow();
+    try {
+      if (!DatabaseMigrator.tableExists("JOURNALCHECKPOINT", connection)) {
+        for (Path file : segments.values()) {
+          Files.move(file, file.resolveSibling(file.getFileName() + ".unapplied"),
+              StandardCopyOption.REPLACE_EXISTING);
+        }
+        return;
+      }
+      long checkpointed = DatabaseSelector.getJournalCheckpoint(connection);
+      lastSequence = Math.max(lastSequence, checkpointed);
+      List<JournalRecord> unapplied = new ArrayList<JournalRecord>();
+      for (JournalRecord record : records) {
+        if (record.sequence > checkpointed) {
+          unapplied.add(record);
+        }
+      }
+      if (!unapplied.isEmpty()) {
+        int[] accountIds = new int[unapplied.size()];
+        long[] units = new long[unapplied.size()];
+        int[] typeCodes = new int[unapplied.size()];
+        for (int i = 0; i < unapplied.size(); i++) {
+          accountIds[i] = unapplied.get(i).accountId;
+          units[i] = unapplied.get(i).units;
+          typeCodes[i] = unapplied.get(i).typeCode;
+        }
+        if (!DatabaseUpdater.applyJournalEntries(accountIds, units, typeCodes,
+            unapplied.get(unapplied.size() - 1).sequence, connection)) {
+          throw new SQLException("The balance journal could not be replayed");
+        }
+      }
+    } finally {
+      connection.close();
+    }
+    // Everything left behind is now in the database
+    for (Path file : segments.values()) {
+      Files.deleteIfExists(file);
+    }
+  }
+
+
+  /**
+   * Reads the intact records of one segment.
+   * @param file the segment to read.
+   * @param records the list the records are added to.
+   * @return true if the segment ended cleanly, false if it ended in a torn record.
+   * @throws IOException if the segment could not be read.
+   */
+  private static boolean readSegment(Path file, List<JournalRecord> records)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+    CRC32 crc = new CRC32();
+    while (buffer.remaining() >= HEADER_BYTES) {
+      int length = buffer.getInt();
+      if (length == 0) {
+        // The rest of the segment was never written
+        return true;
+      }
+      int checksum = buffer.getInt();
+      if (length != PAYLOAD_BYTES || buffer.remaining() < length) {
+        return false;
+      }
+      crc.reset();
+      crc.update(buffer.array(), buffer.position(), length);
+      if ((int) crc.getValue() != checksum) {
+        return false;
+      }
+      records.add(JournalRecord.readFrom(buffer));
+    }
+    return true;
+  }
+
+
+  /**
+   * Creates and maps a new segment file.
+   * @param number the segment's number, which orders it among the others.
+   * @return the mapped segment.
+   * @throws IOException if the file could not be created or mapped.
+   */
+  private static Segment openSegment(int number) throws IOException {
+    Path path = DIRECTORY.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, number,
+        SEGMENT_SUFFIX));
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    return new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        SEGMENT_BYTES));
+  }
+
+
+  /**
+   * The changes journaled inside one unit of work, which are appended once the unit has
+   * committed and dropped if it rolls back.
+   */
+  private class UnitChanges implements UnitOfWork.Completion {
+
+    private final List<Integer> accountIds = new ArrayList<Integer>();
+    private final List<Long> units = new ArrayList<Long>();
+    private final List<LedgerEntryTypes> types = new ArrayList<LedgerEntryTypes>();
+    private final Map<Integer, Long> netUnits = new HashMap<Integer, Long>();
+    // The part of reservedUnits this unit holds; guarded by the journal's monitor
+    private final Map<Integer, Long> debits = new HashMap<Integer, Long>();
+    private int changeCount = 0;
+
+
+    /**
+     * Holds back a change. Must be called holding the journal's monitor.
+     * @param changeIds the account each part of the change touches.
+     * @param changeUnits the signed change to each account, in cents.
+     * @param changeTypes the ledger type of each part of the change.
+     */
+    void add(int[] changeIds, long[] changeUnits, LedgerEntryTypes[] changeTypes) {
+      for (int i = 0; i < changeIds.length; i++) {
+        accountIds.add(changeIds[i]);
+        units.add(changeUnits[i]);
+        types.add(changeTypes[i]);
+        Long net = netUnits.get(changeIds[i]);
+        netUnits.put(changeIds[i], ((net == null) ? 0 : net) + changeUnits[i]);
+        if (changeUnits[i] < 0) {
+          Long held = debits.get(changeIds[i]);
+          debits.put(changeIds[i], ((held == null) ? 0 : held) + changeUnits[i]);
+          Long reserved = reservedUnits.get(changeIds[i]);
+          reservedUnits.put(changeIds[i], ((reserved == null) ? 0 : reserved) + changeUnits[i]);
+        }
+      }
+      changeCount++;
+    }
+
+
+    /**
+     * Returns the net change held back for an account.
+     * @param accountId the id of the account.
+     * @return the change, in cents.
+     */
+    long getUnits(int accountId) {
+      Long net = netUnits.get(accountId);
+      return (net == null) ? 0 : net;
+    }
+
+
+    /**
+     * Returns the withdrawals held back for an account.
+     * @param accountId the id of the account.
+     * @return the withdrawals, in cents, as a negative number or 0.
+     */
+    long getDebits(int accountId) {
+      Long held = debits.get(accountId);
+      return (held == null) ? 0 : held;
+    }
+
+
+    /**
+     * Refuses the commit if the journal has been closed, since the unit's changes could then no
+     * longer be appended once it has committed.
+     * @return true if the journal is still open, false if the unit should roll back.
+     */
+    @Override
+    public boolean beforeCommit() {
+      synchronized (BalanceJournal.this) {
+        return !closed;
+      }
+    }
+
+
+    /**
+     * Appends the unit's changes to the journal as a single change once the unit has committed,
+     * so that they are replayed together or not at all, and only if SQLite committed the rest of
+     * the unit. A unit run in the writer's group only finds out once the whole group has
+     * committed. Either way the unit's reservations are dropped, and with a rollback its changes
+     * go with them.
+     * @param committed whether the unit was committed.
+     */
+    @Override
+    public void afterCompletion(boolean committed) {
+      UNIT_CHANGES.remove();
+      long sequence = 0;
+      synchronized (BalanceJournal.this) {
+        if (committed && !accountIds.isEmpty()) {
+          sequence = append();
+        }
+        release();
+      }
+      if (sequence > 0 && FSYNC_POLICY.equalsIgnoreCase("always")) {
+        sync(sequence);
+      }
+    }
+
+
+    /**
+     * Writes the unit's changes to the journal. Must be called holding the journal's monitor.
+     * @return the sequence number of the change's last record, or 0 if it could not be written.
+     */
+    private long append() {
+      int[] ids = new int[accountIds.size()];
+      long[] changes = new long[accountIds.size()];
+      LedgerEntryTypes[] changeTypes = new LedgerEntryTypes[accountIds.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = accountIds.get(i);
+        changes[i] = units.get(i);
+        changeTypes[i] = types.get(i);
+      }
+      if (closed) {
+        System.err.println("The balance journal closed before a committed unit's "
+            + changeCount + " changes could be appended");
+        return 0;
+      }
+      try {
+        long sequence = write(ids, changes, changeTypes);
+        appendCount += changeCount;
+        return sequence;
+      } catch (IOException e) {
+        e.printStackTrace();
+        return 0;
+      }
+    }
+
+
+    /**
+     * Takes the unit's withdrawals off the reserved amounts. Must be called holding the
+     * journal's monitor.
+     */
+    private void release() {
+      for (Map.Entry<Integer, Long> held : debits.entrySet()) {
+        long remaining = reservedUnits.get(held.getKey()) - held.getValue();
+        if (remaining == 0) {
+          reservedUnits.remove(held.getKey());
+        } else {
+          reservedUnits.put(held.getKey(), remaining);
+        }
+      }
+      debits.clear();
+    }
+  }
+
+
+  /**
+   * One fixed-size journal file and its mapping.
+   */
+  private static class Segment {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private long lastSequence = 0;
+
+
+    /**
+     * Wraps a mapped segment file.
+     * @param path the file.
+     * @param channel the open channel to the file.
+     * @param buffer the file's mapping.
+     */
+    Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+      this.path = path;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+
+
+    /**
+     * Closes the file. The mapping stays readable until it is garbage collected.
+     */
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+
+  /**
+   * A single change to one account's balance, as written to the journal.
+   */
+  private static class JournalRecord {
+
+    private final long sequence;
+    private final int accountId;
+    private final long units;
+    private final int typeCode;
+    private final byte flags;
+
+
+    /**
+     * Creates a record.
+     * @param sequence the record's position in the journal.
+     * @param accountId the account it changes.
+     * @param units the signed change, in cents.
+     * @param typeCode the ledger type code of the change.
+     * @param flags END_OF_CHANGE on the last record of a change, 0 otherwise.
+     */
+    JournalRecord(long sequence, int accountId, long units, int typeCode, byte flags) {
+      this.sequence = sequence;
+      this.accountId = accountId;
+      this.units = units;
+      this.typeCode = typeCode;
+      this.flags = flags;
+    }
+
+
+    /**
+     * Writes the record's payload.
+     * @param buffer the buffer to write to, with at least PAYLOAD_BYTES remaining.
+     */
+    void writeTo(ByteBuffer buffer) {
+      buffer.putLong(sequence);
+      buffer.putInt(accountId);
+      buffer.putLong(units);
+      buffer.put((byte) typeCode);
+      buffer.put(flags);
+    }
+
+
+    /**
+     * Reads a record's payload.
+     * @param buffer the buffer to read from, positioned at the payload.
+     * @return the record.
+     */
+    static JournalRecord readFrom(ByteBuffer buffer) {
+      long sequence = buffer.getLong();
+      int accountId = buffer.getInt();
+      long units = buffer.getLong();
+      int typeCode = buffer.get();
+      byte flags = buffer.get();
+      return new JournalRecord(sequence, accountId, units, typeCode, flags);
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package com.bank.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A compiled statement kept open by a StatementCache. Callers see an ordinary
+ * PreparedStatement, but closing it only resets it so the next caller with the same SQL can
+ * execute it again without SQLite parsing the SQL a second time. A statement belongs to the
+ * caller it was handed to until that caller closes it or the connection is released, so a
+ * nested helper asking for the same SQL never clears parameters or batches still in use.
+ */
+class CachedStatement implements InvocationHandler {
+
+  private final String key;
+  private final PreparedStatement physical;
+  private final PreparedStatement proxy;
+  private ResultTracker results;
+  private boolean checkedOut = false;
+
+
+  /**
+   * Wraps a freshly prepared statement.
+   * @param key the cache key the statement is stored under.
+   * @param physical the statement prepared on the physical connection.
+   */
+  CachedStatement(String key, PreparedStatement physical) {
+    this.key = key;
+    this.physical = physical;
+    this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+        PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, this);
+  }
+
+
+  @Override
+  public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    if (name.equals("close")) {
+      reset();
+      return null;
+    }
+    if (name.equals("isClosed")) {
+      return physical.isClosed();
+    }
+    if (name.equals("equals")) {
+      return target == args[0];
+    }
+    if (name.equals("hashCode")) {
+      return System.identityHashCode(target);
+    }
+    if (name.equals("toString")) {
+      return "CachedStatement[" + key + "]";
+    }
+    Object result;
+    try {
+      result = method.invoke(physical, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+    // Follow the result set so the cache knows when the statement is free again
+    if (name.equals("executeQuery") || name.equals("getResultSet")) {
+      if (result != null) {
+        results = new ResultTracker((ResultSet) result, proxy);
+        result = results.getProxy();
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * Returns the statement handed out to callers.
+   * @return the proxy statement.
+   */
+  PreparedStatement getProxy() {
+    return this.proxy;
+  }
+
+
+  /**
+   * Returns the key this statement is cached under.
+   * @return the cache key.
+   */
+  String getKey() {
+    return this.key;
+  }
+
+
+  /**
+   * Returns whether a caller still holds this statement.
+   * @return true if the statement has been handed out and not closed since, or its last
+   *     result set is still open, false otherwise.
+   */
+  boolean isBusy() {
+    return checkedOut || (results != null && results.isOpen());
+  }
+
+
+  /**
+   * Marks the statement as held by the caller it is being handed to.
+   */
+  void checkOut() {
+    this.checkedOut = true;
+  }
+
+
+  /**
+   * Closes any open result set and clears the bound parameters and any pending batch so the
+   * statement can be handed out again.
+   */
+  void reset() {
+    checkedOut = false;
+    try {
+      if (results != null) {
+        results.close();
+        results = null;
+      }
+      physical.clearBatch();
+      physical.clearParameters();
+    } catch (SQLException e) {
+      // A statement that cannot be reset is replaced the next time it is requested
+    }
+  }
+
+
+  /**
+   * Closes the underlying statement when it leaves the cache.
+   */
+  void closePhysical() {
+    try {
+      physical.close();
+    } catch (SQLException e) {
+      // The statement is being discarded either way
+    }
+  }
+
+
+  /**
+   * Watches a result set so that it is known to be finished once its rows run out or it is
+   * closed.
+   */
+  private static class ResultTracker implements InvocationHandler {
+
+    private final ResultSet physical;
+    private final PreparedStatement owner;
+    private final ResultSet proxy;
+    private boolean open = true;
+
+
+    ResultTracker(ResultSet physical, PreparedStatement owner) {
+      this.physical = physical;
+      this.owner = owner;
+      this.proxy = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+          new Class<?>[] {ResultSet.class}, this);
+    }
+
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getStatement")) {
+        return owner;
+      }
+      if (name.equals("equals")) {
+        return target == args[0];
+      }
+      if (name.equals("hashCode")) {
+        return System.identityHashCode(target);
+      }
+      if (name.equals("close")) {
+        open = false;
+      }
+      Object result;
+      try {
+        result = method.invoke(physical, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (name.equals("next") && !((Boolean) result)) {
+        open = false;
+      }
+      return result;
+    }
+
+
+    ResultSet getProxy() {
+      return this.proxy;
+    }
+
+
+    boolean isOpen() {
+      return this.open;
+    }
+
+
+    void close() throws SQLException {
+      if (open) {
+        open = false;
+        physical.close();
+      }
+    }
+  }
+}
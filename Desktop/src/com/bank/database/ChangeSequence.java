@@ -0,0 +1,51 @@
+package com.bank.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+/**
+ * Numbers the changes made to the bank's rows, so that a backup can copy only the rows changed
+ * since the last one. The CHANGESEQUENCE table holds the current number, and every insert and
+ * update of ACCOUNTS, USERS, USERPW, USERACCOUNT and USERMESSAGES stamps the row's MODSEQ column
+ * with it. Stamping only reads the number, so a write costs no more rows than it did before.
+ * Each backup moves the number on instead: every row stamped with a number it has closed is
+ * already committed, and anything changed afterwards gets a later number.
+ */
+final class ChangeSequence {
+
+  /** The number a change is stamped with, as SQL to use inside an insert or update. */
+  static final String CURRENT = "(SELECT SEQUENCE FROM CHANGESEQUENCE WHERE ID = 1)";
+
+
+  /**
+   * Cannot be created; the sequence is used through its static methods.
+   */
+  private ChangeSequence() {
+  }
+
+
+  /**
+   * Closes the current number and moves later changes on to the next one, as a queued write.
+   * @return the number closed; every row stamped with it or an earlier one is committed.
+   * @throws SQLException if the number could not be moved on.
+   */
+  static long advance() throws SQLException {
+    Long closed = WriteQueue.await(WriteQueue.submit(new Callable<Long>() {
+      @Override
+      public Long call() throws SQLException {
+        Connection writer = DatabaseDriver.connectOrCreateDataBase();
+        try {
+          long closed = DatabaseUpdater.advanceChangeSequence(writer);
+          return (closed < 0) ? null : closed;
+        } finally {
+          writer.close();
+        }
+      }
+    }));
+    if (closed == null) {
+      throw new SQLException("The change sequence could not be moved on");
+    }
+    return closed;
+  }
+}
@@ -0,0 +1,204 @@
+package com.bank.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single borrowing of a PooledConnection. Callers see an ordinary Connection, but closing
+ * it closes the statements opened through it and hands the connection back to the pool.
+ */
+class ConnectionLease implements InvocationHandler {
+
+  private final ConnectionPool pool;
+  private final PooledConnection pooled;
+  private final Connection proxy;
+  private final long borrowedAt;
+  private final Throwable borrowSite;
+  private final Thread borrower;
+  private final List<Statement> statements = new ArrayList<Statement>();
+  private boolean released = false;
+  private volatile boolean leakReported = false;
+
+
+  /**
+   * Creates a lease on a pooled connection.
+   * @param pool the pool the connection is returned to.
+   * @param pooled the connection being borrowed.
+   */
+  ConnectionLease(ConnectionPool pool, PooledConnection pooled) {
+    this.pool = pool;
+    this.pooled = pooled;
+    this.borrowedAt = System.currentTimeMillis();
+    // Remember where the connection was borrowed so a leak can be traced back to its caller
+    this.borrowSite = new Throwable("Connection borrowed");
+    this.borrower = Thread.currentThread();
+    this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, this);
+  }
+
+
+  @Override
+  public synchronized Object invoke(Object target, Method method, Object[] args)
+      throws Throwable {
+    String name = method.getName();
+    if (name.equals("close")) {
+      release();
+      return null;
+    }
+    if (name.equals("isClosed")) {
+      return released || pooled.getPhysical().isClosed();
+    }
+    if (name.equals("equals")) {
+      return target == args[0];
+    }
+    if (name.equals("hashCode")) {
+      return System.identityHashCode(target);
+    }
+    if (name.equals("toString")) {
+      return "ConnectionLease[" + pooled.getPhysical() + "]";
+    }
+    if (released) {
+      throw new SQLException("This connection has already been returned to the pool");
+    }
+    // Plain prepared statements come from the connection's statement cache when possible
+    if (name.equals("prepareStatement") && isCacheable(args)) {
+      int keys = (args.length == 2) ? (Integer) args[1] : Statement.NO_GENERATED_KEYS;
+      PreparedStatement cached = pooled.getStatementCache().acquire((String) args[0], keys);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    Object result;
+    try {
+      result = method.invoke(pooled.getPhysical(), args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+    // Track statements so that they are closed when the connection is returned
+    if (result instanceof Statement) {
+      statements.add((Statement) result);
+    }
+    return result;
+  }
+
+
+  /**
+   * Checks whether a prepareStatement call takes only SQL text and, optionally, a generated
+   * keys flag, which are the forms the statement cache understands.
+   * @param args the arguments of the call.
+   * @return true if the statement can be cached, false otherwise.
+   */
+  private static boolean isCacheable(Object[] args) {
+    return args.length == 1 || (args.length == 2 && args[1] instanceof Integer);
+  }
+
+
+  /**
+   * Returns the connection handed out for this lease.
+   * @return the proxy connection.
+   */
+  Connection getProxy() {
+    return this.proxy;
+  }
+
+
+  /**
+   * Returns the pooled connection behind this lease.
+   * @return the pooled connection.
+   */
+  PooledConnection getPooledConnection() {
+    return this.pooled;
+  }
+
+
+  /**
+   * Returns when the connection was borrowed.
+   * @return the borrow time in milliseconds since the epoch.
+   */
+  long getBorrowedAt() {
+    return this.borrowedAt;
+  }
+
+
+  /**
+   * Returns a throwable whose stack trace shows where the connection was borrowed.
+   * @return the borrow site.
+   */
+  Throwable getBorrowSite() {
+    return this.borrowSite;
+  }
+
+
+  /**
+   * Returns the thread that borrowed the connection.
+   * @return the borrowing thread.
+   */
+  Thread getBorrower() {
+    return this.borrower;
+  }
+
+
+  /**
+   * Returns whether this lease has already been reported as a leak.
+   * @return true if it has been reported, false otherwise.
+   */
+  boolean isLeakReported() {
+    return this.leakReported;
+  }
+
+
+  /**
+   * Marks this lease as reported so that a leak is only reported once.
+   */
+  void setLeakReported() {
+    this.leakReported = true;
+  }
+
+
+  /**
+   * Invalidates the lease without returning the connection, used when the pool shuts down
+   * while the connection is still borrowed.
+   */
+  synchronized void revoke() {
+    if (!released) {
+      released = true;
+      closeStatements();
+      pooled.closePhysical();
+    }
+  }
+
+
+  /**
+   * Closes the statements opened through this lease and returns the connection to the pool.
+   */
+  private void release() {
+    if (!released) {
+      released = true;
+      closeStatements();
+      pool.release(this);
+    }
+  }
+
+
+  /**
+   * Closes every statement opened through this lease, along with their result sets.
+   */
+  private void closeStatements() {
+    for (Statement statement : statements) {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        // The statement is being discarded either way
+      }
+    }
+    statements.clear();
+  }
+}
@@ -0,0 +1,461 @@
+package com.bank.database;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of long-lived connections to the bank database. Connections are opened once,
+ * configured once, and handed out as leases whose close() returns them to the pool instead of
+ * closing the underlying SQLite handle.
+ */
+public class ConnectionPool {
+
+  /** The file holding the bank database. */
+  static final String DATABASE_FILE = "bank.db";
+
+  private static final String DATABASE_URL = "jdbc:sqlite:" + DATABASE_FILE;
+
+  // Pool sizing and timing, each of which may be overridden through a system property
+  private static final int MAX_SIZE = Integer.getInteger("bank.pool.maxSize", 8);
+  private static final int WARM_SIZE = Integer.getInteger("bank.pool.warmSize", 2);
+  private static final long BORROW_TIMEOUT_MILLIS =
+      Long.getLong("bank.pool.borrowTimeoutMillis", 10000L);
+  private static final long VALIDATION_INTERVAL_MILLIS =
+      Long.getLong("bank.pool.validationIntervalMillis", 30000L);
+  private static final long LEAK_THRESHOLD_MILLIS =
+      Long.getLong("bank.pool.leakThresholdMillis", 60000L);
+  private static final long DRAIN_TIMEOUT_MILLIS =
+      Long.getLong("bank.pool.drainTimeoutMillis", 30000L);
+
+  /**
+   * Settings applied to every connection when it is opened. WAL lets readers proceed while a
+   * writer commits, and the busy timeout makes a second writer wait instead of failing.
+   */
+  private static final String[] CONNECTION_PRAGMAS = {
+    "PRAGMA journal_mode = WAL",
+    "PRAGMA synchronous = FULL",
+    "PRAGMA busy_timeout = 5000",
+    "PRAGMA cache_size = -8000",
+    "PRAGMA temp_store = MEMORY"
+  };
+
+  private static ConnectionPool instance;
+  // The pool being shut down, while it waits for its borrowed connections to come back
+  private static volatile ConnectionPool closing;
+
+  private final LinkedBlockingDeque<PooledConnection> idle =
+      new LinkedBlockingDeque<PooledConnection>();
+  private final Set<ConnectionLease> leases =
+      ConcurrentHashMap.<ConnectionLease>newKeySet();
+  private final AtomicInteger size = new AtomicInteger();
+  private final ScheduledExecutorService leakDetector;
+  private volatile boolean closed = false;
+  // Notified as leases come back while the pool is closing
+  private final Object returned = new Object();
+
+  // Borrow and return accounting
+  private final AtomicLong borrowCount = new AtomicLong();
+  private final AtomicLong returnCount = new AtomicLong();
+  private final AtomicLong openCount = new AtomicLong();
+  private final AtomicLong discardCount = new AtomicLong();
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong leakCount = new AtomicLong();
+
+
+  /**
+   * Opens the pool, warms it with its initial connections and migrates the schema.
+   * @throws SQLException if the first connections could not be opened or migrated.
+   */
+  private ConnectionPool() throws SQLException {
+    loadDriver();
+    // Warm the pool so the first terminals do not pay for connection setup
+    for (int i = 0; i < Math.min(WARM_SIZE, MAX_SIZE); i++) {
+      size.incrementAndGet();
+      idle.offerLast(open());
+    }
+    // Upgrade a database written by an older build before any caller reads from it
+    try {
+      Connection connection = borrow();
+      try {
+        DatabaseMigrator.migrate(connection);
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      closed = true;
+      PooledConnection pooled = idle.pollFirst();
+      while (pooled != null) {
+        discard(pooled);
+        pooled = idle.pollFirst();
+      }
+      throw e;
+    }
+    leakDetector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "bank-pool-leak-detector");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(1000L, LEAK_THRESHOLD_MILLIS / 2);
+    leakDetector.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        detectLeaks();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+
+  /**
+   * Returns the pool for the bank database, opening it on first use. While a pool is being
+   * shut down, callers wait here for the next one, except for those still holding one of the
+   * closing pool's connections, which are handed that pool so they can finish what they began.
+   * @return the shared connection pool.
+   * @throws SQLException if the pool could not be opened.
+   */
+  static ConnectionPool getInstance() throws SQLException {
+    ConnectionPool old = closing;
+    if (old != null && old.isHeldBy(Thread.currentThread(), null)) {
+      return old;
+    }
+    synchronized (ConnectionPool.class) {
+      if (instance == null) {
+        instance = new ConnectionPool();
+      }
+      return instance;
+    }
+  }
+
+
+  /**
+   * Closes every connection in the pool, borrowed or idle, once the borrowed ones have been
+   * returned. The next call to getInstance opens a fresh pool, which is what callers need
+   * before the database file is deleted or replaced.
+   */
+  static synchronized void shutdown() {
+    closeInstance();
+    // The file may be about to be deleted or replaced, so the IDs seen in it no longer apply
+    ExistenceCache.clearAll();
+    ReferenceDataVersion.changed();
+  }
+
+
+  /**
+   * Swaps another database file in as the bank database. The pool is closed first, waiting for
+   * the connections in use to be returned, and stays closed until the file is in place, since
+   * getInstance cannot reopen it meanwhile, so no connection ever sees a half-replaced file. The
+   * next call to getInstance opens a fresh pool on the new file.
+   * @param replacement the complete database file to use from now on.
+   * @throws IOException if the file could not be moved into place, in which case the old
+   *     database is left as it was.
+   */
+  static synchronized void replaceDatabase(Path replacement) throws IOException {
+    closeInstance();
+    try {
+      Files.move(replacement, Paths.get(DATABASE_FILE), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      // Anything the old file left beside it must not be applied to the new one
+      Files.deleteIfExists(Paths.get(DATABASE_FILE + "-wal"));
+      Files.deleteIfExists(Paths.get(DATABASE_FILE + "-shm"));
+    } finally {
+      ExistenceCache.clearAll();
+      ReferenceDataVersion.changed();
+    }
+  }
+
+
+  /**
+   * Closes the current pool, if one is open. Must be called holding the class's lock, so no
+   * new pool is opened until this one has closed.
+   */
+  private static void closeInstance() {
+    if (instance != null) {
+      closing = instance;
+      try {
+        instance.close();
+      } finally {
+        closing = null;
+        instance = null;
+      }
+    }
+  }
+
+
+  /**
+   * Opens a connection to a database file outside the pool, such as one being built to replace
+   * the bank database. None of the pool's settings are applied, and closing the connection
+   * closes the file.
+   * @param file the database file, which is created if it does not exist.
+   * @return the connection.
+   * @throws SQLException if the file could not be opened.
+   */
+  static Connection openFile(Path file) throws SQLException {
+    loadDriver();
+    return DriverManager.getConnection("jdbc:sqlite:" + file, new Properties());
+  }
+
+
+  /**
+   * Borrows a connection, waiting if every connection is already in use.
+   * @return a connection whose close() hands it back to the pool.
+   * @throws SQLException if no connection became available in time or one could not be opened.
+   */
+  Connection borrow() throws SQLException {
+    return borrowLease().getProxy();
+  }
+
+
+  /**
+   * Borrows a connection as borrow() does, returning the lease itself for callers in this
+   * package that manage the connection's statements directly.
+   * @return the lease on the borrowed connection.
+   * @throws SQLException if no connection became available in time or one could not be opened.
+   */
+  ConnectionLease borrowLease() throws SQLException {
+    // Once the pool is closing, only a caller finishing work it began may borrow from it
+    if (closed && !isHeldBy(Thread.currentThread(), null)) {
+      throw new SQLException("The connection pool has been shut down");
+    }
+    PooledConnection pooled = idle.pollFirst();
+    // Open a new connection while the pool is still under its bound
+    while (pooled == null) {
+      int current = size.get();
+      if (current < MAX_SIZE) {
+        if (size.compareAndSet(current, current + 1)) {
+          try {
+            pooled = open();
+          } catch (SQLException e) {
+            size.decrementAndGet();
+            throw e;
+          }
+        }
+      } else {
+        // Otherwise wait for another caller to return one
+        waitCount.incrementAndGet();
+        try {
+          pooled = idle.pollFirst(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        if (pooled == null) {
+          throw new SQLException("Timed out waiting for a database connection");
+        }
+      }
+    }
+    // A connection that fails its health check is replaced rather than handed out
+    if (!pooled.validate(VALIDATION_INTERVAL_MILLIS)) {
+      discard(pooled);
+      return borrowLease();
+    }
+    borrowCount.incrementAndGet();
+    ConnectionLease lease = new ConnectionLease(this, pooled);
+    leases.add(lease);
+    // The pool may have started closing while the lease was being made
+    if (closed && !isHeldBy(Thread.currentThread(), lease)) {
+      lease.getProxy().close();
+      throw new SQLException("The connection pool has been shut down");
+    }
+    return lease;
+  }
+
+
+  /**
+   * Takes a connection back from a lease that has been closed.
+   * @param lease the lease being returned.
+   */
+  void release(ConnectionLease lease) {
+    leases.remove(lease);
+    returnCount.incrementAndGet();
+    PooledConnection pooled = lease.getPooledConnection();
+    if (closed || !pooled.reset()) {
+      discard(pooled);
+    } else {
+      // Most recently used first, so the warmest connection is handed out next
+      idle.offerFirst(pooled);
+    }
+    if (closed) {
+      synchronized (returned) {
+        returned.notifyAll();
+      }
+    }
+  }
+
+
+  /**
+   * Checks whether a thread has one of the pool's connections borrowed.
+   * @param thread the thread.
+   * @param ignored a lease not to count, or null.
+   * @return true if the thread holds a lease other than the ignored one, false otherwise.
+   */
+  private boolean isHeldBy(Thread thread, ConnectionLease ignored) {
+    for (ConnectionLease lease : leases) {
+      if (lease != ignored && lease.getBorrower() == thread) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Returns a summary of the pool's accounting counters.
+   * @return a one line description of the pool's state.
+   */
+  String getStatistics() {
+    return "size=" + size.get() + " idle=" + idle.size() + " borrowed=" + leases.size()
+        + " borrows=" + borrowCount.get() + " returns=" + returnCount.get()
+        + " opened=" + openCount.get() + " discarded=" + discardCount.get()
+        + " waits=" + waitCount.get() + " leaks=" + leakCount.get()
+        + " " + StatementCache.getStatistics();
+  }
+
+
+  /**
+   * Makes sure the SQLite JDBC driver is loaded.
+   * @throws SQLException if the driver is not on the classpath.
+   */
+  private static void loadDriver() throws SQLException {
+    try {
+      Class.forName("org.sqlite.JDBC");
+    } catch (ClassNotFoundException e) {
+      throw new SQLException("The SQLite JDBC driver is not on the classpath", e);
+    }
+  }
+
+
+  /**
+   * Opens and configures a new physical connection.
+   * @return the new pooled connection.
+   * @throws SQLException if the connection could not be opened.
+   */
+  private PooledConnection open() throws SQLException {
+    Connection connection = DriverManager.getConnection(DATABASE_URL, new Properties());
+    try {
+      Statement statement = connection.createStatement();
+      for (String pragma : CONNECTION_PRAGMAS) {
+        statement.execute(pragma);
+      }
+      statement.close();
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    }
+    openCount.incrementAndGet();
+    return new PooledConnection(connection);
+  }
+
+
+  /**
+   * Closes a connection that can no longer be used and frees its slot in the pool.
+   * @param pooled the connection to get rid of.
+   */
+  private void discard(PooledConnection pooled) {
+    discardCount.incrementAndGet();
+    size.decrementAndGet();
+    pooled.closePhysical();
+  }
+
+
+  /**
+   * Reports every lease that has been held longer than the leak threshold, once per lease.
+   */
+  private void detectLeaks() {
+    long now = System.currentTimeMillis();
+    for (ConnectionLease lease : leases) {
+      if (!lease.isLeakReported() && now - lease.getBorrowedAt() > LEAK_THRESHOLD_MILLIS) {
+        lease.setLeakReported();
+        leakCount.incrementAndGet();
+        // Reported on the error stream, so it stays out of the terminal menus
+        System.err.println("A database connection has been borrowed for over "
+            + (LEAK_THRESHOLD_MILLIS / 1000) + " seconds without being closed. "
+            + "It was borrowed here:");
+        lease.getBorrowSite().printStackTrace(System.err);
+      }
+    }
+  }
+
+
+  /**
+   * Closes every connection the pool knows about and stops the leak detector. No one new may
+   * borrow once closing starts, and the connections already borrowed are given until the drain
+   * timeout to be returned. Any still out after that are revoked.
+   */
+  private void close() {
+    closed = true;
+    leakDetector.shutdownNow();
+    awaitReturns();
+    List<ConnectionLease> outstanding = new ArrayList<ConnectionLease>(leases);
+    for (ConnectionLease lease : outstanding) {
+      lease.revoke();
+    }
+    PooledConnection pooled = idle.pollFirst();
+    while (pooled != null) {
+      discard(pooled);
+      pooled = idle.pollFirst();
+    }
+  }
+
+
+  /**
+   * Waits, for up to the drain timeout, for every lease borrowed by another thread to be
+   * returned. The closing thread's own leases cannot come back while it waits, so they are not
+   * waited for.
+   */
+  private void awaitReturns() {
+    Thread self = Thread.currentThread();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+    synchronized (returned) {
+      while (heldByOthers(self)) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          System.err.println("Database connections were still borrowed after "
+              + (DRAIN_TIMEOUT_MILLIS / 1000) + " seconds of closing, and have been revoked.");
+          return;
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(returned, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Checks whether any thread but the given one has a connection borrowed.
+   * @param self the thread to leave out.
+   * @return true if another thread holds a lease, false otherwise.
+   */
+  private boolean heldByOthers(Thread self) {
+    for (ConnectionLease lease : leases) {
+      if (lease.getBorrower() != self) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
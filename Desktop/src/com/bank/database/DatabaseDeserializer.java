@@ -11,8 +11,13 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -20,15 +25,17 @@ import java.util.Map.Entry;
 public class DatabaseDeserializer implements Serializable {
 
   private static final long serialVersionUID = 9215842159911054688L;
+  // Restores a snapshot through the validating helpers instead of bulk loading it
+  private static final boolean VALIDATE_RESTORE = Boolean.getBoolean("bank.restore.validate");
   private Map<String, HashMap<Integer, ArrayList<String>>> database = new HashMap<String, 
       HashMap<Integer, ArrayList<String>>>();
   
   
   /**
-   * A constructor for the DatabaseDeserializer class. 
+   * A constructor for the DatabaseDeserializer class. The current database is left alone until
+   * deSerialize has read a copy to replace it with.
    */
   public DatabaseDeserializer() throws ConnectionFailedException {
-    DatabaseDriver.reInitialize();
   }
   
   /**
@@ -39,6 +46,12 @@ public class DatabaseDeserializer implements Serializable {
    */
   @SuppressWarnings("unchecked")
   public void deSerialize() {
+    // Snapshots are read a row at a time; the older serialized copies are still understood
+    Path snapshot = Paths.get(SnapshotWriter.SNAPSHOT_FILE);
+    if (Files.exists(snapshot)) {
+      this.readSnapshot(snapshot);
+      return;
+    }
     try {
       // Get the file containing the copy of the database and create an objecto ut of it
       FileInputStream fileName = new FileInputStream("database_copy.ser");
@@ -48,6 +61,9 @@ public class DatabaseDeserializer implements Serializable {
       // corresponding row entries
       this.database = (HashMap<String, HashMap<Integer, ArrayList<String>>>)
           serializedDatabase.readObject();
+      // Only clear the current database once its replacement has been read, and give back the
+      // pooled connection it was initialized on
+      DatabaseDriver.reInitialize().close();
       this.readRoles();
       this.readAccountTypes();
       this.readAccounts();
@@ -62,10 +78,154 @@ public class DatabaseDeserializer implements Serializable {
       this.database = null;
     } catch (ClassNotFoundException error2) {
       this.database = null;
-    } 
+    } catch (ConnectionFailedException error3) {
+      this.database = null;
+    } catch (SQLException error4) {
+      this.database = null;
+    }
   }
   
   
+  /**
+   * A method that will read a snapshot file and restore its rows into the database. By default
+   * the rows are bulk loaded, with the IDs they had in the snapshot, into a shadow database that
+   * is only swapped in once it is complete, so the terminals keep working throughout and a
+   * failed restore changes nothing. With the bank.restore.validate property set, the database
+   * is cleared and the rows are inserted one at a time through the helpers instead, so they are
+   * given new IDs and the references between tables are mapped from the snapshot's IDs to the
+   * new ones. A damaged snapshot is never restored. Any snapshots of the changes made since
+   * are applied after it in order, up to the first that is damaged or does not follow on from
+   * the one before it; the helpers only restore the full snapshot, and open each account's
+   * ledger afresh as insertAccount does, so only the bulk load keeps the ledger's history.
+   * @param snapshot the snapshot file
+   */
+  private void readSnapshot(Path snapshot) {
+    try {
+      if (!SnapshotReader.verify(snapshot)) {
+        System.out.println("The snapshot is damaged, so the database has been left as it was.");
+        return;
+      }
+      List<Path> chain = readChain();
+      if (!VALIDATE_RESTORE) {
+        SnapshotLoader.restore(chain);
+        return;
+      }
+      if (chain.size() > 1) {
+        System.out.println("Only the full snapshot is restored when validating; the "
+            + (chain.size() - 1) + " snapshot(s) of changes since it have been left out.");
+      }
+      // Give back the pooled connection the cleared database was initialized on
+      DatabaseDriver.reInitialize().close();
+      // The IDs given to each row, by the ID it had in the snapshot
+      Map<Integer, Integer> roleIds = new HashMap<Integer, Integer>();
+      Map<Integer, Integer> accTypeIds = new HashMap<Integer, Integer>();
+      Map<Integer, Integer> userIds = new HashMap<Integer, Integer>();
+      Map<Integer, Integer> accountIds = new HashMap<Integer, Integer>();
+
+      SnapshotReader reader = new SnapshotReader(snapshot);
+      try {
+        SnapshotTable table;
+        while ((table = reader.nextSection()) != null) {
+          while (reader.nextRow()) {
+            switch (table) {
+              case ROLES:
+                roleIds.put(reader.getInt(0), DatabaseInsertHelper.insertRole(
+                    reader.getString(1)));
+                break;
+              case ACCOUNTTYPES:
+                accTypeIds.put(reader.getInt(0), DatabaseInsertHelper.insertAccountType(
+                    reader.getString(1), MoneyCodec.fromInterestRateUnits(reader.getLong(2))));
+                break;
+              case USERS:
+                // The password is set from the USERPW section that follows
+                userIds.put(reader.getInt(0), DatabaseInsertHelper.insertNewUser(
+                    reader.getString(1), reader.getInt(2), reader.getString(3),
+                    mapId(roleIds, reader.getInt(4)), "temp"));
+                break;
+              case USERPW:
+                DatabaseUpdateHelper.updateUserPassword(reader.getString(1),
+                    mapId(userIds, reader.getInt(0)));
+                break;
+              case ACCOUNTS:
+                accountIds.put(reader.getInt(0), DatabaseInsertHelper.insertAccount(
+                    reader.getString(1), MoneyCodec.fromBalanceUnits(reader.getLong(2)),
+                    mapId(accTypeIds, reader.getInt(3))));
+                break;
+              case USERACCOUNT:
+                DatabaseInsertHelper.insertUserAccount(mapId(userIds, reader.getInt(0)),
+                    mapId(accountIds, reader.getInt(1)));
+                break;
+              case USERMESSAGES:
+                int newMsgId = DatabaseInsertHelper.insertMessage(
+                    mapId(userIds, reader.getInt(1)), reader.getString(2));
+                if ("1".equals(reader.getString(3))) {
+                  DatabaseUpdateHelper.updateUserMessageState(newMsgId);
+                }
+                break;
+              default:
+                break;
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } catch (ConnectionFailedException e) {
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * A method that will find the full snapshot and the snapshots of changes that follow on from
+   * it, checking each one's checksum and that it starts where the one before it ended.
+   * @return the full snapshot followed by every usable snapshot of changes, in order
+   * @throws IOException if a snapshot could not be read
+   */
+  private List<Path> readChain() throws IOException {
+    List<Path> files = SnapshotWriter.getChain();
+    List<Path> chain = new ArrayList<Path>();
+    long sequence = -1;
+    for (Path file : files) {
+      if (!chain.isEmpty() && !SnapshotReader.verify(file)) {
+        System.out.println("The snapshot of changes " + file + " is damaged, so the database "
+            + "has been restored up to the one before it.");
+        break;
+      }
+      SnapshotReader reader = new SnapshotReader(file);
+      try {
+        if (!chain.isEmpty() && (!reader.isDifferential()
+            || reader.getBaseSequence() != sequence)) {
+          System.out.println("The snapshot of changes " + file + " does not follow on from the "
+              + "one before it, so the database has been restored up to that one.");
+          break;
+        }
+        sequence = reader.getSequence();
+      } finally {
+        reader.close();
+      }
+      chain.add(file);
+    }
+    return chain;
+  }
+
+
+  /**
+   * A method that will find the ID a row was given when it was restored.
+   * @param ids the new IDs, by the IDs the rows had in the snapshot
+   * @param oldId the ID the row had in the snapshot
+   * @return the row's new ID, or -1 if it was not restored
+   */
+  private static int mapId(Map<Integer, Integer> ids, int oldId) {
+    Integer newId = ids.get(oldId);
+    return (newId == null) ? -1 : newId;
+  }
+
+
   /**
    * A method that will get the roles hash map in the deserialized database hash map and add it 
    * into the database.
@@ -7,7 +7,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.SQLException;
 
 import java.sql.Statement;
 
@@ -16,14 +16,22 @@ import java.sql.Statement;
 public class DatabaseDriver {
   
   /**
-   * This will connect to existing database, or create it if it's not there.
+   * This will connect to existing database, or create it if it's not there. The connection is
+   * borrowed from a pool of long-lived connections, and closing it returns it to the pool.
+   * Inside a UnitOfWork, the unit's own connection is returned instead. When the balance journal
+   * is enabled, the changes it holds are replayed before the first connection is handed out, and
+   * with interest accrual enabled its catch-up thread is started.
    * @return the database connection.
    */
   protected static Connection connectOrCreateDataBase() {
-    Connection connection = null;
+    Connection connection = UnitOfWork.getConnection();
+    if (connection != null) {
+      return connection;
+    }
     try {
-      Class.forName("org.sqlite.JDBC");
-      connection = DriverManager.getConnection("jdbc:sqlite:bank.db");
+      BalanceJournal.recover();
+      InterestAccrual.start();
+      connection = ConnectionPool.getInstance().borrow();
       
     } catch (Exception e) {
       System.out.println("Something went wrong with your connection! see below details: ");
@@ -34,7 +42,8 @@ public class DatabaseDriver {
   }
   
   /**
-   * This will initialize the database, or throw a ConnectionFailedException.
+   * This will initialize the database, or throw a ConnectionFailedException. Once the tables
+   * exist, any schema migrations the database has not seen yet are applied.
    * @param connection the database you'd like to write the tables to.
    * @return the connection you passed in, to allow you to continue.
    * @throws ConnectionFailedException If the tables couldn't be initialized, throw
@@ -43,11 +52,19 @@ public class DatabaseDriver {
     if (!initializeDatabase(connection)) {
       throw new ConnectionFailedException();
     }
+    try {
+      DatabaseMigrator.migrate(connection);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      throw new ConnectionFailedException();
+    }
     return connection;
   }
   
   
   protected static Connection reInitialize() throws ConnectionFailedException {
+    // Pooled connections must be closed before the file underneath them is deleted
+    closeConnections();
     if (clearDatabase()) {
       Connection connection = connectOrCreateDataBase();
       return initialize(connection);
@@ -56,6 +73,69 @@ public class DatabaseDriver {
     }
   }
   
+  /**
+   * Closes every pooled connection to the database. The next call to connectOrCreateDataBase
+   * will open the pool again.
+   */
+  protected static void closeConnections() {
+    // Let journaled and queued writes commit before their connections go away
+    InterestAccrual.shutdown();
+    BalanceJournal.shutdown();
+    WriteQueue.shutdown();
+    ConnectionPool.shutdown();
+  }
+  
+  /**
+   * Replaces the bank database with another complete database file. Everything that writes in
+   * the background is stopped and the pooled connections are closed, the file is renamed over
+   * the database, and the next connection handed out opens the new one. Terminals only wait
+   * for as long as the rename takes.
+   * @param replacement the database file to swap in.
+   * @throws IOException if the file could not be swapped in, leaving the old database in place.
+   */
+  protected static void replaceDatabase(Path replacement) throws IOException {
+    InterestAccrual.shutdown();
+    BalanceJournal.shutdown();
+    WriteQueue.shutdown();
+    ConnectionPool.replaceDatabase(replacement);
+  }
+  
+  /**
+   * Describes the state of the connection pool, for diagnostics.
+   * @return the pool's borrow, return and leak counters.
+   */
+  protected static String getConnectionStatistics() {
+    try {
+      return ConnectionPool.getInstance().getStatistics();
+    } catch (Exception e) {
+      return "unavailable";
+    }
+  }
+  
+  /**
+   * Describes the state of the write queue, for diagnostics.
+   * @return the queue depth and group commit counters.
+   */
+  protected static String getWriteStatistics() {
+    return WriteQueue.getStatistics();
+  }
+  
+  /**
+   * Describes the state of the balance journal, for diagnostics.
+   * @return the journal's append, checkpoint and sync counters.
+   */
+  protected static String getJournalStatistics() {
+    return BalanceJournal.getStatistics();
+  }
+  
+  /**
+   * Describes the state of interest accrual, for diagnostics.
+   * @return the accrual and catch-up counters.
+   */
+  protected static String getAccrualStatistics() {
+    return InterestAccrual.getStatistics();
+  }
+  
   /*
    * BELOW THIS POINT ARE PRIVATE METHODS. 
    * DO NOT TOUCH THESE METHODS OR YOUR DATABASE SETUP MAY NOT MATCH WHAT IS BEING GRADED
@@ -1,5 +1,6 @@
 package com.bank.database;
 
+import com.bank.generics.LedgerEntryTypes;
 import com.bank.security.PasswordHelpers;
 
 import java.math.BigDecimal;
@@ -31,6 +32,7 @@ public class DatabaseInserter {
       if (id > 0) {
         ResultSet uniqueKey = preparedStatement.getGeneratedKeys();
         if (uniqueKey.next()) {
+          ReferenceDataVersion.changed();
           return uniqueKey.getInt(1);
         }
       }
@@ -56,6 +58,7 @@ public class DatabaseInserter {
     int id = insertUser(name, age, address, roleId, connection);
     if (id != -1) {
       insertPassword(password, id, connection);
+      ExistenceCache.USERS.addInserted(id);
       return id;
     }
     throw new DatabaseInsertException();
@@ -76,11 +79,12 @@ public class DatabaseInserter {
       PreparedStatement preparedStatement = connection.prepareStatement(sql, 
                                               Statement.RETURN_GENERATED_KEYS);
       preparedStatement.setString(1, name);
-      preparedStatement.setString(2, interestRate.toPlainString());
+      preparedStatement.setLong(2, MoneyCodec.toInterestRateUnits(interestRate));
       int id = preparedStatement.executeUpdate();
       if (id > 0) {
         ResultSet uniqueKey = preparedStatement.getGeneratedKeys();
         if (uniqueKey.next()) {
+          ReferenceDataVersion.changed();
           return uniqueKey.getInt(1);
         }
       }
@@ -102,22 +106,82 @@ public class DatabaseInserter {
    */
   protected static int insertAccount(String name, BigDecimal balance, int typeId, 
       Connection connection) throws DatabaseInsertException {
-    String sql = "INSERT INTO ACCOUNTS(NAME,BALANCE,TYPE) VALUES(?,?,?)";
+    String sql = "INSERT INTO ACCOUNTS(NAME,BALANCE,TYPE,LASTACCRUED,MODSEQ) "
+        + "VALUES(?,?,?,?," + ChangeSequence.CURRENT + ")";
+    boolean ownTransaction = false;
+    boolean committed = false;
     try {
+      // The account and its opening ledger entry are committed together
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      long units = MoneyCodec.toBalanceUnits(balance);
       PreparedStatement preparedStatement = connection.prepareStatement(sql, 
           Statement.RETURN_GENERATED_KEYS);
       preparedStatement.setString(1, name);
-      preparedStatement.setString(2, balance.toPlainString());
+      preparedStatement.setLong(2, units);
       preparedStatement.setInt(3, typeId);
+      // A new account starts accruing interest from when it is opened
+      preparedStatement.setLong(4, System.currentTimeMillis());
       int id = preparedStatement.executeUpdate();
       if (id > 0) {
         ResultSet uniqueKey = preparedStatement.getGeneratedKeys();
         if (uniqueKey.next()) {
-          return uniqueKey.getInt(1);
+          int accountId = uniqueKey.getInt(1);
+          insertLedgerEntry(accountId, LedgerEntryTypes.OPENING, units, connection);
+          if (ownTransaction) {
+            connection.commit();
+            committed = true;
+          }
+          ExistenceCache.ACCOUNTS.addInserted(accountId);
+          return accountId;
         }
       }
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      if (ownTransaction) {
+        try {
+          // Undo the account if its ledger entry could not be written
+          if (!committed) {
+            connection.rollback();
+          }
+          connection.setAutoCommit(true);
+        } catch (Exception autoCommitError) {
+          autoCommitError.printStackTrace();
+        }
+      }
+    }
+    throw new DatabaseInsertException();
+  }
+  
+  /**
+   * Append an entry to the ledger for a change that has just been made to an account's
+   * balance. The entry records the balance the account was left with, and is posted no earlier
+   * than the entry before it, so the ledger is in time order as well as ID order.
+   * @param accountId the id of the account whose balance changed.
+   * @param type what caused the change.
+   * @param amountUnits the signed change to the balance, in cents.
+   * @param connection the database connection, inside the transaction that made the change.
+   * @throws DatabaseInsertException if the account does not exist or the entry was not written.
+   */
+  protected static void insertLedgerEntry(int accountId, LedgerEntryTypes type, long amountUnits,
+      Connection connection) throws DatabaseInsertException {
+    String sql = "INSERT INTO LEDGER(ACCOUNTID,TYPE,AMOUNT,BALANCE,POSTED) "
+        + "SELECT ID, ?, ?, COALESCE(BALANCE, 0), "
+        + "MAX(?, COALESCE((SELECT MAX(POSTED) FROM LEDGER), 0)) FROM ACCOUNTS WHERE ID = ?;";
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      preparedStatement.setInt(1, type.getCode());
+      preparedStatement.setLong(2, amountUnits);
+      preparedStatement.setLong(3, System.currentTimeMillis());
+      preparedStatement.setInt(4, accountId);
+      if (preparedStatement.executeUpdate() == 1) {
+        return;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
     }
     throw new DatabaseInsertException();
   }
@@ -132,7 +196,8 @@ public class DatabaseInserter {
    */
   protected static int insertUserAccount(int userId, int accountId, Connection connection) 
       throws DatabaseInsertException {
-    String sql = "INSERT INTO USERACCOUNT(USERID,ACCOUNTID) VALUES(?,?);";
+    String sql = "INSERT INTO USERACCOUNT(USERID,ACCOUNTID,MODSEQ) VALUES(?,?,"
+        + ChangeSequence.CURRENT + ");";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql,
                                               Statement.RETURN_GENERATED_KEYS);
@@ -161,7 +226,8 @@ public class DatabaseInserter {
    */
   protected static int insertMessage(int userId, String message, Connection connection) 
       throws DatabaseInsertException {
-    String sql = "INSERT INTO USERMESSAGES(USERID,MESSAGE,VIEWED) VALUES(?, ?, ?);";
+    String sql = "INSERT INTO USERMESSAGES(USERID,MESSAGE,VIEWED,MODSEQ) VALUES(?, ?, ?, "
+        + ChangeSequence.CURRENT + ");";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql,
                                               Statement.RETURN_GENERATED_KEYS);
@@ -181,8 +247,191 @@ public class DatabaseInserter {
     throw new DatabaseInsertException();
   }
   
+  /**
+   * Append ledger entries of one type for changes just made to several accounts, with one
+   * batched statement. Each entry is written as insertLedgerEntry would write it.
+   * @param accountIds the id of each account whose balance changed.
+   * @param type what caused the changes.
+   * @param amountUnits the signed change to each balance, in cents, in the same order.
+   * @param connection the database connection, inside the transaction that made the changes.
+   * @throws DatabaseInsertException if any of the accounts does not exist or an entry was not
+   *     written.
+   */
+  protected static void insertLedgerEntries(int[] accountIds, LedgerEntryTypes type,
+      long[] amountUnits, Connection connection) throws DatabaseInsertException {
+    String sql = "INSERT INTO LEDGER(ACCOUNTID,TYPE,AMOUNT,BALANCE,POSTED) "
+        + "SELECT ID, ?, ?, COALESCE(BALANCE, 0), "
+        + "MAX(?, COALESCE((SELECT MAX(POSTED) FROM LEDGER), 0)) FROM ACCOUNTS WHERE ID = ?;";
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      long posted = System.currentTimeMillis();
+      for (int i = 0; i < accountIds.length; i++) {
+        preparedStatement.setInt(1, type.getCode());
+        preparedStatement.setLong(2, amountUnits[i]);
+        preparedStatement.setLong(3, posted);
+        preparedStatement.setInt(4, accountIds[i]);
+        preparedStatement.addBatch();
+      }
+      boolean allWritten = true;
+      for (int count : preparedStatement.executeBatch()) {
+        allWritten &= (count == 1);
+      }
+      if (allWritten) {
+        return;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    throw new DatabaseInsertException();
+  }
+  
+  /**
+   * Insert the record of a new bank-wide interest run.
+   * @param firstAccountId the lowest account id the run covers.
+   * @param lastAccountId the highest account id the run covers.
+   * @param chunkSize the number of account ids paid in each chunk.
+   * @param connection the connection to the database.
+   * @return the id of the run.
+   * @throws DatabaseInsertException thrown on failure.
+   */
+  protected static int insertInterestRun(int firstAccountId, int lastAccountId, int chunkSize,
+      Connection connection) throws DatabaseInsertException {
+    String sql = "INSERT INTO INTERESTRUN(FIRSTACCOUNTID,LASTACCOUNTID,CHUNKSIZE,STARTED) "
+        + "VALUES(?,?,?,?);";
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(sql,
+          Statement.RETURN_GENERATED_KEYS);
+      preparedStatement.setInt(1, firstAccountId);
+      preparedStatement.setInt(2, lastAccountId);
+      preparedStatement.setInt(3, chunkSize);
+      preparedStatement.setLong(4, System.currentTimeMillis());
+      if (preparedStatement.executeUpdate() > 0) {
+        ResultSet uniqueKey = preparedStatement.getGeneratedKeys();
+        if (uniqueKey.next()) {
+          return uniqueKey.getInt(1);
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    throw new DatabaseInsertException();
+  }
+  
+  /**
+   * Leave a message for every owner of each of several accounts, with one batched statement.
+   * @param accountIds the id of each account the messages are about.
+   * @param messages the message for each account's owners, in the same order.
+   * @param connection the connection to the database.
+   * @return the number of messages inserted.
+   * @throws DatabaseInsertException thrown on failure.
+   */
+  protected static int insertAccountOwnerMessages(int[] accountIds, String[] messages,
+      Connection connection) throws DatabaseInsertException {
+    String sql = "INSERT INTO USERMESSAGES(USERID,MESSAGE,VIEWED,MODSEQ) "
+        + "SELECT USERID, ?, 0, " + ChangeSequence.CURRENT + " FROM USERACCOUNT "
+        + "WHERE ACCOUNTID = ?;";
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      for (int i = 0; i < accountIds.length; i++) {
+        preparedStatement.setString(1, messages[i]);
+        preparedStatement.setInt(2, accountIds[i]);
+        preparedStatement.addBatch();
+      }
+      int inserted = 0;
+      for (int count : preparedStatement.executeBatch()) {
+        inserted += Math.max(count, 0);
+      }
+      return inserted;
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    throw new DatabaseInsertException();
+  }
+  
+  /**
+   * Insert many messages with one batched statement. A message whose user does not exist is
+   * skipped by the statement itself, so the users do not have to be looked up first.
+   * @param userIds the id of the user each message is for.
+   * @param messages the messages to be left (max 512 characters each), in the same order.
+   * @param connection the connection to the database.
+   * @return the number of messages inserted.
+   * @throws DatabaseInsertException thrown on failure, in which case none are inserted.
+   */
+  protected static int insertMessages(int[] userIds, String[] messages, Connection connection)
+      throws DatabaseInsertException {
+    String sql = "INSERT INTO USERMESSAGES(USERID,MESSAGE,VIEWED,MODSEQ) "
+        + "SELECT ?, ?, 0, " + ChangeSequence.CURRENT + " "
+        + "WHERE EXISTS (SELECT 1 FROM USERS WHERE ID = ?);";
+    boolean ownTransaction = false;
+    try {
+      // All of the messages are committed together, or none of them
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      for (int i = 0; i < userIds.length; i++) {
+        preparedStatement.setInt(1, userIds[i]);
+        preparedStatement.setString(2, messages[i]);
+        preparedStatement.setInt(3, userIds[i]);
+        preparedStatement.addBatch();
+      }
+      int inserted = 0;
+      for (int count : preparedStatement.executeBatch()) {
+        inserted += Math.max(count, 0);
+      }
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return inserted;
+    } catch (Exception e) {
+      e.printStackTrace();
+      if (ownTransaction) {
+        try {
+          connection.rollback();
+        } catch (Exception rollbackError) {
+          rollbackError.printStackTrace();
+        }
+      }
+    } finally {
+      if (ownTransaction) {
+        try {
+          connection.setAutoCommit(true);
+        } catch (Exception autoCommitError) {
+          autoCommitError.printStackTrace();
+        }
+      }
+    }
+    throw new DatabaseInsertException();
+  }
+  
+  /**
+   * Leave the same message for every user holding a role, with a single statement.
+   * @param roleId the role of the users the message is for, or -1 for every user.
+   * @param message the message to be left (max 512 characters).
+   * @param connection the connection to the database.
+   * @return the number of messages inserted.
+   * @throws DatabaseInsertException thrown on failure.
+   */
+  protected static int insertBroadcastMessage(int roleId, String message, Connection connection)
+      throws DatabaseInsertException {
+    String sql = "INSERT INTO USERMESSAGES(USERID,MESSAGE,VIEWED,MODSEQ) "
+        + "SELECT ID, ?, 0, " + ChangeSequence.CURRENT + " FROM USERS WHERE ? = -1 OR ROLEID = ?;";
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      preparedStatement.setString(1, message);
+      preparedStatement.setInt(2, roleId);
+      preparedStatement.setInt(3, roleId);
+      return preparedStatement.executeUpdate();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    throw new DatabaseInsertException();
+  }
+  
   private static boolean insertPassword(String password, int userId, Connection connection) {
-    String sql = "INSERT INTO USERPW(USERID, PASSWORD) VALUES(?,?);";
+    String sql = "INSERT INTO USERPW(USERID, PASSWORD, MODSEQ) VALUES(?,?,"
+        + ChangeSequence.CURRENT + ");";
     try {
       password = PasswordHelpers.passwordHash(password);
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
@@ -197,7 +446,8 @@ public class DatabaseInserter {
   
   private static int insertUser(String name, int age, String address, int roleId,
         Connection connection) {
-    String sql = "INSERT INTO USERS(NAME, AGE, ADDRESS, ROLEID) VALUES(?,?,?,?);";
+    String sql = "INSERT INTO USERS(NAME, AGE, ADDRESS, ROLEID, MODSEQ) VALUES(?,?,?,?,"
+        + ChangeSequence.CURRENT + ");";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql, 
           Statement.RETURN_GENERATED_KEYS);
@@ -0,0 +1,325 @@
+package com.bank.database;
+
+import com.bank.generics.LedgerEntryTypes;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings an existing bank database up to the current schema. Applied versions are recorded in
+ * the SCHEMAVERSION table, so a database created by an older build is upgraded in place the
+ * next time it is opened instead of having to be dropped and rebuilt.
+ */
+public class DatabaseMigrator {
+
+  private static final List<SchemaMigration> MIGRATIONS = new ArrayList<SchemaMigration>();
+
+  static {
+    MIGRATIONS.add(new SchemaMigration(1, "Indexes for the lookups issued by the helpers") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        execute(connection,
+            "CREATE INDEX IF NOT EXISTS IDX_USERACCOUNT_ACCOUNTID ON USERACCOUNT(ACCOUNTID)",
+            "CREATE INDEX IF NOT EXISTS IDX_USERMESSAGES_USERID ON USERMESSAGES(USERID)",
+            "CREATE INDEX IF NOT EXISTS IDX_USERS_ROLEID ON USERS(ROLEID)",
+            "CREATE INDEX IF NOT EXISTS IDX_USERPW_USERID ON USERPW(USERID)");
+      }
+    });
+    MIGRATIONS.add(new SchemaMigration(2, "Balances and interest rates stored as scaled integers") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE ACCOUNTTYPES_NEW "
+            + "(ID INTEGER PRIMARY KEY NOT NULL,"
+            + "NAME TEXT NOT NULL,"
+            + "INTERESTRATE INTEGER)");
+        copyScaled("ACCOUNTTYPES", "INTERESTRATE", "NAME", MoneyCodec.INTEREST_RATE_SCALE,
+            connection);
+        execute(connection, "DROP TABLE ACCOUNTTYPES",
+            "ALTER TABLE ACCOUNTTYPES_NEW RENAME TO ACCOUNTTYPES");
+
+        execute(connection, "CREATE TABLE ACCOUNTS_NEW "
+            + "(ID INTEGER PRIMARY KEY NOT NULL,"
+            + "NAME TEXT NOT NULL,"
+            + "BALANCE INTEGER,"
+            + "TYPE INTEGER NOT NULL,"
+            + "FOREIGN KEY(TYPE) REFERENCES ACCOUNTTYPES(ID))");
+        copyScaled("ACCOUNTS", "BALANCE", "NAME, TYPE", MoneyCodec.BALANCE_SCALE, connection);
+        execute(connection, "DROP TABLE ACCOUNTS",
+            "ALTER TABLE ACCOUNTS_NEW RENAME TO ACCOUNTS");
+      }
+    });
+    MIGRATIONS.add(new SchemaMigration(3, "Per-user balance totals kept up to date by triggers") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE USERTOTALS "
+            + "(USERID INTEGER PRIMARY KEY NOT NULL,"
+            + "TOTAL INTEGER NOT NULL,"
+            + "FOREIGN KEY(USERID) REFERENCES USERS(ID))");
+        // The triggers run inside whichever statement changed the accounts, so the totals are
+        // committed or rolled back together with the change itself
+        execute(connection, "CREATE TRIGGER USERTOTALS_USERACCOUNT_INSERT "
+            + "AFTER INSERT ON USERACCOUNT BEGIN "
+            + "INSERT OR IGNORE INTO USERTOTALS(USERID, TOTAL) VALUES(NEW.USERID, 0); "
+            + "UPDATE USERTOTALS SET TOTAL = TOTAL "
+            + "+ COALESCE((SELECT BALANCE FROM ACCOUNTS WHERE ID = NEW.ACCOUNTID), 0) "
+            + "WHERE USERID = NEW.USERID; "
+            + "END",
+            "CREATE TRIGGER USERTOTALS_USERACCOUNT_DELETE "
+            + "AFTER DELETE ON USERACCOUNT BEGIN "
+            + "UPDATE USERTOTALS SET TOTAL = TOTAL "
+            + "- COALESCE((SELECT BALANCE FROM ACCOUNTS WHERE ID = OLD.ACCOUNTID), 0) "
+            + "WHERE USERID = OLD.USERID; "
+            + "END",
+            "CREATE TRIGGER USERTOTALS_ACCOUNTS_UPDATE "
+            + "AFTER UPDATE OF BALANCE ON ACCOUNTS BEGIN "
+            + "UPDATE USERTOTALS SET TOTAL = TOTAL "
+            + "+ (COALESCE(NEW.BALANCE, 0) - COALESCE(OLD.BALANCE, 0)) "
+            + "* (SELECT COUNT(*) FROM USERACCOUNT "
+            + "WHERE USERACCOUNT.USERID = USERTOTALS.USERID AND USERACCOUNT.ACCOUNTID = NEW.ID) "
+            + "WHERE USERID IN (SELECT USERID FROM USERACCOUNT WHERE ACCOUNTID = NEW.ID); "
+            + "END",
+            "CREATE TRIGGER USERTOTALS_ACCOUNTS_DELETE "
+            + "AFTER DELETE ON ACCOUNTS BEGIN "
+            + "UPDATE USERTOTALS SET TOTAL = TOTAL - COALESCE(OLD.BALANCE, 0) "
+            + "* (SELECT COUNT(*) FROM USERACCOUNT "
+            + "WHERE USERACCOUNT.USERID = USERTOTALS.USERID AND USERACCOUNT.ACCOUNTID = OLD.ID) "
+            + "WHERE USERID IN (SELECT USERID FROM USERACCOUNT WHERE ACCOUNTID = OLD.ID); "
+            + "END");
+        if (!DatabaseUpdater.rebuildUserTotals(connection)) {
+          throw new SQLException("The user totals could not be built");
+        }
+      }
+    });
+    MIGRATIONS.add(new SchemaMigration(4, "Append-only ledger of balance changes") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        // Every column is an integer: a type code, amounts in cents and epoch milliseconds
+        execute(connection, "CREATE TABLE LEDGER "
+            + "(ID INTEGER PRIMARY KEY NOT NULL,"
+            + "ACCOUNTID INTEGER NOT NULL,"
+            + "TYPE INTEGER NOT NULL,"
+            + "AMOUNT INTEGER NOT NULL,"
+            + "BALANCE INTEGER NOT NULL,"
+            + "POSTED INTEGER NOT NULL,"
+            + "FOREIGN KEY(ACCOUNTID) REFERENCES ACCOUNTS(ID))",
+            "CREATE INDEX IDX_LEDGER_ACCOUNTID ON LEDGER(ACCOUNTID, ID)",
+            "CREATE INDEX IDX_LEDGER_POSTED ON LEDGER(POSTED)");
+        // Open the ledger with each existing balance, so every account's entries add up to it
+        execute(connection, "INSERT INTO LEDGER(ACCOUNTID, TYPE, AMOUNT, BALANCE, POSTED) "
+            + "SELECT ID, " + LedgerEntryTypes.OPENING.getCode() + ", COALESCE(BALANCE, 0), "
+            + "COALESCE(BALANCE, 0), "
+            + "CAST(strftime('%s', 'now') AS INTEGER) * 1000 FROM ACCOUNTS ORDER BY ID");
+      }
+    });
+    MIGRATIONS.add(new SchemaMigration(5, "Position of the balance journal's last checkpoint") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE JOURNALCHECKPOINT "
+            + "(ID INTEGER PRIMARY KEY NOT NULL,"
+            + "SEQUENCE INTEGER NOT NULL)");
+      }
+    });
+    MIGRATIONS.add(new SchemaMigration(6, "Progress of bank-wide interest runs") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        // A run covers a fixed range of account IDs, paid a chunk of IDs at a time
+        execute(connection, "CREATE TABLE INTERESTRUN "
+            + "(ID INTEGER PRIMARY KEY NOT NULL,"
+            + "FIRSTACCOUNTID INTEGER NOT NULL,"
+            + "LASTACCOUNTID INTEGER NOT NULL,"
+            + "CHUNKSIZE INTEGER NOT NULL,"
+            + "STARTED INTEGER NOT NULL,"
+            + "FINISHED INTEGER)",
+            "CREATE TABLE INTERESTCHUNK "
+            + "(RUNID INTEGER NOT NULL,"
+            + "FIRSTACCOUNTID INTEGER NOT NULL,"
+            + "ACCOUNTS INTEGER NOT NULL,"
+            + "INTEREST INTEGER NOT NULL,"
+            + "PRIMARY KEY(RUNID, FIRSTACCOUNTID),"
+            + "FOREIGN KEY(RUNID) REFERENCES INTERESTRUN(ID))");
+      }
+    });
+    MIGRATIONS.add(new SchemaMigration(7, "Time each account last accrued interest") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        // Existing accounts start accruing from the upgrade, in epoch milliseconds
+        execute(connection, "ALTER TABLE ACCOUNTS ADD COLUMN LASTACCRUED INTEGER",
+            "UPDATE ACCOUNTS SET LASTACCRUED = CAST(strftime('%s', 'now') AS INTEGER) * 1000",
+            "CREATE INDEX IDX_ACCOUNTS_LASTACCRUED ON ACCOUNTS(LASTACCRUED)");
+      }
+    });
+    MIGRATIONS.add(new SchemaMigration(8, "Change sequence numbers for differential backups") {
+      @Override
+      protected void apply(Connection connection) throws SQLException {
+        // Writes stamp rows with the current number; a backup moves it on, so the rows changed
+        // since a backup are those stamped with a later number. Existing rows start at 0.
+        execute(connection, "CREATE TABLE CHANGESEQUENCE "
+            + "(ID INTEGER PRIMARY KEY NOT NULL,"
+            + "SEQUENCE INTEGER NOT NULL)",
+            "INSERT INTO CHANGESEQUENCE(ID, SEQUENCE) VALUES(1, 1)");
+        for (String table : new String[] {"ACCOUNTS", "USERS", "USERPW", "USERACCOUNT",
+            "USERMESSAGES"}) {
+          execute(connection,
+              "ALTER TABLE " + table + " ADD COLUMN MODSEQ INTEGER NOT NULL DEFAULT 0",
+              "CREATE INDEX IDX_" + table + "_MODSEQ ON " + table + "(MODSEQ)");
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Applies every migration the database has not seen yet. Databases whose base tables have
+   * not been created are left alone; they are migrated once DatabaseDriver.initialize runs.
+   * @param connection the connection to the database.
+   * @return the number of migrations applied.
+   * @throws SQLException if a migration fails.
+   */
+  public static int migrate(Connection connection) throws SQLException {
+    if (!tableExists("ROLES", connection)) {
+      return 0;
+    }
+    SchemaMigration.execute(connection, "CREATE TABLE IF NOT EXISTS SCHEMAVERSION "
+        + "(VERSION INTEGER PRIMARY KEY NOT NULL,"
+        + "DESCRIPTION TEXT NOT NULL,"
+        + "APPLIED INTEGER NOT NULL)");
+
+    int applied = 0;
+    for (SchemaMigration migration : MIGRATIONS) {
+      if (migration.getVersion() > getSchemaVersion(connection)) {
+        applyMigration(migration, connection);
+        applied++;
+      }
+    }
+    return applied;
+  }
+
+
+  /**
+   * Returns the latest schema version applied to the database.
+   * @param connection the connection to the database.
+   * @return the schema version, or 0 if no migrations have been applied.
+   * @throws SQLException if the version could not be read.
+   */
+  public static int getSchemaVersion(Connection connection) throws SQLException {
+    if (!tableExists("SCHEMAVERSION", connection)) {
+      return 0;
+    }
+    PreparedStatement preparedStatement = connection.prepareStatement(
+        "SELECT COALESCE(MAX(VERSION), 0) AS VERSION FROM SCHEMAVERSION");
+    ResultSet results = preparedStatement.executeQuery();
+    int version = results.getInt("VERSION");
+    results.close();
+    return version;
+  }
+
+
+  /**
+   * Returns the latest schema version this build knows how to migrate to.
+   * @return the target schema version.
+   */
+  public static int getLatestVersion() {
+    return MIGRATIONS.get(MIGRATIONS.size() - 1).getVersion();
+  }
+
+
+  /**
+   * Checks whether a table exists in the database.
+   * @param table the name of the table.
+   * @param connection the connection to the database.
+   * @return true if the table exists, false otherwise.
+   * @throws SQLException if the schema could not be read.
+   */
+  protected static boolean tableExists(String table, Connection connection) throws SQLException {
+    PreparedStatement preparedStatement = connection.prepareStatement(
+        "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?");
+    preparedStatement.setString(1, table);
+    ResultSet results = preparedStatement.executeQuery();
+    boolean exists = results.next();
+    results.close();
+    return exists;
+  }
+
+
+  /**
+   * Copies a table into its replacement, named with a _NEW suffix, converting one decimal text
+   * column into a scaled integer. The conversion is done here rather than in SQL so that
+   * amounts are rounded exactly the way MoneyCodec rounds them.
+   * @param table the table being copied.
+   * @param amountColumn the column holding the decimal text.
+   * @param otherColumns the remaining columns besides ID, which are copied unchanged.
+   * @param scale the number of decimal places kept in the scaled integer.
+   * @param connection the connection to the database.
+   * @throws SQLException if a row could not be copied or an amount could not be parsed.
+   */
+  private static void copyScaled(String table, String amountColumn, String otherColumns,
+      int scale, Connection connection) throws SQLException {
+    String[] others = otherColumns.split(", ");
+    String placeholders = "?, ?";
+    for (int i = 0; i < others.length; i++) {
+      placeholders += ", ?";
+    }
+    PreparedStatement select = connection.prepareStatement("SELECT ID, " + otherColumns
+        + ", " + amountColumn + " FROM " + table);
+    PreparedStatement insert = connection.prepareStatement("INSERT INTO " + table + "_NEW(ID, "
+        + otherColumns + ", " + amountColumn + ") VALUES(" + placeholders + ")");
+    ResultSet results = select.executeQuery();
+    while (results.next()) {
+      insert.setInt(1, results.getInt("ID"));
+      for (int i = 0; i < others.length; i++) {
+        insert.setObject(i + 2, results.getObject(others[i]));
+      }
+      String amount = results.getString(amountColumn);
+      if (amount == null) {
+        insert.setNull(others.length + 2, Types.INTEGER);
+      } else {
+        try {
+          BigDecimal decimal = new BigDecimal(amount.trim());
+          insert.setLong(others.length + 2, (scale == MoneyCodec.BALANCE_SCALE)
+              ? MoneyCodec.toBalanceUnits(decimal) : MoneyCodec.toInterestRateUnits(decimal));
+        } catch (NumberFormatException e) {
+          throw new SQLException("Unreadable " + amountColumn + " '" + amount + "' in " + table
+              + " row " + results.getInt("ID"), e);
+        }
+      }
+      insert.executeUpdate();
+    }
+    results.close();
+  }
+
+
+  /**
+   * Applies a single migration and records it, all in one transaction.
+   * @param migration the migration to apply.
+   * @param connection the connection to the database.
+   * @throws SQLException if the migration fails, after rolling it back.
+   */
+  private static void applyMigration(SchemaMigration migration, Connection connection)
+      throws SQLException {
+    connection.setAutoCommit(false);
+    try {
+      // Another process may have applied it while this one was waiting for the lock
+      if (migration.getVersion() > getSchemaVersion(connection)) {
+        migration.apply(connection);
+        PreparedStatement preparedStatement = connection.prepareStatement(
+            "INSERT INTO SCHEMAVERSION(VERSION, DESCRIPTION, APPLIED) VALUES(?, ?, ?)");
+        preparedStatement.setInt(1, migration.getVersion());
+        preparedStatement.setString(2, migration.getDescription());
+        preparedStatement.setLong(3, System.currentTimeMillis());
+        preparedStatement.executeUpdate();
+      }
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+}
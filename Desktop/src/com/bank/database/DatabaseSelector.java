@@ -37,7 +37,9 @@ public class DatabaseSelector {
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, id);
     ResultSet results = preparedStatement.executeQuery();
-    return results.getString("NAME");
+    String name = results.getString("NAME");
+    results.close();
+    return name;
   }
   
   /**
@@ -52,7 +54,85 @@ public class DatabaseSelector {
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, userId);
     ResultSet results = preparedStatement.executeQuery();
-    return results.getInt("ROLEID");
+    int roleId = results.getInt("ROLEID");
+    results.close();
+    return roleId;
+  }
+  
+  /**
+   * Checks whether a user exists with a single indexed probe, or no query at all if the user
+   * has been seen before.
+   * @param userId the id of the user.
+   * @param connection the connection to the database.
+   * @return true if the user exists, false otherwise.
+   * @throws SQLException thrown if something goes wrong with the query.
+   */
+  protected static boolean userExists(int userId, Connection connection) throws SQLException {
+    if (ExistenceCache.USERS.contains(userId)) {
+      return true;
+    }
+    boolean exists = rowExists("SELECT 1 FROM USERS WHERE ID = ? LIMIT 1", userId, connection);
+    if (exists) {
+      ExistenceCache.USERS.add(userId);
+    }
+    return exists;
+  }
+  
+  /**
+   * Checks whether an account exists with a single indexed probe, or no query at all if the
+   * account has been seen before.
+   * @param accountId the id of the account.
+   * @param connection the connection to the database.
+   * @return true if the account exists, false otherwise.
+   * @throws SQLException thrown if something goes wrong with the query.
+   */
+  protected static boolean accountExists(int accountId, Connection connection)
+      throws SQLException {
+    if (ExistenceCache.ACCOUNTS.contains(accountId)) {
+      return true;
+    }
+    boolean exists = rowExists("SELECT 1 FROM ACCOUNTS WHERE ID = ? LIMIT 1", accountId,
+        connection);
+    if (exists) {
+      ExistenceCache.ACCOUNTS.add(accountId);
+    }
+    return exists;
+  }
+  
+  /**
+   * Checks whether a user is already known to exist, without touching the database.
+   * @param userId the id of the user.
+   * @return true if the user is known to exist, false if the database has to be asked.
+   */
+  protected static boolean isKnownUser(int userId) {
+    return ExistenceCache.USERS.contains(userId);
+  }
+  
+  /**
+   * Checks whether an account is already known to exist, without touching the database.
+   * @param accountId the id of the account.
+   * @return true if the account is known to exist, false if the database has to be asked.
+   */
+  protected static boolean isKnownAccount(int accountId) {
+    return ExistenceCache.ACCOUNTS.contains(accountId);
+  }
+  
+  /**
+   * Runs a query that takes a single id and reports whether it returned a row.
+   * @param sql the query to run.
+   * @param id the id to bind to the query.
+   * @param connection the connection to the database.
+   * @return true if a row was returned, false otherwise.
+   * @throws SQLException thrown if something goes wrong with the query.
+   */
+  private static boolean rowExists(String sql, int id, Connection connection)
+      throws SQLException {
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, id);
+    ResultSet results = preparedStatement.executeQuery();
+    boolean exists = results.next();
+    results.close();
+    return exists;
   }
   
   /**
@@ -67,6 +147,26 @@ public class DatabaseSelector {
     return preparedStatement.executeQuery();
   }
   
+  /**
+   * Return one page of the users holding a role, ordered by ID. Pages are found by the last ID
+   * already seen rather than an offset, so every page costs the same to read however deep it is.
+   * @param roleId the role of the users.
+   * @param afterId only users with an ID greater than this are returned.
+   * @param limit the largest number of users to return.
+   * @param connection the connection to the database.
+   * @return a result set of up to limit rows from the users table.
+   * @throws SQLException thrown if there is an issue.
+   */
+  protected static ResultSet getUsersDetailsByRole(int roleId, int afterId, int limit,
+      Connection connection) throws SQLException {
+    String sql = "SELECT * FROM USERS WHERE ROLEID = ? AND ID > ? ORDER BY ID LIMIT ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, roleId);
+    preparedStatement.setInt(2, afterId);
+    preparedStatement.setInt(3, limit);
+    return preparedStatement.executeQuery();
+  }
+  
   /**
    * find all the details about a given user.
    * @param userId the id of the user.
@@ -93,7 +193,9 @@ public class DatabaseSelector {
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, userId);
     ResultSet results = preparedStatement.executeQuery();
-    return results.getString("PASSWORD");
+    String password = results.getString("PASSWORD");
+    results.close();
+    return password;
   }
   
   /**
@@ -139,7 +241,295 @@ public class DatabaseSelector {
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, accountId);
     ResultSet results = preparedStatement.executeQuery();
-    return new BigDecimal(results.getString("BALANCE"));
+    BigDecimal balance = MoneyCodec.fromBalanceUnits(results.getLong("BALANCE"));
+    results.close();
+    return balance;
+  }
+  
+  /**
+   * Return an account's balance along with the name of its type, in lower case.
+   * @param accountId the account to check.
+   * @param connection a connection to the database.
+   * @return a result set with the BALANCE and TYPENAME of the account, empty if there is none.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getBalanceAndTypeName(int accountId, Connection connection)
+      throws SQLException {
+    String sql = "SELECT COALESCE(ACCOUNTS.BALANCE, 0) AS BALANCE, "
+        + "LOWER(ACCOUNTTYPES.NAME) AS TYPENAME FROM ACCOUNTS "
+        + "LEFT JOIN ACCOUNTTYPES ON ACCOUNTTYPES.ID = ACCOUNTS.TYPE WHERE ACCOUNTS.ID = ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, accountId);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the id, type and stored balance of every account in a range of account ids.
+   * @param firstId the lowest account id to return.
+   * @param lastId the highest account id to return.
+   * @param connection a connection to the database.
+   * @return a result set of ID, TYPE and BALANCE in cents, in order of id.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getAccountBalancesBetween(int firstId, int lastId,
+      Connection connection) throws SQLException {
+    String sql = "SELECT ID, TYPE, COALESCE(BALANCE, 0) AS BALANCE FROM ACCOUNTS "
+        + "WHERE ID BETWEEN ? AND ? ORDER BY ID";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, firstId);
+    preparedStatement.setInt(2, lastId);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return what is needed to work out the interest an account has accrued.
+   * @param accountId the id of the account.
+   * @param connection a connection to the database.
+   * @return a result set of TYPE, BALANCE in cents and LASTACCRUED, empty if there is no such
+   *     account.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getAccountAccrual(int accountId, Connection connection)
+      throws SQLException {
+    String sql = "SELECT TYPE, COALESCE(BALANCE, 0) AS BALANCE, LASTACCRUED FROM ACCOUNTS "
+        + "WHERE ID = ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, accountId);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return one page of the accounts that have not accrued interest since a given time.
+   * @param accruedBefore only accounts last accrued at or before this time are returned.
+   * @param afterId only accounts with an id greater than this are returned.
+   * @param limit the largest number of accounts to return.
+   * @param connection a connection to the database.
+   * @return a result set of ID, in order of id.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getAccountsAccruedBefore(long accruedBefore, int afterId, int limit,
+      Connection connection) throws SQLException {
+    String sql = "SELECT ID FROM ACCOUNTS WHERE (LASTACCRUED IS NULL OR LASTACCRUED <= ?) "
+        + "AND ID > ? ORDER BY ID LIMIT ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setLong(1, accruedBefore);
+    preparedStatement.setInt(2, afterId);
+    preparedStatement.setInt(3, limit);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the lowest and highest account ids in the database.
+   * @param connection a connection to the database.
+   * @return a result set of FIRSTID and LASTID, both null if there are no accounts.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getAccountIdRange(Connection connection) throws SQLException {
+    String sql = "SELECT MIN(ID) AS FIRSTID, MAX(ID) AS LASTID FROM ACCOUNTS";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the most recent interest run that has not finished.
+   * @param connection a connection to the database.
+   * @return a result set of ID, FIRSTACCOUNTID, LASTACCOUNTID, CHUNKSIZE and STARTED, empty if
+   *     every run has finished.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getUnfinishedInterestRun(Connection connection)
+      throws SQLException {
+    String sql = "SELECT ID, FIRSTACCOUNTID, LASTACCOUNTID, CHUNKSIZE, STARTED FROM INTERESTRUN "
+        + "WHERE FINISHED IS NULL ORDER BY ID DESC LIMIT 1";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the chunks of an interest run that have already been committed.
+   * @param runId the id of the interest run.
+   * @param connection a connection to the database.
+   * @return a result set of FIRSTACCOUNTID, ACCOUNTS and INTEREST in cents.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getInterestChunks(int runId, Connection connection)
+      throws SQLException {
+    String sql = "SELECT FIRSTACCOUNTID, ACCOUNTS, INTEREST FROM INTERESTCHUNK WHERE RUNID = ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, runId);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the sequence number of the last balance journal record folded into the database.
+   * @param connection a connection to the database.
+   * @return the sequence number, or 0 if nothing has been checkpointed.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static long getJournalCheckpoint(Connection connection) throws SQLException {
+    String sql = "SELECT COALESCE(MAX(SEQUENCE), 0) AS SEQUENCE FROM JOURNALCHECKPOINT";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    ResultSet results = preparedStatement.executeQuery();
+    long sequence = results.getLong("SEQUENCE");
+    results.close();
+    return sequence;
+  }
+  
+  /**
+   * Return the details of every account belonging to a user, along with the name of each
+   * account's type, in a single query.
+   * @param userId the id of the user.
+   * @param connection a connection to the database.
+   * @return a result set with the ID, NAME, BALANCE, TYPE and TYPENAME of each account.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getAccountsDetails(int userId, Connection connection)
+      throws SQLException {
+    String sql = "SELECT ACCOUNTS.ID, ACCOUNTS.NAME, ACCOUNTS.BALANCE, ACCOUNTS.TYPE, "
+        + "ACCOUNTS.LASTACCRUED, ACCOUNTTYPES.NAME AS TYPENAME FROM USERACCOUNT "
+        + "JOIN ACCOUNTS ON ACCOUNTS.ID = USERACCOUNT.ACCOUNTID "
+        + "JOIN ACCOUNTTYPES ON ACCOUNTTYPES.ID = ACCOUNTS.TYPE "
+        + "WHERE USERACCOUNT.USERID = ? ORDER BY USERACCOUNT.ACCOUNTID";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, userId);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the combined balance of every account held by a user of the bank. The sum is taken
+   * over the stored cents, so it is exact.
+   * @param connection a connection to the database.
+   * @return the total balance, which is zero if no accounts are held.
+   * @throws SQLException thrown when something goes wrong with query, or the sum overflows.
+   */
+  protected static BigDecimal getTotalBalance(Connection connection) throws SQLException {
+    String sql = "SELECT COALESCE(SUM(ACCOUNTS.BALANCE), 0) AS TOTAL FROM USERACCOUNT "
+        + "JOIN ACCOUNTS ON ACCOUNTS.ID = USERACCOUNT.ACCOUNTID";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    ResultSet results = preparedStatement.executeQuery();
+    BigDecimal total = MoneyCodec.fromBalanceUnits(results.getLong("TOTAL"));
+    results.close();
+    return total;
+  }
+  
+  /**
+   * Return the combined balance of every account belonging to a user. The total is read from
+   * the USERTOTALS table, which is kept current as balances and account owners change.
+   * @param userId the id of the user.
+   * @param connection a connection to the database.
+   * @return the total balance, which is zero if the user holds no accounts.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static BigDecimal getUserTotalBalance(int userId, Connection connection)
+      throws SQLException {
+    String sql = "SELECT TOTAL FROM USERTOTALS WHERE USERID = ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, userId);
+    ResultSet results = preparedStatement.executeQuery();
+    // Users who have never held an account have no row
+    BigDecimal total = MoneyCodec.fromBalanceUnits(results.next() ? results.getLong("TOTAL") : 0);
+    results.close();
+    return total;
+  }
+  
+  /**
+   * Return every user whose stored total in USERTOTALS does not match the sum of their
+   * account balances.
+   * @param connection a connection to the database.
+   * @return a result set with the USERID, STORED total and ACTUAL total, in cents, of each user
+   *     whose total is wrong.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getInconsistentUserTotals(Connection connection)
+      throws SQLException {
+    String sql = "SELECT USERID, STORED, ACTUAL FROM (SELECT IDS.USERID, "
+        + "COALESCE((SELECT TOTAL FROM USERTOTALS WHERE USERTOTALS.USERID = IDS.USERID), 0) "
+        + "AS STORED, "
+        + "COALESCE((SELECT SUM(ACCOUNTS.BALANCE) FROM USERACCOUNT "
+        + "JOIN ACCOUNTS ON ACCOUNTS.ID = USERACCOUNT.ACCOUNTID "
+        + "WHERE USERACCOUNT.USERID = IDS.USERID), 0) AS ACTUAL "
+        + "FROM (SELECT USERID FROM USERTOTALS UNION SELECT USERID FROM USERACCOUNT) AS IDS) "
+        + "WHERE STORED <> ACTUAL ORDER BY USERID";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return one page of an account's ledger entries, oldest first. Pages are found by the last
+   * entry already seen, and the ledger's account index keeps each account's entries together,
+   * so reading a statement never touches other accounts' entries.
+   * @param accountId the id of the account.
+   * @param afterId only entries with an ID greater than this are returned.
+   * @param limit the largest number of entries to return.
+   * @param connection a connection to the database.
+   * @return a result set of up to limit rows from the ledger.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getLedgerEntries(int accountId, long afterId, int limit,
+      Connection connection) throws SQLException {
+    String sql = "SELECT * FROM LEDGER WHERE ACCOUNTID = ? AND ID > ? ORDER BY ID LIMIT ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setInt(1, accountId);
+    preparedStatement.setLong(2, afterId);
+    preparedStatement.setInt(3, limit);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return one page of the ledger entries posted within a period, ordered by posting time and
+   * then by ID. A page starts after the last entry already seen, found by its time and ID
+   * together, so entries posted out of ID order are neither skipped nor repeated.
+   * @param fromMillis the start of the period, inclusive, in epoch milliseconds.
+   * @param toMillis the end of the period, exclusive, in epoch milliseconds.
+   * @param afterPosted the posting time of the last entry already seen.
+   * @param afterId the ID of the last entry already seen.
+   * @param limit the largest number of entries to return.
+   * @param connection a connection to the database.
+   * @return a result set of up to limit rows from the ledger.
+   * @throws SQLException thrown when something goes wrong with query.
+   */
+  protected static ResultSet getLedgerEntriesBetween(long fromMillis, long toMillis,
+      long afterPosted, long afterId, int limit, Connection connection) throws SQLException {
+    String sql = "SELECT * FROM LEDGER WHERE POSTED >= ? AND POSTED < ? "
+        + "AND (POSTED > ? OR (POSTED = ? AND ID > ?)) ORDER BY POSTED, ID LIMIT ?";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    preparedStatement.setLong(1, fromMillis);
+    preparedStatement.setLong(2, toMillis);
+    preparedStatement.setLong(3, afterPosted);
+    preparedStatement.setLong(4, afterPosted);
+    preparedStatement.setLong(5, afterId);
+    preparedStatement.setInt(6, limit);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the combined balance of each user's accounts. Users without accounts are left out.
+   * @param connection a connection to the database.
+   * @return a result set with the USERID and TOTAL, in cents, of each user.
+   * @throws SQLException thrown when something goes wrong with query, or a sum overflows.
+   */
+  protected static ResultSet getTotalBalancesByUser(Connection connection) throws SQLException {
+    String sql = "SELECT USERACCOUNT.USERID, SUM(ACCOUNTS.BALANCE) AS TOTAL FROM USERACCOUNT "
+        + "JOIN ACCOUNTS ON ACCOUNTS.ID = USERACCOUNT.ACCOUNTID "
+        + "GROUP BY USERACCOUNT.USERID ORDER BY USERACCOUNT.USERID";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Return the combined balance of the accounts held under each account type. Types without
+   * accounts are left out.
+   * @param connection a connection to the database.
+   * @return a result set with the TYPE and TOTAL, in cents, of each account type.
+   * @throws SQLException thrown when something goes wrong with query, or a sum overflows.
+   */
+  protected static ResultSet getTotalBalancesByAccountType(Connection connection)
+      throws SQLException {
+    String sql = "SELECT ACCOUNTS.TYPE, SUM(ACCOUNTS.BALANCE) AS TOTAL FROM USERACCOUNT "
+        + "JOIN ACCOUNTS ON ACCOUNTS.ID = USERACCOUNT.ACCOUNTID "
+        + "GROUP BY ACCOUNTS.TYPE ORDER BY ACCOUNTS.TYPE";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    return preparedStatement.executeQuery();
   }
   
   /**
@@ -154,7 +544,9 @@ public class DatabaseSelector {
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, accountId);
     ResultSet results = preparedStatement.executeQuery();
-    return results.getInt("TYPE");
+    int typeId = results.getInt("TYPE");
+    results.close();
+    return typeId;
     
   }
   
@@ -171,7 +563,9 @@ public class DatabaseSelector {
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, accountTypeId);
     ResultSet results = preparedStatement.executeQuery();
-    return results.getString("NAME");
+    String name = results.getString("NAME");
+    results.close();
+    return name;
   }
  
   /**
@@ -186,6 +580,27 @@ public class DatabaseSelector {
     return preparedStatement.executeQuery();
   }
   
+  /**
+   * Return the id, name and interest rate of every account type.
+   * @param connection the connection to the database.
+   * @return a result set of all rows in the table.
+   * @throws SQLException thrown if there is an issue.
+   */
+  protected static ResultSet getAccountTypesDetails(Connection connection) throws SQLException {
+    String sql = "SELECT ID, NAME, INTERESTRATE FROM ACCOUNTTYPES";
+    PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    return preparedStatement.executeQuery();
+  }
+  
+  /**
+   * Returns a number that changes whenever a role or account type is added or changed, so a
+   * copy of those tables can tell when it is out of date.
+   * @return the version of the ROLES and ACCOUNTTYPES tables.
+   */
+  protected static long getReferenceDataVersion() {
+    return ReferenceDataVersion.get();
+  }
+  
   /**
    * Get the interest rate for an account.
    * @param accountType the type for the account.
@@ -199,7 +614,9 @@ public class DatabaseSelector {
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, accountType);
     ResultSet results = preparedStatement.executeQuery();
-    return new BigDecimal(results.getString("INTERESTRATE"));
+    BigDecimal interestRate = MoneyCodec.fromInterestRateUnits(results.getLong("INTERESTRATE"));
+    results.close();
+    return interestRate;
   }
   
   /**
@@ -228,7 +645,10 @@ public class DatabaseSelector {
     String sql = "SELECT MESSAGE FROM USERMESSAGES WHERE ID = ?";
     PreparedStatement preparedStatement = connection.prepareStatement(sql);
     preparedStatement.setInt(1, messageId);
-    return preparedStatement.executeQuery().getString("MESSAGE");
+    ResultSet results = preparedStatement.executeQuery();
+    String message = results.getString("MESSAGE");
+    results.close();
+    return message;
   }
   
 }
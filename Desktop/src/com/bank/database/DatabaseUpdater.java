@@ -1,8 +1,12 @@
 package com.bank.database;
 
+import com.bank.generics.LedgerEntryTypes;
+
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 
 public class DatabaseUpdater {
   /* 
@@ -22,6 +26,7 @@ public class DatabaseUpdater {
       preparedStatement.setString(1, name);
       preparedStatement.setInt(2, id);
       preparedStatement.executeUpdate();
+      ReferenceDataVersion.changed();
       return true;
         
     } catch (Exception e) {
@@ -38,7 +43,8 @@ public class DatabaseUpdater {
    * @return true if it works, false otherwise.
    */
   protected static boolean updateUserName(String name, int id, Connection connection) {
-    String sql = "UPDATE USERS SET NAME = ? WHERE ID = ?;";
+    String sql = "UPDATE USERS SET NAME = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setString(1, name);
@@ -59,7 +65,8 @@ public class DatabaseUpdater {
    * @return true if it succeeds, false otherwise.
    */
   protected static boolean updateUserAge(int age, int id, Connection connection) {
-    String sql = "UPDATE USERS SET AGE = ? WHERE ID = ?;";
+    String sql = "UPDATE USERS SET AGE = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setInt(1, age);
@@ -80,7 +87,8 @@ public class DatabaseUpdater {
    * @return true if successful, false otherwise.
    */
   protected static boolean updateUserRole(int roleId, int id, Connection connection) {
-    String sql = "UPDATE USERS SET ROLEID = ? WHERE ID = ?;";
+    String sql = "UPDATE USERS SET ROLEID = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setInt(1, roleId);
@@ -101,7 +109,8 @@ public class DatabaseUpdater {
    * @return true if successful, false otherwise.
    */
   protected static boolean updateUserAddress(String address, int id, Connection connection) {
-    String sql = "UPDATE USERS SET ADDRESS = ? WHERE ID = ?;";
+    String sql = "UPDATE USERS SET ADDRESS = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setString(1, address);
@@ -122,7 +131,8 @@ public class DatabaseUpdater {
    * @return true if successful, false otherwise.
    */
   protected static boolean updateAccountName(String name, int id, Connection connection) {
-    String sql = "UPDATE ACCOUNTS SET NAME = ? WHERE ID = ?;";
+    String sql = "UPDATE ACCOUNTS SET NAME = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setString(1, name);
@@ -143,11 +153,513 @@ public class DatabaseUpdater {
    * @return true if successful, false otherwise.
    */
   protected static boolean updateAccountBalance(BigDecimal balance, int id, Connection connection) {
-    String sql = "UPDATE ACCOUNTS SET BALANCE = ? WHERE ID = ?;";
+    return updateAccountBalance(balance, id, LedgerEntryTypes.ADJUSTMENT, connection);
+  }
+  
+  /**
+   * update the account balance, recording the change in the ledger in the same transaction.
+   * @param balance the new balance for the account.
+   * @param id the id of the account.
+   * @param type what caused the change, as recorded in the ledger.
+   * @param connection the connection to the database.
+   * @return true if successful, false otherwise.
+   */
+  protected static boolean updateAccountBalance(BigDecimal balance, int id,
+      LedgerEntryTypes type, Connection connection) {
+    String sql = "UPDATE ACCOUNTS SET BALANCE = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
+    boolean ownTransaction = false;
+    Statement savepoint = null;
+    try {
+      long units = MoneyCodec.toBalanceUnits(balance);
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      // A savepoint lets a half-applied change be undone inside a caller's transaction as well
+      savepoint = connection.createStatement();
+      savepoint.execute("SAVEPOINT BALANCE_SET");
+      // Interest accrued on the old balance is paid before it is replaced
+      if (InterestAccrual.isEnabled()) {
+        InterestAccrual.accrue(id, connection);
+      }
+      // The ledger records the change, so find out what the balance was first
+      PreparedStatement current = connection.prepareStatement(
+          "SELECT COALESCE(BALANCE, 0) AS BALANCE FROM ACCOUNTS WHERE ID = ?;");
+      current.setInt(1, id);
+      ResultSet results = current.executeQuery();
+      boolean exists = results.next();
+      long previousUnits = exists ? results.getLong("BALANCE") : 0;
+      results.close();
+      if (exists) {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        preparedStatement.setLong(1, units);
+        preparedStatement.setInt(2, id);
+        preparedStatement.executeUpdate();
+        DatabaseInserter.insertLedgerEntry(id, type, units - previousUnits, connection);
+      }
+      savepoint.execute("RELEASE BALANCE_SET");
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return exists;
+    } catch (Exception e) {
+      e.printStackTrace();
+      try {
+        if (ownTransaction) {
+          connection.rollback();
+        } else if (savepoint != null) {
+          savepoint.execute("ROLLBACK TO BALANCE_SET");
+          savepoint.execute("RELEASE BALANCE_SET");
+        }
+      } catch (Exception rollbackError) {
+        rollbackError.printStackTrace();
+      }
+    } finally {
+      try {
+        if (savepoint != null) {
+          savepoint.close();
+        }
+        if (ownTransaction) {
+          connection.setAutoCommit(true);
+        }
+      } catch (Exception closeError) {
+        closeError.printStackTrace();
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Adds a signed amount to an account's balance in a single conditional UPDATE, so two
+   * terminals working on the same account cannot overwrite each other's change. A change that
+   * would leave the balance below zero is refused unless the account is of the exempt type; a
+   * withdrawal is checked with its fractions of a cent rounded up, though they are not taken.
+   * @param amount the amount to add, negative for a withdrawal.
+   * @param id the id of the account.
+   * @param exemptTypeName the name of the account type allowed to go below zero.
+   * @param connection the connection to the database.
+   * @return the new balance, or null if the account does not exist or the guard refused it.
+   */
+  protected static BigDecimal updateAccountBalanceBy(BigDecimal amount, int id,
+      String exemptTypeName, Connection connection) {
+    String sql = "UPDATE ACCOUNTS SET BALANCE = BALANCE + ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ? "
+        + "AND (? >= 0 OR BALANCE + ? >= 0 "
+        + "OR TYPE IN (SELECT ID FROM ACCOUNTTYPES WHERE LOWER(NAME) = ?));";
+    boolean ownTransaction = false;
+    Statement savepoint = null;
     try {
+      long units = MoneyCodec.toBalanceUnits(amount);
+      long coveredUnits = MoneyCodec.toCoveredUnits(amount);
+      // Read the new balance back inside the same transaction as the update
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      // A savepoint lets a half-applied change be undone inside a caller's transaction as well
+      savepoint = connection.createStatement();
+      savepoint.execute("SAVEPOINT BALANCE_CHANGE");
+      // The change must not earn interest for the periods that passed before it
+      if (InterestAccrual.isEnabled()) {
+        InterestAccrual.accrue(id, connection);
+      }
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
-      preparedStatement.setString(1, balance.toPlainString());
+      preparedStatement.setLong(1, units);
       preparedStatement.setInt(2, id);
+      preparedStatement.setLong(3, coveredUnits);
+      preparedStatement.setLong(4, coveredUnits);
+      preparedStatement.setString(5, exemptTypeName.toLowerCase());
+      BigDecimal balance = null;
+      if (preparedStatement.executeUpdate() == 1) {
+        // A change of less than a cent leaves the balance as it was, so there is nothing to record
+        if (units != 0) {
+          DatabaseInserter.insertLedgerEntry(id, (units < 0) ? LedgerEntryTypes.WITHDRAWAL
+              : LedgerEntryTypes.DEPOSIT, units, connection);
+        }
+        balance = DatabaseSelector.getBalance(id, connection);
+      }
+      savepoint.execute("RELEASE BALANCE_CHANGE");
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return balance;
+    } catch (Exception e) {
+      e.printStackTrace();
+      try {
+        if (ownTransaction) {
+          connection.rollback();
+        } else if (savepoint != null) {
+          savepoint.execute("ROLLBACK TO BALANCE_CHANGE");
+          savepoint.execute("RELEASE BALANCE_CHANGE");
+        }
+      } catch (Exception rollbackError) {
+        rollbackError.printStackTrace();
+      }
+    } finally {
+      try {
+        if (savepoint != null) {
+          savepoint.close();
+        }
+        if (ownTransaction) {
+          connection.setAutoCommit(true);
+        }
+      } catch (Exception closeError) {
+        closeError.printStackTrace();
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Moves money from one account to another in one transaction. SQLite has no row locks; the
+   * transfer holds the database's single write lock, already taken by BEGIN IMMEDIATE or by the
+   * writer's group transaction, so no other change can come between the debit and the credit.
+   * The debit is refused, and nothing is changed, if it would leave the source below zero and
+   * the source is not of the exempt type.
+   * @param amount the amount to move, which must be positive.
+   * @param fromId the id of the account being debited.
+   * @param toId the id of the account being credited.
+   * @param exemptTypeName the name of the account type allowed to go below zero.
+   * @param connection the connection to the database.
+   * @return the new balance of the source account, or null if either account does not exist,
+   *     the amount is not positive or the guard refused the debit.
+   */
+  protected static BigDecimal transferBalance(BigDecimal amount, int fromId, int toId,
+      String exemptTypeName, Connection connection) {
+    String debitSql = "UPDATE ACCOUNTS SET BALANCE = BALANCE - ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ? "
+        + "AND (BALANCE - ? >= 0 "
+        + "OR TYPE IN (SELECT ID FROM ACCOUNTTYPES WHERE LOWER(NAME) = ?));";
+    String creditSql = "UPDATE ACCOUNTS SET BALANCE = BALANCE + ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
+    if (amount == null || amount.signum() <= 0 || fromId == toId) {
+      return null;
+    }
+    boolean ownTransaction = false;
+    Statement savepoint = null;
+    try {
+      long units = MoneyCodec.toBalanceUnits(amount);
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      // A savepoint lets a refused transfer be undone inside a caller's transaction as well
+      savepoint = connection.createStatement();
+      savepoint.execute("SAVEPOINT TRANSFER");
+      
+      int updated = 0;
+      for (int id : new int[] {fromId, toId}) {
+        // Neither side of the transfer earns interest for the periods that passed before it
+        if (InterestAccrual.isEnabled()) {
+          InterestAccrual.accrue(id, connection);
+        }
+        PreparedStatement preparedStatement;
+        if (id == fromId) {
+          preparedStatement = connection.prepareStatement(debitSql);
+          preparedStatement.setLong(1, units);
+          preparedStatement.setInt(2, id);
+          preparedStatement.setLong(3, units);
+          preparedStatement.setString(4, exemptTypeName.toLowerCase());
+        } else {
+          preparedStatement = connection.prepareStatement(creditSql);
+          preparedStatement.setLong(1, units);
+          preparedStatement.setInt(2, id);
+        }
+        updated += preparedStatement.executeUpdate();
+      }
+      
+      // Both rows must have changed for the money to have moved
+      BigDecimal balance = null;
+      if (updated == 2) {
+        DatabaseInserter.insertLedgerEntry(fromId, LedgerEntryTypes.TRANSFEROUT, -units,
+            connection);
+        DatabaseInserter.insertLedgerEntry(toId, LedgerEntryTypes.TRANSFERIN, units, connection);
+        balance = DatabaseSelector.getBalance(fromId, connection);
+      } else {
+        savepoint.execute("ROLLBACK TO TRANSFER");
+      }
+      savepoint.execute("RELEASE TRANSFER");
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return balance;
+    } catch (Exception e) {
+      e.printStackTrace();
+      try {
+        if (ownTransaction) {
+          connection.rollback();
+        } else if (savepoint != null) {
+          savepoint.execute("ROLLBACK TO TRANSFER");
+          savepoint.execute("RELEASE TRANSFER");
+        }
+      } catch (Exception rollbackError) {
+        rollbackError.printStackTrace();
+      }
+    } finally {
+      try {
+        if (savepoint != null) {
+          savepoint.close();
+        }
+        if (ownTransaction) {
+          connection.setAutoCommit(true);
+        }
+      } catch (Exception closeError) {
+        closeError.printStackTrace();
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Fold a run of balance journal records into the accounts, writing a ledger entry for each,
+   * and record how far the journal has been checkpointed, all in one transaction. The changes
+   * were already checked when they were journaled, so none of them is refused here; a record
+   * for an account that has since been deleted is skipped.
+   * @param accountIds the account each record changes.
+   * @param amountUnits the signed change each record makes, in cents.
+   * @param typeCodes the ledger type code of each record.
+   * @param sequence the sequence number of the last record.
+   * @param connection the connection to the database.
+   * @return true if every record was applied, false otherwise.
+   */
+  protected static boolean applyJournalEntries(int[] accountIds, long[] amountUnits,
+      int[] typeCodes, long sequence, Connection connection) {
+    String sql = "UPDATE ACCOUNTS SET BALANCE = COALESCE(BALANCE, 0) + ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
+    boolean ownTransaction = false;
+    Statement savepoint = null;
+    try {
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      // A savepoint lets a half-applied run be undone inside a caller's transaction as well
+      savepoint = connection.createStatement();
+      savepoint.execute("SAVEPOINT JOURNAL_APPLY");
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      for (int i = 0; i < accountIds.length; i++) {
+        preparedStatement.setLong(1, amountUnits[i]);
+        preparedStatement.setInt(2, accountIds[i]);
+        if (preparedStatement.executeUpdate() == 1) {
+          DatabaseInserter.insertLedgerEntry(accountIds[i],
+              LedgerEntryTypes.fromCode(typeCodes[i]), amountUnits[i], connection);
+        }
+      }
+      PreparedStatement checkpoint = connection.prepareStatement(
+          "INSERT OR REPLACE INTO JOURNALCHECKPOINT(ID, SEQUENCE) VALUES(1, ?);");
+      checkpoint.setLong(1, sequence);
+      checkpoint.executeUpdate();
+      savepoint.execute("RELEASE JOURNAL_APPLY");
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return true;
+    } catch (Exception e) {
+      e.printStackTrace();
+      try {
+        if (ownTransaction) {
+          connection.rollback();
+        } else if (savepoint != null) {
+          savepoint.execute("ROLLBACK TO JOURNAL_APPLY");
+          savepoint.execute("RELEASE JOURNAL_APPLY");
+        }
+      } catch (Exception rollbackError) {
+        rollbackError.printStackTrace();
+      }
+    } finally {
+      try {
+        if (savepoint != null) {
+          savepoint.close();
+        }
+        if (ownTransaction) {
+          connection.setAutoCommit(true);
+        }
+      } catch (Exception closeError) {
+        closeError.printStackTrace();
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Pay one chunk of a bank-wide interest run: add the interest worked out for each account,
+   * write an interest ledger entry and a message for each, and record the chunk as paid, all
+   * in one transaction. The interest was worked out from the balances read beforehand, so each
+   * update only applies if the balance is still the one it was worked out from. If any balance
+   * has changed since, or the chunk was already recorded as paid, nothing in the chunk is
+   * changed and it can be read and worked out again.
+   * @param runId the id of the interest run.
+   * @param firstAccountId the lowest account id in the chunk, which identifies it within the run.
+   * @param accountIds the id of each account being paid.
+   * @param expectedUnits the balance each interest amount was worked out from, in cents.
+   * @param interestUnits the interest to add to each account, in cents.
+   * @param connection the connection to the database.
+   * @return true if the whole chunk was paid, false otherwise.
+   */
+  protected static boolean applyInterest(int runId, int firstAccountId, int[] accountIds,
+      long[] expectedUnits, long[] interestUnits, Connection connection) {
+    String sql = "UPDATE ACCOUNTS SET BALANCE = COALESCE(BALANCE, 0) + ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ? AND COALESCE(BALANCE, 0) = ?;";
+    boolean ownTransaction = false;
+    Statement savepoint = null;
+    try {
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      // A savepoint lets a stale chunk be undone inside a caller's transaction as well
+      savepoint = connection.createStatement();
+      savepoint.execute("SAVEPOINT INTEREST");
+      
+      long total = 0;
+      String[] messages = new String[accountIds.length];
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      for (int i = 0; i < accountIds.length; i++) {
+        preparedStatement.setLong(1, interestUnits[i]);
+        preparedStatement.setInt(2, accountIds[i]);
+        preparedStatement.setLong(3, expectedUnits[i]);
+        preparedStatement.addBatch();
+        total += interestUnits[i];
+        messages[i] = "Account " + accountIds[i] + " has been given interest";
+      }
+      boolean current = true;
+      for (int count : preparedStatement.executeBatch()) {
+        current &= (count == 1);
+      }
+      
+      boolean paid = false;
+      if (current) {
+        DatabaseInserter.insertLedgerEntries(accountIds, LedgerEntryTypes.INTEREST,
+            interestUnits, connection);
+        DatabaseInserter.insertAccountOwnerMessages(accountIds, messages, connection);
+        // A chunk already recorded as paid inserts nothing here, and is undone below
+        PreparedStatement chunk = connection.prepareStatement("INSERT OR IGNORE INTO "
+            + "INTERESTCHUNK(RUNID, FIRSTACCOUNTID, ACCOUNTS, INTEREST) VALUES(?, ?, ?, ?);");
+        chunk.setInt(1, runId);
+        chunk.setInt(2, firstAccountId);
+        chunk.setInt(3, accountIds.length);
+        chunk.setLong(4, total);
+        paid = chunk.executeUpdate() == 1;
+      }
+      if (!paid) {
+        savepoint.execute("ROLLBACK TO INTEREST");
+      }
+      savepoint.execute("RELEASE INTEREST");
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return paid;
+    } catch (Exception e) {
+      e.printStackTrace();
+      try {
+        if (ownTransaction) {
+          connection.rollback();
+        } else if (savepoint != null) {
+          savepoint.execute("ROLLBACK TO INTEREST");
+          savepoint.execute("RELEASE INTEREST");
+        }
+      } catch (Exception rollbackError) {
+        rollbackError.printStackTrace();
+      }
+    } finally {
+      try {
+        if (savepoint != null) {
+          savepoint.close();
+        }
+        if (ownTransaction) {
+          connection.setAutoCommit(true);
+        }
+      } catch (Exception closeError) {
+        closeError.printStackTrace();
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Pay the interest an account has accrued and move its accrual time forward, writing an
+   * interest ledger entry if anything was paid. The update only applies if the accrual time is
+   * still the one the interest was worked out from, so the same periods are never paid twice.
+   * @param id the id of the account.
+   * @param interestUnits the interest to add, in cents.
+   * @param accruedFrom the accrual time the interest was worked out from, or null if the
+   *     account had none.
+   * @param accruedTo the account's new accrual time, in epoch milliseconds.
+   * @param connection the connection to the database.
+   * @return true if successful, false otherwise.
+   */
+  protected static boolean accrueInterest(int id, long interestUnits, Long accruedFrom,
+      long accruedTo, Connection connection) {
+    String sql = "UPDATE ACCOUNTS SET BALANCE = COALESCE(BALANCE, 0) + ?, LASTACCRUED = ?, "
+        + "MODSEQ = " + ChangeSequence.CURRENT + " WHERE ID = ? AND "
+        + ((accruedFrom == null) ? "LASTACCRUED IS NULL;" : "LASTACCRUED = ?;");
+    boolean ownTransaction = false;
+    Statement savepoint = null;
+    try {
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      // A savepoint keeps the credit and its ledger entry together inside a caller's transaction
+      savepoint = connection.createStatement();
+      savepoint.execute("SAVEPOINT ACCRUAL");
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      preparedStatement.setLong(1, interestUnits);
+      preparedStatement.setLong(2, accruedTo);
+      preparedStatement.setInt(3, id);
+      if (accruedFrom != null) {
+        preparedStatement.setLong(4, accruedFrom);
+      }
+      boolean accrued = preparedStatement.executeUpdate() == 1;
+      if (accrued && interestUnits != 0) {
+        DatabaseInserter.insertLedgerEntry(id, LedgerEntryTypes.INTEREST, interestUnits,
+            connection);
+      }
+      savepoint.execute("RELEASE ACCRUAL");
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return accrued;
+    } catch (Exception e) {
+      e.printStackTrace();
+      try {
+        if (ownTransaction) {
+          connection.rollback();
+        } else if (savepoint != null) {
+          savepoint.execute("ROLLBACK TO ACCRUAL");
+          savepoint.execute("RELEASE ACCRUAL");
+        }
+      } catch (Exception rollbackError) {
+        rollbackError.printStackTrace();
+      }
+    } finally {
+      try {
+        if (savepoint != null) {
+          savepoint.close();
+        }
+        if (ownTransaction) {
+          connection.setAutoCommit(true);
+        }
+      } catch (Exception closeError) {
+        closeError.printStackTrace();
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Mark a bank-wide interest run as finished.
+   * @param runId the id of the interest run.
+   * @param connection the connection to the database.
+   * @return true if successful, false otherwise.
+   */
+  protected static boolean finishInterestRun(int runId, Connection connection) {
+    String sql = "UPDATE INTERESTRUN SET FINISHED = ? WHERE ID = ? AND FINISHED IS NULL;";
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      preparedStatement.setLong(1, System.currentTimeMillis());
+      preparedStatement.setInt(2, runId);
       preparedStatement.executeUpdate();
       return true;
     } catch (Exception e) {
@@ -164,7 +676,8 @@ public class DatabaseUpdater {
    * @return true if successful, false otherwise.
    */
   protected static boolean updateAccountType(int typeId, int id, Connection connection) {
-    String sql = "UPDATE ACCOUNTS SET TYPE = ? WHERE ID = ?;";
+    String sql = "UPDATE ACCOUNTS SET TYPE = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?;";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setInt(1, typeId);
@@ -191,6 +704,7 @@ public class DatabaseUpdater {
       preparedStatement.setString(1, name);
       preparedStatement.setInt(2, id);
       preparedStatement.executeUpdate();
+      ReferenceDataVersion.changed();
       return true;
     } catch (Exception e) {
       e.printStackTrace();
@@ -210,9 +724,10 @@ public class DatabaseUpdater {
     String sql = "UPDATE ACCOUNTTYPES SET INTERESTRATE = ? WHERE ID = ?;";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
-      preparedStatement.setString(1, interestRate.toPlainString());
+      preparedStatement.setLong(1, MoneyCodec.toInterestRateUnits(interestRate));
       preparedStatement.setInt(2, id);
       preparedStatement.executeUpdate();
+      ReferenceDataVersion.changed();
       return true;
     } catch (Exception e) {
       e.printStackTrace();
@@ -229,7 +744,8 @@ public class DatabaseUpdater {
    */
   protected static boolean updateUserPassword(String password, int id,
       Connection connection) {
-    String sql = "UPDATE USERPW SET PASSWORD = ? WHERE USERID = ?";
+    String sql = "UPDATE USERPW SET PASSWORD = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE USERID = ?";
     try { 
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setString(1, password);
@@ -249,7 +765,8 @@ public class DatabaseUpdater {
    * @return true if successful, false o/w.
    */
   protected static boolean updateUserMessageState(int id, Connection connection) {
-    String sql = "UPDATE USERMESSAGES SET VIEWED = ? WHERE ID = ?";
+    String sql = "UPDATE USERMESSAGES SET VIEWED = ?, MODSEQ = "
+        + ChangeSequence.CURRENT + " WHERE ID = ?";
     try {
       PreparedStatement preparedStatement = connection.prepareStatement(sql);
       preparedStatement.setInt(1, 1);
@@ -262,4 +779,116 @@ public class DatabaseUpdater {
     return false;
   }
   
+  /**
+   * Recompute every user's stored balance total from their accounts, replacing whatever the
+   * USERTOTALS table held before. The totals are normally kept current by triggers, so this is
+   * only needed to repair them.
+   * @param connection connection to the database.
+   * @return true if successful, false o/w.
+   */
+  protected static boolean rebuildUserTotals(Connection connection) {
+    String[] sql = {"DELETE FROM USERTOTALS;",
+        "INSERT INTO USERTOTALS(USERID, TOTAL) "
+        + "SELECT USERACCOUNT.USERID, COALESCE(SUM(ACCOUNTS.BALANCE), 0) FROM USERACCOUNT "
+        + "LEFT JOIN ACCOUNTS ON ACCOUNTS.ID = USERACCOUNT.ACCOUNTID "
+        + "GROUP BY USERACCOUNT.USERID;"};
+    boolean ownTransaction = false;
+    try {
+      // Readers must never see the table emptied but not yet refilled
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      for (String statement : sql) {
+        connection.prepareStatement(statement).executeUpdate();
+      }
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return true;
+    } catch (Exception e) {
+      e.printStackTrace();
+      if (ownTransaction) {
+        try {
+          connection.rollback();
+        } catch (Exception rollbackError) {
+          rollbackError.printStackTrace();
+        }
+      }
+    } finally {
+      if (ownTransaction) {
+        try {
+          connection.setAutoCommit(true);
+        } catch (Exception autoCommitError) {
+          autoCommitError.printStackTrace();
+        }
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Close the current change sequence number and move every later change on to the next one.
+   * Rows stamped with the closed number have all been committed once this commits, since the
+   * change holds the write lock.
+   * @param connection connection to the database.
+   * @return the sequence number that was closed, or -1 if it could not be moved on.
+   */
+  protected static long advanceChangeSequence(Connection connection) {
+    boolean ownTransaction = false;
+    try {
+      // Read and move on the number in one transaction, so no other writer gets in between
+      ownTransaction = connection.getAutoCommit();
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      connection.prepareStatement("UPDATE CHANGESEQUENCE SET SEQUENCE = SEQUENCE + 1 "
+          + "WHERE ID = 1;").executeUpdate();
+      ResultSet results = connection.prepareStatement(
+          "SELECT SEQUENCE FROM CHANGESEQUENCE WHERE ID = 1;").executeQuery();
+      long closed = results.next() ? results.getLong("SEQUENCE") - 1 : -1;
+      results.close();
+      if (ownTransaction) {
+        connection.commit();
+      }
+      return closed;
+    } catch (Exception e) {
+      e.printStackTrace();
+      if (ownTransaction) {
+        try {
+          connection.rollback();
+        } catch (Exception rollbackError) {
+          rollbackError.printStackTrace();
+        }
+      }
+    } finally {
+      if (ownTransaction) {
+        try {
+          connection.setAutoCommit(true);
+        } catch (Exception autoCommitError) {
+          autoCommitError.printStackTrace();
+        }
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * Set the change sequence number later changes are stamped with, such as after a restore.
+   * @param sequence the sequence number.
+   * @param connection connection to the database.
+   * @return true if successful, false otherwise.
+   */
+  protected static boolean updateChangeSequence(long sequence, Connection connection) {
+    String sql = "UPDATE CHANGESEQUENCE SET SEQUENCE = ? WHERE ID = 1;";
+    try {
+      PreparedStatement preparedStatement = connection.prepareStatement(sql);
+      preparedStatement.setLong(1, sequence);
+      return preparedStatement.executeUpdate() > 0;
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return false;
+  }
+  
 }
@@ -0,0 +1,72 @@
+package com.bank.database;
+
+import java.util.BitSet;
+
+/**
+ * Remembers which user and account IDs are known to exist, so that checking an ID does not
+ * need a query once it has been seen. Rows are never deleted from these tables, so an ID that
+ * has been seen stays valid until the database file itself is replaced.
+ */
+class ExistenceCache {
+
+  private static final boolean ENABLED =
+      Boolean.parseBoolean(System.getProperty("bank.existenceCache.enabled", "true"));
+
+  /** The IDs of users known to exist. */
+  static final ExistenceCache USERS = new ExistenceCache();
+
+  /** The IDs of accounts known to exist. */
+  static final ExistenceCache ACCOUNTS = new ExistenceCache();
+
+  private final BitSet ids = new BitSet();
+
+
+  /**
+   * Checks whether an ID has been seen before. A false result only means the ID is not known
+   * here; the database still has to be asked.
+   * @param id the ID to look up.
+   * @return true if the ID is known to exist, false otherwise.
+   */
+  synchronized boolean contains(int id) {
+    return ENABLED && id > 0 && ids.get(id);
+  }
+
+
+  /**
+   * Records that an ID exists.
+   * @param id the ID that has been inserted or found.
+   */
+  synchronized void add(int id) {
+    if (ENABLED && id > 0) {
+      ids.set(id);
+    }
+  }
+
+
+  /**
+   * Records that an ID has just been inserted. The insert may be part of a unit of work that
+   * is later rolled back, so the unit is told to forget the cached IDs if it is.
+   * @param id the ID that has been inserted.
+   */
+  void addInserted(int id) {
+    add(id);
+    UnitOfWork.cachedUncommitted();
+  }
+
+
+  /**
+   * Forgets every ID, for use when the database is deleted or replaced.
+   */
+  synchronized void clear() {
+    ids.clear();
+  }
+
+
+  /**
+   * Forgets every known user and account ID.
+   */
+  static void clearAll() {
+    USERS.clear();
+    ACCOUNTS.clear();
+  }
+}
@@ -0,0 +1,379 @@
+package com.bank.database;
+
+import com.bank.generics.Money;
+import com.bank.generics.ReferenceData;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accrues interest lazily instead of sweeping every account. Each account records in
+ * ACCOUNTS.LASTACCRUED when it was last paid interest, and an account type's interest rate is
+ * earned once per accrual period. Whatever is owed is only paid when the account is next changed
+ * through the helpers, so the cost of interest grows with the number of accounts in use rather
+ * than with the number of accounts in the bank. Reading an account shows the interest owed so
+ * far without paying it, so reads never write.
+ *
+ * <p>Accounts that are never used would otherwise fall behind indefinitely, so a background
+ * thread periodically catches up the ones that have gone a number of periods without being paid.
+ * Whole periods are paid at once, compounded at the rate in force when they are paid, and any
+ * part of a period left over is carried to the next accrual.
+ *
+ * <p>Accrual is off by default and is enabled with the bank.interest.accrual.enabled property.
+ * The period, the catch-up interval, how far behind an account must be before the catch-up pays
+ * it, and how many accounts it pays per write may be overridden through the
+ * bank.interest.periodMillis, bank.interest.catchUpMillis, bank.interest.dormantPeriods and
+ * bank.interest.catchUpBatch properties. With the balance journal enabled, interest is worked
+ * out from the stored balance, so changes still in the journal earn from the next accrual.
+ */
+public class InterestAccrual {
+
+  private static final boolean ENABLED = Boolean.getBoolean("bank.interest.accrual.enabled");
+  private static final long PERIOD_MILLIS =
+      Math.max(1L, Long.getLong("bank.interest.periodMillis", 24L * 60 * 60 * 1000));
+  private static final long CATCH_UP_MILLIS =
+      Math.max(1L, Long.getLong("bank.interest.catchUpMillis", 60L * 60 * 1000));
+  private static final int DORMANT_PERIODS =
+      Math.max(1, Integer.getInteger("bank.interest.dormantPeriods", 30));
+  private static final int CATCH_UP_BATCH =
+      Math.max(1, Integer.getInteger("bank.interest.catchUpBatch", 200));
+
+  // The schema version that adds ACCOUNTS.LASTACCRUED
+  private static final int ACCRUAL_SCHEMA_VERSION = 7;
+
+  private static volatile InterestAccrual instance;
+
+  private final Thread catchUp;
+  private volatile boolean closed = false;
+
+  // Accounting
+  private static final AtomicLong accrualCount = new AtomicLong();
+  private static final AtomicLong periodCount = new AtomicLong();
+  private static final AtomicLong interestUnits = new AtomicLong();
+  private final AtomicLong caughtUpCount = new AtomicLong();
+  private volatile long lastCatchUpMillis = 0;
+
+
+  /**
+   * Starts the catch-up thread.
+   */
+  private InterestAccrual() {
+    catchUp = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        catchUpLoop();
+      }
+    }, "bank-interest-accrual");
+    catchUp.setDaemon(true);
+    catchUp.start();
+  }
+
+
+  /**
+   * Checks whether interest is being accrued lazily.
+   * @return true if the bank.interest.accrual.enabled property is set, false otherwise.
+   */
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+
+  /**
+   * Starts the catch-up thread, if accrual is enabled and it is not already running. Called
+   * before a connection is handed out, in the same way the balance journal is recovered.
+   */
+  static void start() {
+    if (ENABLED && instance == null) {
+      synchronized (InterestAccrual.class) {
+        if (instance == null) {
+          instance = new InterestAccrual();
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Stops the catch-up thread. The next connection handed out starts it again, which is what
+   * callers need before the database file is deleted or replaced.
+   */
+  static synchronized void shutdown() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+
+  /**
+   * Checks whether an account read with the given accrual time has interest to be paid.
+   * @param lastAccrued when the account was last paid, in epoch milliseconds.
+   * @param never whether the account has no accrual time yet.
+   * @return true if accrual is enabled and at least one period has passed, false otherwise.
+   */
+  public static boolean isDue(long lastAccrued, boolean never) {
+    return ENABLED && (never || System.currentTimeMillis() - lastAccrued >= PERIOD_MILLIS);
+  }
+
+
+  /**
+   * Works out what an account's balance will be once it is paid the interest it has accrued so
+   * far, without paying it.
+   * @param balanceUnits the stored balance in cents.
+   * @param typeId the account's type.
+   * @param lastAccrued when the account was last paid, in epoch milliseconds.
+   * @param never whether the account has no accrual time yet.
+   * @return the balance with the interest owed added on, in cents.
+   * @throws ArithmeticException if that balance does not fit in a long number of cents.
+   */
+  public static long withInterestOwed(long balanceUnits, int typeId, long lastAccrued,
+      boolean never) {
+    // An account without an accrual time has earned nothing yet
+    if (never || !isDue(lastAccrued, false)) {
+      return balanceUnits;
+    }
+    long periods = (System.currentTimeMillis() - lastAccrued) / PERIOD_MILLIS;
+    return Math.addExact(balanceUnits, interestOwed(balanceUnits,
+        ReferenceData.getInstance().getInterestRate(typeId), periods));
+  }
+
+
+  /**
+   * Pays an account whatever interest it has accrued since it was last paid, as one queued
+   * write.
+   * @param accountId the id of the account.
+   * @return the account's stored balance afterwards, or null if it does not exist or the
+   *     interest could not be paid.
+   */
+  public static BigDecimal accrue(final int accountId) {
+    Long units = WriteQueue.await(WriteQueue.submit(new Callable<Long>() {
+      @Override
+      public Long call() throws SQLException {
+        Connection writer = DatabaseDriver.connectOrCreateDataBase();
+        try {
+          return accrue(accountId, writer);
+        } finally {
+          writer.close();
+        }
+      }
+    }));
+    return (units == null) ? null : MoneyCodec.fromBalanceUnits(units);
+  }
+
+
+  /**
+   * Pays an account its accrued interest only if a period has passed, checking first with a
+   * read so that nothing is queued for an account that is up to date. Used ahead of changes
+   * that do not go through the database writer, such as journaled ones.
+   * @param accountId the id of the account.
+   */
+  public static void accrueIfDue(int accountId) {
+    if (!ENABLED) {
+      return;
+    }
+    boolean due = false;
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    try {
+      ResultSet results = DatabaseSelector.getAccountAccrual(accountId, connection);
+      if (results.next()) {
+        long lastAccrued = results.getLong("LASTACCRUED");
+        due = isDue(lastAccrued, results.wasNull());
+      }
+      results.close();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // The pool discards connections it cannot reset
+      }
+    }
+    if (due) {
+      accrue(accountId);
+    }
+  }
+
+
+  /**
+   * Pays an account whatever interest it has accrued, on a connection that is already writing.
+   * Called before a balance is changed, so the change does not earn interest for the periods
+   * that passed before it was made.
+   * @param accountId the id of the account.
+   * @param connection the connection to the database, inside the caller's transaction.
+   * @return the account's stored balance afterwards in cents, or null if it does not exist.
+   * @throws SQLException if the account could not be read or paid.
+   */
+  static Long accrue(int accountId, Connection connection) throws SQLException {
+    ResultSet results = DatabaseSelector.getAccountAccrual(accountId, connection);
+    if (!results.next()) {
+      results.close();
+      return null;
+    }
+    int typeId = results.getInt("TYPE");
+    long balanceUnits = results.getLong("BALANCE");
+    long lastAccrued = results.getLong("LASTACCRUED");
+    boolean never = results.wasNull();
+    results.close();
+
+    long now = System.currentTimeMillis();
+    if (!never && now - lastAccrued < PERIOD_MILLIS) {
+      return balanceUnits;
+    }
+    // An account without an accrual time starts accruing from now
+    long periods = never ? 0 : (now - lastAccrued) / PERIOD_MILLIS;
+    long accruedTo = never ? now : lastAccrued + periods * PERIOD_MILLIS;
+    long interest = interestOwed(balanceUnits,
+        ReferenceData.getInstance().getInterestRate(typeId), periods);
+    // A balance that no longer fits in a long number of cents is refused before it is stored
+    long paidUnits = Math.addExact(balanceUnits, interest);
+    if (!DatabaseUpdater.accrueInterest(accountId, interest, never ? null : lastAccrued,
+        accruedTo, connection)) {
+      throw new SQLException("Interest could not be accrued on account " + accountId);
+    }
+    accrualCount.incrementAndGet();
+    periodCount.addAndGet(periods);
+    interestUnits.addAndGet(interest);
+    return paidUnits;
+  }
+
+
+  /**
+   * Returns a summary of the accrual counters.
+   * @return a one line description of accrual's state.
+   */
+  static String getStatistics() {
+    if (!ENABLED) {
+      return "accrual=disabled";
+    }
+    InterestAccrual current = instance;
+    return "accruals=" + accrualCount.get() + " periods=" + periodCount.get()
+        + " interest=" + MoneyCodec.fromBalanceUnits(interestUnits.get())
+        + " caughtUp=" + ((current == null) ? 0 : current.caughtUpCount.get())
+        + " lastCatchUp=" + ((current == null) ? 0 : current.lastCatchUpMillis)
+        + " periodMillis=" + PERIOD_MILLIS;
+  }
+
+
+  /**
+   * Works out the interest a balance earns over a number of periods, compounded each period.
+   * A single period earns exactly what Account.addInterest would pay.
+   * @param balanceUnits the balance in cents.
+   * @param rate the interest rate per period, or null if the account type has none.
+   * @param periods the number of whole periods.
+   * @return the interest owed, in cents.
+   */
+  private static long interestOwed(long balanceUnits, BigDecimal rate, long periods) {
+    if (rate == null || periods <= 0 || balanceUnits == 0) {
+      return 0;
+    }
+    Money balance = Money.ofUnits(balanceUnits);
+    if (periods == 1) {
+      return balance.multiply(rate, RoundingMode.CEILING).getUnits();
+    }
+    // Dormant accounts can owe thousands of periods, so the growth is kept to 16 digits
+    int exponent = (int) Math.min(periods, 999999999L);
+    BigDecimal growth = BigDecimal.ONE.add(rate).pow(exponent, MathContext.DECIMAL64)
+        .subtract(BigDecimal.ONE);
+    return balance.multiply(growth, RoundingMode.CEILING).getUnits();
+  }
+
+
+  /**
+   * Catches up dormant accounts every catch-up interval until accrual is shut down.
+   */
+  private void catchUpLoop() {
+    while (!closed) {
+      try {
+        Thread.sleep(CATCH_UP_MILLIS);
+      } catch (InterruptedException e) {
+        // Closing interrupts the sleep; the loop condition decides when to stop
+      }
+      if (!closed) {
+        catchUpDormant();
+      }
+    }
+  }
+
+
+  /**
+   * Pays every account that has gone the dormant number of periods without accruing, a batch
+   * of accounts per queued write.
+   */
+  private void catchUpDormant() {
+    long accruedBefore = System.currentTimeMillis() - DORMANT_PERIODS * PERIOD_MILLIS;
+    int afterId = 0;
+    while (!closed) {
+      final List<Integer> accountIds = new ArrayList<Integer>();
+      Connection connection = DatabaseDriver.connectOrCreateDataBase();
+      try {
+        // A database that has not been migrated yet has nothing to accrue
+        if (DatabaseMigrator.getSchemaVersion(connection) < ACCRUAL_SCHEMA_VERSION) {
+          return;
+        }
+        ResultSet results = DatabaseSelector.getAccountsAccruedBefore(accruedBefore, afterId,
+            CATCH_UP_BATCH, connection);
+        while (results.next()) {
+          accountIds.add(results.getInt("ID"));
+        }
+        results.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return;
+      } finally {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          // The pool discards connections it cannot reset
+        }
+      }
+      if (accountIds.isEmpty()) {
+        break;
+      }
+      afterId = accountIds.get(accountIds.size() - 1);
+      Integer paid = WriteQueue.await(WriteQueue.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws SQLException {
+          Connection writer = DatabaseDriver.connectOrCreateDataBase();
+          try {
+            int count = 0;
+            for (int accountId : accountIds) {
+              if (accrue(accountId, writer) != null) {
+                count++;
+              }
+            }
+            return count;
+          } finally {
+            writer.close();
+          }
+        }
+      }));
+      if (paid != null) {
+        caughtUpCount.addAndGet(paid);
+      }
+    }
+    lastCatchUpMillis = System.currentTimeMillis();
+  }
+
+
+  /**
+   * Stops the catch-up thread, letting a catch-up in progress finish its current batch.
+   */
+  private void close() {
+    closed = true;
+    catchUp.interrupt();
+    try {
+      catchUp.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,449 @@
+package com.bank.database;
+
+import com.bank.generics.Money;
+import com.bank.generics.ReferenceData;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pays interest on every account in the bank. The accounts are split into chunks of
+ * consecutive account IDs, and a fork-join pool reads each chunk's balances and works out its
+ * interest from the account type rates, which are looked up once for the whole run. Each chunk
+ * is then paid as a single queued write: its balance updates, ledger entries and messages are
+ * batched and committed together, along with a record that the chunk has been paid.
+ *
+ * <p>A run that is interrupted, by a crash or by a chunk that could not be paid, is left
+ * unfinished in the INTERESTRUN table. The next run picks it up and pays only the chunks that
+ * have not been paid yet, so no account is paid twice. An account whose balance changes between
+ * being read and being paid causes its chunk to be read and worked out again, and a chunk that
+ * keeps changing is read for the last time inside the write that pays it.
+ *
+ * <p>Chunk size, pool size and the number of attempts per chunk may be overridden through the
+ * bank.interest.chunkSize, bank.interest.parallelism and bank.interest.maxAttempts properties.
+ */
+public class InterestRun {
+
+  private static final int CHUNK_SIZE =
+      Math.max(1, Integer.getInteger("bank.interest.chunkSize", 500));
+  private static final int PARALLELISM = Math.max(1, Integer.getInteger(
+      "bank.interest.parallelism", Runtime.getRuntime().availableProcessors()));
+  private static final int MAX_ATTEMPTS =
+      Math.max(1, Integer.getInteger("bank.interest.maxAttempts", 5));
+
+  // Only one run is made at a time, and the latest one is kept for progress reports
+  private static final Object RUN_LOCK = new Object();
+  private static volatile InterestRun latest;
+
+  private final int id;
+  private final int firstAccountId;
+  private final int lastAccountId;
+  private final int chunkSize;
+  private final int chunkCount;
+  private final boolean resumed;
+  private final BigDecimal[] rates;
+  private final Set<Integer> paidChunks =
+      Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  // Progress and throughput accounting
+  private final AtomicLong accountsPaid = new AtomicLong();
+  private final AtomicLong interestPaid = new AtomicLong();
+  private final AtomicInteger chunksPaidNow = new AtomicInteger();
+  private final AtomicInteger chunksFailed = new AtomicInteger();
+  private final AtomicLong retryCount = new AtomicLong();
+  private volatile long startNanos;
+  private volatile long finishNanos;
+  private volatile boolean finished = false;
+
+
+  /**
+   * Creates a run over a range of account IDs.
+   * @param id the ID of the run in the INTERESTRUN table.
+   * @param firstAccountId the lowest account ID the run covers.
+   * @param lastAccountId the highest account ID the run covers.
+   * @param chunkSize the number of account IDs in each chunk.
+   * @param resumed whether the run was started before and is being picked up again.
+   */
+  private InterestRun(int id, int firstAccountId, int lastAccountId, int chunkSize,
+      boolean resumed) {
+    this.id = id;
+    this.firstAccountId = firstAccountId;
+    this.lastAccountId = lastAccountId;
+    this.chunkSize = chunkSize;
+    this.chunkCount = (int) (((long) lastAccountId - firstAccountId) / chunkSize + 1);
+    this.resumed = resumed;
+    // Every account of a type is paid at the same rate, so look each rate up just once
+    ReferenceData referenceData = ReferenceData.getInstance();
+    int typeBound = 0;
+    for (int typeId : referenceData.getAccountTypeIds()) {
+      typeBound = Math.max(typeBound, typeId + 1);
+    }
+    this.rates = new BigDecimal[typeBound];
+    for (int typeId : referenceData.getAccountTypeIds()) {
+      this.rates[typeId] = referenceData.getInterestRate(typeId);
+    }
+  }
+
+
+  /**
+   * Checks whether bank-wide runs may be made. They may not while InterestAccrual is enabled,
+   * since a run does not advance ACCOUNTS.LASTACCRUED and the period it paid would be paid again
+   * by the next accrual.
+   * @return true if payInterest may be called, false otherwise.
+   */
+  public static boolean isAvailable() {
+    return !InterestAccrual.isEnabled();
+  }
+
+
+  /**
+   * Pays interest on every account, finishing the last run first if it was interrupted. Only
+   * one run is made at a time; a second caller waits for the first to finish. It must not be
+   * called inside a unit of work, since the chunks are committed by the database writer, nor
+   * while interest is accrued per account.
+   * @return the run, whether or not every chunk could be paid, or null if there are no accounts,
+   *     interest is accrued per account instead or the run could not be started.
+   */
+  public static InterestRun payInterest() {
+    if (UnitOfWork.isActive() || !isAvailable()) {
+      return null;
+    }
+    synchronized (RUN_LOCK) {
+      // Interest is worked out from the stored balances, so they must include the journal
+      if (BalanceJournal.isEnabled()) {
+        BalanceJournal.flush();
+      }
+      InterestRun run = open();
+      if (run != null) {
+        latest = run;
+        run.execute();
+      }
+      return run;
+    }
+  }
+
+
+  /**
+   * Describes the progress of the run in progress, or the outcome of the last one.
+   * @return a one line description of the latest run.
+   */
+  public static String getProgress() {
+    InterestRun run = latest;
+    return (run == null) ? "No interest run has been made" : run.toString();
+  }
+
+
+  /**
+   * Returns the ID of the run in the INTERESTRUN table.
+   * @return the run's ID.
+   */
+  public int getId() {
+    return this.id;
+  }
+
+
+  /**
+   * Checks whether every chunk of the run has been paid.
+   * @return true if the run is finished, false if some chunks are still to be paid.
+   */
+  public boolean isFinished() {
+    return this.finished;
+  }
+
+
+  /**
+   * Returns the number of accounts paid interest by this run, including any paid before it was
+   * interrupted.
+   * @return the number of accounts paid.
+   */
+  public long getAccountsPaid() {
+    return this.accountsPaid.get();
+  }
+
+
+  /**
+   * Returns the total interest paid by this run, including any paid before it was interrupted.
+   * @return the interest paid.
+   */
+  public BigDecimal getInterestPaid() {
+    return MoneyCodec.fromBalanceUnits(this.interestPaid.get());
+  }
+
+
+  /**
+   * Describes the run's progress and throughput.
+   * @return a one line description of the run.
+   */
+  @Override
+  public String toString() {
+    long end = finished ? finishNanos : System.nanoTime();
+    long millis = Math.max(1, (end - startNanos) / 1000000);
+    return "Interest run " + id + (resumed ? " (resumed)" : "") + ": " + paidChunks.size()
+        + " of " + chunkCount + " chunks paid, " + accountsPaid.get() + " accounts, $"
+        + getInterestPaid() + " interest, " + chunksFailed.get() + " chunks failed, "
+        + retryCount.get() + " retries, " + (chunksPaidNow.get() * 1000L / millis)
+        + " chunks/s in " + millis + " ms" + (finished ? ", finished" : "");
+  }
+
+
+  /**
+   * Picks up the last run if it was interrupted, or starts a new one over every account.
+   * @return the run, or null if there are no accounts or it could not be read or recorded.
+   */
+  private static InterestRun open() {
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    try {
+      ResultSet results = DatabaseSelector.getUnfinishedInterestRun(connection);
+      if (results.next()) {
+        InterestRun run = new InterestRun(results.getInt("ID"), results.getInt("FIRSTACCOUNTID"),
+            results.getInt("LASTACCOUNTID"), results.getInt("CHUNKSIZE"), true);
+        results.close();
+        // Count what was paid before the interruption, and never pay those chunks again
+        ResultSet chunks = DatabaseSelector.getInterestChunks(run.id, connection);
+        while (chunks.next()) {
+          run.paidChunks.add(chunks.getInt("FIRSTACCOUNTID"));
+          run.accountsPaid.addAndGet(chunks.getInt("ACCOUNTS"));
+          run.interestPaid.addAndGet(chunks.getLong("INTEREST"));
+        }
+        chunks.close();
+        return run;
+      }
+      results.close();
+
+      ResultSet range = DatabaseSelector.getAccountIdRange(connection);
+      range.next();
+      final int firstId = range.getInt("FIRSTID");
+      boolean noAccounts = range.wasNull();
+      final int lastId = range.getInt("LASTID");
+      range.close();
+      if (noAccounts) {
+        return null;
+      }
+      // Accounts opened after this point wait for the next run
+      Integer runId = WriteQueue.await(WriteQueue.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws SQLException, DatabaseInsertException {
+          Connection writer = DatabaseDriver.connectOrCreateDataBase();
+          try {
+            return DatabaseInserter.insertInterestRun(firstId, lastId, CHUNK_SIZE, writer);
+          } finally {
+            writer.close();
+          }
+        }
+      }));
+      return (runId == null) ? null : new InterestRun(runId, firstId, lastId, CHUNK_SIZE, false);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // The pool discards connections it cannot reset
+      }
+    }
+  }
+
+
+  /**
+   * Pays every chunk not already paid, then marks the run finished if none are left.
+   */
+  private void execute() {
+    startNanos = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+    try {
+      pool.invoke(new ChunkRange(0, chunkCount));
+    } finally {
+      pool.shutdown();
+    }
+    if (paidChunks.size() == chunkCount) {
+      Boolean recorded = WriteQueue.await(WriteQueue.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws SQLException {
+          Connection writer = DatabaseDriver.connectOrCreateDataBase();
+          try {
+            return DatabaseUpdater.finishInterestRun(id, writer);
+          } finally {
+            writer.close();
+          }
+        }
+      }));
+      finished = Boolean.TRUE.equals(recorded);
+    }
+    finishNanos = System.nanoTime();
+  }
+
+
+  /**
+   * Pays one chunk, reading and working it out again if a balance changes before it is paid.
+   * @param index the position of the chunk in the run.
+   */
+  private void payChunk(int index) {
+    final int chunkFirstId = (int) (firstAccountId + (long) index * chunkSize);
+    final int chunkLastId = (int) Math.min((long) chunkFirstId + chunkSize - 1, lastAccountId);
+    if (paidChunks.contains(chunkFirstId)) {
+      return;
+    }
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      if (attempt > 0) {
+        retryCount.incrementAndGet();
+      }
+      // The last attempt reads the balances inside the write, where nothing can change them
+      final boolean readInsideWrite = (attempt == MAX_ATTEMPTS - 1);
+      final ChunkInterest workedOut =
+          readInsideWrite ? null : workOutChunk(chunkFirstId, chunkLastId);
+      if (!readInsideWrite && workedOut == null) {
+        break;
+      }
+      ChunkInterest paid = WriteQueue.await(WriteQueue.submit(new Callable<ChunkInterest>() {
+        @Override
+        public ChunkInterest call() throws SQLException {
+          ChunkInterest chunk =
+              readInsideWrite ? workOutChunk(chunkFirstId, chunkLastId) : workedOut;
+          if (chunk == null) {
+            return null;
+          }
+          Connection writer = DatabaseDriver.connectOrCreateDataBase();
+          try {
+            return DatabaseUpdater.applyInterest(id, chunkFirstId, chunk.accountIds,
+                chunk.balanceUnits, chunk.interestUnits, writer) ? chunk : null;
+          } finally {
+            writer.close();
+          }
+        }
+      }));
+      if (paid != null) {
+        paidChunks.add(chunkFirstId);
+        chunksPaidNow.incrementAndGet();
+        accountsPaid.addAndGet(paid.accountIds.length);
+        interestPaid.addAndGet(paid.totalUnits);
+        return;
+      }
+    }
+    chunksFailed.incrementAndGet();
+  }
+
+
+  /**
+   * Reads the balances in a chunk and works out the interest each account is owed, the same
+   * way Account.addInterest does. Accounts that would be paid nothing are left out.
+   * @param chunkFirstId the lowest account ID in the chunk.
+   * @param chunkLastId the highest account ID in the chunk.
+   * @return the interest owed, or null if the balances could not be read.
+   */
+  private ChunkInterest workOutChunk(int chunkFirstId, int chunkLastId) {
+    int[] accountIds = new int[chunkLastId - chunkFirstId + 1];
+    long[] balanceUnits = new long[accountIds.length];
+    long[] interestUnits = new long[accountIds.length];
+    int count = 0;
+    long total = 0;
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    try {
+      ResultSet results = DatabaseSelector.getAccountBalancesBetween(chunkFirstId, chunkLastId,
+          connection);
+      while (results.next()) {
+        int typeId = results.getInt("TYPE");
+        BigDecimal rate = (typeId >= 0 && typeId < rates.length) ? rates[typeId] : null;
+        if (rate == null) {
+          continue;
+        }
+        long units = results.getLong("BALANCE");
+        long interest = Money.ofUnits(units).multiply(rate, RoundingMode.CEILING).getUnits();
+        if (interest != 0) {
+          accountIds[count] = results.getInt("ID");
+          balanceUnits[count] = units;
+          interestUnits[count] = interest;
+          total += interest;
+          count++;
+        }
+      }
+      results.close();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // The pool discards connections it cannot reset
+      }
+    }
+    return new ChunkInterest(Arrays.copyOf(accountIds, count),
+        Arrays.copyOf(balanceUnits, count), Arrays.copyOf(interestUnits, count), total);
+  }
+
+
+  /**
+   * Splits a range of chunks in half until each half is a single chunk, which is then paid.
+   */
+  private class ChunkRange extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+
+
+    /**
+     * Creates a task for a range of chunks.
+     * @param from the position of the first chunk in the range.
+     * @param to the position just past the last chunk in the range.
+     */
+    ChunkRange(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+
+    @Override
+    protected void compute() {
+      if (to - from <= 1) {
+        if (from < to) {
+          payChunk(from);
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new ChunkRange(from, middle), new ChunkRange(middle, to));
+    }
+  }
+
+
+  /**
+   * The interest worked out for the accounts in one chunk.
+   */
+  private static class ChunkInterest {
+
+    private final int[] accountIds;
+    private final long[] balanceUnits;
+    private final long[] interestUnits;
+    private final long totalUnits;
+
+
+    /**
+     * Creates the interest owed on a chunk.
+     * @param accountIds the ID of each account owed interest.
+     * @param balanceUnits the balance each amount was worked out from, in cents.
+     * @param interestUnits the interest owed to each account, in cents.
+     * @param totalUnits the interest owed to the whole chunk, in cents.
+     */
+    ChunkInterest(int[] accountIds, long[] balanceUnits, long[] interestUnits, long totalUnits) {
+      this.accountIds = accountIds;
+      this.balanceUnits = balanceUnits;
+      this.interestUnits = interestUnits;
+      this.totalUnits = totalUnits;
+    }
+  }
+}
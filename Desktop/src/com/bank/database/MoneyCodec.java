@@ -0,0 +1,84 @@
+package com.bank.database;
+
+import com.bank.generics.Money;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Converts between BigDecimal amounts and the scaled integers stored in the database. Balances
+ * are kept in cents and interest rates in millionths, so SQLite can sum and compare them
+ * directly instead of every read parsing a string. Balances are converted by Money, so there is
+ * only one place that decides how an amount becomes a number of cents.
+ */
+public final class MoneyCodec {
+
+  /** The number of decimal places stored for a balance. */
+  public static final int BALANCE_SCALE = Money.SCALE;
+
+  /** The number of decimal places stored for an interest rate. */
+  public static final int INTEREST_RATE_SCALE = 6;
+
+
+  private MoneyCodec() {
+  }
+
+
+  /**
+   * Converts a balance to the whole number of cents stored in the database. Fractions of a
+   * cent are rounded up, the same way balances are rounded everywhere else in the bank.
+   * @param balance the balance to convert.
+   * @return the balance in cents.
+   * @throws ArithmeticException if the balance does not fit in a long.
+   */
+  public static long toBalanceUnits(BigDecimal balance) {
+    return Money.of(balance).getUnits();
+  }
+
+
+  /**
+   * Converts a change to a balance to the cents the account must be able to cover. Fractions
+   * of a cent are rounded down, so a withdrawal of part of a cent needs a whole cent in the
+   * account, even though toBalanceUnits takes none of it.
+   * @param change the change to convert, negative for a withdrawal.
+   * @return the change in cents, rounded down.
+   * @throws ArithmeticException if the change does not fit in a long.
+   */
+  public static long toCoveredUnits(BigDecimal change) {
+    return Money.of(change, RoundingMode.FLOOR).getUnits();
+  }
+
+
+  /**
+   * Converts a stored number of cents back to a balance.
+   * @param units the balance in cents.
+   * @return the balance, with two decimal places.
+   */
+  public static BigDecimal fromBalanceUnits(long units) {
+    return Money.ofUnits(units).toBigDecimal();
+  }
+
+
+  /**
+   * Converts an interest rate to the whole number of millionths stored in the database.
+   * @param interestRate the interest rate to convert.
+   * @return the interest rate in millionths.
+   * @throws ArithmeticException if the rate does not fit in a long.
+   */
+  public static long toInterestRateUnits(BigDecimal interestRate) {
+    return interestRate.setScale(INTEREST_RATE_SCALE, RoundingMode.CEILING).unscaledValue()
+        .longValueExact();
+  }
+
+
+  /**
+   * Converts a stored number of millionths back to an interest rate.
+   * @param units the interest rate in millionths.
+   * @return the interest rate, without trailing zeros.
+   */
+  public static BigDecimal fromInterestRateUnits(long units) {
+    BigDecimal interestRate = BigDecimal.valueOf(units, INTEREST_RATE_SCALE).stripTrailingZeros();
+    // Whole number rates would otherwise come back in scientific notation
+    return (interestRate.scale() < 0) ? interestRate.setScale(0) : interestRate;
+  }
+}
@@ -0,0 +1,339 @@
+package com.bank.database;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Backs up the bank database while the terminals keep using it, with SQLite's online backup
+ * API. The database file is copied page by page, a number of pages per step, from a connection
+ * holding a read transaction for the whole backup, so the copy is the database as it stood when
+ * the backup started and writers are never blocked. Between steps the backup sleeps, so the
+ * terminals' reads and writes are only ever held up by a single short step. While it runs,
+ * checkpoints cannot move the write-ahead log past the backup's read, so the log grows until
+ * the backup finishes.
+ *
+ * <p>The SQLite driver is only reached through JDBC and reflection, the same way the pool loads
+ * it. If the driver in use has no page-stepped backup, the database is copied in one step with
+ * the driver's "backup to" statement instead, and progress is only known once it is done.
+ *
+ * <p>Each backup is copied to a temporary file and renamed once complete, so every file in the
+ * backup directory is a usable database. Only the most recent backups are kept. Pages per step,
+ * the delay between steps, the number of backups kept and the directory may be overridden
+ * through the bank.backup.pagesPerStep, bank.backup.stepDelayMillis, bank.backup.keep and
+ * bank.backup.directory properties.
+ */
+public class OnlineBackup {
+
+  private static final int PAGES_PER_STEP =
+      Math.max(1, Integer.getInteger("bank.backup.pagesPerStep", 100));
+  private static final long STEP_DELAY_MILLIS =
+      Math.max(0L, Long.getLong("bank.backup.stepDelayMillis", 20L));
+  private static final int KEEP = Math.max(1, Integer.getInteger("bank.backup.keep", 5));
+  private static final String DIRECTORY = System.getProperty("bank.backup.directory", "backups");
+
+  // A step that finds the database locked waits and tries again, up to a limit
+  private static final int BUSY_SLEEP_MILLIS = 100;
+  private static final int BUSY_RETRIES = 50;
+  private static final int SQLITE_OK = 0;
+
+  // The driver's classes, looked up when a backup is made rather than compiled against
+  private static final String CONNECTION_CLASS = "org.sqlite.SQLiteConnection";
+  private static final String OBSERVER_CLASS = "org.sqlite.core.DB$ProgressObserver";
+
+  // Backup files are named by when they were started, so their names sort oldest first
+  private static final String FILE_PREFIX = "bank-";
+  private static final String FILE_SUFFIX = ".db";
+  private static final String TIMESTAMP_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+  // Only one backup is made at a time, and the latest one is kept for progress reports
+  private static final Object BACKUP_LOCK = new Object();
+  private static volatile OnlineBackup latest;
+
+  private final Path file;
+
+  // Progress accounting, updated after every step
+  private volatile int pageCount = 0;
+  private volatile int pagesRemaining = 0;
+  private volatile long stepCount = 0;
+  private volatile long startNanos;
+  private volatile long finishNanos;
+  private volatile boolean finished = false;
+  private volatile String failure;
+
+
+  /**
+   * Creates a backup to a file.
+   * @param file the backup file to write.
+   */
+  private OnlineBackup(Path file) {
+    this.file = file;
+  }
+
+
+  /**
+   * Backs up the database to a new file in the backup directory, then deletes the oldest
+   * backups beyond the number kept. Only one backup is made at a time; a second caller waits
+   * for the first to finish.
+   * @return the backup, whether or not it succeeded.
+   */
+  public static OnlineBackup backUp() {
+    synchronized (BACKUP_LOCK) {
+      // The stored balances must include whatever is still in the balance journal
+      if (BalanceJournal.isEnabled()) {
+        BalanceJournal.flush();
+      }
+      String timestamp = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
+      OnlineBackup backup = new OnlineBackup(
+          Paths.get(DIRECTORY, FILE_PREFIX + timestamp + FILE_SUFFIX));
+      latest = backup;
+      backup.execute();
+      return backup;
+    }
+  }
+
+
+  /**
+   * Describes the progress of the backup in progress, or the outcome of the last one.
+   * @return a one line description of the latest backup.
+   */
+  public static String getProgress() {
+    OnlineBackup backup = latest;
+    return (backup == null) ? "No backup has been made" : backup.toString();
+  }
+
+
+  /**
+   * Returns the file the backup is written to.
+   * @return the backup file.
+   */
+  public Path getFile() {
+    return this.file;
+  }
+
+
+  /**
+   * Checks whether the backup was completed and its file is in place.
+   * @return true if the backup succeeded, false if it failed or is still running.
+   */
+  public boolean isFinished() {
+    return this.finished;
+  }
+
+
+  /**
+   * Describes the backup's progress or outcome.
+   * @return a one line description of the backup.
+   */
+  @Override
+  public String toString() {
+    long end = (finishNanos == 0) ? System.nanoTime() : finishNanos;
+    long millis = (startNanos == 0) ? 0 : (end - startNanos) / 1000000L;
+    int total = pageCount;
+    int copied = total - pagesRemaining;
+    String state = finished ? "finished" : ((failure != null) ? "failed: " + failure : "running");
+    return "Backup to " + file + " " + state + ": " + copied + "/" + total + " pages copied"
+        + ((total == 0) ? "" : " (" + (copied * 100L / total) + "%)") + " in " + stepCount
+        + " steps, " + millis + " ms";
+  }
+
+
+  /**
+   * Copies the database to a temporary file beside the backup, then renames it into place and
+   * rotates out the oldest backups.
+   */
+  private void execute() {
+    startNanos = System.nanoTime();
+    Path partial = file.resolveSibling(file.getFileName() + ".partial");
+    try {
+      Files.createDirectories(file.toAbsolutePath().getParent());
+      copyDatabase(partial);
+      Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      finished = true;
+      rotate();
+    } catch (Exception e) {
+      // The failure is reported through the backup's description
+      failure = String.valueOf(e.getMessage());
+      try {
+        Files.deleteIfExists(partial);
+      } catch (IOException deleteError) {
+        failure += " (" + partial + " could not be deleted: " + deleteError.getMessage() + ")";
+      }
+    } finally {
+      finishNanos = System.nanoTime();
+    }
+  }
+
+
+  /**
+   * Copies the database page by page from a dedicated connection, sleeping between steps.
+   * @param target the file to copy the database to.
+   * @throws SQLException if the database could not be read or the copy failed.
+   */
+  private void copyDatabase(Path target) throws SQLException {
+    // A connection of its own, since its read transaction has to stay open across every step
+    Connection connection = ConnectionPool.openFile(Paths.get(ConnectionPool.DATABASE_FILE));
+    try {
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute("PRAGMA busy_timeout = 5000");
+        Object database = getDriverDatabase(connection);
+        Method backup = (database == null) ? null : findSteppedBackup(database);
+        if (backup == null) {
+          // The copy is made in one step, so there is nothing to report until it is done
+          statement.executeUpdate("backup to '" + target.toString().replace("'", "''") + "'");
+          pageCount = 1;
+          pagesRemaining = 0;
+          stepCount = 1;
+          return;
+        }
+        connection.setAutoCommit(false);
+        // Reading starts the read transaction, fixing the copy at the database as it is now
+        statement.executeQuery("SELECT COUNT(*) FROM sqlite_master").close();
+        int result = stepBackup(database, backup, target);
+        if (result != SQLITE_OK) {
+          throw new SQLException("The backup failed with SQLite error " + result);
+        }
+        connection.rollback();
+      } finally {
+        statement.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+
+  /**
+   * Finds the driver's own database handle behind a connection, whatever wraps it.
+   * @param connection the connection to back up from.
+   * @return the handle, or null if the connection is not the SQLite driver's.
+   */
+  private static Object getDriverDatabase(Connection connection) {
+    try {
+      Class<?> connectionClass = Class.forName(CONNECTION_CLASS);
+      if (!connection.isWrapperFor(connectionClass)) {
+        return null;
+      }
+      return connectionClass.getMethod("getDatabase").invoke(connection.unwrap(connectionClass));
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Finds the driver's page-stepped backup method, which takes a progress observer, the busy
+   * sleep, the busy retries and the number of pages per step.
+   * @param database the driver's database handle.
+   * @return the method, or null if the driver in use does not have one.
+   */
+  private static Method findSteppedBackup(Object database) {
+    try {
+      return database.getClass().getMethod("backup", String.class, String.class,
+          Class.forName(OBSERVER_CLASS), int.class, int.class, int.class);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Runs the driver's page-stepped backup, recording the progress and sleeping after each step.
+   * @param database the driver's handle on the connection, inside its read transaction.
+   * @param backup the driver's backup method, from findSteppedBackup.
+   * @param target the file to copy the database to.
+   * @return the SQLite result code of the backup.
+   * @throws SQLException if the backup could not be run.
+   */
+  private int stepBackup(Object database, Method backup, Path target) throws SQLException {
+    try {
+      Class<?> observerClass = Class.forName(OBSERVER_CLASS);
+      Object observer = Proxy.newProxyInstance(observerClass.getClassLoader(),
+          new Class<?>[] {observerClass}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              if (method.getName().equals("progress") && args != null && args.length == 2) {
+                progress((Integer) args[0], (Integer) args[1]);
+                return null;
+              }
+              if (method.getName().equals("hashCode")) {
+                return System.identityHashCode(proxy);
+              }
+              if (method.getName().equals("equals")) {
+                return proxy == args[0];
+              }
+              return (method.getName().equals("toString")) ? "BackupProgress" : null;
+            }
+          });
+      return (Integer) backup.invoke(database, "main", target.toString(), observer,
+          BUSY_SLEEP_MILLIS, BUSY_RETRIES, PAGES_PER_STEP);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      throw new SQLException("The backup failed", cause);
+    } catch (ReflectiveOperationException e) {
+      throw new SQLException("The SQLite driver's backup could not be used", e);
+    }
+  }
+
+
+  /**
+   * Records the progress of the backup after a step, then gives the terminals the database
+   * back for a while.
+   * @param remaining the number of pages still to copy.
+   * @param pages the number of pages in the database.
+   */
+  private void progress(int remaining, int pages) {
+    pagesRemaining = remaining;
+    pageCount = pages;
+    stepCount++;
+    if (remaining > 0 && STEP_DELAY_MILLIS > 0) {
+      try {
+        Thread.sleep(STEP_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+
+  /**
+   * Deletes the oldest backups in the backup directory, keeping only the most recent ones.
+   * @throws IOException if the directory could not be read or a backup could not be deleted.
+   */
+  private void rotate() throws IOException {
+    List<Path> backups = new ArrayList<Path>();
+    DirectoryStream<Path> entries = Files.newDirectoryStream(file.toAbsolutePath().getParent(),
+        FILE_PREFIX + "*" + FILE_SUFFIX);
+    try {
+      for (Path entry : entries) {
+        backups.add(entry);
+      }
+    } finally {
+      entries.close();
+    }
+    Collections.sort(backups);
+    for (int i = 0; i < backups.size() - KEEP; i++) {
+      Files.deleteIfExists(backups.get(i));
+    }
+  }
+}
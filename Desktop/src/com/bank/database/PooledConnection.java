@@ -0,0 +1,104 @@
+package com.bank.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A physical connection owned by the ConnectionPool, along with the bookkeeping the pool
+ * needs to decide whether it is still healthy.
+ */
+class PooledConnection {
+
+  private final Connection physical;
+  private final StatementCache statementCache;
+  private long lastValidated;
+
+
+  /**
+   * Wraps a freshly opened and configured connection.
+   * @param physical the underlying SQLite connection.
+   */
+  PooledConnection(Connection physical) {
+    this.physical = physical;
+    this.statementCache = new StatementCache(physical);
+    this.lastValidated = System.currentTimeMillis();
+  }
+
+
+  /**
+   * Returns the underlying SQLite connection.
+   * @return the physical connection.
+   */
+  Connection getPhysical() {
+    return this.physical;
+  }
+
+
+  /**
+   * Returns the prepared statements kept open on this connection.
+   * @return the connection's statement cache.
+   */
+  StatementCache getStatementCache() {
+    return this.statementCache;
+  }
+
+
+  /**
+   * Checks that the connection still answers queries, unless it was checked recently.
+   * @param interval how long, in milliseconds, a successful check is trusted for.
+   * @return true if the connection can be handed out, false otherwise.
+   */
+  boolean validate(long interval) {
+    long now = System.currentTimeMillis();
+    if (now - lastValidated < interval) {
+      return true;
+    }
+    try {
+      Statement statement = physical.createStatement();
+      ResultSet results = statement.executeQuery("SELECT 1");
+      boolean healthy = results.next();
+      statement.close();
+      lastValidated = now;
+      return healthy;
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+
+  /**
+   * Puts the connection back in a clean state before it returns to the pool, rolling back
+   * anything a borrower left uncommitted.
+   * @return true if the connection can be reused, false if it should be discarded.
+   */
+  boolean reset() {
+    try {
+      if (physical.isClosed()) {
+        return false;
+      }
+      statementCache.releaseAll();
+      if (!physical.getAutoCommit()) {
+        physical.rollback();
+        physical.setAutoCommit(true);
+      }
+      return true;
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+
+  /**
+   * Closes the underlying SQLite connection.
+   */
+  void closePhysical() {
+    statementCache.clear();
+    try {
+      physical.close();
+    } catch (SQLException e) {
+      System.err.println("Unable to close connection");
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package com.bank.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts changes to the ROLES and ACCOUNTTYPES tables. Snapshots of those tables remember the
+ * count they were read at, and are read again once it has moved on.
+ */
+class ReferenceDataVersion {
+
+  private static final AtomicLong VERSION = new AtomicLong();
+
+
+  /**
+   * Returns the current number of changes.
+   * @return the version of the reference tables.
+   */
+  static long get() {
+    return VERSION.get();
+  }
+
+
+  /**
+   * Records that a role or account type has been added or changed, or that the database itself
+   * has been replaced.
+   */
+  static void changed() {
+    VERSION.incrementAndGet();
+    // A change made inside a unit of work that is then rolled back has to be counted again
+    UnitOfWork.cachedUncommitted();
+  }
+}
@@ -0,0 +1,70 @@
+package com.bank.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * One versioned change to the database schema. Migrations are applied in version order by the
+ * DatabaseMigrator, each inside its own transaction, and are never applied twice.
+ */
+public abstract class SchemaMigration {
+
+  private final int version;
+  private final String description;
+
+
+  /**
+   * Constructor for SchemaMigration.
+   * @param version the schema version this migration brings the database to.
+   * @param description a short description recorded alongside the version.
+   */
+  protected SchemaMigration(int version, String description) {
+    this.version = version;
+    this.description = description;
+  }
+
+
+  /**
+   * Returns the schema version this migration brings the database to.
+   * @return the version number.
+   */
+  public int getVersion() {
+    return this.version;
+  }
+
+
+  /**
+   * Returns the description of this migration.
+   * @return the description.
+   */
+  public String getDescription() {
+    return this.description;
+  }
+
+
+  /**
+   * Applies the migration. The caller has already opened a transaction on the connection.
+   * @param connection the connection to the database being migrated.
+   * @throws SQLException if the migration fails, in which case it is rolled back.
+   */
+  protected abstract void apply(Connection connection) throws SQLException;
+
+
+  /**
+   * Runs each of the given SQL statements in order.
+   * @param connection the connection to run them on.
+   * @param sql the statements to run.
+   * @throws SQLException if any statement fails.
+   */
+  protected static void execute(Connection connection, String... sql) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      for (String current : sql) {
+        statement.executeUpdate(current);
+      }
+    } finally {
+      statement.close();
+    }
+  }
+}
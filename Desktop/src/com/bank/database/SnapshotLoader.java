@@ -0,0 +1,388 @@
+package com.bank.database;
+
+import com.bank.exceptions.ConnectionFailedException;
+import com.bank.generics.LedgerEntryTypes;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restores a snapshot without taking the bank down for the length of the restore. The snapshot
+ * is loaded into a shadow database file beside the bank database while the terminals carry on
+ * using the old one. Once the shadow passes an integrity check it is renamed over the bank
+ * database, so the only outage is the swap itself, and a restore that fails leaves the bank as
+ * it was.
+ *
+ * <p>Rows are inserted directly rather than through the helpers, which validate every row and
+ * commit it on its own. Each table's rows go in through one prepared insert, executed in
+ * batches and committed a large number of rows at a time, with every row keeping the ID it had
+ * in the snapshot. The snapshot's checksum is checked before the load instead of validating
+ * each row. The secondary indexes and triggers on the restored tables are dropped for the load
+ * and created again afterwards, so each index is built once instead of being updated on every
+ * insert. The user totals the triggers would have kept are rebuilt. The ledger is restored with
+ * its entries' original IDs and posting times, so its history survives the restore; only an
+ * account that arrives without any entries has its balance opened in the ledger, as if it had
+ * been inserted through the helpers. The batch and commit sizes
+ * may be overridden through the bank.restore.batchRows and bank.restore.commitRows properties.
+ *
+ * <p>A chain of a full snapshot and its differentials is restored by loading the full snapshot,
+ * then applying each differential in order: every row it holds replaces the row with the same
+ * key. The indexes are built before the differentials are applied, so each replaced row is
+ * found through them, and the triggers only once the last one is in.
+ */
+final class SnapshotLoader {
+
+  private static final int BATCH_ROWS =
+      Math.max(1, Integer.getInteger("bank.restore.batchRows", 1000));
+  private static final int COMMIT_ROWS =
+      Math.max(BATCH_ROWS, Integer.getInteger("bank.restore.commitRows", 100000));
+
+  /** The shadow file a restore is loaded into before it is swapped in. */
+  static final String SHADOW_FILE = ConnectionPool.DATABASE_FILE + ".restore";
+
+  // Every table a restore writes to, whose indexes and triggers are deferred until it is done
+  private static final String LOADED_TABLES = "'ROLES', 'ACCOUNTTYPES', 'USERS', 'USERPW', "
+      + "'ACCOUNTS', 'USERACCOUNT', 'USERMESSAGES', 'USERTOTALS', 'LEDGER'";
+
+
+  /**
+   * Cannot be created; the loader is used through restore.
+   */
+  private SnapshotLoader() {
+  }
+
+
+  /**
+   * Restores a chain of snapshots over the bank database. The chain is loaded into the shadow
+   * file, which is checked and then swapped in; the bank database is untouched until the swap.
+   * @param chain the full snapshot followed by its differentials in order, whose checksums and
+   *     sequence numbers have already been verified.
+   * @return the number of rows restored.
+   * @throws IOException if the snapshot could not be read or the shadow could not be swapped in.
+   * @throws SQLException if the shadow could not be built or failed its integrity check.
+   */
+  static long restore(List<Path> chain) throws IOException, SQLException {
+    Path shadow = Paths.get(SHADOW_FILE);
+    deleteShadow(shadow);
+    long rows;
+    boolean built = false;
+    try {
+      Connection connection = ConnectionPool.openFile(shadow);
+      try {
+        // A shadow that is not finished is thrown away, so it need not be durable until the
+        // end, and keeping its rollback journal in memory leaves nothing beside it to swap
+        execute(connection, "PRAGMA journal_mode = MEMORY");
+        execute(connection, "PRAGMA synchronous = OFF");
+        try {
+          DatabaseDriver.initialize(connection);
+        } catch (ConnectionFailedException e) {
+          throw new SQLException("The shadow database could not be created", e);
+        }
+        rows = load(chain, connection);
+        checkIntegrity(connection);
+      } finally {
+        connection.close();
+      }
+      // Make sure every page is on disk before the file can become the bank database
+      FileChannel channel = FileChannel.open(shadow, StandardOpenOption.WRITE);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+      built = true;
+    } finally {
+      if (!built) {
+        deleteShadow(shadow);
+      }
+    }
+    DatabaseDriver.replaceDatabase(shadow);
+    return rows;
+  }
+
+
+  /**
+   * Inserts every row of a full snapshot into an empty database, keeping the snapshot's IDs,
+   * then applies each of its differentials.
+   * @param chain the full snapshot followed by its differentials.
+   * @param connection the connection to the database, which is left open.
+   * @return the number of rows inserted.
+   * @throws IOException if a snapshot could not be read.
+   * @throws SQLException if the rows could not be inserted.
+   */
+  private static long load(List<Path> chain, Connection connection)
+      throws IOException, SQLException {
+    connection.setAutoCommit(false);
+    List<String> triggers = dropDeferred("trigger", connection);
+    List<String> indexes = dropDeferred("index", connection);
+
+    long rows = 0;
+    long sequence = 0;
+    for (int i = 0; i < chain.size(); i++) {
+      if (i == 1) {
+        restoreDeferred(indexes, connection);
+      }
+      SnapshotReader reader = new SnapshotReader(chain.get(i));
+      try {
+        rows += loadRows(reader, i > 0, connection);
+        sequence = reader.getSequence();
+      } finally {
+        reader.close();
+      }
+    }
+    if (chain.size() == 1) {
+      restoreDeferred(indexes, connection);
+    }
+    openLedger(connection);
+
+    restoreDeferred(triggers, connection);
+    if (!DatabaseUpdater.rebuildUserTotals(connection)) {
+      throw new SQLException("The user totals could not be built");
+    }
+    // Changes made after the restore must be later than any the restored rows were stamped with
+    if (!DatabaseUpdater.updateChangeSequence(sequence + 1, connection)) {
+      throw new SQLException("The change sequence could not be set");
+    }
+    connection.commit();
+    return rows;
+  }
+
+
+  /**
+   * Inserts every row of one snapshot, in batches. A differential's rows replace the rows
+   * already there with the same key.
+   * @param reader the snapshot, positioned after its header.
+   * @param replace whether to delete each row's earlier version before inserting it.
+   * @param connection the connection to the database, inside the load's transaction.
+   * @return the number of rows inserted.
+   * @throws IOException if the snapshot could not be read.
+   * @throws SQLException if the rows could not be inserted.
+   */
+  private static long loadRows(SnapshotReader reader, boolean replace, Connection connection)
+      throws IOException, SQLException {
+    long rows = 0;
+    SnapshotTable table;
+    while ((table = reader.nextSection()) != null) {
+      PreparedStatement insert = connection.prepareStatement(table.getInsert());
+      PreparedStatement delete = replace ? connection.prepareStatement(table.getDelete()) : null;
+      int batched = 0;
+      while (reader.nextRow()) {
+        if (delete != null) {
+          bindKey(table, reader, delete);
+          delete.addBatch();
+        }
+        bindRow(table, reader, insert);
+        insert.addBatch();
+        rows++;
+        if (++batched == BATCH_ROWS) {
+          executeBatches(delete, insert);
+          batched = 0;
+        }
+        if (rows % COMMIT_ROWS == 0) {
+          if (batched > 0) {
+            executeBatches(delete, insert);
+            batched = 0;
+          }
+          connection.commit();
+        }
+      }
+      if (batched > 0) {
+        executeBatches(delete, insert);
+      }
+      insert.close();
+      if (delete != null) {
+        delete.close();
+      }
+    }
+    return rows;
+  }
+
+
+  /**
+   * Runs the batched deletes, if there are any, and then the batched inserts.
+   * @param delete the batched deletes, or null if rows are only inserted.
+   * @param insert the batched inserts.
+   * @throws SQLException if a batch failed.
+   */
+  private static void executeBatches(PreparedStatement delete, PreparedStatement insert)
+      throws SQLException {
+    if (delete != null) {
+      delete.executeBatch();
+    }
+    insert.executeBatch();
+  }
+
+
+  /**
+   * Checks that a restored database is sound and fully migrated before it is swapped in.
+   * @param connection the connection to the restored database.
+   * @throws SQLException if the check fails or could not be run.
+   */
+  private static void checkIntegrity(Connection connection) throws SQLException {
+    ResultSet results = connection.prepareStatement("PRAGMA integrity_check").executeQuery();
+    String result = results.next() ? results.getString(1) : null;
+    results.close();
+    if (!"ok".equals(result)) {
+      throw new SQLException("The restored database failed its integrity check: " + result);
+    }
+    int version = DatabaseMigrator.getSchemaVersion(connection);
+    if (version != DatabaseMigrator.getLatestVersion()) {
+      throw new SQLException("The restored database is at schema version " + version);
+    }
+  }
+
+
+  /**
+   * Deletes a shadow file and its rollback journal, left by a restore that did not finish.
+   * @param shadow the shadow file.
+   * @throws IOException if the files could not be deleted.
+   */
+  private static void deleteShadow(Path shadow) throws IOException {
+    Files.deleteIfExists(shadow);
+    Files.deleteIfExists(shadow.resolveSibling(shadow.getFileName() + "-journal"));
+  }
+
+
+  /**
+   * Binds the current row of a snapshot to an insert's parameters.
+   * @param table the table being restored.
+   * @param reader the snapshot, positioned on the row.
+   * @param insert the table's insert statement.
+   * @throws SQLException if a parameter could not be bound.
+   */
+  private static void bindRow(SnapshotTable table, SnapshotReader reader,
+      PreparedStatement insert) throws SQLException {
+    bindFields(table, table.getFieldCount(), reader, insert);
+  }
+
+
+  /**
+   * Binds the key of the current row of a snapshot to a delete's parameters.
+   * @param table the table being restored.
+   * @param reader the snapshot, positioned on the row.
+   * @param delete the table's delete statement.
+   * @throws SQLException if a parameter could not be bound.
+   */
+  private static void bindKey(SnapshotTable table, SnapshotReader reader,
+      PreparedStatement delete) throws SQLException {
+    bindFields(table, table.getKeyCount(), reader, delete);
+  }
+
+
+  /**
+   * Binds the leading fields of the current row of a snapshot to a statement's parameters.
+   * @param table the table being restored.
+   * @param count the number of fields to bind.
+   * @param reader the snapshot, positioned on the row.
+   * @param statement the statement.
+   * @throws SQLException if a parameter could not be bound.
+   */
+  private static void bindFields(SnapshotTable table, int count, SnapshotReader reader,
+      PreparedStatement statement) throws SQLException {
+    for (int i = 0; i < count; i++) {
+      int parameter = i + 1;
+      SnapshotTable.FieldType type = table.getFieldType(i);
+      if (reader.isNull(i)) {
+        statement.setNull(parameter, (type == SnapshotTable.FieldType.TEXT)
+            ? Types.VARCHAR : Types.INTEGER);
+      } else if (type == SnapshotTable.FieldType.INT) {
+        statement.setInt(parameter, reader.getInt(i));
+      } else if (type == SnapshotTable.FieldType.LONG) {
+        statement.setLong(parameter, reader.getLong(i));
+      } else {
+        statement.setString(parameter, reader.getString(i));
+      }
+    }
+  }
+
+
+  /**
+   * Opens the ledger of every restored account that has no entries with its balance, the entry
+   * insertAccount would have written, so each account's entries add up to its balance. The
+   * accounts whose entries were restored are left alone.
+   * @param connection the connection to the database, inside the load's transaction.
+   * @throws SQLException if the entries could not be written.
+   */
+  private static void openLedger(Connection connection) throws SQLException {
+    PreparedStatement preparedStatement = connection.prepareStatement(
+        "INSERT INTO LEDGER(ACCOUNTID, TYPE, AMOUNT, BALANCE, POSTED) "
+        + "SELECT ID, ?, COALESCE(BALANCE, 0), COALESCE(BALANCE, 0), ? FROM ACCOUNTS "
+        + "WHERE NOT EXISTS (SELECT 1 FROM LEDGER WHERE LEDGER.ACCOUNTID = ACCOUNTS.ID) "
+        + "ORDER BY ID");
+    preparedStatement.setInt(1, LedgerEntryTypes.OPENING.getCode());
+    preparedStatement.setLong(2, System.currentTimeMillis());
+    preparedStatement.executeUpdate();
+  }
+
+
+  /**
+   * Drops the secondary indexes or the triggers on the tables being loaded.
+   * @param type "index" or "trigger".
+   * @param connection the connection to the database.
+   * @return the statements that create them again.
+   * @throws SQLException if the schema could not be read or an object could not be dropped.
+   */
+  private static List<String> dropDeferred(String type, Connection connection)
+      throws SQLException {
+    List<String> creates = new ArrayList<String>();
+    List<String> drops = new ArrayList<String>();
+    // Indexes SQLite creates itself for primary keys have no SQL and cannot be dropped
+    PreparedStatement query = connection.prepareStatement("SELECT TYPE, NAME, SQL "
+        + "FROM sqlite_master WHERE TYPE = ? AND SQL IS NOT NULL "
+        + "AND TBL_NAME IN (" + LOADED_TABLES + ") ORDER BY NAME");
+    query.setString(1, type);
+    ResultSet results = query.executeQuery();
+    while (results.next()) {
+      creates.add(results.getString("SQL"));
+      drops.add("DROP " + results.getString("TYPE").toUpperCase() + " "
+          + results.getString("NAME"));
+    }
+    results.close();
+    for (String drop : drops) {
+      execute(connection, drop);
+    }
+    return creates;
+  }
+
+
+  /**
+   * Creates the dropped indexes and triggers again.
+   * @param creates the statements returned by dropDeferred.
+   * @param connection the connection to the database.
+   * @throws SQLException if an object could not be created.
+   */
+  private static void restoreDeferred(List<String> creates, Connection connection)
+      throws SQLException {
+    for (String create : creates) {
+      execute(connection, create);
+    }
+  }
+
+
+  /**
+   * Runs a statement that returns no rows.
+   * @param connection the connection to the database.
+   * @param sql the statement.
+   * @throws SQLException if the statement failed.
+   */
+  private static void execute(Connection connection, String sql) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+  }
+}
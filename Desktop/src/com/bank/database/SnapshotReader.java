@@ -0,0 +1,345 @@
+package com.bank.database;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a snapshot file written by SnapshotWriter, one section and one row at a time, through
+ * a fixed-size buffer. Only the current row is decoded and held, so a snapshot of any size can
+ * be read in the same amount of memory. Call verify first to check the file's checksum, since
+ * rows are handed out as they are read and the checksum is only known at the end.
+ */
+final class SnapshotReader {
+
+  private static final int BUFFER_BYTES =
+      Math.max(4096, Integer.getInteger("bank.snapshot.bufferBytes", 64 * 1024));
+  private static final int MAX_FIELDS = 8;
+
+  private final FileChannel channel;
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+  private final int schemaVersion;
+  private final long createdMillis;
+  private final byte kind;
+  private final long baseSequence;
+  private final long sequence;
+  private final long ledgerId;
+
+  // The section being read
+  private SnapshotTable table;
+  private long sectionRows;
+  private int sectionCount;
+  private long totalRows;
+  private boolean finished = false;
+
+  // The fields of the current row
+  private final boolean[] nulls = new boolean[MAX_FIELDS];
+  private final long[] numbers = new long[MAX_FIELDS];
+  private final String[] texts = new String[MAX_FIELDS];
+
+
+  /**
+   * Opens a snapshot file and reads its header.
+   * @param file the snapshot file.
+   * @throws IOException if the file could not be read or is not a snapshot this build can read.
+   */
+  SnapshotReader(Path file) throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+    buffer.limit(0);
+    try {
+      byte[] magic = new byte[SnapshotWriter.MAGIC.length];
+      require(SnapshotWriter.HEADER_BYTES);
+      buffer.get(magic);
+      if (!Arrays.equals(magic, SnapshotWriter.MAGIC)) {
+        throw new IOException("Not a bank database snapshot");
+      }
+      int version = buffer.getInt();
+      if (version != SnapshotWriter.FORMAT_VERSION) {
+        throw new IOException("Unsupported snapshot format version " + version);
+      }
+      schemaVersion = buffer.getInt();
+      createdMillis = buffer.getLong();
+      kind = buffer.get();
+      if (kind != SnapshotWriter.KIND_FULL && kind != SnapshotWriter.KIND_DIFFERENTIAL) {
+        throw new IOException("Unknown snapshot kind " + kind);
+      }
+      baseSequence = buffer.getLong();
+      sequence = buffer.getLong();
+      ledgerId = buffer.getLong();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+
+  /**
+   * Checks a snapshot file's checksum against the CRC32 of everything before it, reading the
+   * file through a fixed-size buffer.
+   * @param file the snapshot file.
+   * @return true if the checksum matches, false if the file is damaged or incomplete.
+   * @throws IOException if the file could not be read.
+   */
+  static boolean verify(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < SnapshotWriter.HEADER_BYTES + 4) {
+        return false;
+      }
+      CRC32 checksum = new CRC32();
+      ByteBuffer chunk = ByteBuffer.allocateDirect(BUFFER_BYTES);
+      long remaining = size - 4;
+      while (remaining > 0) {
+        chunk.clear();
+        chunk.limit((int) Math.min(chunk.capacity(), remaining));
+        int read = channel.read(chunk);
+        if (read < 0) {
+          return false;
+        }
+        chunk.flip();
+        checksum.update(chunk);
+        remaining -= read;
+      }
+      ByteBuffer stored = ByteBuffer.allocate(4);
+      while (stored.hasRemaining()) {
+        if (channel.read(stored) < 0) {
+          return false;
+        }
+      }
+      stored.flip();
+      return stored.getInt() == (int) checksum.getValue();
+    } finally {
+      channel.close();
+    }
+  }
+
+
+  /**
+   * Returns the schema version of the database the snapshot was taken from.
+   * @return the schema version.
+   */
+  int getSchemaVersion() {
+    return this.schemaVersion;
+  }
+
+
+  /**
+   * Returns when the snapshot was taken.
+   * @return the time, in epoch milliseconds.
+   */
+  long getCreatedMillis() {
+    return this.createdMillis;
+  }
+
+
+  /**
+   * Checks whether the snapshot holds only the rows changed since the one before it.
+   * @return true for a differential snapshot, false for a full one.
+   */
+  boolean isDifferential() {
+    return this.kind == SnapshotWriter.KIND_DIFFERENTIAL;
+  }
+
+
+  /**
+   * Returns the change sequence number closed by the snapshot this one follows on from.
+   * @return the base sequence number, or 0 for a full snapshot.
+   */
+  long getBaseSequence() {
+    return this.baseSequence;
+  }
+
+
+  /**
+   * Returns the change sequence number this snapshot closes; every change stamped with it or
+   * an earlier number is in this snapshot or the ones before it in the chain.
+   * @return the sequence number.
+   */
+  long getSequence() {
+    return this.sequence;
+  }
+
+
+  /**
+   * Returns the highest ledger ID in this snapshot or the ones before it in the chain, after
+   * which the next differential's ledger entries start.
+   * @return the ledger ID, or 0 if the ledger was empty.
+   */
+  long getLedgerId() {
+    return this.ledgerId;
+  }
+
+
+  /**
+   * Moves on to the next table's section, skipping whatever rows of the current one were not
+   * read.
+   * @return the next table, or null once the trailer has been read.
+   * @throws IOException if the file is damaged or could not be read.
+   */
+  SnapshotTable nextSection() throws IOException {
+    while (table != null) {
+      nextRow();
+    }
+    if (finished) {
+      return null;
+    }
+    require(1);
+    byte marker = buffer.get();
+    if (marker == SnapshotWriter.TRAILER_MARKER) {
+      require(12);
+      int sections = buffer.getInt();
+      long rows = buffer.getLong();
+      if (sections != sectionCount || rows != totalRows) {
+        throw new IOException("Snapshot trailer does not match its sections");
+      }
+      finished = true;
+      return null;
+    }
+    if (marker != SnapshotWriter.SECTION_MARKER) {
+      throw new IOException("Damaged snapshot: unexpected marker " + marker);
+    }
+    require(4);
+    int code = buffer.getInt();
+    table = SnapshotTable.fromCode(code);
+    if (table == null) {
+      throw new IOException("Damaged snapshot: unknown table " + code);
+    }
+    sectionRows = 0;
+    sectionCount++;
+    return table;
+  }
+
+
+  /**
+   * Reads the next row of the current section.
+   * @return true if a row was read, false once the section has no more rows.
+   * @throws IOException if the file is damaged or could not be read.
+   */
+  boolean nextRow() throws IOException {
+    if (table == null) {
+      return false;
+    }
+    require(4);
+    int length = buffer.getInt();
+    if (length == 0) {
+      require(8);
+      if (buffer.getLong() != sectionRows) {
+        throw new IOException("Damaged snapshot: row count of " + table + " does not match");
+      }
+      table = null;
+      return false;
+    }
+    require(length);
+    int end = buffer.position() + length;
+    for (int i = 0; i < table.getFieldCount(); i++) {
+      nulls[i] = buffer.get() == 0;
+      texts[i] = null;
+      if (!nulls[i]) {
+        switch (table.getFieldType(i)) {
+          case INT:
+            numbers[i] = buffer.getInt();
+            break;
+          case LONG:
+            numbers[i] = buffer.getLong();
+            break;
+          default:
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            texts[i] = new String(bytes, StandardCharsets.UTF_8);
+            break;
+        }
+      }
+    }
+    if (buffer.position() != end) {
+      throw new IOException("Damaged snapshot: malformed row in " + table);
+    }
+    sectionRows++;
+    totalRows++;
+    return true;
+  }
+
+
+  /**
+   * Checks whether a field of the current row is null.
+   * @param index the position of the field.
+   * @return true if the field is null, false otherwise.
+   */
+  boolean isNull(int index) {
+    return nulls[index];
+  }
+
+
+  /**
+   * Returns an INT field of the current row.
+   * @param index the position of the field.
+   * @return the field's value, or 0 if it is null.
+   */
+  int getInt(int index) {
+    return nulls[index] ? 0 : (int) numbers[index];
+  }
+
+
+  /**
+   * Returns a LONG field of the current row.
+   * @param index the position of the field.
+   * @return the field's value, or 0 if it is null.
+   */
+  long getLong(int index) {
+    return nulls[index] ? 0 : numbers[index];
+  }
+
+
+  /**
+   * Returns a TEXT field of the current row.
+   * @param index the position of the field.
+   * @return the field's value, or null if it is null.
+   */
+  String getString(int index) {
+    return texts[index];
+  }
+
+
+  /**
+   * Closes the file.
+   * @throws IOException if the file could not be closed.
+   */
+  void close() throws IOException {
+    channel.close();
+  }
+
+
+  /**
+   * Makes sure a number of bytes are in the buffer, reading more of the file if they are not.
+   * A record larger than the buffer gets a larger buffer.
+   * @param bytes the number of bytes needed.
+   * @throws IOException if the file ends first or could not be read.
+   */
+  private void require(int bytes) throws IOException {
+    if (bytes < 0) {
+      throw new IOException("Damaged snapshot: negative length");
+    }
+    if (buffer.remaining() >= bytes) {
+      return;
+    }
+    if (bytes > buffer.capacity()) {
+      ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+      larger.put(buffer);
+      buffer = larger;
+    } else {
+      buffer.compact();
+    }
+    while (buffer.position() < bytes) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Snapshot ends part way through a record");
+      }
+    }
+    buffer.flip();
+  }
+}
@@ -0,0 +1,208 @@
+package com.bank.database;
+
+import java.util.Arrays;
+
+/**
+ * The tables written to a database snapshot, in the order their sections appear in the file.
+ * Each table is read with a single query whose columns are written, in order, as the fields of
+ * one record per row, and is restored by inserting the same columns, IDs included. A table's
+ * code identifies its section in the file, so codes must never be reused for a different table.
+ *
+ * <p>The leading fields of each record are the row's key, which a differential snapshot uses to
+ * replace the row. Tables whose changes are tracked end with their MODSEQ, and a differential
+ * snapshot only holds the rows of those tables changed since the snapshot before it. The ledger
+ * is only ever appended to, so a differential holds the entries with a higher ID than any in
+ * the snapshot before it. The reference tables are small and untracked, so they are always
+ * written in full.
+ */
+enum SnapshotTable {
+  ROLES(1, "ROLES", "ID, NAME", 1, Tracking.NONE,
+      FieldType.INT, FieldType.TEXT),
+  ACCOUNTTYPES(2, "ACCOUNTTYPES", "ID, NAME, INTERESTRATE", 1, Tracking.NONE,
+      FieldType.INT, FieldType.TEXT, FieldType.LONG),
+  USERS(3, "USERS", "ID, NAME, AGE, ADDRESS, ROLEID, MODSEQ", 1, Tracking.MODSEQ,
+      FieldType.INT, FieldType.TEXT, FieldType.INT, FieldType.TEXT, FieldType.INT,
+      FieldType.LONG),
+  USERPW(4, "USERPW", "USERID, PASSWORD, MODSEQ", 1, Tracking.MODSEQ,
+      FieldType.INT, FieldType.TEXT, FieldType.LONG),
+  ACCOUNTS(5, "ACCOUNTS", "ID, NAME, BALANCE, TYPE, LASTACCRUED, MODSEQ", 1, Tracking.MODSEQ,
+      FieldType.INT, FieldType.TEXT, FieldType.LONG, FieldType.INT, FieldType.LONG,
+      FieldType.LONG),
+  USERACCOUNT(6, "USERACCOUNT", "USERID, ACCOUNTID, MODSEQ", 2, Tracking.MODSEQ,
+      FieldType.INT, FieldType.INT, FieldType.LONG),
+  USERMESSAGES(7, "USERMESSAGES", "ID, USERID, MESSAGE, VIEWED, MODSEQ", 1, Tracking.MODSEQ,
+      FieldType.INT, FieldType.INT, FieldType.TEXT, FieldType.TEXT, FieldType.LONG),
+  LEDGER(8, "LEDGER", "ID, ACCOUNTID, TYPE, AMOUNT, BALANCE, POSTED", 1, Tracking.ID,
+      FieldType.LONG, FieldType.INT, FieldType.INT, FieldType.LONG, FieldType.LONG,
+      FieldType.LONG);
+
+  /**
+   * How a field is encoded. Every field starts with a byte saying whether it is null; a present
+   * INT takes four bytes, a LONG eight, and TEXT a four byte length and that many bytes of UTF-8.
+   */
+  enum FieldType {
+    INT, LONG, TEXT
+  }
+
+  /**
+   * How a differential snapshot finds the rows that changed, each named after the column it
+   * compares. NONE holds every row, MODSEQ the rows stamped with a later change sequence number,
+   * and ID the rows of an append-only table with a higher ID than the snapshot before it held.
+   */
+  enum Tracking {
+    NONE, MODSEQ, ID
+  }
+
+  private final int code;
+  private final String name;
+  private final String columns;
+  private final String[] keyColumns;
+  private final Tracking tracking;
+  private final FieldType[] fields;
+
+
+  /**
+   * Describes a table's section.
+   * @param code the number identifying the section in the file.
+   * @param name the name of the table.
+   * @param columns the columns written, one per field, key columns first.
+   * @param keyCount the number of leading columns that identify a row.
+   * @param tracking how a differential snapshot finds the table's changed rows.
+   * @param fields the type of each field.
+   */
+  private SnapshotTable(int code, String name, String columns, int keyCount, Tracking tracking,
+      FieldType... fields) {
+    this.code = code;
+    this.name = name;
+    this.columns = columns;
+    this.keyColumns = Arrays.copyOf(columns.split(", "), keyCount);
+    this.tracking = tracking;
+    this.fields = fields;
+  }
+
+
+  /**
+   * Returns the number identifying the table's section in the file.
+   * @return the section code.
+   */
+  int getCode() {
+    return this.code;
+  }
+
+
+  /**
+   * Returns the query that reads every one of the table's rows.
+   * @return the SQL query.
+   */
+  String getQuery() {
+    return "SELECT " + this.columns + " FROM " + this.name + " ORDER BY " + getKeyList();
+  }
+
+
+  /**
+   * Returns the query that reads the rows a differential snapshot holds. For a tracked table
+   * that is the rows whose tracking column is greater than its one parameter; an untracked
+   * table is read in full and its query has no parameter.
+   * @return the SQL query.
+   */
+  String getChangesQuery() {
+    if (this.tracking == Tracking.NONE) {
+      return getQuery();
+    }
+    return "SELECT " + this.columns + " FROM " + this.name + " WHERE " + this.tracking.name()
+        + " > ? ORDER BY " + getKeyList();
+  }
+
+
+  /**
+   * Returns how the table's changes are tracked, so a differential snapshot only holds the
+   * rows that changed.
+   * @return the table's tracking.
+   */
+  Tracking getTracking() {
+    return this.tracking;
+  }
+
+
+  /**
+   * Returns the statement that inserts one of the table's rows, with a parameter per field.
+   * @return the SQL insert.
+   */
+  String getInsert() {
+    StringBuilder placeholders = new StringBuilder("?");
+    for (int i = 1; i < this.fields.length; i++) {
+      placeholders.append(", ?");
+    }
+    return "INSERT INTO " + this.name + "(" + this.columns + ") VALUES(" + placeholders + ")";
+  }
+
+
+  /**
+   * Returns the statement that deletes a row by its key, with a parameter per key field, so
+   * that a row from a differential snapshot can replace it.
+   * @return the SQL delete.
+   */
+  String getDelete() {
+    StringBuilder where = new StringBuilder();
+    for (int i = 0; i < this.keyColumns.length; i++) {
+      where.append((i == 0) ? "" : " AND ").append(this.keyColumns[i]).append(" = ?");
+    }
+    return "DELETE FROM " + this.name + " WHERE " + where;
+  }
+
+
+  /**
+   * Returns the number of leading fields that identify a row.
+   * @return the key field count.
+   */
+  int getKeyCount() {
+    return this.keyColumns.length;
+  }
+
+
+  /**
+   * Returns the number of fields in each of the table's records.
+   * @return the field count.
+   */
+  int getFieldCount() {
+    return this.fields.length;
+  }
+
+
+  /**
+   * Returns the type of one of the table's fields.
+   * @param index the position of the field.
+   * @return the field's type.
+   */
+  FieldType getFieldType(int index) {
+    return this.fields[index];
+  }
+
+
+  /**
+   * Returns the key columns as a list, which is also the order rows are written in.
+   * @return the key columns, separated by commas.
+   */
+  private String getKeyList() {
+    StringBuilder list = new StringBuilder();
+    for (int i = 0; i < this.keyColumns.length; i++) {
+      list.append((i == 0) ? "" : ", ").append(this.keyColumns[i]);
+    }
+    return list.toString();
+  }
+
+
+  /**
+   * Finds the table whose section has a code.
+   * @param code the section code read from the file.
+   * @return the table, or null if the code is unknown.
+   */
+  static SnapshotTable fromCode(int code) {
+    for (SnapshotTable table : SnapshotTable.values()) {
+      if (table.code == code) {
+        return table;
+      }
+    }
+    return null;
+  }
+}
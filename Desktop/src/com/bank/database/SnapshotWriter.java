@@ -0,0 +1,428 @@
+package com.bank.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a copy of the bank database to a binary snapshot file, one table at a time. Each table
+ * is read with a single forward-only query and every row is written as soon as it is read,
+ * through a fixed-size buffer, so the memory used does not depend on the size of the bank.
+ *
+ * <p>The file starts with a header of the magic bytes, the format version, the schema version,
+ * the time the snapshot was taken, whether it is a full or a differential snapshot, the change
+ * sequence number it follows on from, the one it closes and the highest ledger ID it holds,
+ * counting the snapshots before it in the chain. Each table follows as a section:
+ * a section marker and the table's code, a length-prefixed record per row, a zero length
+ * marking the end of the rows and the number of rows written. A trailer holds the number of
+ * sections and rows and ends with a CRC32 of everything before it. Every table is read inside
+ * one transaction, so the snapshot is consistent even while the terminals keep writing, and it
+ * is written to a temporary file that only replaces the previous snapshot once it is complete.
+ *
+ * <p>A full snapshot holds every row. A differential snapshot holds only the rows changed since
+ * the last snapshot in the chain, found from the change sequence number stamped on each row, and
+ * only the ledger entries appended since, found from their IDs, so its cost grows with the
+ * activity since then rather than with the size of the bank. The chain
+ * is the full snapshot followed by its differentials, numbered from 1 in the order they were
+ * taken; taking a new full snapshot starts a new chain.
+ */
+final class SnapshotWriter {
+
+  /** The file a snapshot is written to. */
+  static final String SNAPSHOT_FILE = "database_copy.snapshot";
+
+  /** The bytes every snapshot file starts with. */
+  static final byte[] MAGIC = "BANKSNAP".getBytes(StandardCharsets.US_ASCII);
+
+  /** The version of the file format written. */
+  static final int FORMAT_VERSION = 3;
+
+  /** The number of bytes in the header. */
+  static final int HEADER_BYTES = MAGIC.length + 41;
+
+  /** Marks a snapshot holding every row. */
+  static final byte KIND_FULL = 0;
+
+  /** Marks a snapshot holding only the rows changed since the one before it. */
+  static final byte KIND_DIFFERENTIAL = 1;
+
+  /** Marks the start of a table's section. */
+  static final byte SECTION_MARKER = 1;
+
+  /** Marks the start of the trailer. */
+  static final byte TRAILER_MARKER = 2;
+
+  private static final int BUFFER_BYTES =
+      Math.max(4096, Integer.getInteger("bank.snapshot.bufferBytes", 64 * 1024));
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+  private ByteBuffer record = ByteBuffer.allocate(4096);
+  private final CRC32 checksum = new CRC32();
+
+
+  /**
+   * Creates a writer on an open file.
+   * @param channel the file to write to.
+   */
+  private SnapshotWriter(FileChannel channel) {
+    this.channel = channel;
+  }
+
+
+  /**
+   * Writes a full snapshot of the database to the snapshot file, replacing any earlier one and
+   * starting a new chain.
+   * @return the number of rows written.
+   * @throws IOException if the file could not be written.
+   * @throws SQLException if the database could not be read.
+   */
+  static long write() throws IOException, SQLException {
+    long rows = write(Paths.get(SNAPSHOT_FILE), KIND_FULL, 0, 0);
+    // The differentials of the old chain follow on from a snapshot that no longer exists
+    int number = 1;
+    while (Files.deleteIfExists(getDifferentialFile(number))) {
+      number++;
+    }
+    return rows;
+  }
+
+
+  /**
+   * Writes a differential snapshot of the rows changed since the last snapshot in the chain,
+   * adding it to the end of the chain.
+   * @return the number of rows written.
+   * @throws IOException if there is no full snapshot to follow on from, or the file could not
+   *     be written.
+   * @throws SQLException if the database could not be read.
+   */
+  static long writeChanges() throws IOException, SQLException {
+    List<Path> chain = getChain();
+    if (chain.isEmpty()) {
+      throw new IOException("There is no full snapshot for the changes to follow on from");
+    }
+    SnapshotReader last = new SnapshotReader(chain.get(chain.size() - 1));
+    long since;
+    long sinceLedgerId;
+    try {
+      since = last.getSequence();
+      sinceLedgerId = last.getLedgerId();
+    } finally {
+      last.close();
+    }
+    return write(getDifferentialFile(chain.size()), KIND_DIFFERENTIAL, since, sinceLedgerId);
+  }
+
+
+  /**
+   * Returns the files of the current chain: the full snapshot, then each of its differentials
+   * in the order they were taken.
+   * @return the chain, which is empty if there is no full snapshot.
+   */
+  static List<Path> getChain() {
+    List<Path> chain = new ArrayList<Path>();
+    Path file = Paths.get(SNAPSHOT_FILE);
+    for (int number = 1; Files.exists(file); number++) {
+      chain.add(file);
+      file = getDifferentialFile(number);
+    }
+    return chain;
+  }
+
+
+  /**
+   * Returns the file a differential snapshot is written to.
+   * @param number the differential's position in the chain, counting from 1.
+   * @return the differential's file.
+   */
+  static Path getDifferentialFile(int number) {
+    return Paths.get(SNAPSHOT_FILE + "." + number);
+  }
+
+
+  /**
+   * Writes a snapshot of the database to a file, replacing it only once the snapshot is
+   * complete.
+   * @param file the file to write.
+   * @param kind whether to write a full or a differential snapshot.
+   * @param since for a differential, the sequence number closed by the snapshot before it.
+   * @param sinceLedgerId for a differential, the highest ledger ID in the snapshot before it.
+   * @return the number of rows written.
+   * @throws IOException if the file could not be written.
+   * @throws SQLException if the database could not be read.
+   */
+  private static long write(Path file, byte kind, long since, long sinceLedgerId)
+      throws IOException, SQLException {
+    // The stored balances must include whatever is still in the balance journal
+    if (BalanceJournal.isEnabled()) {
+      BalanceJournal.flush();
+    }
+    // Every row stamped with the closed number is committed, so the snapshot taken after this
+    // holds them all, and the next differential starts from it
+    long sequence = ChangeSequence.advance();
+    Path partial = file.resolveSibling(file.getFileName() + ".partial");
+    long rows;
+    FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    try {
+      rows = new SnapshotWriter(channel).writeDatabase(kind, since, sinceLedgerId, sequence);
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+    Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return rows;
+  }
+
+
+  /**
+   * Writes the header, every table's section and the trailer, reading the tables inside one
+   * transaction.
+   * @param kind whether to write a full or a differential snapshot.
+   * @param since for a differential, the sequence number closed by the snapshot before it.
+   * @param sinceLedgerId for a differential, the highest ledger ID in the snapshot before it.
+   * @param sequence the sequence number this snapshot closes.
+   * @return the number of rows written.
+   * @throws IOException if the file could not be written.
+   * @throws SQLException if the database could not be read.
+   */
+  private long writeDatabase(byte kind, long since, long sinceLedgerId, long sequence)
+      throws IOException, SQLException {
+    Connection connection = DatabaseDriver.connectOrCreateDataBase();
+    boolean ownTransaction = connection.getAutoCommit();
+    try {
+      if (ownTransaction) {
+        connection.setAutoCommit(false);
+      }
+      ensureRoom(HEADER_BYTES);
+      buffer.put(MAGIC);
+      buffer.putInt(FORMAT_VERSION);
+      buffer.putInt(DatabaseMigrator.getSchemaVersion(connection));
+      buffer.putLong(System.currentTimeMillis());
+      buffer.put(kind);
+      buffer.putLong(since);
+      buffer.putLong(sequence);
+      // Read in the same transaction as the ledger's section, so it is exactly the last entry
+      // written, and the next differential starts after it
+      buffer.putLong(readLastLedgerId(connection));
+
+      long rows = 0;
+      for (SnapshotTable table : SnapshotTable.values()) {
+        long tableSince = (table.getTracking() == SnapshotTable.Tracking.ID) ? sinceLedgerId
+            : since;
+        rows += writeSection(table, kind == KIND_DIFFERENTIAL, tableSince, connection);
+      }
+
+      ensureRoom(13);
+      buffer.put(TRAILER_MARKER);
+      buffer.putInt(SnapshotTable.values().length);
+      buffer.putLong(rows);
+      flush();
+      // The checksum covers everything before it
+      ByteBuffer crc = ByteBuffer.allocate(4);
+      crc.putInt((int) checksum.getValue());
+      crc.flip();
+      while (crc.hasRemaining()) {
+        channel.write(crc);
+      }
+      return rows;
+    } finally {
+      if (ownTransaction) {
+        // Nothing was changed, so ending the read transaction either way is the same
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      connection.close();
+    }
+  }
+
+
+  /**
+   * Writes one table's section, a row at a time as the query returns them.
+   * @param table the table to write.
+   * @param changesOnly whether to write only the rows changed since the snapshot before this.
+   * @param since the sequence number, or for the ledger the ID, the snapshot before this closed.
+   * @param connection the connection to read it with.
+   * @return the number of rows written.
+   * @throws IOException if the file could not be written.
+   * @throws SQLException if the table could not be read.
+   */
+  private long writeSection(SnapshotTable table, boolean changesOnly, long since,
+      Connection connection) throws IOException, SQLException {
+    ensureRoom(5);
+    buffer.put(SECTION_MARKER);
+    buffer.putInt(table.getCode());
+
+    long rows = 0;
+    PreparedStatement query;
+    if (changesOnly) {
+      query = connection.prepareStatement(table.getChangesQuery());
+      if (table.getTracking() != SnapshotTable.Tracking.NONE) {
+        query.setLong(1, since);
+      }
+    } else {
+      query = connection.prepareStatement(table.getQuery());
+    }
+    ResultSet results = query.executeQuery();
+    try {
+      while (results.next()) {
+        record.clear();
+        for (int i = 0; i < table.getFieldCount(); i++) {
+          encodeField(table.getFieldType(i), results, i + 1);
+        }
+        record.flip();
+        ensureRoom(4);
+        buffer.putInt(record.remaining());
+        put(record);
+        rows++;
+      }
+    } finally {
+      results.close();
+    }
+    ensureRoom(12);
+    buffer.putInt(0);
+    buffer.putLong(rows);
+    return rows;
+  }
+
+
+  /**
+   * Reads the ID of the last entry in the ledger.
+   * @param connection the connection to read it with.
+   * @return the highest ledger ID, or 0 if the ledger is empty.
+   * @throws SQLException if the ledger could not be read.
+   */
+  private static long readLastLedgerId(Connection connection) throws SQLException {
+    PreparedStatement query = connection.prepareStatement(
+        "SELECT COALESCE(MAX(ID), 0) FROM LEDGER");
+    ResultSet results = query.executeQuery();
+    try {
+      return results.next() ? results.getLong(1) : 0;
+    } finally {
+      results.close();
+    }
+  }
+
+
+  /**
+   * Adds one column of the current row to the record being built.
+   * @param type how the field is encoded.
+   * @param results the rows being read, positioned on the current row.
+   * @param column the column to read, counting from 1.
+   * @throws SQLException if the column could not be read.
+   */
+  private void encodeField(SnapshotTable.FieldType type, ResultSet results, int column)
+      throws SQLException {
+    switch (type) {
+      case INT:
+        int intValue = results.getInt(column);
+        if (results.wasNull()) {
+          putNull();
+        } else {
+          recordRoom(5).put((byte) 1).putInt(intValue);
+        }
+        break;
+      case LONG:
+        long longValue = results.getLong(column);
+        if (results.wasNull()) {
+          putNull();
+        } else {
+          recordRoom(9).put((byte) 1).putLong(longValue);
+        }
+        break;
+      default:
+        String text = results.getString(column);
+        if (text == null) {
+          putNull();
+        } else {
+          byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+          recordRoom(5 + bytes.length).put((byte) 1).putInt(bytes.length).put(bytes);
+        }
+        break;
+    }
+  }
+
+
+  /**
+   * Adds a null field to the record being built.
+   */
+  private void putNull() {
+    recordRoom(1).put((byte) 0);
+  }
+
+
+  /**
+   * Makes sure the record being built has room for more bytes, growing it if it does not.
+   * @param bytes the number of bytes about to be added.
+   * @return the record buffer.
+   */
+  private ByteBuffer recordRoom(int bytes) {
+    if (record.remaining() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2,
+          record.position() + bytes));
+      record.flip();
+      larger.put(record);
+      record = larger;
+    }
+    return record;
+  }
+
+
+  /**
+   * Copies bytes into the output buffer, writing it out whenever it fills up.
+   * @param source the bytes to copy.
+   * @throws IOException if the file could not be written.
+   */
+  private void put(ByteBuffer source) throws IOException {
+    while (source.hasRemaining()) {
+      if (!buffer.hasRemaining()) {
+        flush();
+      }
+      int count = Math.min(source.remaining(), buffer.remaining());
+      ByteBuffer slice = source.duplicate();
+      slice.limit(slice.position() + count);
+      buffer.put(slice);
+      source.position(source.position() + count);
+    }
+  }
+
+
+  /**
+   * Makes sure the output buffer has room for a fixed-size field, writing it out if it does not.
+   * @param bytes the number of bytes about to be added.
+   * @throws IOException if the file could not be written.
+   */
+  private void ensureRoom(int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flush();
+    }
+  }
+
+
+  /**
+   * Writes out everything in the output buffer, adding it to the checksum.
+   * @throws IOException if the file could not be written.
+   */
+  private void flush() throws IOException {
+    buffer.flip();
+    checksum.update(buffer.duplicate());
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
@@ -0,0 +1,135 @@
+package com.bank.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of prepared statements for one pooled connection, keyed by
+ * their SQL text. Statements evicted from the cache are closed.
+ */
+class StatementCache {
+
+  private static final int MAX_STATEMENTS = Integer.getInteger("bank.pool.statementCacheSize", 64);
+
+  // Counters shared by every cache in the pool
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  private final Connection physical;
+  private final List<CachedStatement> handedOut = new ArrayList<CachedStatement>();
+  // Evicted statements a caller still holds, closed once the connection is released
+  private final List<CachedStatement> retired = new ArrayList<CachedStatement>();
+  private final Map<String, CachedStatement> statements =
+      new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+        private static final long serialVersionUID = -2484541297931633497L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+          boolean full = size() > MAX_STATEMENTS;
+          if (full) {
+            evictions.incrementAndGet();
+            handedOut.remove(eldest.getValue());
+            if (eldest.getValue().isBusy()) {
+              retired.add(eldest.getValue());
+            } else {
+              eldest.getValue().closePhysical();
+            }
+          }
+          return full;
+        }
+      };
+
+
+  /**
+   * Creates an empty cache for a connection.
+   * @param physical the connection statements are prepared on.
+   */
+  StatementCache(Connection physical) {
+    this.physical = physical;
+  }
+
+
+  /**
+   * Returns a prepared statement for the given SQL, reusing a cached one when no other caller
+   * holds it. The statement is held until it is closed or the connection is released.
+   * @param sql the SQL text of the statement.
+   * @param autoGeneratedKeys whether generated keys should be returned, as in
+   *     Connection.prepareStatement.
+   * @return the cached statement, or null if the cached one is still in use and the caller
+   *     should prepare a statement of its own.
+   * @throws SQLException if the statement could not be prepared.
+   */
+  PreparedStatement acquire(String sql, int autoGeneratedKeys) throws SQLException {
+    String key = (autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS) ? "K:" + sql : "N:" + sql;
+    CachedStatement cached = statements.get(key);
+    if (cached != null) {
+      if (cached.isBusy()) {
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      cached.reset();
+    } else {
+      misses.incrementAndGet();
+      PreparedStatement prepared = (autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS)
+          ? physical.prepareStatement(sql, autoGeneratedKeys) : physical.prepareStatement(sql);
+      cached = new CachedStatement(key, prepared);
+      statements.put(key, cached);
+    }
+    cached.checkOut();
+    if (!handedOut.contains(cached)) {
+      handedOut.add(cached);
+    }
+    return cached.getProxy();
+  }
+
+
+  /**
+   * Resets every statement handed out since the last release and closes the evicted ones
+   * callers were still holding, called when the connection goes back to the pool.
+   */
+  void releaseAll() {
+    for (CachedStatement cached : handedOut) {
+      cached.reset();
+    }
+    handedOut.clear();
+    for (CachedStatement cached : retired) {
+      cached.closePhysical();
+    }
+    retired.clear();
+  }
+
+
+  /**
+   * Closes every cached statement.
+   */
+  void clear() {
+    for (CachedStatement cached : statements.values()) {
+      cached.closePhysical();
+    }
+    for (CachedStatement cached : retired) {
+      cached.closePhysical();
+    }
+    statements.clear();
+    handedOut.clear();
+    retired.clear();
+  }
+
+
+  /**
+   * Describes the hit and miss counters shared by every cache.
+   * @return a one line summary of the counters.
+   */
+  static String getStatistics() {
+    return "statementHits=" + hits.get() + " statementMisses=" + misses.get()
+        + " statementEvictions=" + evictions.get();
+  }
+}
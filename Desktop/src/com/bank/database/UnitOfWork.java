@@ -0,0 +1,591 @@
+package com.bank.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a series of helper calls as one database transaction. While a unit of work is open on
+ * a thread, every connection the helpers ask for on that thread is the same pooled connection,
+ * inside a single BEGIN IMMEDIATE ... COMMIT, so the calls commit together or not at all.
+ *
+ * <p>A unit of work is used the same way as a connection:
+ * <pre>
+ * UnitOfWork unit = UnitOfWork.begin();
+ * try {
+ *   // helper calls
+ *   unit.commit();
+ * } finally {
+ *   unit.close();
+ * }
+ * </pre>
+ * Closing a unit that was not committed rolls it back. Units opened while another is open on
+ * the same thread join it, and only the outermost one commits.
+ *
+ * <p>An outermost unit is run by the database writer as one of its queued writes. The writer
+ * lends the unit its group transaction, inside a savepoint of the unit's own, and waits while
+ * the unit's thread makes its calls; committing the unit hands it back to the writer, and the
+ * unit is committed along with the rest of the writer's group. Only if the writer cannot take
+ * the unit on, or does not within bank.writer.lendTimeoutMillis, does it begin a transaction of
+ * its own. A unit kept for longer than that is cut off: its connection stops working, the writer
+ * undoes it and goes on with the group, and the unit fails to commit.
+ */
+public class UnitOfWork {
+
+  private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<Scope>();
+
+  private final Scope scope;
+  private final boolean outermost;
+  // For a unit run in the writer's transaction, its answer to the writer and the writer's result
+  private final CompletableFuture<Boolean> returned;
+  private final Future<Boolean> group;
+  private boolean committed = false;
+  private boolean closed = false;
+
+
+  /**
+   * Creates a handle on a transaction scope.
+   * @param scope the scope shared by every unit open on the thread, or null if no transaction
+   *     could be started.
+   * @param outermost whether this unit started the scope.
+   */
+  private UnitOfWork(Scope scope, boolean outermost) {
+    this(scope, outermost, null, null);
+  }
+
+
+  /**
+   * Creates a handle on a transaction scope.
+   * @param scope the scope shared by every unit open on the thread, or null if no transaction
+   *     could be started.
+   * @param outermost whether this unit started the scope.
+   * @param returned completed with whether the unit committed, for a unit the writer is running.
+   * @param group the writer's result for the unit, true once its group has committed.
+   */
+  private UnitOfWork(Scope scope, boolean outermost, CompletableFuture<Boolean> returned,
+      Future<Boolean> group) {
+    this.scope = scope;
+    this.outermost = outermost;
+    this.returned = returned;
+    this.group = group;
+  }
+
+
+  /**
+   * Opens a unit of work on the current thread, or joins the one already open. If no
+   * transaction can be started the unit is still returned, but it cannot be committed, and
+   * callers should check isTransactional() before making any changes under it.
+   * @return the unit of work, which must be closed.
+   */
+  public static UnitOfWork begin() {
+    return begin(false);
+  }
+
+
+  /**
+   * Opens a unit of work on the current thread, or joins the one already open.
+   * @param endsGroup whether the writer must commit as soon as the unit is handed back, for a
+   *     unit whose thread holds up other units until it has committed.
+   * @return the unit of work, which must be closed.
+   */
+  static UnitOfWork begin(boolean endsGroup) {
+    Scope scope = CURRENT.get();
+    if (scope != null) {
+      return new UnitOfWork(scope, false);
+    }
+    // Commit with the writer's group rather than paying for a commit of the unit's own
+    UnitOfWork lent = borrowWriter(endsGroup);
+    if (lent != null) {
+      return lent;
+    }
+    try {
+      scope = new Scope(ConnectionPool.getInstance().borrowLease(), null);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return new UnitOfWork(null, true);
+    }
+    // Take the write lock now, so the unit cannot fail halfway through on a busy database
+    if (!scope.execute("BEGIN IMMEDIATE")) {
+      scope.release();
+      return new UnitOfWork(null, true);
+    }
+    CURRENT.set(scope);
+    return new UnitOfWork(scope, true);
+  }
+
+
+  /**
+   * Has the database writer run a unit of work for the current thread. The writer takes the
+   * unit off its queue like any other write, lends the thread a scope inside its transaction,
+   * and waits for the unit to be committed or rolled back before going on with its group. Both
+   * sides give up after bank.writer.lendTimeoutMillis.
+   * @param endsGroup whether the writer must commit as soon as the unit is handed back.
+   * @return the unit, or null if the writer has no transaction to lend, as on the writer thread
+   *     itself, has been shut down or did not get to the unit in time.
+   */
+  private static UnitOfWork borrowWriter(boolean endsGroup) {
+    final CompletableFuture<Scope> lent = new CompletableFuture<Scope>();
+    final CompletableFuture<Boolean> returned = new CompletableFuture<Boolean>();
+    CompletableFuture<Boolean> group = WriteQueue.schedule(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws InterruptedException, ExecutionException, TimeoutException {
+        Scope parent = CURRENT.get();
+        Scope scope = (parent == null) ? null : new Scope(parent.lease, parent);
+        // The caller may have stopped waiting and begun a transaction of its own
+        if (scope == null || !lent.complete(scope)) {
+          lent.complete(null);
+          return false;
+        }
+        try {
+          return returned.get(WriteQueue.LEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // Unless it has just been handed back, take the unit back so its savepoint is undone
+          if (!returned.complete(false)) {
+            return returned.get();
+          }
+          scope.cutOff();
+          System.err.println("A unit of work was not handed back to the database writer within "
+              + WriteQueue.LEND_TIMEOUT_MILLIS + " ms and has been rolled back");
+          throw e;
+        }
+      }
+    }, endsGroup);
+    try {
+      CompletableFuture.anyOf(lent, group).get(WriteQueue.LEND_TIMEOUT_MILLIS,
+          TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // The writer failed the unit without running it
+    } catch (TimeoutException e) {
+      // The writer is busy; the unit begins a transaction of its own instead
+    }
+    // Withdraw the request, unless the writer has already lent its transaction
+    lent.complete(null);
+    Scope scope = lent.getNow(null);
+    if (scope == null) {
+      return null;
+    }
+    CURRENT.set(scope);
+    return new UnitOfWork(scope, true, returned, group);
+  }
+
+
+  /**
+   * Opens a unit of work inside the one open on the current thread, which commits or rolls back
+   * without ending the outer one. The writer runs each queued write in one of these, inside a
+   * savepoint, so the caches and listeners of a write that fails are undone with it.
+   * @return the unit of work, which must be closed.
+   */
+  static UnitOfWork beginNested() {
+    Scope parent = CURRENT.get();
+    if (parent == null) {
+      return begin();
+    }
+    Scope scope = new Scope(parent.lease, parent);
+    CURRENT.set(scope);
+    return new UnitOfWork(scope, true);
+  }
+
+
+  /**
+   * Checks whether a unit of work is open on the current thread.
+   * @return true if helper calls on this thread are part of a transaction, false otherwise.
+   */
+  public static boolean isActive() {
+    return CURRENT.get() != null;
+  }
+
+
+  /**
+   * Returns a connection to the current thread's unit of work, if one is open. Closing the
+   * connection leaves the transaction open, and the connection reports that auto-commit is
+   * off, so helpers never commit or roll back the unit themselves.
+   * @return a connection inside the unit of work, or null if none is open.
+   */
+  static Connection getConnection() {
+    Scope scope = CURRENT.get();
+    return (scope == null) ? null : scope.open();
+  }
+
+
+  /**
+   * Records that the current thread's unit of work, if one is open, has put rows it has not yet
+   * committed into the shared ID cache or changed the reference tables. If the unit is rolled
+   * back, those caches are cleared.
+   */
+  static void cachedUncommitted() {
+    Scope scope = CURRENT.get();
+    if (scope != null) {
+      scope.cachedUncommitted++;
+    }
+  }
+
+
+  /**
+   * Has the current thread's unit of work, if one is open, tell a listener when it commits or
+   * rolls back.
+   * @param completion the listener.
+   * @return true if a unit of work is open and will call the listener, false otherwise.
+   */
+  static boolean register(Completion completion) {
+    Scope scope = CURRENT.get();
+    if (scope == null) {
+      return false;
+    }
+    scope.completions.add(completion);
+    return true;
+  }
+
+
+  /**
+   * Checks whether the unit has a transaction behind it. A unit begun when no transaction
+   * could be started has none, so the helper calls made under it would each commit on their
+   * own.
+   * @return true if the calls made under the unit commit together, false otherwise.
+   */
+  public boolean isTransactional() {
+    return scope != null;
+  }
+
+
+  /**
+   * Commits the unit of work. Units that joined an outer one leave the commit to it, and a unit
+   * the writer is running waits for the writer's group to commit.
+   * @return true if the work was committed, or will be by the outer unit, false if it was
+   *     rolled back instead or there was no transaction to commit.
+   */
+  public boolean commit() {
+    if (closed || scope == null) {
+      return false;
+    }
+    committed = true;
+    if (!outermost) {
+      return true;
+    }
+    // An inner unit that was closed without committing spoils the whole transaction
+    if (scope.rollbackOnly || !scope.beforeCommit()) {
+      committed = false;
+    } else if (returned != null) {
+      // Hand the unit back to the writer and wait for the group it is in to commit
+      returned.complete(true);
+      committed = Boolean.TRUE.equals(WriteQueue.await(group));
+    } else if (scope.parent == null) {
+      committed = scope.execute("COMMIT");
+    }
+    return committed;
+  }
+
+
+  /**
+   * Closes the unit of work, rolling it back if it has not been committed.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (scope == null) {
+      return;
+    }
+    if (!outermost) {
+      if (!committed) {
+        scope.rollbackOnly = true;
+      }
+      return;
+    }
+    if (scope.parent == null) {
+      CURRENT.remove();
+      if (!committed) {
+        scope.execute("ROLLBACK");
+      }
+      scope.release();
+    } else {
+      // The writer undoes a unit handed back uncommitted, and commits or rolls back its group
+      if (returned != null) {
+        returned.complete(false);
+        CURRENT.remove();
+      } else {
+        CURRENT.set(scope.parent);
+        if (committed) {
+          scope.parent.cachedUncommitted += scope.cachedUncommitted;
+        }
+      }
+      scope.ended = true;
+    }
+    // IDs and reference data written inside the transaction were never committed
+    if (!committed && scope.cachedUncommitted > 0) {
+      ExistenceCache.clearAll();
+      ReferenceDataVersion.changed();
+    }
+    scope.finished(committed);
+  }
+
+
+  /**
+   * Work that has to be done, or undone, as a unit of work ends.
+   */
+  interface Completion {
+
+    /**
+     * Called just before the unit commits, while it still holds the write lock.
+     * @return true if the unit may commit, false if it should be rolled back instead.
+     */
+    boolean beforeCommit();
+
+
+    /**
+     * Called once the unit has committed or rolled back.
+     * @param committed whether the unit was committed.
+     */
+    void afterCompletion(boolean committed);
+  }
+
+
+  /**
+   * The pooled connection and transaction state shared by every unit open on one thread.
+   */
+  private static class Scope {
+
+    private final ConnectionLease lease;
+    // The scope whose transaction this one runs in, or null if it began the transaction
+    private final Scope parent;
+    // Set by the unit's own thread, or by the writer when it cuts a lent unit off
+    private volatile boolean ended = false;
+    private int openConnections = 0;
+    private boolean rollbackOnly = false;
+    private int cachedUncommitted = 0;
+    private final List<Completion> completions = new ArrayList<Completion>();
+
+
+    /**
+     * Creates a scope on a borrowed connection.
+     * @param lease the borrowed connection.
+     * @param parent the scope whose transaction this one runs in, or null if it begins one.
+     */
+    Scope(ConnectionLease lease, Scope parent) {
+      this.lease = lease;
+      this.parent = parent;
+    }
+
+
+    /**
+     * Hands out a connection inside the transaction.
+     * @return a connection whose close() leaves the transaction open.
+     */
+    Connection open() {
+      openConnections++;
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[] {Connection.class}, new ScopedConnection(this));
+    }
+
+
+    /**
+     * Takes back a connection handed out by open(). Once none are outstanding, the cached
+     * statements they used are made available to the next helper call.
+     */
+    void close() {
+      openConnections--;
+      // A scope that has been cut off no longer owns the statements; the writer does
+      if (openConnections == 0 && !ended) {
+        lease.getPooledConnection().getStatementCache().releaseAll();
+      }
+    }
+
+
+    /**
+     * Stops the scope's connections and statements from reaching the database, once any call
+     * already being made through them has finished. Used by the writer on a lent scope it has
+     * given up waiting for.
+     */
+    void cutOff() {
+      synchronized (this) {
+        ended = true;
+      }
+    }
+
+
+    /**
+     * Runs a transaction control statement on the borrowed connection.
+     * @param sql the statement to run.
+     * @return true if it ran, false otherwise.
+     */
+    boolean execute(String sql) {
+      try {
+        Statement statement = lease.getProxy().createStatement();
+        try {
+          statement.execute(sql);
+        } finally {
+          statement.close();
+        }
+        return true;
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return false;
+      }
+    }
+
+
+    /**
+     * Gives every registered listener its chance to stop the commit.
+     * @return true if all of them agreed to it, false otherwise.
+     */
+    boolean beforeCommit() {
+      for (Completion completion : completions) {
+        if (!completion.beforeCommit()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+
+    /**
+     * Tells every registered listener how the transaction ended.
+     * @param committed whether the transaction was committed.
+     */
+    void finished(boolean committed) {
+      for (Completion completion : completions) {
+        completion.afterCompletion(committed);
+      }
+    }
+
+
+    /**
+     * Returns the borrowed connection to the pool.
+     */
+    void release() {
+      try {
+        lease.getProxy().close();
+      } catch (SQLException e) {
+        // The pool discards connections it cannot reset
+      }
+    }
+  }
+
+
+  /**
+   * A connection handed to a helper inside a unit of work. Transaction control is left to the
+   * unit, and everything else, including savepoints, is passed on to the borrowed connection.
+   */
+  private static class ScopedConnection implements InvocationHandler {
+
+    private final Scope scope;
+    private boolean closed = false;
+
+
+    /**
+     * Creates a connection inside a scope.
+     * @param scope the scope the connection belongs to.
+     */
+    ScopedConnection(Scope scope) {
+      this.scope = scope;
+    }
+
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("close")) {
+        if (!closed) {
+          closed = true;
+          scope.close();
+        }
+        return null;
+      }
+      if (name.equals("isClosed")) {
+        return closed;
+      }
+      if (name.equals("getAutoCommit")) {
+        return false;
+      }
+      // Rolling back to a savepoint only undoes the helper's own work, so it is passed on
+      boolean toSavepoint = name.equals("rollback") && args != null && args.length == 1;
+      if (name.equals("setAutoCommit") || name.equals("commit")
+          || (name.equals("rollback") && !toSavepoint)) {
+        return null;
+      }
+      if (name.equals("equals")) {
+        return target == args[0];
+      }
+      if (name.equals("hashCode")) {
+        return System.identityHashCode(target);
+      }
+      // Calls are made holding the scope's monitor, so the writer cannot cut it off midway
+      synchronized (scope) {
+        // Once its scope has ended the connection belongs to the writer again
+        if (closed || scope.ended) {
+          throw new SQLException("This connection has already been closed");
+        }
+        Object result;
+        try {
+          result = method.invoke(scope.lease.getProxy(), args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+        // Statements are wrapped as well, so none of them runs once the scope has been cut off
+        if (result instanceof Statement && method.getReturnType().isInterface()) {
+          return Proxy.newProxyInstance(Statement.class.getClassLoader(),
+              new Class<?>[] {method.getReturnType()}, new ScopedStatement(scope, result));
+        }
+        return result;
+      }
+    }
+  }
+
+
+  /**
+   * A statement handed out by a ScopedConnection, which stops working once its scope has been
+   * cut off by the writer.
+   */
+  private static class ScopedStatement implements InvocationHandler {
+
+    private final Scope scope;
+    private final Object statement;
+
+
+    /**
+     * Wraps a statement of a scope's connection.
+     * @param scope the scope the statement belongs to.
+     * @param statement the statement of the borrowed connection.
+     */
+    ScopedStatement(Scope scope, Object statement) {
+      this.scope = scope;
+      this.statement = statement;
+    }
+
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+      if (method.getName().equals("equals")) {
+        return target == args[0];
+      }
+      if (method.getName().equals("hashCode")) {
+        return System.identityHashCode(target);
+      }
+      synchronized (scope) {
+        // Closing is always passed on, so the statement goes back to the cache
+        if (scope.ended && !method.getName().equals("close")) {
+          throw new SQLException("This statement's connection has already been closed");
+        }
+        try {
+          return method.invoke(statement, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    }
+  }
+}
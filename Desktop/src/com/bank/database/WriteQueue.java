@@ -0,0 +1,448 @@
+package com.bank.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Funnels database writes through a single writer thread. SQLite only lets one connection
+ * write at a time, so rather than every terminal taking the lock and paying for its own commit,
+ * queued writes are applied back to back and committed in groups. A group closes once it holds
+ * the maximum batch size or the first write in it has waited out the latency budget.
+ *
+ * <p>Each write runs inside its own savepoint, so one that throws, or that returns null or
+ * false to say it failed, is undone without affecting the others in its group. Its future is
+ * only completed once the group has committed.
+ *
+ * <p>A UnitOfWork is grouped the same way. The writer lends the unit's thread its transaction
+ * and waits until the unit is handed back, then goes on with the group, so the terminals'
+ * deposits, withdrawals and transfers share commits with each other and with the queued
+ * writes. Writes made inside a unit are applied straight away, in the unit's savepoint. A unit
+ * that is not handed back within bank.writer.lendTimeoutMillis is cut off and undone, and the
+ * writer goes on with the rest of its group.
+ */
+public class WriteQueue {
+
+  // Queue sizing and timing, each of which may be overridden through a system property
+  private static final boolean ENABLED =
+      !"false".equalsIgnoreCase(System.getProperty("bank.writer.enabled"));
+  private static final int CAPACITY = Integer.getInteger("bank.writer.queueCapacity", 1024);
+  private static final int MAX_BATCH = Integer.getInteger("bank.writer.maxBatch", 64);
+  // By default a group is whatever queued up while the previous group was committing, which
+  // costs a lone writer nothing; a delay trades latency for larger groups
+  private static final long MAX_DELAY_MILLIS = Long.getLong("bank.writer.maxDelayMillis", 0L);
+  // How long the writer waits for a lent unit to be handed back, and a terminal for the writer
+  static final long LEND_TIMEOUT_MILLIS =
+      Math.max(1L, Long.getLong("bank.writer.lendTimeoutMillis", 5000L));
+  // How long a caller waits for its write to be committed
+  private static final long AWAIT_TIMEOUT_MILLIS =
+      Math.max(1L, Long.getLong("bank.writer.awaitTimeoutMillis", 30000L));
+
+  private static WriteQueue instance;
+
+  private final BlockingQueue<PendingWrite<?>> queue =
+      new ArrayBlockingQueue<PendingWrite<?>>(CAPACITY);
+  private final Thread writer;
+  private volatile boolean closed = false;
+
+  // Throughput accounting
+  private final AtomicLong submitCount = new AtomicLong();
+  private final AtomicLong writeCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+  private final AtomicLong commitCount = new AtomicLong();
+  private volatile int lastBatchSize = 0;
+  private volatile int largestBatchSize = 0;
+
+
+  /**
+   * Starts the writer thread.
+   */
+  private WriteQueue() {
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "bank-database-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+
+  /**
+   * Returns the queue, starting its writer thread on first use.
+   * @return the shared write queue.
+   */
+  private static synchronized WriteQueue getInstance() {
+    if (instance == null) {
+      instance = new WriteQueue();
+    }
+    return instance;
+  }
+
+
+  /**
+   * Queues a write to be applied and committed by the writer thread. A write submitted from
+   * inside a UnitOfWork, or from the writer thread itself, is applied immediately as part of
+   * the transaction already open, since queueing it would wait on that same transaction; it
+   * commits with that transaction, which is itself one of the writer's groups unless the writer
+   * could not lend it.
+   * @param write the write to apply. It should reach the database through the helpers, which
+   *     hand it the writer's connection, and return null or false if it did not succeed.
+   * @param <T> the type of the write's result.
+   * @return a future holding the write's result once it has been committed.
+   */
+  public static <T> Future<T> submit(Callable<T> write) {
+    return schedule(write, false);
+  }
+
+
+  /**
+   * Queues a write as submit does, returning a future that can be combined with others.
+   * @param write the write to apply.
+   * @param endsGroup whether the group must be committed as soon as the write is applied, for
+   *     a write whose caller holds up the writes after it until it has committed.
+   * @param <T> the type of the write's result.
+   * @return a future holding the write's result once it has been committed.
+   */
+  static <T> CompletableFuture<T> schedule(Callable<T> write, boolean endsGroup) {
+    PendingWrite<T> pending = new PendingWrite<T>(write, endsGroup);
+    WriteQueue current = instance;
+    if (!ENABLED || UnitOfWork.isActive()
+        || (current != null && current.writer == Thread.currentThread())) {
+      pending.runDirectly();
+      return pending.future;
+    }
+    getInstance().enqueue(pending);
+    return pending.future;
+  }
+
+
+  /**
+   * Waits for a queued write to be committed, for at most bank.writer.awaitTimeoutMillis.
+   * @param future the future returned by submit.
+   * @param <T> the type of the write's result.
+   * @return the write's result, or null if it failed, could not be committed or was not
+   *     committed in time. A write that timed out may still be committed later.
+   */
+  public static <T> T await(Future<T> future) {
+    try {
+      return future.get(AWAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+    } catch (TimeoutException e) {
+      System.err.println("A database write was not committed within " + AWAIT_TIMEOUT_MILLIS
+          + " ms");
+    }
+    return null;
+  }
+
+
+  /**
+   * Stops the writer thread once the writes already queued have been committed. The next
+   * submit starts a new writer, which is what callers need before the database file is
+   * deleted or replaced.
+   */
+  static synchronized void shutdown() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+
+  /**
+   * Returns a summary of the queue's accounting counters.
+   * @return a one line description of the queue's state.
+   */
+  static synchronized String getStatistics() {
+    if (instance == null) {
+      return "writer=idle";
+    }
+    long commits = instance.commitCount.get();
+    long writes = instance.writeCount.get();
+    return "queued=" + instance.queue.size() + " submitted=" + instance.submitCount.get()
+        + " written=" + writes + " failed=" + instance.failureCount.get()
+        + " commits=" + commits + " lastBatch=" + instance.lastBatchSize
+        + " largestBatch=" + instance.largestBatchSize
+        + " averageBatch=" + ((commits == 0) ? 0 : writes / commits);
+  }
+
+
+  /**
+   * Returns the number of writes waiting for the writer thread.
+   * @return the current queue depth.
+   */
+  public static int getQueueDepth() {
+    WriteQueue current = instance;
+    return (current == null) ? 0 : current.queue.size();
+  }
+
+
+  /**
+   * Returns the number of writes committed together by the most recent group commit.
+   * @return the size of the last batch.
+   */
+  public static int getLastBatchSize() {
+    WriteQueue current = instance;
+    return (current == null) ? 0 : current.lastBatchSize;
+  }
+
+
+  /**
+   * Adds a write to the queue, waiting for room if it is full.
+   * @param pending the write to add.
+   */
+  private void enqueue(PendingWrite<?> pending) {
+    submitCount.incrementAndGet();
+    try {
+      queue.put(pending);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pending.fail(new SQLException("Interrupted while queueing a database write", e));
+    }
+    // The writer may have stopped while this write was being added
+    if (closed && queue.remove(pending)) {
+      pending.fail(new SQLException("The database writer has been shut down"));
+    }
+  }
+
+
+  /**
+   * Takes writes off the queue in groups and commits each group, until the queue is closed and
+   * empty.
+   */
+  private void writeLoop() {
+    List<PendingWrite<?>> batch = new ArrayList<PendingWrite<?>>();
+    while (!closed || !queue.isEmpty()) {
+      try {
+        PendingWrite<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS);
+        batch.add(first);
+        // Take whatever else is already waiting, then give late arrivals the latency budget
+        queue.drainTo(batch, MAX_BATCH - batch.size());
+        while (batch.size() < MAX_BATCH) {
+          long remaining = deadline - System.nanoTime();
+          PendingWrite<?> next = (remaining > 0)
+              ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          queue.drainTo(batch, MAX_BATCH - batch.size());
+        }
+        while (!batch.isEmpty()) {
+          batch.subList(0, commitBatch(batch)).clear();
+        }
+      } catch (InterruptedException e) {
+        // Nothing interrupts the writer; the loop condition decides when it stops
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        for (PendingWrite<?> pending : batch) {
+          pending.fail(e);
+        }
+      }
+      batch.clear();
+    }
+  }
+
+
+  /**
+   * Applies a group of writes in one transaction and commits them together. A write that ends
+   * its group leaves the writes after it for the next one.
+   * @param batch the writes to apply.
+   * @return the number of writes from the start of the batch that were committed or failed.
+   */
+  private int commitBatch(List<PendingWrite<?>> batch) {
+    List<PendingWrite<?>> group = batch;
+    boolean committed = false;
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction each write simply commits on its own, as it would have unqueued
+      if (!UnitOfWork.isActive()) {
+        for (PendingWrite<?> pending : batch) {
+          pending.runDirectly();
+        }
+        return batch.size();
+      }
+      Connection connection = DatabaseDriver.connectOrCreateDataBase();
+      try {
+        for (int i = 0; i < batch.size(); i++) {
+          applyInSavepoint(batch.get(i), connection);
+          if (batch.get(i).endsGroup) {
+            group = batch.subList(0, i + 1);
+            break;
+          }
+        }
+      } finally {
+        connection.close();
+      }
+      committed = unit.commit();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } finally {
+      unit.close();
+    }
+    if (committed) {
+      commitCount.incrementAndGet();
+      writeCount.addAndGet(group.size());
+      lastBatchSize = group.size();
+      largestBatchSize = Math.max(largestBatchSize, group.size());
+    }
+    for (PendingWrite<?> pending : group) {
+      if (committed) {
+        pending.complete();
+      } else {
+        pending.fail(new SQLException("The group of writes could not be committed"));
+      }
+    }
+    return group.size();
+  }
+
+
+  /**
+   * Applies one write inside a savepoint, and a unit of work of its own, undoing just that
+   * write if it fails.
+   * @param pending the write to apply.
+   * @param connection the writer's connection, inside the group's transaction.
+   * @throws SQLException if the savepoint itself could not be managed.
+   */
+  private void applyInSavepoint(PendingWrite<?> pending, Connection connection)
+      throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute("SAVEPOINT QUEUED_WRITE");
+      boolean applied = false;
+      UnitOfWork write = UnitOfWork.beginNested();
+      try {
+        applied = pending.apply() && write.commit();
+      } finally {
+        // A write that is undone clears whatever it cached
+        write.close();
+      }
+      if (applied) {
+        statement.execute("RELEASE QUEUED_WRITE");
+      } else {
+        failureCount.incrementAndGet();
+        pending.undo();
+        statement.execute("ROLLBACK TO QUEUED_WRITE");
+        statement.execute("RELEASE QUEUED_WRITE");
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+
+  /**
+   * Stops the writer once the queue has drained and waits for it to finish.
+   */
+  private void close() {
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // Anything that slipped in after the writer stopped cannot be written any more
+    PendingWrite<?> pending = queue.poll();
+    while (pending != null) {
+      pending.fail(new SQLException("The database writer has been shut down"));
+      pending = queue.poll();
+    }
+  }
+
+
+  /**
+   * A write waiting in the queue, along with the future its caller is waiting on.
+   * @param <T> the type of the write's result.
+   */
+  private static class PendingWrite<T> {
+
+    private final Callable<T> write;
+    private final boolean endsGroup;
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+    private T result;
+    private Exception error;
+
+
+    /**
+     * Creates a pending write.
+     * @param write the write to apply.
+     * @param endsGroup whether the group must be committed as soon as the write is applied.
+     */
+    PendingWrite(Callable<T> write, boolean endsGroup) {
+      this.write = write;
+      this.endsGroup = endsGroup;
+    }
+
+
+    /**
+     * Applies the write, holding on to its result until the group it is in commits.
+     * @return true if the write succeeded, false if it threw or returned null or false.
+     */
+    boolean apply() {
+      try {
+        result = write.call();
+        return result != null && !Boolean.FALSE.equals(result);
+      } catch (Exception e) {
+        error = e;
+        return false;
+      }
+    }
+
+
+    /**
+     * Drops the result of a write that was applied but then undone, so its caller sees it fail.
+     */
+    void undo() {
+      result = null;
+    }
+
+
+    /**
+     * Applies the write on the calling thread and completes the future straight away.
+     */
+    void runDirectly() {
+      apply();
+      complete();
+    }
+
+
+    /**
+     * Completes the future with the outcome of apply().
+     */
+    void complete() {
+      if (error != null) {
+        future.completeExceptionally(error);
+      } else {
+        future.complete(result);
+      }
+    }
+
+
+    /**
+     * Fails the future without the write having been committed.
+     * @param cause the reason the write was not committed.
+     */
+    void fail(Exception cause) {
+      future.completeExceptionally(cause);
+    }
+  }
+}
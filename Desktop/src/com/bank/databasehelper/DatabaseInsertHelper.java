@@ -2,15 +2,20 @@ package com.bank.databasehelper;
 
 import com.bank.database.DatabaseInsertException;
 import com.bank.database.DatabaseInserter;
+import com.bank.database.WriteQueue;
 import com.bank.generics.AccountTypes;
 import com.bank.generics.AccountTypesMap;
 import com.bank.generics.Roles;
+import com.bank.messages.Message;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 
 public class DatabaseInsertHelper extends DatabaseInserter {
@@ -25,7 +30,21 @@ public class DatabaseInsertHelper extends DatabaseInserter {
    * @param typeId is the enumerated type of the account
    * @return the database generated Id of the inserted Account, or -1 if the operation failed
    */
-  public static int insertAccount(String name, BigDecimal balance, int typeId) {
+  public static int insertAccount(final String name, final BigDecimal balance,
+      final int typeId) {
+    return commitQueuedId(() -> applyAccount(name, balance, typeId));
+  }
+  
+  
+  /**
+   * Inserts an account on whichever connection the caller is given, if its parameters meet
+   * database expectations.
+   * @param name is the Account's name
+   * @param balance is the balance remaining in the account
+   * @param typeId is the enumerated type of the account
+   * @return the database generated Id of the inserted Account, or -1 if the operation failed
+   */
+  private static int applyAccount(String name, BigDecimal balance, int typeId) {
     try {
       AccountTypesMap accTypes = new AccountTypesMap();
       // Assign the default account ID to -1 for failed operation
@@ -42,12 +61,8 @@ public class DatabaseInsertHelper extends DatabaseInserter {
       boolean balancePositive = (aboveZero == 0 || aboveZero == 1);
       boolean isBalanceOwing = accTypes.getAccTypeName(typeId).equalsIgnoreCase("balance owing");
     
-      // Get a list of all the valid Account types stored in the database
-      List<Integer> validTypes;
-    
-      validTypes = DatabaseSelectHelper.getAccountTypesIds();
-      // Verify that the list is non-empty and that the given type ID is in the list
-      boolean typeIdValid = !(validTypes == null) && accTypes.hasAccTypeValue(typeId);
+      // Verify that the given type ID is one of the account types stored in the database
+      boolean typeIdValid = accTypes.hasAccTypeValue(typeId);
     
       // Proceed if the type ID is valid and the start balance is positive or 0: 
       if ((typeIdValid && balancePositive && verifiedName) || isBalanceOwing) {
@@ -78,7 +93,18 @@ public class DatabaseInsertHelper extends DatabaseInserter {
    * @param interestRate is the account type's interest rate
    * @return the type ID of the inserted account type or -1 if failed
    */
-  public static int insertAccountType(String name, BigDecimal interestRate) {
+  public static int insertAccountType(final String name, final BigDecimal interestRate) {
+    return commitQueuedId(() -> applyAccountType(name, interestRate));
+  }
+  
+  
+  /**
+   * Inserts an account type on whichever connection the caller is given, if it is valid.
+   * @param name is the Account's type name
+   * @param interestRate is the account type's interest rate
+   * @return the type ID of the inserted account type or -1 if failed
+   */
+  private static int applyAccountType(String name, BigDecimal interestRate) {
     try {   
       // Set the default type Id to -1
       int typeId = -1;
@@ -116,16 +142,29 @@ public class DatabaseInsertHelper extends DatabaseInserter {
    * @param password is the User's password
    * @return the database generated ID number
    */
-  public static int insertNewUser(String name, int age,
+  public static int insertNewUser(final String name, final int age,
+      final String address, final int roleId, final String password) {
+    return commitQueuedId(() -> applyNewUser(name, age, address, roleId, password));
+  }
+  
+  
+  /**
+   * Inserts a new User on whichever connection the caller is given.
+   * @param name is the User's name
+   * @param age is the User's age
+   * @param address is the User's address
+   * @param roleId is the User's role ID
+   * @param password is the User's password
+   * @return the database generated ID number
+   */
+  private static int applyNewUser(String name, int age,
       String address, int roleId, String password) {
     try {
       // Set default return ID to -1
       int newId = -1;
     
-      // Get a list of valid roles
-      List<Integer> validRoles = DatabaseSelectHelper.getRoles();
-      // Check that the list is non-empty at that the user's roleId is valid
-      boolean roleIdValid = ! (validRoles == null) && validRoles.contains(roleId);
+      // Check that the user's roleId is one of the roles stored in the database
+      boolean roleIdValid = DatabaseSelectHelper.verifyRoleId(roleId);
     
       // Check that the user's address is less than 100 characters long
       boolean addressValid = ((!(address == null)) && (address.length() <= 100));
@@ -162,7 +201,17 @@ public class DatabaseInsertHelper extends DatabaseInserter {
    * @param role to be added
    * @return role ID of the inserted role or -1 if failed
    */
-  public static int insertRole(String role) {
+  public static int insertRole(final String role) {
+    return commitQueuedId(() -> applyRole(role));
+  }
+  
+  
+  /**
+   * Inserts a role on whichever connection the caller is given, if it is an Enum type.
+   * @param role to be added
+   * @return role ID of the inserted role or -1 if failed
+   */
+  private static int applyRole(String role) {
     try {
       // Check whether the role is valid or not
       boolean valid = validateRole(role);
@@ -195,7 +244,18 @@ public class DatabaseInsertHelper extends DatabaseInserter {
    * @param accountId from the accounts' table
    * @return accountIdConfirmation is the ID of the inserted account or -1 if failed
    */
-  public static int insertUserAccount(int userId, int accountId) {
+  public static int insertUserAccount(final int userId, final int accountId) {
+    return commitQueuedId(() -> applyUserAccount(userId, accountId));
+  }
+  
+  
+  /**
+   * Attributes an account to a user on whichever connection the caller is given.
+   * @param userId for the User Account
+   * @param accountId from the accounts' table
+   * @return accountIdConfirmation is the ID of the inserted account or -1 if failed
+   */
+  private static int applyUserAccount(int userId, int accountId) {
     try { 
       // Set the default response to false
       int accountIdConfirmation = -1;
@@ -226,12 +286,37 @@ public class DatabaseInsertHelper extends DatabaseInserter {
   
   /**
    * A method that will insert a user message given the user's ID and the desired message.
+   * Outside a UnitOfWork the insert is handed to the database writer, which commits it together
+   * with the other terminals' writes.
    * @param userId the ID for whom the message is for
    * @param message the message to be given to the user
    * @return the ID of the inserted message. Will return -1 if the message insertion was 
    *     unsuccessful
    */
   public static int insertMessage(int userId, String message) {
+    Integer messageId = WriteQueue.await(submitMessage(userId, message));
+    return (messageId == null) ? -1 : messageId;
+  }
+  
+  
+  /**
+   * Queues a user message, as insertMessage does, without waiting for it to be committed.
+   * @param userId the ID for whom the message is for
+   * @param message the message to be given to the user
+   * @return a future holding the ID of the message once committed, or null if it was not valid
+   */
+  public static Future<Integer> submitMessage(final int userId, final String message) {
+    return WriteQueue.submit(withoutFailedId(() -> applyMessage(userId, message)));
+  }
+  
+  
+  /**
+   * Inserts a user message on whichever connection the caller is given.
+   * @param userId the ID for whom the message is for
+   * @param message the message to be given to the user
+   * @return the ID of the inserted message, or -1 if it was not inserted
+   */
+  private static int applyMessage(int userId, String message) {
     try {
       // Set the default response to false
       int messageId = -1;
@@ -263,6 +348,92 @@ public class DatabaseInsertHelper extends DatabaseInserter {
   }
   
   
+  /**
+   * Leaves a number of messages at once. The messages are inserted with one batched statement
+   * and committed together, instead of paying for a round trip and a commit per message.
+   * @param messages the messages to be left. Messages whose user or text was rejected when
+   *     the Message was created are skipped.
+   * @return the number of messages inserted, or -1 if the insertion was unsuccessful
+   */
+  public static int insertMessages(List<Message> messages) {
+    // Keep only the messages the Message class accepted
+    List<Message> valid = new ArrayList<Message>();
+    for (Message message : messages) {
+      if (message.getMessageTarget() != -1 && message.getUserMessage().length() <= 512) {
+        valid.add(message);
+      }
+    }
+    if (valid.isEmpty()) {
+      return 0;
+    }
+    final int[] userIds = new int[valid.size()];
+    final String[] texts = new String[valid.size()];
+    for (int i = 0; i < valid.size(); i++) {
+      userIds[i] = valid.get(i).getMessageTarget();
+      texts[i] = valid.get(i).getUserMessage();
+    }
+    
+    // The whole batch is a single write as far as the writer is concerned
+    Integer inserted = commitQueued(() -> {
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        return DatabaseInserter.insertMessages(userIds, texts, connection);
+      } finally {
+        connection.close();
+      }
+    });
+    return (inserted == null) ? -1 : inserted;
+  }
+  
+  
+  /**
+   * Leaves the same message for every user with the given role, using one statement rather
+   * than a message per user.
+   * @param roleId the ID of the role whose users receive the message
+   * @param message the message to be given to the users
+   * @return the number of messages inserted, or -1 if the insertion was unsuccessful
+   */
+  public static int broadcastMessage(int roleId, String message) {
+    // Only roles stored in the database can be broadcast to
+    if (!DatabaseSelectHelper.verifyRoleId(roleId)) {
+      return -1;
+    }
+    return applyBroadcast(roleId, message);
+  }
+  
+  
+  /**
+   * Leaves the same message for every user in the database, using one statement.
+   * @param message the message to be given to the users
+   * @return the number of messages inserted, or -1 if the insertion was unsuccessful
+   */
+  public static int broadcastMessage(String message) {
+    return applyBroadcast(-1, message);
+  }
+  
+  
+  /**
+   * Queues a broadcast message and waits for it to be committed.
+   * @param roleId the ID of the role whose users receive the message, or -1 for every user
+   * @param message the message to be given to the users
+   * @return the number of messages inserted, or -1 if the insertion was unsuccessful
+   */
+  private static int applyBroadcast(final int roleId, final String message) {
+    if (message == null || message.length() > 512) {
+      return -1;
+    }
+    Integer inserted = commitQueued(() -> {
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        return DatabaseInserter.insertBroadcastMessage(roleId, message, connection);
+      } finally {
+        connection.close();
+      }
+    });
+    return (inserted == null) ? -1 : inserted;
+  }
+  
+  
   //________________________________ Helper Methods________________________________
   /**
    * Returns whether or not a given account type is a valid Enum type.
@@ -336,5 +507,40 @@ public class DatabaseInsertHelper extends DatabaseInserter {
     // Return the result
     return inRange;
   }
- 
+  
+  
+  /**
+   * Hands a write to the database writer and waits for it to be committed.
+   * @param write the write to apply, returning null if it did not succeed
+   * @param <T> the type of the write's result
+   * @return the write's result, or null if it failed or could not be committed
+   */
+  private static <T> T commitQueued(Callable<T> write) {
+    return WriteQueue.await(WriteQueue.submit(write));
+  }
+  
+  
+  /**
+   * Hands an insert to the database writer and waits for it to be committed.
+   * @param insert the insert to apply, returning the new row's ID or -1 if it failed
+   * @return the ID of the inserted row, or -1 if it failed or could not be committed
+   */
+  private static int commitQueuedId(Callable<Integer> insert) {
+    Integer committedId = commitQueued(withoutFailedId(insert));
+    return (committedId == null) ? -1 : committedId;
+  }
+  
+  
+  /**
+   * Turns an insert's -1 into null, which tells the writer to undo anything the failed insert
+   * left behind.
+   * @param insert the insert to apply, returning the new row's ID or -1 if it failed
+   * @return the insert, returning null in place of -1
+   */
+  private static Callable<Integer> withoutFailedId(Callable<Integer> insert) {
+    return () -> {
+      int newId = insert.call();
+      return (newId == -1) ? null : newId;
+    };
+  }
 }
@@ -3,11 +3,17 @@ package com.bank.databasehelper;
 import com.bank.accounts.Account;
 import com.bank.accounts.BalanceOwing;
 import com.bank.accounts.ChequingAccount;
+import com.bank.accounts.LedgerEntry;
 import com.bank.accounts.RestrictedSavings;
 import com.bank.accounts.SavingsAccount;
 import com.bank.accounts.Tfsa;
+import com.bank.database.BalanceJournal;
 import com.bank.database.DatabaseSelector;
+import com.bank.database.InterestAccrual;
+import com.bank.database.MoneyCodec;
 import com.bank.generics.AccountTypes;
+import com.bank.generics.LedgerEntryTypes;
+import com.bank.generics.ReferenceData;
 import com.bank.generics.Roles;
 import com.bank.messages.Message;
 import com.bank.users.Admin;
@@ -20,7 +26,11 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 
 public class DatabaseSelectHelper extends DatabaseSelector {
@@ -31,24 +41,47 @@ public class DatabaseSelectHelper extends DatabaseSelector {
    * @return name of the role
    */
   public static String getRole(int id) {
+    // Look the role up in the shared snapshot of the roles table
+    return ReferenceData.getInstance().getRoleName(id);
+  }
+  
+  
+  /**
+   * Returns one page of the users holding a role, in order of ID.
+   * @param roleId is the role of the users to return
+   * @param afterId only users with an ID greater than this are returned
+   * @param limit is the largest number of users to return
+   * @return a list of up to limit users, empty once there are no more, or null on failure
+   */
+  public static List<User> getUsersByRole(int roleId, int afterId, int limit) {
     try {
-      // Check to see if the given type is valid
-      boolean definedRole = verifyRoleId(id);
-    
-      // Set the default role name to null
-      String role = null;
-    
-      // Proceed iff the given type is defined in the database
-      if (definedRole) {
-        // Connect to the database
-        Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
-        // Get the role from the database by ID
-        role = DatabaseSelector.getRole(id, connection);
-        // Close the connection
-        connection.close();
+      // Hold the users in a list
+      List<User> users = new ArrayList<>();
+      
+      // A role that is not one of the known roles has no users that can be built
+      if (ReferenceData.getInstance().getRole(roleId) == null) {
+        return users;
       }
-      return role;
-    
+      
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      // Get the next page of users holding the role
+      ResultSet results = DatabaseSelector.getUsersDetailsByRole(roleId, afterId, limit,
+          connection);
+      
+      // Read the resultSet
+      while (results.next()) {
+        // Build each user from its row, without any further lookups
+        User user = createUser(results.getInt("ID"), results.getString("NAME"),
+            results.getInt("AGE"), results.getString("ADDRESS"), roleId);
+        user.setId(results.getInt("ID"));
+        users.add(user);
+      }
+      // Close the connection
+      connection.close();
+      // Return the page of users
+      return users;
+      
     // If an exception is thrown --> return null
     } catch (SQLException error) {
       return null;
@@ -56,6 +89,22 @@ public class DatabaseSelectHelper extends DatabaseSelector {
   }
   
   
+  /**
+   * Returns every user holding a role, in order of ID. The users are read a page at a time as
+   * the iteration reaches them, and no connection is held between pages.
+   * @param roleId is the role of the users to return
+   * @return the users holding the role
+   */
+  public static Iterable<User> getUsersByRole(final int roleId) {
+    return new Iterable<User>() {
+      @Override
+      public Iterator<User> iterator() {
+        return new UserIterator(roleId);
+      }
+    };
+  }
+  
+  
   /**
    * Given a user's unique ID, returns their hashed password or null if
    * the user is not in the database.
@@ -120,24 +169,8 @@ public class DatabaseSelectHelper extends DatabaseSelector {
         address = results.getString("ADDRESS");                    
         roleId = results.getInt("ROLEID");
         
-        // Get the type role name associated with the roleId
-        String roleName = getRole(roleId);
-        
-        // If the role name resolves to ADMIN
-        if (roleName.equalsIgnoreCase(Roles.ADMIN.toString())) {
-          // Return an Admin
-          user = new Admin(userId, name, age, address);
-          
-          // If the role name resolves to TELLER
-        } else if (roleName.equalsIgnoreCase(Roles.TELLER.toString())) {
-          // Return a Teller
-          user = new Teller(userId, name, age, address);
-        
-          // If the role name resolves to CUSTOMER
-        } else if (roleName.equalsIgnoreCase(Roles.CUSTOMER.toString())) {
-          // Return a Customer
-          user = new Customer(userId, name, age, address);
-        }
+        // Use the role name associated with the roleId to determine instantiation
+        user = createUser(userId, name, age, address, roleId);
       }
       // Close the connection
       connection.close();
@@ -223,37 +256,11 @@ public class DatabaseSelectHelper extends DatabaseSelector {
       while (!(results == null) && results.next()) {
         // Get the information from the ResultSet
         name = (results.getString("NAME"));
-        balance = new BigDecimal(results.getString("BALANCE"));                    
+        balance = MoneyCodec.fromBalanceUnits(readBalanceUnits(results, accountId));
         typeId = (results.getInt("TYPE"));
         
         // Use the account typeId to determine instantiation
-        String type = getAccountTypeName(typeId);
-        // If the type is CHEQUING
-        if (type.equalsIgnoreCase(AccountTypes.CHEQUING.toString())) {
-          // Set up the type
-          account = new ChequingAccount(accountId, name, balance);
-        
-          // If the type is SAVING
-        } else if (type.equalsIgnoreCase(AccountTypes.SAVING.toString())) {
-          // Set up the type
-          account = new SavingsAccount(accountId, name, balance);
-        
-          // If the type is TFSA
-        } else if (type.equalsIgnoreCase(AccountTypes.TFSA.toString())) {
-          // Set up the type
-          account = new Tfsa(accountId, name, balance);
-       
-          // If the type is Restricted Savings
-        } else if (type.equalsIgnoreCase(AccountTypes.RESTRICTEDSAVINGS.toString())) {
-          // Set up the type
-          account = new RestrictedSavings(accountId, name, balance);
-          
-          // If the type is Balance Owing
-        } else if (type.equalsIgnoreCase(AccountTypes.BALANCEOWING.toString())) {
-          // Set up the type
-          account = new BalanceOwing(accountId, name, balance);
-          
-        }
+        account = createAccount(accountId, name, balance, typeId, getAccountTypeName(typeId));
       }
       // Close the connection
       connection.close();
@@ -269,6 +276,52 @@ public class DatabaseSelectHelper extends DatabaseSelector {
   }
   
 
+  /**
+   * Given a user's unique ID, return all of the user's accounts. The accounts and their types
+   * are read with a single query instead of one lookup per account.
+   * @param userId is the user's unique ID
+   * @return the user's accounts in order of account ID, or null if they could not be read
+   */
+  public static List<Account> getAccounts(int userId) {
+    try {
+      // Hold the accounts in a list
+      List<Account> accounts = new ArrayList<>();
+      
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      // Get every account belonging to the user, joined with its type
+      ResultSet results = DatabaseSelector.getAccountsDetails(userId, connection);
+      
+      // Iterate through the ResultSet
+      while (results.next()) {
+        // Get the information from the ResultSet
+        int accountId = results.getInt("ID");
+        String name = results.getString("NAME");
+        BigDecimal balance = MoneyCodec.fromBalanceUnits(readBalanceUnits(results, accountId));
+        int typeId = results.getInt("TYPE");
+        
+        // Use the account type's name to determine instantiation
+        Account account = createAccount(accountId, name, balance, typeId,
+            results.getString("TYPENAME"));
+        // Skip any account whose type is not one the bank knows about
+        if (account != null) {
+          // Permanently set the account's ID
+          account.setId(accountId);
+          accounts.add(account);
+        }
+      }
+      // Close the connection
+      connection.close();
+      // Return the accounts
+      return accounts;
+      
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+  
+  
   /**
    * Given an account's unique ID, return the balance left in the account.
    * @param accountId is an account's unique ID
@@ -285,8 +338,12 @@ public class DatabaseSelectHelper extends DatabaseSelector {
       if (verified) {
         // Connect to the database
         Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
-        // Obtain the balance
-        balance = DatabaseSelector.getBalance(accountId, connection);
+        // Obtain the balance, with any interest owed and journaled changes added on
+        ResultSet results = DatabaseSelector.getAccountDetails(accountId, connection);
+        if (results.next()) {
+          balance = MoneyCodec.fromBalanceUnits(readBalanceUnits(results, accountId));
+        }
+        results.close();
         // Close the connection
         connection.close();
       }
@@ -301,35 +358,233 @@ public class DatabaseSelectHelper extends DatabaseSelector {
   
 
   /**
-   * Given a type of account by ID, returns the interest rate for that account type.
-   * @param accountType is an account type ID
-   * @return interestRate of the given account or null if undefined
+   * Returns the combined balance of every account held by a user of the bank, summed by the
+   * database in a single query.
+   * @return the total balance, or null if it could not be read
    */
-  public static BigDecimal getInterestRate(int accountType) {
+  public static BigDecimal getTotalBalance() {
     try {
-      // Check to see if the given type is valid
-      boolean definedType = verifyTypeId(accountType);
-    
-      // Set the default interest rate to null
-      BigDecimal interestRate = null;
-    
-      // Proceed iff the given type is defined in the database
-      if (definedType) {
-        // Connect to the database
-        Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
-        // Get the account type's interest rate
-        interestRate = DatabaseSelector.getInterestRate(accountType, connection);
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        // Let the database add up every balance
+        return DatabaseSelector.getTotalBalance(connection);
+      } finally {
+        // Close the connection
+        connection.close();
+      }
+
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Given a user's unique ID, returns the combined balance of all of the user's accounts. The
+   * total is kept up to date by the database, so reading it is a single lookup. The stored total
+   * does not include interest owed but not yet accrued, or changes still waiting in the balance
+   * journal, so while either is enabled the user's balances are added up as getBalance reads
+   * them instead.
+   * @param userId is the user's unique ID
+   * @return the total balance, which is zero if the user holds no accounts, or null if it could
+   *     not be read
+   */
+  public static BigDecimal getUserTotalBalance(int userId) {
+    try {
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        if (InterestAccrual.isEnabled() || BalanceJournal.isEnabled()) {
+          // Add up the user's balances with what is owed or pending on each, in one query
+          ResultSet results = DatabaseSelector.getAccountsDetails(userId, connection);
+          long totalUnits = 0;
+          while (results.next()) {
+            totalUnits = Math.addExact(totalUnits,
+                readBalanceUnits(results, results.getInt("ID")));
+          }
+          results.close();
+          return MoneyCodec.fromBalanceUnits(totalUnits);
+        }
+        // Look up the user's stored total
+        return DatabaseSelector.getUserTotalBalance(userId, connection);
+      } finally {
+        // Close the connection
+        connection.close();
+      }
+
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Checks the stored per-user balance totals against the accounts they summarize.
+   * @return the IDs of the users whose stored total is wrong, empty if every total is correct,
+   *     or null if the totals could not be checked
+   */
+  public static List<Integer> findInconsistentUserTotals() {
+    try {
+      // Hold the user IDs in a list
+      List<Integer> userIds = new ArrayList<>();
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        // Compare every stored total with the sum of the user's balances
+        ResultSet results = DatabaseSelector.getInconsistentUserTotals(connection);
+        while (results.next()) {
+          userIds.add(results.getInt("USERID"));
+        }
+        results.close();
+      } finally {
+        // Close the connection
+        connection.close();
+      }
+      return userIds;
+
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Returns one page of an account's ledger, oldest entry first.
+   * @param accountId is the ID of the account
+   * @param afterId only entries with an ID greater than this are returned, 0 for the first page
+   * @param limit is the largest number of entries to return
+   * @return a list of up to limit entries, empty once there are no more, or null on failure
+   */
+  public static List<LedgerEntry> getLedgerEntries(int accountId, long afterId, int limit) {
+    try {
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        // Read the next page of the account's entries
+        return readLedgerEntries(DatabaseSelector.getLedgerEntries(accountId, afterId, limit,
+            connection));
+      } finally {
         // Close the connection
         connection.close();
       }
-      // Return the interest rate
-      return interestRate;
       
     // If an exception is thrown --> return null
     } catch (SQLException error) {
       return null;
     }
   }
+
+
+  /**
+   * Returns one page of the ledger entries posted within a period, across every account,
+   * oldest entry first. The next page starts after the last entry of this one, given by its
+   * posting time and ID.
+   * @param fromMillis is the start of the period, inclusive, in milliseconds since the epoch
+   * @param toMillis is the end of the period, exclusive, in milliseconds since the epoch
+   * @param afterPosted is the posting time of the last entry already seen, 0 for the first page
+   * @param afterId is the ID of the last entry already seen, 0 for the first page
+   * @param limit is the largest number of entries to return
+   * @return a list of up to limit entries, empty once there are no more, or null on failure
+   */
+  public static List<LedgerEntry> getLedgerEntriesBetween(long fromMillis, long toMillis,
+      long afterPosted, long afterId, int limit) {
+    try {
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        // Read the next page of entries in the period
+        return readLedgerEntries(DatabaseSelector.getLedgerEntriesBetween(fromMillis, toMillis,
+            afterPosted, afterId, limit, connection));
+      } finally {
+        // Close the connection
+        connection.close();
+      }
+      
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Builds ledger entries from the rows of a ledger query, and closes the results.
+   * @param results the rows of the LEDGER table to read
+   * @return the entries, in the order they were read
+   * @throws SQLException if the rows could not be read
+   */
+  private static List<LedgerEntry> readLedgerEntries(ResultSet results) throws SQLException {
+    List<LedgerEntry> entries = new ArrayList<>();
+    while (results.next()) {
+      entries.add(new LedgerEntry(results.getLong("ID"), results.getInt("ACCOUNTID"),
+          LedgerEntryTypes.fromCode(results.getInt("TYPE")),
+          MoneyCodec.fromBalanceUnits(results.getLong("AMOUNT")),
+          MoneyCodec.fromBalanceUnits(results.getLong("BALANCE")), results.getLong("POSTED")));
+    }
+    results.close();
+    return entries;
+  }
+
+
+  /**
+   * Returns the combined balance of each user's accounts, keyed by user ID in ascending order.
+   * Users who hold no accounts are left out.
+   * @return the total balance of each user, or null if the totals could not be read
+   */
+  public static Map<Integer, BigDecimal> getTotalBalancesByUser() {
+    try {
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        return readTotals(DatabaseSelector.getTotalBalancesByUser(connection), "USERID");
+      } finally {
+        // Close the connection
+        connection.close();
+      }
+
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Returns the combined balance of the accounts held under each account type, keyed by
+   * account type ID in ascending order. Types with no accounts are left out.
+   * @return the total balance of each account type, or null if the totals could not be read
+   */
+  public static Map<Integer, BigDecimal> getTotalBalancesByAccountType() {
+    try {
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        return readTotals(DatabaseSelector.getTotalBalancesByAccountType(connection), "TYPE");
+      } finally {
+        // Close the connection
+        connection.close();
+      }
+
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Given a type of account by ID, returns the interest rate for that account type.
+   * @param accountType is an account type ID
+   * @return interestRate of the given account or null if undefined
+   */
+  public static BigDecimal getInterestRate(int accountType) {
+    // Look the rate up in the shared snapshot of the account types table
+    return ReferenceData.getInstance().getInterestRate(accountType);
+  }
   
   
   /**
@@ -369,29 +624,8 @@ public class DatabaseSelectHelper extends DatabaseSelector {
    * @return accountType is the name of the Account Type or null if undefined
    */
   public static String getAccountTypeName(int accountTypeId) {
-    try {
-      // Check to see if the given type is valid
-      boolean definedType = verifyTypeId(accountTypeId);
-    
-      // Set the default response to null
-      String accountType = null;
-    
-      // Proceed iff the given type is defined in the database
-      if (definedType) {
-        // Connect to the database
-        Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
-        // Get the account type name from the database
-        accountType = DatabaseSelector.getAccountTypeName(accountTypeId, connection);
-        // Close the connection
-        connection.close();
-      }
-      // Return the account type
-      return accountType;
-      
-    // If an exception is thrown --> return null
-    } catch (SQLException error) {
-      return null;
-    }
+    // Look the name up in the shared snapshot of the account types table
+    return ReferenceData.getInstance().getAccountTypeName(accountTypeId);
   }
   
   
@@ -547,20 +781,254 @@ public class DatabaseSelectHelper extends DatabaseSelector {
   }
   
   
+  /**
+   * Given a user's unique ID, check whether the user exists. Users that have been seen before
+   * are remembered, so this usually costs no query at all, and at most one indexed lookup.
+   * @param userId is the unique User Id to look for
+   * @return true if the user exists, false otherwise
+   */
+  public static boolean userExists(int userId) {
+    // Skip the database entirely for a user that is already known
+    if (isKnownUser(userId)) {
+      return true;
+    }
+    try {
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      // Probe for the user's row
+      boolean exists = DatabaseSelector.userExists(userId, connection);
+      // Close the connection
+      connection.close();
+      // Return the result
+      return exists;
+      
+    // If an exception is thrown --> return false
+    } catch (SQLException error) {
+      return false;
+    }
+  }
+  
+  
+  /**
+   * Given an account's unique ID, check whether the account exists. Accounts that have been
+   * seen before are remembered, so this usually costs no query at all, and at most one indexed
+   * lookup.
+   * @param accountId is the unique account Id to look for
+   * @return true if the account exists, false otherwise
+   */
+  public static boolean accountExists(int accountId) {
+    // Skip the database entirely for an account that is already known
+    if (isKnownAccount(accountId)) {
+      return true;
+    }
+    try {
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      // Probe for the account's row
+      boolean exists = DatabaseSelector.accountExists(accountId, connection);
+      // Close the connection
+      connection.close();
+      // Return the result
+      return exists;
+      
+    // If an exception is thrown --> return false
+    } catch (SQLException error) {
+      return false;
+    }
+  }
+  
+  
+  /**
+   * Reads the roles and account types tables into a new snapshot. Callers should normally use
+   * ReferenceData.getInstance, which only calls this when the tables have changed.
+   * @return a snapshot of both tables, or null if they could not be read
+   */
+  public static ReferenceData getReferenceData() {
+    try {
+      // Note the version first, so a change made while reading makes the snapshot stale
+      long version = getReferenceDataVersion();
+      Map<Integer, String> roleNames = new HashMap<>();
+      Map<Integer, String> accountTypeNames = new HashMap<>();
+      Map<Integer, BigDecimal> interestRates = new HashMap<>();
+      // Connect to the database
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        // Read every role
+        ResultSet results = DatabaseSelector.getRoles(connection);
+        while (results.next()) {
+          roleNames.put(results.getInt("ID"), results.getString("NAME"));
+        }
+        
+        // Read every account type along with its interest rate
+        results = DatabaseSelector.getAccountTypesDetails(connection);
+        while (results.next()) {
+          int id = results.getInt("ID");
+          accountTypeNames.put(id, results.getString("NAME"));
+          interestRates.put(id,
+              MoneyCodec.fromInterestRateUnits(results.getLong("INTERESTRATE")));
+        }
+      } finally {
+        // Close the connection, even when the tables have not been created yet
+        connection.close();
+      }
+      
+      // Return the snapshot
+      return new ReferenceData(version, roleNames, accountTypeNames, interestRates);
+      
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+  
+  
+  /**
+   * Returns a number that changes whenever a role or account type is added or changed.
+   * @return the version of the roles and account types tables
+   */
+  public static long getReferenceDataVersion() {
+    return DatabaseSelector.getReferenceDataVersion();
+  }
+  
+  
   //________________________________ Helper Methods ______________________________________
   
+  /**
+   * Builds the User subclass matching a role.
+   * @param userId is the user's unique ID
+   * @param name is the user's name
+   * @param age is the user's age
+   * @param address is the user's address
+   * @param roleId is the user's role ID
+   * @return the user, or null if the role is not one of the known roles
+   */
+  private static User createUser(int userId, String name, int age, String address,
+      int roleId) {
+    // Set the default response to null
+    User user = null;
+    // Get the type role name associated with the roleId
+    String roleName = getRole(roleId);
+    // If the role is undefined
+    if (roleName == null) {
+      return user;
+    }
+    // If the role name resolves to ADMIN
+    if (roleName.equalsIgnoreCase(Roles.ADMIN.toString())) {
+      // Return an Admin
+      user = new Admin(userId, name, age, address, roleId);
+      
+      // If the role name resolves to TELLER
+    } else if (roleName.equalsIgnoreCase(Roles.TELLER.toString())) {
+      // Return a Teller
+      user = new Teller(userId, name, age, address, roleId);
+    
+      // If the role name resolves to CUSTOMER
+    } else if (roleName.equalsIgnoreCase(Roles.CUSTOMER.toString())) {
+      // Return a Customer
+      user = new Customer(userId, name, age, address, roleId);
+    }
+    return user;
+  }
+  
+  
+  /**
+   * Builds the Account subclass matching an account type's name.
+   * @param accountId is the account's unique ID
+   * @param name is the account's name
+   * @param balance is the account's balance
+   * @param typeId is the account's type ID
+   * @param type is the name of the account's type
+   * @return the account, or null if the type is not one of the known account types
+   */
+  private static Account createAccount(int accountId, String name, BigDecimal balance,
+      int typeId, String type) {
+    // Set the default response to null
+    Account account = null;
+    // If the type is undefined
+    if (type == null) {
+      return account;
+    }
+    // If the type is CHEQUING
+    if (type.equalsIgnoreCase(AccountTypes.CHEQUING.toString())) {
+      // Set up the type
+      account = new ChequingAccount(accountId, name, balance, typeId);
+    
+      // If the type is SAVING
+    } else if (type.equalsIgnoreCase(AccountTypes.SAVING.toString())) {
+      // Set up the type
+      account = new SavingsAccount(accountId, name, balance, typeId);
+    
+      // If the type is TFSA
+    } else if (type.equalsIgnoreCase(AccountTypes.TFSA.toString())) {
+      // Set up the type
+      account = new Tfsa(accountId, name, balance, typeId);
+   
+      // If the type is Restricted Savings
+    } else if (type.equalsIgnoreCase(AccountTypes.RESTRICTEDSAVINGS.toString())) {
+      // Set up the type
+      account = new RestrictedSavings(accountId, name, balance, typeId);
+      
+      // If the type is Balance Owing
+    } else if (type.equalsIgnoreCase(AccountTypes.BALANCEOWING.toString())) {
+      // Set up the type
+      account = new BalanceOwing(accountId, name, balance, typeId);
+    }
+    return account;
+  }
+  
+
+  /**
+   * Reads the balance in the current row of a result set, with any interest accrued since the
+   * account was last paid and any changes still in the balance journal added on. The interest
+   * is only shown here, and is paid when the account is next changed.
+   * @param results is a result set positioned on a row of ACCOUNTS, including LASTACCRUED
+   * @param accountId is the ID of the account in the row
+   * @return the balance in cents
+   * @throws SQLException if the row could not be read
+   */
+  private static long readBalanceUnits(ResultSet results, int accountId) throws SQLException {
+    long balanceUnits = results.getLong("BALANCE");
+    // Without accrual the column is never read, so older tables are not affected
+    if (InterestAccrual.isEnabled()) {
+      long lastAccrued = results.getLong("LASTACCRUED");
+      boolean never = results.wasNull();
+      balanceUnits = InterestAccrual.withInterestOwed(balanceUnits, results.getInt("TYPE"),
+          lastAccrued, never);
+    }
+    // The journal's pending changes are held in memory, so this costs no further query
+    if (BalanceJournal.isEnabled()) {
+      balanceUnits += BalanceJournal.getPendingChange(accountId);
+    }
+    return balanceUnits;
+  }
+  
+
+  /**
+   * Reads grouped balance totals into a map, in the order the query returned them.
+   * @param results is a result set holding a key column and a TOTAL column in cents
+   * @param keyColumn is the name of the key column
+   * @return the totals keyed by the key column
+   * @throws SQLException if the results could not be read
+   */
+  private static Map<Integer, BigDecimal> readTotals(ResultSet results, String keyColumn)
+      throws SQLException {
+    Map<Integer, BigDecimal> totals = new LinkedHashMap<>();
+    while (results.next()) {
+      totals.put(results.getInt(keyColumn), MoneyCodec.fromBalanceUnits(results.getLong("TOTAL")));
+    }
+    results.close();
+    return totals;
+  }
+
+  
   /**
    * Given a user's unique ID, check whether it is in the database.
    * @param userId is the unique User Id to be verified
    * @return true if it is in the database, false otherwise
    */
   protected static boolean verifyUserId(int userId) {
-    // Obtain the User object
-    User validator = getUserDetails(userId);
-    // Verify the given user ID
-    boolean verified = !(validator == null);
-    // Return the result
-    return verified;
+    // Check for the ID without building the User object
+    return userExists(userId);
   }
   
   
@@ -570,12 +1038,8 @@ public class DatabaseSelectHelper extends DatabaseSelector {
    * @return true if it is in the database, false otherwise
    */
   protected static boolean verifyAccountId(int accountId) {
-    // Obtain the Account object
-    Account validator = getAccountDetails(accountId);
-    // Verify the given account ID
-    boolean verified = !(validator == null);
-    // Return the result
-    return verified;
+    // Check for the ID without building the Account object
+    return accountExists(accountId);
   }
   
   
@@ -585,12 +1049,8 @@ public class DatabaseSelectHelper extends DatabaseSelector {
    * @return true if it is in the database, false otherwise
    */
   protected static boolean verifyRoleId(int roleId) {
-    // Get the user roles that are defined
-    List<Integer> validRoles = getRoles();
-    // Check to see if the given type is valid
-    boolean verified = !(validRoles == null) && validRoles.contains(roleId);
-    // Return the result
-    return verified;
+    // Check the shared snapshot of the roles table
+    return ReferenceData.getInstance().hasRole(roleId);
   }
   
   
@@ -600,11 +1060,7 @@ public class DatabaseSelectHelper extends DatabaseSelector {
    * @return true if it is in the database, false otherwise
    */
   protected static boolean verifyTypeId(int typeId) {
-    // Get the account types that are defined
-    List<Integer> validTypes = getAccountTypesIds();
-    // Check to see if the given type is valid
-    boolean verified = !(validTypes == null) && validTypes.contains(typeId);
-    // Return the result
-    return verified;
+    // Check the shared snapshot of the account types table
+    return ReferenceData.getInstance().hasAccountType(typeId);
   }
 }
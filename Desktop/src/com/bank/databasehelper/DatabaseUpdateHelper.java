@@ -1,10 +1,18 @@
 package com.bank.databasehelper;
 
+import com.bank.database.BalanceJournal;
 import com.bank.database.DatabaseUpdater;
+import com.bank.database.InterestAccrual;
+import com.bank.database.WriteQueue;
+import com.bank.generics.AccountTypes;
+import com.bank.generics.LedgerEntryTypes;
 
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 
 public class DatabaseUpdateHelper extends DatabaseUpdater {
@@ -15,7 +23,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is the Role ID of the account type
    * @return true if the update was completed, false otherwise
    */
-  public static boolean updateRoleName(String name, int id) {
+  public static boolean updateRoleName(final String name, final int id) {
+    return commitQueuedUpdate(() -> applyRoleName(name, id));
+  }
+  
+  
+  /**
+   * Updates a role's name on whichever connection the caller is given.
+   * @param name is the new new Role Name
+   * @param id is the Role ID of the account type
+   * @return true if the update was completed, false otherwise
+   */
+  private static boolean applyRoleName(String name, int id) {
     try {
       // Verify the given role ID
       boolean verifiedRid = DatabaseSelectHelper.verifyRoleId(id);
@@ -50,7 +69,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is user's ID number
    * @return true if the update was completed, false otherwise
    */
-  public static boolean updateUserName(String name, int id) {
+  public static boolean updateUserName(final String name, final int id) {
+    return commitQueuedUpdate(() -> applyUserName(name, id));
+  }
+  
+  
+  /**
+   * Updates a user's name on whichever connection the caller is given.
+   * @param name is the user's desired name change
+   * @param id is user's ID number
+   * @return true if the update was completed, false otherwise
+   */
+  private static boolean applyUserName(String name, int id) {
     try {
       // Verify the user's ID
       boolean verifiedId = DatabaseSelectHelper.verifyUserId(id);
@@ -85,7 +115,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is the user's ID number
    * @return true if the update was completed, false otherwise 
    */
-  public static boolean updateUserAge(int age, int id) {
+  public static boolean updateUserAge(final int age, final int id) {
+    return commitQueuedUpdate(() -> applyUserAge(age, id));
+  }
+  
+  
+  /**
+   * Updates a user's age on whichever connection the caller is given.
+   * @param age is the user's new age
+   * @param id is the user's ID number
+   * @return true if the update was completed, false otherwise 
+   */
+  private static boolean applyUserAge(int age, int id) {
     try { 
       // Verify the user's ID
       boolean verified = DatabaseSelectHelper.verifyUserId(id);
@@ -121,7 +162,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is the user's current unique ID number
    * @return true if the update was completed, false otherwise  
    */
-  public static boolean updateUserRole(int roleId, int id) {
+  public static boolean updateUserRole(final int roleId, final int id) {
+    return commitQueuedUpdate(() -> applyUserRole(roleId, id));
+  }
+  
+  
+  /**
+   * Replaces a user's role on whichever connection the caller is given.
+   * @param roleId is the ID of the new role the user is taking on
+   * @param id is the user's current unique ID number
+   * @return true if the update was completed, false otherwise  
+   */
+  private static boolean applyUserRole(int roleId, int id) {
     try {
       // Verify the user's unique ID
       boolean verifiedUid = DatabaseSelectHelper.verifyUserId(id);
@@ -156,7 +208,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is the user's current unique ID number
    * @return true if the update was completed, false otherwise 
    */
-  public static boolean updateUserAddress(String address, int id) {
+  public static boolean updateUserAddress(final String address, final int id) {
+    return commitQueuedUpdate(() -> applyUserAddress(address, id));
+  }
+  
+  
+  /**
+   * Updates a user's address on whichever connection the caller is given.
+   * @param address is the user's new address
+   * @param id is the user's current unique ID number
+   * @return true if the update was completed, false otherwise 
+   */
+  private static boolean applyUserAddress(String address, int id) {
     try {
       // Verify the user's ID
       boolean verifiedUid = DatabaseSelectHelper.verifyUserId(id);
@@ -191,7 +254,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is the account's unique database generated ID number
    * @return true if the update was completed, false otherwise
    */
-  public static boolean updateAccountName(String name, int id) {
+  public static boolean updateAccountName(final String name, final int id) {
+    return commitQueuedUpdate(() -> applyAccountName(name, id));
+  }
+  
+  
+  /**
+   * Updates an account's name on whichever connection the caller is given.
+   * @param name is the account's new name
+   * @param id is the account's unique database generated ID number
+   * @return true if the update was completed, false otherwise
+   */
+  private static boolean applyAccountName(String name, int id) {
     try {
       // Verify the account's ID
       boolean verifiedId = DatabaseSelectHelper.verifyAccountId(id);    
@@ -227,18 +301,49 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @return true if the update was completed, false otherwise
    */
   public static boolean updateAccountBalance(BigDecimal balance, int id) {
+    return updateAccountBalance(balance, id, LedgerEntryTypes.ADJUSTMENT);
+  }
+  
+  
+  /**
+   * Given an account's unique ID and balance, update the balance in the database and record
+   * the change in the ledger as the given type of entry.
+   * @param balance is the new balance remaining in the account
+   * @param id is the account's unique database generated ID number
+   * @param type is what caused the change, such as an interest posting
+   * @return true if the update was completed, false otherwise
+   */
+  public static boolean updateAccountBalance(final BigDecimal balance, final int id,
+      final LedgerEntryTypes type) {
+    return commitQueuedUpdate(() -> applyAccountBalance(balance, id, type));
+  }
+  
+  
+  /**
+   * Sets an account's balance and records the change in the ledger on whichever connection
+   * the caller is given.
+   * @param balance is the new balance remaining in the account
+   * @param id is the account's unique database generated ID number
+   * @param type is what caused the change, such as an interest posting
+   * @return true if the update was completed, false otherwise
+   */
+  private static boolean applyAccountBalance(BigDecimal balance, int id, LedgerEntryTypes type) {
     try {
       // Verify the account's ID
       boolean verified = DatabaseSelectHelper.verifyAccountId(id);
       // Set the default response to false
       boolean complete = false;
     
+      // Changes still in the balance journal have to be allowed for
+      if (verified && BalanceJournal.isEnabled()) {
+        complete = BalanceJournal.setBalance(balance, id, type);
+        
       // Proceed if the account ID can be verified
-      if (verified) {
+      } else if (verified) {
         // Connect to the database
         Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
         // Update the account's balance and get statement
-        complete = DatabaseUpdater.updateAccountBalance(balance, id, connection);
+        complete = DatabaseUpdater.updateAccountBalance(balance, id, type, connection);
         // Close the connection
         connection.close();
       }
@@ -258,7 +363,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is the account's unique database generated ID number
    * @return true if the update was completed, false otherwise
    */
-  public static boolean updateAccountType(int typeId, int id) {
+  public static boolean updateAccountType(final int typeId, final int id) {
+    return commitQueuedUpdate(() -> applyAccountType(typeId, id));
+  }
+  
+  
+  /**
+   * Changes an account's type on whichever connection the caller is given.
+   * @param typeId is the type ID of the new type
+   * @param id is the account's unique database generated ID number
+   * @return true if the update was completed, false otherwise
+   */
+  private static boolean applyAccountType(int typeId, int id) {
     try {
       // Verify the account's ID
       boolean verifiedUid = DatabaseSelectHelper.verifyAccountId(id);
@@ -294,7 +410,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param id is an account type ID
    * @return true if the update was completed, false otherwise 
    */
-  public static boolean updateAccountTypeName(String name, int id) {
+  public static boolean updateAccountTypeName(final String name, final int id) {
+    return commitQueuedUpdate(() -> applyAccountTypeName(name, id));
+  }
+  
+  
+  /**
+   * Renames an account type on whichever connection the caller is given.
+   * @param name is the new name for the account type
+   * @param id is an account type ID
+   * @return true if the update was completed, false otherwise 
+   */
+  private static boolean applyAccountTypeName(String name, int id) {
     try {
       // Verify the account type ID
       boolean verifiedType = DatabaseSelectHelper.verifyTypeId(id);
@@ -323,6 +450,128 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
   }
   
   
+  /**
+   * Given an account's unique ID and a signed amount, adds the amount to the account's balance
+   * in a single statement. Unless the account is a balance owing account, the change is refused
+   * if it would leave the balance below zero. Outside a UnitOfWork the update is handed to the
+   * database writer, which commits it together with the other terminals' writes.
+   * @param amount is the amount to add to the balance, negative for a withdrawal
+   * @param id is the account's unique database generated ID number
+   * @return the new balance, or null if the account does not exist or has too little money
+   */
+  public static BigDecimal updateAccountBalanceBy(BigDecimal amount, int id) {
+    // With the journal enabled the change is acknowledged once it has been journaled
+    if (BalanceJournal.isEnabled()) {
+      InterestAccrual.accrueIfDue(id);
+      return BalanceJournal.append(amount, id, AccountTypes.BALANCEOWING.toString());
+    }
+    return WriteQueue.await(submitAccountBalanceBy(amount, id));
+  }
+  
+  
+  /**
+   * Queues a change to an account's balance, as updateAccountBalanceBy does, without waiting
+   * for it to be committed.
+   * @param amount is the amount to add to the balance, negative for a withdrawal
+   * @param id is the account's unique database generated ID number
+   * @return a future holding the new balance once committed, or null if the change was refused
+   */
+  public static Future<BigDecimal> submitAccountBalanceBy(final BigDecimal amount,
+      final int id) {
+    // A journaled change needs no queueing, since it costs no commit
+    if (BalanceJournal.isEnabled()) {
+      InterestAccrual.accrueIfDue(id);
+      return CompletableFuture.completedFuture(BalanceJournal.append(amount, id,
+          AccountTypes.BALANCEOWING.toString()));
+    }
+    return WriteQueue.submit(() -> applyAccountBalanceBy(amount, id));
+  }
+  
+  
+  /**
+   * Applies a change to an account's balance on whichever connection the caller is given.
+   * @param amount is the amount to add to the balance, negative for a withdrawal
+   * @param id is the account's unique database generated ID number
+   * @return the new balance, or null if the account does not exist or has too little money
+   */
+  private static BigDecimal applyAccountBalanceBy(BigDecimal amount, int id) {
+    try {
+      // Set the default response to null
+      BigDecimal balance = null;
+      
+      // Proceed only with an actual amount; the update itself checks that the account exists
+      if (amount != null) {
+        // Connect to the database
+        Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+        // Apply the change and get the resulting balance
+        balance = DatabaseUpdater.updateAccountBalanceBy(amount, id,
+            AccountTypes.BALANCEOWING.toString(), connection);
+        // Close the connection
+        connection.close();
+      }
+      // Return the result
+      return balance;
+      
+    // If an exception is thrown --> return null
+    } catch (SQLException error) {
+      return null;
+    }
+  }
+  
+  
+  /**
+   * Moves money between two accounts in one transaction, debiting one and crediting the other
+   * with nothing in between. Unless the source is a balance owing account, the transfer is
+   * refused if it would leave the source below zero.
+   * @param amount is the amount to move, which must be positive
+   * @param fromId is the ID of the account the money is taken from
+   * @param toId is the ID of the account the money is added to
+   * @return the new balance of the source account, or null if the transfer was refused
+   */
+  public static BigDecimal transferBalance(final BigDecimal amount, final int fromId,
+      final int toId) {
+    // With the journal enabled the debit and credit are journaled as a single change
+    if (BalanceJournal.isEnabled()) {
+      InterestAccrual.accrueIfDue(fromId);
+      InterestAccrual.accrueIfDue(toId);
+      return BalanceJournal.transfer(amount, fromId, toId, AccountTypes.BALANCEOWING.toString());
+    }
+    // The debit and credit are queued as a single write
+    return commitQueued(() -> {
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      try {
+        return DatabaseUpdater.transferBalance(amount, fromId, toId,
+            AccountTypes.BALANCEOWING.toString(), connection);
+      } finally {
+        connection.close();
+      }
+    });
+  }
+  
+  
+  /**
+   * Given an account's unique ID, pays the account whatever interest it has accrued since it
+   * was last read or changed. Only used when interest accrual is enabled.
+   * @param id is the account's unique database generated ID number
+   * @return the balance after the interest was paid, or null if it could not be paid
+   */
+  public static BigDecimal accrueInterest(int id) {
+    // Set the default response to null
+    BigDecimal balance = null;
+    
+    // Proceed only if accrual is enabled and the account ID can be verified
+    if (InterestAccrual.isEnabled() && DatabaseSelectHelper.verifyAccountId(id)) {
+      balance = InterestAccrual.accrue(id);
+      // Include any changes still in the balance journal
+      if (balance != null && BalanceJournal.isEnabled()) {
+        balance = BalanceJournal.getBalance(id);
+      }
+    }
+    // Return the result
+    return balance;
+  }
+  
+  
   /**
   * Given an account type ID and new interest rate for that account type,
   * update the account type interest rate in the database.
@@ -331,7 +580,19 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
   * @param id is an account type ID
   * @return true if the update was completed, false otherwise
   */
-  public static boolean updateAccountTypeInterestRate(BigDecimal interestRate, int id) {
+  public static boolean updateAccountTypeInterestRate(final BigDecimal interestRate,
+      final int id) {
+    return commitQueuedUpdate(() -> applyAccountTypeInterestRate(interestRate, id));
+  }
+  
+  
+  /**
+   * Changes an account type's interest rate on whichever connection the caller is given.
+  * @param interestRate is the new interest rate for the account type
+  * @param id is an account type ID
+  * @return true if the update was completed, false otherwise
+   */
+  private static boolean applyAccountTypeInterestRate(BigDecimal interestRate, int id) {
     try {
       // Verify the account type ID
       boolean verifiedType = DatabaseSelectHelper.verifyTypeId(id);
@@ -366,7 +627,18 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
    * @param userId the ID of the user who will get a password update
    * @return true if the update was successful, otherwise false
    */
-  public static boolean updateUserPassword(String password, int userId) {
+  public static boolean updateUserPassword(final String password, final int userId) {
+    return commitQueuedUpdate(() -> applyUserPassword(password, userId));
+  }
+  
+  
+  /**
+   * Updates a user's password on whichever connection the caller is given.
+   * @param password the hashed version of a password
+   * @param userId the ID of the user who will get a password update
+   * @return true if the update was successful, otherwise false
+   */
+  private static boolean applyUserPassword(String password, int userId) {
     try {
       
       // Verify that the given user is a valid one
@@ -390,13 +662,53 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
     }
   }
   
+  /**
+   * Recomputes every user's stored balance total from their accounts. The totals are kept
+   * current automatically, so this is only needed to repair ones reported by
+   * DatabaseSelectHelper.findInconsistentUserTotals.
+   * @return true if the totals were rebuilt, otherwise false
+   */
+  public static boolean rebuildUserTotals() {
+    return commitQueuedUpdate(() -> applyUserTotals());
+  }
+  
+  
+  /**
+   * Recomputes every user's stored balance total on whichever connection the caller is given.
+   * @return true if the totals were rebuilt, otherwise false
+   */
+  private static boolean applyUserTotals() {
+    try {
+      // Connect to the database and recompute the totals in one transaction
+      Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
+      boolean rebuilt = DatabaseUpdater.rebuildUserTotals(connection);
+      connection.close();
+      
+      return rebuilt;
+      
+      // If an issue arises with the connection, return false
+    } catch (SQLException error) {
+      return false;
+    }
+  }
+  
   /**
    * Given the ID of a message, this method will make an attempt to update the status of said 
    * message to "Viewed".
    * @param messageId the ID of the message to have a change in view status
    * @return true if the update was successful, otherwise false
    */
-  public static boolean updateUserMessageState(int messageId) {
+  public static boolean updateUserMessageState(final int messageId) {
+    return commitQueuedUpdate(() -> applyUserMessageState(messageId));
+  }
+  
+  
+  /**
+   * Marks a message as viewed on whichever connection the caller is given.
+   * @param messageId the ID of the message to have a change in view status
+   * @return true if the update was successful, otherwise false
+   */
+  private static boolean applyUserMessageState(int messageId) {
     try {
       // Connect to the database and make the attempt to update the status of the message.
       Connection connection = DatabaseDriverHelper.connectOrCreateDataBase();
@@ -410,4 +722,25 @@ public class DatabaseUpdateHelper extends DatabaseUpdater {
       return false;
     }
   }
+  
+  
+  /**
+   * Hands a write to the database writer and waits for it to be committed.
+   * @param write the write to apply, returning null or false if it did not succeed
+   * @param <T> the type of the write's result
+   * @return the write's result, or null if it failed or could not be committed
+   */
+  private static <T> T commitQueued(Callable<T> write) {
+    return WriteQueue.await(WriteQueue.submit(write));
+  }
+  
+  
+  /**
+   * Hands an update to the database writer and waits for it to be committed.
+   * @param update the update to apply, returning whether it succeeded
+   * @return true if the update succeeded and was committed, false otherwise
+   */
+  private static boolean commitQueuedUpdate(Callable<Boolean> update) {
+    return Boolean.TRUE.equals(commitQueued(update));
+  }
 }
@@ -0,0 +1,59 @@
+package com.bank.databasehelper;
+
+import com.bank.users.User;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks every user holding a role, reading them from the database one page at a time as the
+ * iteration reaches them. Only the current page is ever held in memory.
+ */
+class UserIterator implements Iterator<User> {
+
+  // The number of users read per query, which may be overridden through a system property
+  private static final int PAGE_SIZE = Integer.getInteger("bank.users.pageSize", 100);
+
+  private final int roleId;
+  private List<User> page;
+  private int position = 0;
+  private int lastId = 0;
+  private boolean exhausted = false;
+
+
+  /**
+   * Creates an iterator over the users holding a role.
+   * @param roleId is the role of the users to walk
+   */
+  UserIterator(int roleId) {
+    this.roleId = roleId;
+  }
+
+
+  @Override
+  public boolean hasNext() {
+    // Read the next page once the current one has been used up
+    if ((page == null || position >= page.size()) && !exhausted) {
+      page = DatabaseSelectHelper.getUsersByRole(roleId, lastId, PAGE_SIZE);
+      position = 0;
+      // A short page means there is nothing after it
+      if (page == null || page.size() < PAGE_SIZE) {
+        exhausted = true;
+      }
+      if (page != null && !page.isEmpty()) {
+        lastId = page.get(page.size() - 1).getId();
+      }
+    }
+    return page != null && position < page.size();
+  }
+
+
+  @Override
+  public User next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.get(position++);
+  }
+}
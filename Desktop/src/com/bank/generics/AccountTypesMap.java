@@ -1,19 +1,19 @@
 package com.bank.generics;
 
-import com.bank.databasehelper.DatabaseSelectHelper;
-
 import java.util.EnumMap;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * A class to represent our EnumMap for the account types. The key will be the account type
- * and the value will be the account type's corresponding ID in the database.
+ * and the value will be the account type's corresponding ID in the database. The map is filled
+ * from the shared ReferenceData snapshot, so building one does not query the database.
  */
 public class AccountTypesMap {
   
   private EnumMap<AccountTypes, String> accTypesMap = new EnumMap<AccountTypes, String>(
       AccountTypes.class);
+  private ReferenceData referenceData;
   
   
   /**
@@ -41,8 +41,7 @@ public class AccountTypesMap {
    * @return true of the accType ID is in the enum map as a value, otherwise false.
    */
   public boolean hasAccTypeValue(int accTypeId) {
-    Integer potentialAccTypeId = new Integer(accTypeId);
-    return this.accTypesMap.containsValue(potentialAccTypeId.toString());
+    return this.referenceData.getAccountType(accTypeId) != null;
   }
   
   
@@ -60,21 +59,9 @@ public class AccountTypesMap {
    * @return the key (account type name) that belongs to the given account type value
    */
   public String getAccTypeName(int accTypeValue) {
-    String accTypeName = "";
-    // Check to see if the given account type ID exists in the enum map.
-    if (this.hasAccTypeValue(accTypeValue)) {  
-      for (AccountTypes accType : this.getAccTypeKeys()) {
-        // Iterate over the set of account type keys, fetching its corresponding
-        // value and converting to Integer.
-        String accTypeVal = this.getExistingAccountTypes().get(accType);
-        Integer accTypeValIntGiven = new Integer(accTypeValue);
-        // If the key's value is equal to the given account type -> return string representation
-        if (accTypeVal.equals(accTypeValIntGiven.toString())) {
-          accTypeName = accType.toString();
-        }
-      }
-    }
-    return accTypeName;
+    // The snapshot is indexed by ID, so this is a single array lookup
+    AccountTypes accType = this.referenceData.getAccountType(accTypeValue);
+    return (accType == null) ? "" : accType.toString();
   }
   
   /**
@@ -85,50 +72,26 @@ public class AccountTypesMap {
    *     said key is not found in the enum map
    */
   public int getAccTypeId(String accTypeKey) {
-    Set<AccountTypes> accTypeKeys = this.getAccTypeKeys();
-    int accTypeVal = -1;
-    // Next, we will iterate through each of the keys and check to see if any of them match the
-    // key specified in the input. If they match, get the value of the key and convert to int
-    for (AccountTypes accType : accTypeKeys) {
-      String accTypeName = accType.toString();
-      if (accTypeKey.equalsIgnoreCase(accTypeName)) {
-        Integer accTypeValString = new Integer(accTypesMap.get(accType));
-        accTypeVal = accTypeValString.intValue();
+    // Find the constant with the given name and look up its ID in the snapshot
+    for (AccountTypes accType : AccountTypes.values()) {
+      if (accTypeKey.equalsIgnoreCase(accType.toString())) {
+        return this.referenceData.getAccountTypeId(accType);
       }
     }
-    return accTypeVal;
+    return -1;
   }
   
   /**
    * A method that will update the enum map based on whatever is in the database at the given
-   * time.
+   * time. The snapshot is only read from the database again if the account types have changed.
    */
   public void updateAccTypesMap() {
-    // Refresh existing mapping
-    accTypesMap.clear();
-    // Iterate through all of the constants within our AccountTypes enum
-   
-    for (AccountTypes accType : AccountTypes.values()) {
-      // Get String representation of each constant
-      String currAccTypeKey = accType.toString();
-      // As we are iterating through each of the constants in our AccountTypes enum, we will also
-      // iterate through each of the account types in the database in order to get the appropriate 
-      // key-value pairing
-      
-      List<Integer> accTypeIds = DatabaseSelectHelper.getAccountTypesIds();
-      if (!(accTypeIds == null)) {
-        for (int currAccTypeNum : accTypeIds) {
-          // We will get the account that has the corresponding roleID in the database
-          String currAccTypeValue = DatabaseSelectHelper.getAccountTypeName(currAccTypeNum);
-          
-          // If that account type is equal to our current constant (currAccTypeKey), we will map
-          // the current account type constant to that account type value.
-          if (currAccTypeKey.equalsIgnoreCase(currAccTypeValue)) {
-            Number accTypeValue = new Integer(currAccTypeNum);
-            this.accTypesMap.put(accType, accTypeValue.toString());
-          }
-        }
-      }
+    // Take the current snapshot and refresh the existing mapping from it
+    this.referenceData = ReferenceData.getInstance();
+    this.accTypesMap.clear();
+    for (Map.Entry<AccountTypes, Integer> entry
+        : this.referenceData.getAccountTypeIdMap().entrySet()) {
+      this.accTypesMap.put(entry.getKey(), entry.getValue().toString());
     }
   }
 }
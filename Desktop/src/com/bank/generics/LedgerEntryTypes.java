@@ -0,0 +1,57 @@
+package com.bank.generics;
+
+public enum LedgerEntryTypes {
+  OPENING(0, "opening"), DEPOSIT(1, "deposit"), WITHDRAWAL(2, "withdrawal"),
+  INTEREST(3, "interest"), TRANSFERIN(4, "transfer in"), TRANSFEROUT(5, "transfer out"),
+  ADJUSTMENT(6, "adjustment");
+
+  // Store the code written to the ledger and the name
+  private int code;
+  private String name;
+
+  /**
+   * Sets each ENUM type with the code stored in the ledger and a type name.
+   * @param code is the number stored in the ledger's TYPE column
+   * @param name is the ledger entry type name
+   */
+  private LedgerEntryTypes(int code, String name) {
+    // Set the code and name
+    this.code = code;
+    this.name = name;
+  }
+
+
+  /**
+   * Returns the code stored in the ledger for this type of entry.
+   * @return the ledger code
+   */
+  public int getCode() {
+    return this.code;
+  }
+
+
+  /**
+   * Finds the type of entry stored in the ledger under a code.
+   * @param code is the number stored in the ledger's TYPE column
+   * @return the matching type, or null if the code is unknown
+   */
+  public static LedgerEntryTypes fromCode(int code) {
+    // Search the types for the code
+    for (LedgerEntryTypes type : LedgerEntryTypes.values()) {
+      if (type.code == code) {
+        return type;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * toString override defaulting to lower-case type.
+   */
+  @Override
+  public String toString() {
+    // Return the name
+    return this.name;
+  }
+}
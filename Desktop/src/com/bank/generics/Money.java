@@ -0,0 +1,245 @@
+package com.bank.generics;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * An immutable amount of money held as a whole number of cents. Adding, subtracting and
+ * comparing amounts is plain long arithmetic, without the BigDecimal objects and rescaling a
+ * balance would otherwise need at every step. BigDecimal is only used at the edges: to read
+ * amounts typed in or returned by the helpers, and when an amount is multiplied by a rate whose
+ * product cannot be worked out exactly in a long.
+ */
+public final class Money implements Comparable<Money> {
+
+  /** The number of decimal places in an amount. */
+  public static final int SCALE = 2;
+
+  /** No money at all. */
+  public static final Money ZERO = new Money(0);
+
+  // The largest rate scale multiplied in a long; interest rates are stored in millionths
+  private static final int MAX_LONG_RATE_SCALE = 6;
+  private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L,
+      1000000L};
+
+  private final long units;
+
+
+  /**
+   * Creates an amount from a number of cents.
+   * @param units the amount in cents.
+   */
+  private Money(long units) {
+    this.units = units;
+  }
+
+
+  /**
+   * Returns the amount of a number of cents, such as a balance stored in the database.
+   * @param units the amount in cents.
+   * @return the amount.
+   */
+  public static Money ofUnits(long units) {
+    return (units == 0) ? ZERO : new Money(units);
+  }
+
+
+  /**
+   * Returns a decimal amount rounded up to the nearest cent, the way balances are rounded
+   * everywhere else in the bank.
+   * @param amount the amount.
+   * @return the amount in whole cents.
+   * @throws ArithmeticException if the amount does not fit in a long number of cents.
+   */
+  public static Money of(BigDecimal amount) {
+    return of(amount, RoundingMode.CEILING);
+  }
+
+
+  /**
+   * Returns a decimal amount rounded to a whole number of cents.
+   * @param amount the amount.
+   * @param rounding how fractions of a cent are rounded.
+   * @return the amount in whole cents.
+   * @throws ArithmeticException if the amount does not fit in a long number of cents, or
+   *     rounding is UNNECESSARY and the amount has fractions of a cent.
+   */
+  public static Money of(BigDecimal amount, RoundingMode rounding) {
+    return ofUnits(amount.setScale(SCALE, rounding).unscaledValue().longValueExact());
+  }
+
+
+  /**
+   * Returns the amount as a number of cents.
+   * @return the amount in cents.
+   */
+  public long getUnits() {
+    return this.units;
+  }
+
+
+  /**
+   * Adds another amount to this one.
+   * @param other the amount to add.
+   * @return the sum.
+   * @throws ArithmeticException if the sum does not fit in a long number of cents.
+   */
+  public Money plus(Money other) {
+    return (other.units == 0) ? this : ofUnits(Math.addExact(this.units, other.units));
+  }
+
+
+  /**
+   * Subtracts another amount from this one.
+   * @param other the amount to subtract.
+   * @return the difference.
+   * @throws ArithmeticException if the difference does not fit in a long number of cents.
+   */
+  public Money minus(Money other) {
+    return (other.units == 0) ? this : ofUnits(Math.subtractExact(this.units, other.units));
+  }
+
+
+  /**
+   * Returns the amount with its sign reversed.
+   * @return the negated amount.
+   * @throws ArithmeticException if the amount is the smallest long number of cents.
+   */
+  public Money negate() {
+    return ofUnits(Math.negateExact(this.units));
+  }
+
+
+  /**
+   * Multiplies the amount by a rate, such as an interest rate, and rounds the product to a
+   * whole number of cents. Rates with up to six decimal places are multiplied in a long when
+   * the product fits; anything else falls back to BigDecimal, with the same result.
+   * @param rate the rate to multiply by.
+   * @param rounding how fractions of a cent in the product are rounded.
+   * @return the product.
+   * @throws ArithmeticException if the product does not fit in a long number of cents, or
+   *     rounding is UNNECESSARY and the product has fractions of a cent.
+   */
+  public Money multiply(BigDecimal rate, RoundingMode rounding) {
+    int scale = rate.scale();
+    if (scale >= 0 && scale <= MAX_LONG_RATE_SCALE && rate.precision() <= 18) {
+      try {
+        long product = Math.multiplyExact(this.units, rate.unscaledValue().longValue());
+        return ofUnits(divide(product, POWERS_OF_TEN[scale], rounding));
+      } catch (ArithmeticException overflow) {
+        // Too large for a long, so work it out in BigDecimal instead
+      }
+    }
+    return of(toBigDecimal().multiply(rate), rounding);
+  }
+
+
+  /**
+   * Returns the sign of the amount.
+   * @return -1, 0 or 1 as the amount is negative, zero or positive.
+   */
+  public int signum() {
+    return Long.signum(this.units);
+  }
+
+
+  /**
+   * Checks whether the amount is less than another.
+   * @param other the amount to compare with.
+   * @return true if this amount is less than the other, false otherwise.
+   */
+  public boolean isLessThan(Money other) {
+    return this.units < other.units;
+  }
+
+
+  /**
+   * Checks whether the amount is greater than another.
+   * @param other the amount to compare with.
+   * @return true if this amount is greater than the other, false otherwise.
+   */
+  public boolean isGreaterThan(Money other) {
+    return this.units > other.units;
+  }
+
+
+  /**
+   * Returns the amount as a BigDecimal with two decimal places, for the helpers and the
+   * screens that still work in BigDecimal.
+   * @return the amount.
+   */
+  public BigDecimal toBigDecimal() {
+    return BigDecimal.valueOf(this.units, SCALE);
+  }
+
+
+  @Override
+  public int compareTo(Money other) {
+    return Long.compare(this.units, other.units);
+  }
+
+
+  @Override
+  public boolean equals(Object other) {
+    return (other instanceof Money) && ((Money) other).units == this.units;
+  }
+
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(this.units);
+  }
+
+
+  /**
+   * Returns the amount with two decimal places, as BigDecimal would print it.
+   * @return the amount, such as 12.30 or -0.05.
+   */
+  @Override
+  public String toString() {
+    long whole = Math.abs(this.units / 100);
+    int cents = (int) Math.abs(this.units % 100);
+    return ((this.units < 0) ? "-" : "") + whole + ((cents < 10) ? ".0" : ".") + cents;
+  }
+
+
+  /**
+   * Divides a long by a positive power of ten, rounding the quotient the way BigDecimal would.
+   * @param dividend the number to divide.
+   * @param divisor the power of ten to divide by.
+   * @param rounding how a remainder is rounded.
+   * @return the rounded quotient.
+   * @throws ArithmeticException if rounding is UNNECESSARY and there is a remainder.
+   */
+  private static long divide(long dividend, long divisor, RoundingMode rounding) {
+    long quotient = dividend / divisor;
+    long remainder = dividend % divisor;
+    if (remainder == 0) {
+      return quotient;
+    }
+    // The direction away from zero, which is the sign of the exact quotient
+    int away = (dividend < 0) ? -1 : 1;
+    // Compare the remainder with half the divisor without overflowing
+    long remaining = Math.abs(remainder);
+    int half = Long.compare(remaining, divisor - remaining);
+    switch (rounding) {
+      case UP:
+        return quotient + away;
+      case DOWN:
+        return quotient;
+      case CEILING:
+        return (away > 0) ? quotient + 1 : quotient;
+      case FLOOR:
+        return (away < 0) ? quotient - 1 : quotient;
+      case HALF_UP:
+        return (half >= 0) ? quotient + away : quotient;
+      case HALF_DOWN:
+        return (half > 0) ? quotient + away : quotient;
+      case HALF_EVEN:
+        return (half > 0 || (half == 0 && (quotient & 1) != 0)) ? quotient + away : quotient;
+      default:
+        throw new ArithmeticException("Rounding necessary");
+    }
+  }
+}
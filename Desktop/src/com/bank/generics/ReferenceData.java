@@ -0,0 +1,242 @@
+package com.bank.generics;
+
+import com.bank.databasehelper.DatabaseSelectHelper;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable snapshot of the roles and account types in the database, indexed by ID. One
+ * snapshot is shared by the whole process and is only read again from the database after a
+ * role or account type has been added or changed.
+ */
+public final class ReferenceData {
+
+  private static volatile ReferenceData current;
+
+  private final long version;
+  private final String[] roleNames;
+  private final Roles[] roles;
+  private final EnumMap<Roles, Integer> roleIds = new EnumMap<Roles, Integer>(Roles.class);
+  private final List<Integer> roleIdList;
+  private final String[] accountTypeNames;
+  private final AccountTypes[] accountTypes;
+  private final BigDecimal[] interestRates;
+  private final EnumMap<AccountTypes, Integer> accountTypeIds =
+      new EnumMap<AccountTypes, Integer>(AccountTypes.class);
+  private final List<Integer> accountTypeIdList;
+
+
+  /**
+   * Builds a snapshot from the rows of the ROLES and ACCOUNTTYPES tables.
+   * @param version the version of the reference tables the rows were read at.
+   * @param roleNames the name of each role, keyed by ID.
+   * @param accountTypeNames the name of each account type, keyed by ID.
+   * @param interestRates the interest rate of each account type, keyed by ID.
+   */
+  public ReferenceData(long version, Map<Integer, String> roleNames,
+      Map<Integer, String> accountTypeNames, Map<Integer, BigDecimal> interestRates) {
+    this.version = version;
+    // Work through the IDs in ascending order, so a later duplicate name wins as it always has
+    TreeMap<Integer, String> sortedRoles = new TreeMap<Integer, String>(roleNames);
+    int roleBound = sortedRoles.isEmpty() ? 0 : sortedRoles.lastKey() + 1;
+    this.roleNames = new String[roleBound];
+    this.roles = new Roles[roleBound];
+    for (Map.Entry<Integer, String> entry : sortedRoles.entrySet()) {
+      int id = entry.getKey();
+      this.roleNames[id] = entry.getValue();
+      for (Roles role : Roles.values()) {
+        if (role.toString().equalsIgnoreCase(entry.getValue())) {
+          this.roles[id] = role;
+          this.roleIds.put(role, id);
+        }
+      }
+    }
+    this.roleIdList = Collections.unmodifiableList(new ArrayList<Integer>(sortedRoles.keySet()));
+
+    TreeMap<Integer, String> sortedTypes = new TreeMap<Integer, String>(accountTypeNames);
+    int typeBound = sortedTypes.isEmpty() ? 0 : sortedTypes.lastKey() + 1;
+    this.accountTypeNames = new String[typeBound];
+    this.accountTypes = new AccountTypes[typeBound];
+    this.interestRates = new BigDecimal[typeBound];
+    for (Map.Entry<Integer, String> entry : sortedTypes.entrySet()) {
+      int id = entry.getKey();
+      this.accountTypeNames[id] = entry.getValue();
+      this.interestRates[id] = interestRates.get(id);
+      for (AccountTypes accountType : AccountTypes.values()) {
+        if (accountType.toString().equalsIgnoreCase(entry.getValue())) {
+          this.accountTypes[id] = accountType;
+          this.accountTypeIds.put(accountType, id);
+        }
+      }
+    }
+    this.accountTypeIdList =
+        Collections.unmodifiableList(new ArrayList<Integer>(sortedTypes.keySet()));
+  }
+
+
+  /**
+   * Returns the current snapshot, reading the tables again only if they have changed since the
+   * last one was taken. If the tables cannot be read, for example before the database has been
+   * set up, an empty snapshot is returned and nothing is remembered.
+   * @return the current reference data.
+   */
+  public static ReferenceData getInstance() {
+    ReferenceData snapshot = current;
+    if (snapshot == null || snapshot.version != DatabaseSelectHelper.getReferenceDataVersion()) {
+      snapshot = DatabaseSelectHelper.getReferenceData();
+      if (snapshot == null) {
+        return new ReferenceData(-1, Collections.<Integer, String>emptyMap(),
+            Collections.<Integer, String>emptyMap(), Collections.<Integer, BigDecimal>emptyMap());
+      }
+      current = snapshot;
+    }
+    return snapshot;
+  }
+
+
+  /**
+   * Returns the version of the reference tables this snapshot was read at.
+   * @return the snapshot's version.
+   */
+  public long getVersion() {
+    return this.version;
+  }
+
+
+  /**
+   * Returns the name of a role as it is stored in the database.
+   * @param roleId the ID of the role.
+   * @return the role's name, or null if there is no such role.
+   */
+  public String getRoleName(int roleId) {
+    return (roleId >= 0 && roleId < roleNames.length) ? roleNames[roleId] : null;
+  }
+
+
+  /**
+   * Returns the Roles constant a role ID stands for.
+   * @param roleId the ID of the role.
+   * @return the matching constant, or null if the ID is not one of the known roles.
+   */
+  public Roles getRole(int roleId) {
+    return (roleId >= 0 && roleId < roles.length) ? roles[roleId] : null;
+  }
+
+
+  /**
+   * Returns the ID of a role.
+   * @param role the role to look up.
+   * @return the role's ID, or -1 if it is not in the database.
+   */
+  public int getRoleId(Roles role) {
+    Integer id = roleIds.get(role);
+    return (id == null) ? -1 : id;
+  }
+
+
+  /**
+   * Checks whether a role ID is in the database.
+   * @param roleId the ID to check.
+   * @return true if the role exists, false otherwise.
+   */
+  public boolean hasRole(int roleId) {
+    return getRoleName(roleId) != null;
+  }
+
+
+  /**
+   * Returns every role ID in the database, in ascending order.
+   * @return an unmodifiable list of role IDs.
+   */
+  public List<Integer> getRoleIds() {
+    return this.roleIdList;
+  }
+
+
+  /**
+   * Returns every role in the database that matches a Roles constant, along with its ID.
+   * @return a new map from role to ID.
+   */
+  public EnumMap<Roles, Integer> getRoleIdMap() {
+    return new EnumMap<Roles, Integer>(roleIds);
+  }
+
+
+  /**
+   * Returns the name of an account type as it is stored in the database.
+   * @param accountTypeId the ID of the account type.
+   * @return the account type's name, or null if there is no such type.
+   */
+  public String getAccountTypeName(int accountTypeId) {
+    return (accountTypeId >= 0 && accountTypeId < accountTypeNames.length)
+        ? accountTypeNames[accountTypeId] : null;
+  }
+
+
+  /**
+   * Returns the AccountTypes constant an account type ID stands for.
+   * @param accountTypeId the ID of the account type.
+   * @return the matching constant, or null if the ID is not one of the known types.
+   */
+  public AccountTypes getAccountType(int accountTypeId) {
+    return (accountTypeId >= 0 && accountTypeId < accountTypes.length)
+        ? accountTypes[accountTypeId] : null;
+  }
+
+
+  /**
+   * Returns the ID of an account type.
+   * @param accountType the account type to look up.
+   * @return the account type's ID, or -1 if it is not in the database.
+   */
+  public int getAccountTypeId(AccountTypes accountType) {
+    Integer id = accountTypeIds.get(accountType);
+    return (id == null) ? -1 : id;
+  }
+
+
+  /**
+   * Returns the interest rate of an account type.
+   * @param accountTypeId the ID of the account type.
+   * @return the interest rate, or null if there is no such type.
+   */
+  public BigDecimal getInterestRate(int accountTypeId) {
+    return (accountTypeId >= 0 && accountTypeId < interestRates.length)
+        ? interestRates[accountTypeId] : null;
+  }
+
+
+  /**
+   * Checks whether an account type ID is in the database.
+   * @param accountTypeId the ID to check.
+   * @return true if the account type exists, false otherwise.
+   */
+  public boolean hasAccountType(int accountTypeId) {
+    return getAccountTypeName(accountTypeId) != null;
+  }
+
+
+  /**
+   * Returns every account type ID in the database, in ascending order.
+   * @return an unmodifiable list of account type IDs.
+   */
+  public List<Integer> getAccountTypeIds() {
+    return this.accountTypeIdList;
+  }
+
+
+  /**
+   * Returns every account type in the database that matches an AccountTypes constant, along
+   * with its ID.
+   * @return a new map from account type to ID.
+   */
+  public EnumMap<AccountTypes, Integer> getAccountTypeIdMap() {
+    return new EnumMap<AccountTypes, Integer>(accountTypeIds);
+  }
+}
@@ -1,19 +1,18 @@
 package com.bank.generics;
 
-import com.bank.databasehelper.DatabaseSelectHelper;
-import com.bank.generics.Roles;
-
 import java.util.EnumMap;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * A class to represent our EnumMap for the role types. The key will be the role type
- * and the value will be the role type's corresponding ID in the database.
+ * and the value will be the role type's corresponding ID in the database. The map is filled
+ * from the shared ReferenceData snapshot, so building one does not query the database.
  */
 public class RolesMap {
   
   private EnumMap<Roles, String> rolesMap = new EnumMap<Roles, String>(Roles.class);
+  private ReferenceData referenceData;
   
   /**
    * A constructor for our roles enum map.
@@ -49,8 +48,7 @@ public class RolesMap {
    * @return true of the role ID is in the enum map as a value, otherwise false.
    */
   public boolean hasRoleValue(int roleId) {
-    Integer potentialRoleId = new Integer(roleId);
-    return this.rolesMap.containsValue(potentialRoleId.toString());
+    return this.referenceData.getRole(roleId) != null;
   }
   
   /**
@@ -58,21 +56,9 @@ public class RolesMap {
    * @return the key (role type name) that belongs to the given role type value
    */
   public String getRoleName(int roleValue) {
-    String roleName = "";
-    // Check to see if the given role type ID exists in the enum map.
-    if (this.hasRoleValue(roleValue)) {  
-      for (Roles roleType : this.getRoleKeys()) {
-        // Iterate over the set of role type keys, fetching its corresponding
-        // value, while also making the given roleValue an Integer object.
-        String roleTypeVal = this.getExistingRoles().get(roleType);
-        Integer roleTypeValIntGiven = new Integer(roleValue);
-        // If the key's value is equal to the given role type -> return string representation
-        if (roleTypeVal.equals(roleTypeValIntGiven.toString())) {
-          roleName = roleType.toString();
-        }
-      }
-    }
-    return roleName;
+    // The snapshot is indexed by ID, so this is a single array lookup
+    Roles role = this.referenceData.getRole(roleValue);
+    return (role == null) ? "" : role.toString();
   }
   
   /**
@@ -83,50 +69,26 @@ public class RolesMap {
    *     said key is not found in the enum map
    */
   public int getRoleId(String roleTypeKey) {
-    Set<Roles> roleTypeKeys = this.getRoleKeys();
-    int roleTypeVal = -1;
-    // We will iterate through each of the keys and check to see if any of them match the
-    // key specified in the input. If they match, get the value of the key and convert to int
-    for (Roles roleType : roleTypeKeys) {
-      String roleTypeName = roleType.toString();
-      if (roleTypeKey.equalsIgnoreCase(roleTypeName)) {
-        Integer roleTypeValString = new Integer(rolesMap.get(roleType));
-        roleTypeVal = roleTypeValString.intValue();
+    // Find the constant with the given name and look up its ID in the snapshot
+    for (Roles roleType : Roles.values()) {
+      if (roleTypeKey.equalsIgnoreCase(roleType.toString())) {
+        return this.referenceData.getRoleId(roleType);
       }
     }
-    return roleTypeVal;
+    return -1;
   }
   
   
   /**
    * A method that will update the enum map based on whatever is in the database at the given
-   * time.
+   * time. The snapshot is only read from the database again if the roles have changed.
    */
   public void updateRolesMap() {
-    // Before we remap our values, we must first get rid of the current mapping so that we can
-    // start fresh.
+    // Take the current snapshot and refresh the existing mapping from it
+    this.referenceData = ReferenceData.getInstance();
     this.rolesMap.clear();
-    // We will need to iterate through all of the constants within our Roles enum
-    for (Roles role : Roles.values()) {
-      // On each constant, we will get its String representation
-      String currRoleKey = role.toString();
-      // As we are iterating through each of the constants in our Roles enum, we will also
-      // iterate through each of the roles in the database in order to get the appropriate 
-      // key-value pairing
-      List<Integer> roleIds = DatabaseSelectHelper.getRoles();
-      // We must make sure that the list we have is not null.
-      if (!(roleIds == null)) {
-        for (int currRoleNum : roleIds) {
-          // We will get the role that has the corresponding roleID in the database
-          String currRoleValue = DatabaseSelectHelper.getRole(currRoleNum);
-          // If that role is equal to our current constant (currRoleKey), we will map the current
-          // role constant to that role value.
-          if (currRoleKey.equalsIgnoreCase(currRoleValue)) {
-            Number roleValue = new Integer(currRoleNum);
-            this.rolesMap.put(role, roleValue.toString());
-          }
-        }
-      }
+    for (Map.Entry<Roles, Integer> entry : this.referenceData.getRoleIdMap().entrySet()) {
+      this.rolesMap.put(entry.getKey(), entry.getValue().toString());
     }
   }
 }
@@ -1,8 +1,10 @@
 package com.bank.interaction;
 
-import com.bank.accounts.Account;
 import com.bank.database.DatabaseDeserializer;
 import com.bank.database.DatabaseSerializer;
+import com.bank.database.InterestRun;
+import com.bank.database.OnlineBackup;
+import com.bank.database.UnitOfWork;
 import com.bank.databasehelper.DatabaseInsertHelper;
 import com.bank.databasehelper.DatabaseSelectHelper;
 import com.bank.databasehelper.DatabaseUpdateHelper;
@@ -43,10 +45,7 @@ public class AdminTerminal implements Terminal {
     // This will set the authentication to true or false
     this.currentUserAuthenticated = authenticationStatus;
     
-    // This will make sure that we always have an up-to-date list of all the people in the bank
-    this.listAllAdmins();
-    this.listAllCustomers();
-    this.listAllTellers();
+    // The lists of people in the bank are read when they are asked for, not at login
   }
   
   
@@ -60,18 +59,28 @@ public class AdminTerminal implements Terminal {
    * @return the teller's database generated ID number or -1 if not added
    */
   public int makeNewUser(String name, int age, String address, String password) {
-    // Set the default response to false
-    int tellerId = -1;
+    // Create the user and their password in one transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the user could be left without a password
+      if (!unit.isTransactional()) {
+        return -1;
+      }
+      // Set the default response to false
+      int tellerId = -1;
     
-    // Check that the current user is authenticated
-    if (this.currentUserAuthenticated) {
-      // Locate the teller role ID
-      int roleId = locateRoleId("teller");
-      // Create a Teller user in the database
-      tellerId = DatabaseInsertHelper.insertNewUser(name, age, address, roleId, password);
+      // Check that the current user is authenticated
+      if (this.currentUserAuthenticated) {
+        // Locate the teller role ID
+        int roleId = locateRoleId("teller");
+        // Create a Teller user in the database
+        tellerId = DatabaseInsertHelper.insertNewUser(name, age, address, roleId, password);
+      }
+      // Return the teller's ID number
+      return unit.commit() ? tellerId : -1;
+    } finally {
+      unit.close();
     }
-    // Return the teller's ID number
-    return tellerId;
   }
   
   
@@ -86,19 +95,29 @@ public class AdminTerminal implements Terminal {
    * @return the user's database generated ID number or -1 if not added
    */
   public int makeNewUser(String role, String name, int age, String address, String password) {
-    // Set the default response to false
-    int userId = -1;
-    int roleId = -1;
+    // Create the user and their password in one transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the user could be left without a password
+      if (!unit.isTransactional()) {
+        return -1;
+      }
+      // Set the default response to false
+      int userId = -1;
+      int roleId = -1;
     
-    // Check that the current user is authenticated
-    if (this.currentUserAuthenticated) {
-      // Locate the teller role ID
-      roleId = locateRoleId(role);
-      // Create a Teller user in the database
-      userId = DatabaseInsertHelper.insertNewUser(name, age, address, roleId, password);
+      // Check that the current user is authenticated
+      if (this.currentUserAuthenticated) {
+        // Locate the teller role ID
+        roleId = locateRoleId(role);
+        // Create a Teller user in the database
+        userId = DatabaseInsertHelper.insertNewUser(name, age, address, roleId, password);
+      }
+      // Return the teller's ID number
+      return unit.commit() ? userId : -1;
+    } finally {
+      unit.close();
     }
-    // Return the teller's ID number
-    return userId;
   }
   
   
@@ -108,28 +127,9 @@ public class AdminTerminal implements Terminal {
    */
   public List<Admin> listAllAdmins() {
     this.administrators = new ArrayList<Admin>();
-    boolean doneListing = false;
-    int idNumber = 1;
-    int adminRoleId = this.locateRoleId("admin");
-    while (! doneListing) {
-      User potentialAdmin = DatabaseSelectHelper.getUserDetails(idNumber);
-      if (!(potentialAdmin == null)) {
-        if (potentialAdmin.getRoleId() == adminRoleId) {
-          boolean foundDuplicate = false;
-          // Check if the user already exists in the list
-          for (Admin admin : this.administrators) {
-            if (admin.getId() == idNumber) {
-              foundDuplicate = true;
-            }
-          }
-          if (!(foundDuplicate)) {
-            this.administrators.add((Admin)potentialAdmin);
-          } 
-        }  
-      } else {
-        doneListing = true;
-      }
-      idNumber ++;
+    // Read the admins a page at a time, in order of ID
+    for (User admin : DatabaseSelectHelper.getUsersByRole(this.locateRoleId("admin"))) {
+      this.administrators.add((Admin) admin);
     }
     return this.administrators;
   }
@@ -141,29 +141,10 @@ public class AdminTerminal implements Terminal {
    */
   public List<Teller> listAllTellers() {
     this.tellers = new ArrayList<Teller>();
-    boolean doneListing = false;
-    int idNumber = 1;
-    int tellerRoleId = this.locateRoleId("teller");
-    while (! doneListing) {
-      User potentialTeller = DatabaseSelectHelper.getUserDetails(idNumber);
-      if (!(potentialTeller == null)) {
-        if (potentialTeller.getRoleId() == tellerRoleId) {
-          boolean foundDuplicate = false;
-          // Check if the user already exists in the list
-          for (Teller teller : this.tellers) {
-            if (teller.getId() == idNumber) {
-              foundDuplicate = true;
-            }
-          }
-          if (!(foundDuplicate)) {
-            this.tellers.add((Teller) potentialTeller);
-          } 
-        }  
-      } else {
-        doneListing = true;
-      }
-      idNumber ++;
-    }   
+    // Read the tellers a page at a time, in order of ID
+    for (User teller : DatabaseSelectHelper.getUsersByRole(this.locateRoleId("teller"))) {
+      this.tellers.add((Teller) teller);
+    }
     return this.tellers;
   }
   
@@ -174,29 +155,10 @@ public class AdminTerminal implements Terminal {
    */
   public List<Customer> listAllCustomers() {
     this.customers = new ArrayList<Customer>();
-    boolean doneListing = false;
-    int idNumber = 1;
-    int customerRoleId = this.locateRoleId("customer");
-    while (! doneListing) {
-      User potentialCustomer = DatabaseSelectHelper.getUserDetails(idNumber);
-      if (!(potentialCustomer == null)) {
-        if (potentialCustomer.getRoleId() == customerRoleId) {
-          boolean foundDuplicate = false;
-          // Check if the user already exists in the list
-          for (Customer customer : this.customers) {
-            if (customer.getId() == idNumber) {
-              foundDuplicate = true;
-            }
-          }
-          if (!(foundDuplicate)) {
-            this.customers.add((Customer) potentialCustomer);
-          } 
-        }  
-      } else {
-        doneListing = true;
-      }
-      idNumber ++;
-    } 
+    // Read the customers a page at a time, in order of ID
+    for (User customer : DatabaseSelectHelper.getUsersByRole(this.locateRoleId("customer"))) {
+      this.customers.add((Customer) customer);
+    }
     return this.customers;
   }
   
@@ -206,48 +168,57 @@ public class AdminTerminal implements Terminal {
    * @return the total balance of all accounts
    */
   public BigDecimal viewTotalBalance() {
-    // Initialize the big decimal to be returned
-    BigDecimal totalBalance = new BigDecimal(0);
-    
-    // Iterate through the list of administrators and get all their accounts (if any) in order
-    // to add all their balances together
-    for (Admin admin : this.administrators) {
-      Integer adminId = admin.getId();
-      List<Integer> adminAccounts = DatabaseSelectHelper.getAccountIds(adminId);
-      for (Integer adminAccId : adminAccounts) {
-        totalBalance = totalBalance.add(DatabaseSelectHelper.getBalance(adminAccId));
-      }
-      DatabaseInsertHelper.insertMessage(admin.getId(), "System Message: "
-          + "\n A system administrator has "
-          + "reviewed the balance of one or more of your accounts.");
-    }
+    // Send every notice in one transaction rather than committing each one
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Let the database add up every balance in one query
+      BigDecimal totalBalance = DatabaseSelectHelper.getTotalBalance();
     
-    // Iterate through the list of tellers and get all their accounts (if any) in order
-    // to add all their balances together
-    for (Teller teller : this.tellers) {
-      Integer tellerId = teller.getId();
-      List<Integer> tellerAccounts = DatabaseSelectHelper.getAccountIds(tellerId);
-      for (Integer tellerAccId : tellerAccounts) {
-        totalBalance = totalBalance.add(DatabaseSelectHelper.getBalance(tellerAccId));
-      }
-      DatabaseInsertHelper.insertMessage(teller.getId(), "System Message: "
+      // Let every user know their balances were reviewed, with a single insert
+      DatabaseInsertHelper.broadcastMessage("System Message: "
           + "\n A system administrator has "
           + "reviewed the balance of one or more of your accounts.");
+      unit.commit();
+      return totalBalance;
+    } finally {
+      unit.close();
     }
-    
-    // Iterate through the list of customers and get all their accounts (if any) in order
-    // to add all their balances together
-    for (Customer customer : this.customers) {
-      Integer customerId = customer.getId();
-      List<Integer> customerAccounts = DatabaseSelectHelper.getAccountIds(customerId);
-      for (Integer customerAccId : customerAccounts) {
-        totalBalance = totalBalance.add(DatabaseSelectHelper.getBalance(customerAccId));
-      }
-      DatabaseInsertHelper.insertMessage(customer.getId(), "System Message: "
-          + "\n A system administrator has "
-          + "reviewed the balance of one or more of your accounts.");
+  }
+  
+  
+  /**
+   * Checks whether interest can be paid across the bank. It cannot while interest is accrued
+   * per account, which already pays every account as its interest falls due.
+   * @return true if giveInterestToAllAccounts may be used, false otherwise
+   */
+  public boolean canPayInterestToAllAccounts() {
+    return InterestRun.isAvailable();
+  }
+  
+  
+  /**
+   * Pays interest on every account in the bank, a chunk of accounts at a time. If the last
+   * bank-wide run was interrupted, the accounts it did not get to are paid first.
+   * @return a summary of the run, or null if the admin is not authenticated, interest is
+   *     accrued per account instead or there are no accounts to pay
+   */
+  public String giveInterestToAllAccounts() {
+    // Only an authenticated admin may pay interest across the bank
+    if (!this.currentUserAuthenticated || !canPayInterestToAllAccounts()) {
+      return null;
     }
-    return totalBalance;
+    InterestRun run = InterestRun.payInterest();
+    return (run == null) ? null : run.toString();
+  }
+  
+  
+  /**
+   * Describes how far the bank-wide interest run in progress has got, or how the last one
+   * ended.
+   * @return a one line progress report
+   */
+  public String viewInterestRunProgress() {
+    return InterestRun.getProgress();
   }
   
   
@@ -257,20 +228,26 @@ public class AdminTerminal implements Terminal {
    * @return true if the teller was promoted, otherwise false
    */
   public boolean promoteTellerToAdmin(int tellerId) {
-    // Instantiate a roles map in order to get all of the current roles in the database as well
-    // as a boolean to be returned at the end
-    RolesMap roleMap = new RolesMap();
-    boolean foundTeller = false;
-    // Iterate through the current list of tellers and check their IDs against the given ID
-    for (Teller chosenTeller : this.tellers) {
-      int chosenTellerId = chosenTeller.getId();
-      // If the IDs are a match, we can proceed to promoting the given teller to admin status.
-      if (chosenTellerId == tellerId) {
-        DatabaseUpdateHelper.updateUserRole(roleMap.getRoleId("admin"), tellerId);
-        foundTeller = true;
+    // Keep the role check and the promotion in the same transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the role could change between the check and the promotion
+      if (!unit.isTransactional()) {
+        return false;
       }
+      // Instantiate a roles map in order to get all of the current roles in the database as well
+      // as a boolean to be returned at the end
+      RolesMap roleMap = new RolesMap();
+      boolean foundTeller = false;
+      // Check the given user's role directly instead of searching a list of every teller
+      if (DatabaseSelectHelper.getUserRole(tellerId) == roleMap.getRoleId("teller")) {
+        // If the user is a teller, we can proceed to promoting them to admin status.
+        foundTeller = DatabaseUpdateHelper.updateUserRole(roleMap.getRoleId("admin"), tellerId);
+      }
+      return foundTeller && unit.commit();
+    } finally {
+      unit.close();
     }
-    return foundTeller;
   }
   
   
@@ -280,19 +257,36 @@ public class AdminTerminal implements Terminal {
    * @return the total balance of all the given user's accounts
    */
   public BigDecimal userTotalBalance(int userId) {
-    // Get the user's accounts from the database
-    List<Integer> userAccounts = DatabaseSelectHelper.getAccountIds(userId);
-    BigDecimal totalBalance = new BigDecimal(0);
-    // Iterate through the user's accounts
-    for (Integer userAcc : userAccounts) {
-      // Get the details of each account in order to get their balance. 
-      Account acc = DatabaseSelectHelper.getAccountDetails(userAcc);
-      totalBalance = totalBalance.add(acc.getBalance());
+    // Let the database add up the balances of the user's accounts
+    return DatabaseSelectHelper.getUserTotalBalance(userId);
+  }
+  
+
+  /**
+   * A method that will check every user's stored balance total against their accounts.
+   * @return the IDs of the users whose stored total is wrong, or null if the totals could not be
+   *     checked or the admin is not authenticated
+   */
+  public List<Integer> findInconsistentUserTotals() {
+    if (!this.currentUserAuthenticated) {
+      return null;
     }
-    return totalBalance;
+    return DatabaseSelectHelper.findInconsistentUserTotals();
   }
   
+
+  /**
+   * A method that will recompute every user's stored balance total from their accounts.
+   * @return true if the totals were rebuilt, false otherwise
+   */
+  public boolean rebuildUserTotals() {
+    if (!this.currentUserAuthenticated) {
+      return false;
+    }
+    return DatabaseUpdateHelper.rebuildUserTotals();
+  }
   
+
   /**
    * A method that will make an attempt to serialize the current database. If an IO exception is
    * caught, a message will be printed out.
@@ -307,6 +301,47 @@ public class AdminTerminal implements Terminal {
   }
   
   
+  /**
+   * A method that will make an attempt to write the changes made to the database since the last
+   * export, following on from the last full copy. If an IO exception is caught, a message will
+   * be printed out.
+   * @return true if the changes were written, false otherwise
+   */
+  public boolean serializeDatabaseChanges() {
+    DatabaseSerializer serializeDb = new DatabaseSerializer();
+    try {
+      serializeDb.serializeChanges();
+      return true;
+    } catch (IOException e) {
+      System.out.println("Something went wrong with the serialization: " + e.getMessage());
+    }
+    return false;
+  }
+  
+  
+  /**
+   * A method that will back up the live database to a new file in the backup directory, while
+   * the other terminals carry on using it.
+   * @return a description of how the backup went, or null if the admin is not authenticated
+   */
+  public String backUpDatabase() {
+    // Only an authenticated admin may copy the whole bank
+    if (!this.currentUserAuthenticated) {
+      return null;
+    }
+    return OnlineBackup.backUp().toString();
+  }
+  
+  
+  /**
+   * Describes how far the backup in progress has got, or how the last one ended.
+   * @return a one line progress report
+   */
+  public String viewBackupProgress() {
+    return OnlineBackup.getProgress();
+  }
+  
+  
   /**
    * A method that will make an attempt to deserialize a serialized database.
    */
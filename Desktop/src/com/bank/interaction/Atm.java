@@ -1,11 +1,13 @@
 package com.bank.interaction;
 
+import com.bank.database.UnitOfWork;
 import com.bank.databasehelper.DatabaseSelectHelper;
 import com.bank.databasehelper.DatabaseUpdateHelper;
 import com.bank.exceptions.IllegalAmountException;
 import com.bank.exceptions.InsufficientFundsException;
 import com.bank.exceptions.InsufficientPrivilegesException;
 import com.bank.generics.AccountTypesMap;
+import com.bank.generics.Money;
 import com.bank.messages.Message;
 import com.bank.users.Customer;
 
@@ -52,61 +54,115 @@ public class Atm extends InteractionMachine {
    */
   public boolean makeWithdrawal(BigDecimal amount, int accountId) 
       throws IllegalAmountException, InsufficientFundsException, InsufficientPrivilegesException {
-    // We shall begin by getting the enum map for account types. We will also check to see what
-    // kind of account we're dealing with.
-    AccountTypesMap accTypeMap = new AccountTypesMap();
-    int accountType = DatabaseSelectHelper.getAccountType(accountId);
-    String accType = accTypeMap.getAccTypeName(accountType);
+    // Commit the withdrawal together with any conversion of the account
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the changes could be left half made, so none are made
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      // We shall begin by getting the enum map for account types. We will also check to see what
+      // kind of account we're dealing with.
+      AccountTypesMap accTypeMap = new AccountTypesMap();
+      int accountType = DatabaseSelectHelper.getAccountType(accountId);
+      String accType = accTypeMap.getAccTypeName(accountType);
     
-    // Check if the account is a restricted savings account
-    boolean isRestrictedSavings = accType.equalsIgnoreCase("restricted savings");
+      // Check if the account is a restricted savings account
+      boolean isRestrictedSavings = accType.equalsIgnoreCase("restricted savings");
     
-    // Set the default response to false
-    boolean withdrawalMade = false;
+      // Set the default response to false
+      boolean withdrawalMade = false;
     
-    // Check whether a customer is loaded and that the account belongs to the current user
-    boolean ownershipVerified = validateAccountOwnership(accountId);
+      // Check whether a customer is loaded and that the account belongs to the current user
+      boolean ownershipVerified = validateAccountOwnership(accountId);
     
-    // Check whether a customer is authenticated
-    boolean userAuthenticated = customerAuthenticated;
+      // Check whether a customer is authenticated
+      boolean userAuthenticated = customerAuthenticated;
     
-    boolean isBalanceOwing = accTypeMap.getAccTypeName(DatabaseSelectHelper.getAccountType(
-        accountId)).equals("balance owing") ;
+      boolean isBalanceOwing = accTypeMap.getAccTypeName(DatabaseSelectHelper.getAccountType(
+          accountId)).equals("balance owing") ;
     
-    // Validate the withdrawal amount is positive
-    boolean validWithdrawal = (amount.compareTo(BigDecimal.ZERO) == 1);
+      // Validate the withdrawal amount is positive
+      boolean validWithdrawal = (amount.compareTo(BigDecimal.ZERO) == 1);
     
-    // If the withdrawal is not valid, throw an exception
-    if (!(validWithdrawal) && !(isBalanceOwing)) {
-      throw new IllegalAmountException();
-    }
+      // If the withdrawal is not valid, throw an exception
+      if (!(validWithdrawal) && !(isBalanceOwing)) {
+        throw new IllegalAmountException();
+      }
       
-    // If the user is not authenticated, throw an exception
-    if (!(userAuthenticated) || isRestrictedSavings) {
-      throw new InsufficientPrivilegesException();
-    }
+      // If the user is not authenticated, throw an exception
+      if (!(userAuthenticated) || isRestrictedSavings) {
+        throw new InsufficientPrivilegesException();
+      }
     
-    // If the ownership has been verified, the amount is greater than 0, and authenticated:
-    if (ownershipVerified && validWithdrawal && userAuthenticated) {
+      // If the ownership has been verified, the amount is greater than 0, and authenticated:
+      if (ownershipVerified && validWithdrawal && userAuthenticated) {
       
-      // Calculate the new balance, setting mode to withdraw
-      BigDecimal newBalance = calculateBalance(accountId, amount, "withdraw", isBalanceOwing);
+        // Take the funds out in a single update, which refuses to overdraw anything but a balance
+        // owing account
+        BigDecimal newBalance = DatabaseUpdateHelper.updateAccountBalanceBy(amount.negate(),
+            accountId);
       
-      // Update the account balance through the database and get token
-      withdrawalMade = DatabaseUpdateHelper.updateAccountBalance(newBalance, accountId);
+        // If the update was refused, there was not enough money in the account
+        if (newBalance == null) {
+          throw new InsufficientFundsException();
+        }
+        withdrawalMade = true;
       
-      // While we are here, we must also check to see what type of account we've made a withdrawal
-      // from. If it's a SavingsAccount, we have to check if the new balance is below $1000.00. If
-      // it is, we must convert it into a chequing account.
-      if (accType.equalsIgnoreCase("savings")) {
-        BigDecimal minimumSavingsBalance = new BigDecimal(1000.00);
-        if (newBalance.compareTo(minimumSavingsBalance) == -1) {
-          this.convertSavingsToChequing(accountId);
+        // While we are here, we must also check to see what type of account we've made a withdrawal
+        // from. If it's a SavingsAccount, we have to check if the new balance is below $1000.00. If
+        // it is, we must convert it into a chequing account.
+        if (accType.equalsIgnoreCase("savings")) {
+          if (Money.of(newBalance).isLessThan(MINIMUM_SAVINGS_BALANCE)) {
+            this.convertSavingsToChequing(accountId);
+          }
+        }   
+      }
+      // Return the response
+      return withdrawalMade && unit.commit();
+    } finally {
+      unit.close();
+    }
+  }
+  
+  @Override
+  /**
+   * Moves money between two of the authenticated user's accounts. Money cannot be taken out of
+   * a RestrictedSavingsAccount at an ATM, so it cannot be transferred out of one either.
+   * 
+   * @param amount is the amount to move
+   * @param fromAccountId is the ID of the account to take the money from
+   * @param toAccountId is the ID of the account to put the money in
+   * @return true if the transfer was completed, false otherwise
+   * @throws IllegalAmountException if the amount is less than or equal to 0
+   * @throws InsufficientFundsException if there is not enough money to transfer
+   * @throws InsufficientPrivilegesException if the user is not authenticated or the user is trying
+   *     to transfer from a RestrictedSavingsAccount
+   */
+  public boolean makeTransfer(BigDecimal amount, int fromAccountId, int toAccountId)
+      throws IllegalAmountException, InsufficientFundsException, InsufficientPrivilegesException {
+    // Read the source account's type in the same transaction as the transfer
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the changes could be left half made, so none are made
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      // Check if the source is one of the user's accounts and a restricted savings account
+      if (validateAccountOwnership(fromAccountId)) {
+        AccountTypesMap accTypeMap = new AccountTypesMap();
+        String accType = accTypeMap.getAccTypeName(DatabaseSelectHelper.getAccountType(
+            fromAccountId));
+        if ("restricted savings".equalsIgnoreCase(accType)) {
+          throw new InsufficientPrivilegesException();
         }
-      }   
+      }
+      // The transfer joins this transaction, so it commits only with the outer unit
+      boolean transferMade = super.makeTransfer(amount, fromAccountId, toAccountId);
+      return transferMade && unit.commit();
+    } finally {
+      unit.close();
     }
-    // Return the response
-    return withdrawalMade;
   }
   
   /**
@@ -1,6 +1,7 @@
 package com.bank.interaction;
 
 import com.bank.accounts.Account;
+import com.bank.database.UnitOfWork;
 import com.bank.databasehelper.DatabaseInsertHelper;
 import com.bank.databasehelper.DatabaseSelectHelper;
 import com.bank.databasehelper.DatabaseUpdateHelper;
@@ -9,6 +10,7 @@ import com.bank.exceptions.IllegalAmountException;
 import com.bank.exceptions.InsufficientFundsException;
 import com.bank.exceptions.InsufficientPrivilegesException;
 import com.bank.generics.AccountTypesMap;
+import com.bank.generics.Money;
 import com.bank.users.Customer;
 
 import java.math.BigDecimal;
@@ -18,6 +20,9 @@ import java.util.List;
 
 public abstract class InteractionMachine {
   
+  // A savings account left with less than this becomes a chequing account
+  protected static final Money MINIMUM_SAVINGS_BALANCE = Money.ofUnits(100000);
+  
   protected Customer currentCustomer;
   protected boolean customerAuthenticated;
   
@@ -111,49 +116,51 @@ public abstract class InteractionMachine {
    */
   public boolean makeDeposit(BigDecimal amount, int accountId) 
       throws IllegalAmountException, InsufficientPrivilegesException {
-    // Set the default response to false
-    boolean depositMade = false;
+    // Check ownership and update the balance in one transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the changes could be left half made, so none are made
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      // Set the default response to false
+      boolean depositMade = false;
     
-    // Check whether a customer is loaded and that the account belongs to the current user
-    boolean ownershipVerified = validateAccountOwnership(accountId);
+      // Check whether a customer is loaded and that the account belongs to the current user
+      boolean ownershipVerified = validateAccountOwnership(accountId);
     
-    // Check whether a customer is authenticated
-    boolean userAuthenticated = customerAuthenticated;
+      // Check whether a customer is authenticated
+      boolean userAuthenticated = customerAuthenticated;
     
-    // Validate the deposit amount
-    boolean validDeposit = (amount.compareTo(BigDecimal.ZERO) == 1);
+      // Validate the deposit amount
+      boolean validDeposit = (amount.compareTo(BigDecimal.ZERO) == 1);
     
-    // If the deposit is not valid, throw an exception
-    if (!(validDeposit)) {
-      throw new IllegalAmountException();
-    }
+      // If the deposit is not valid, throw an exception
+      if (!(validDeposit)) {
+        throw new IllegalAmountException();
+      }
       
-    // If the user is not authenticated, throw an exception
-    if (!(userAuthenticated)) {
-      throw new InsufficientPrivilegesException();
-    }
+      // If the user is not authenticated, throw an exception
+      if (!(userAuthenticated)) {
+        throw new InsufficientPrivilegesException();
+      }
     
-    // If the ownership has been verified, the amount is greater than 0, and authenticated:
-    if (ownershipVerified && validDeposit && userAuthenticated) {
+      // If the ownership has been verified, the amount is greater than 0, and authenticated:
+      if (ownershipVerified && validDeposit && userAuthenticated) {
       
-      // Exception is reserved for withdrawal -> T/C block to prevent misunderstanding of error
-      try {
-        // Calculate the new balance, setting mode to deposit
-        // It's also worth noting that it won't matter if the account is of a BalanceOwing type
-        // or not
-        BigDecimal newBalance = calculateBalance(accountId, amount, "deposit", false);
+        // Add the funds to the balance in a single update, so a concurrent change to the same
+        // account cannot be lost
+        BigDecimal newBalance = DatabaseUpdateHelper.updateAccountBalanceBy(amount, accountId);
       
-        // Update the account balance through the database and get token
-        depositMade = DatabaseUpdateHelper.updateAccountBalance(newBalance, accountId);
+        // Get the token
+        depositMade = (newBalance != null);
       
-      // IFE error should never occur.
-      } catch (InsufficientFundsException error) {
-        return false;
       }
-      
+      // Return the response
+      return depositMade && unit.commit();
+    } finally {
+      unit.close();
     }
-    // Return the response
-    return depositMade;
   }
   
   
@@ -185,11 +192,8 @@ public abstract class InteractionMachine {
       // Get the account details using the accountId
       Account currentAccount = DatabaseSelectHelper.getAccountDetails(accountId);
 
-      // Retrieve the account balance
-      BigDecimal accountBalance = currentAccount.getBalance();
-      
-      // Return the balance rounded to two decimal places
-      return accountBalance.setScale(2, RoundingMode.CEILING);
+      // Return the balance, which is held to two decimal places
+      return currentAccount.getBalanceMoney().toBigDecimal();
    
     // If unable to get account balance for an authenticated user
     } else {
@@ -214,59 +218,137 @@ public abstract class InteractionMachine {
    */
   public boolean makeWithdrawal(BigDecimal amount, int accountId) 
       throws IllegalAmountException, InsufficientFundsException, InsufficientPrivilegesException {
+    // Commit the withdrawal together with any conversion of the account
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the changes could be left half made, so none are made
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      AccountTypesMap accTypes = new AccountTypesMap();
+      // Set the default response to false
+      boolean withdrawalMade = false;
     
-    AccountTypesMap accTypes = new AccountTypesMap();
-    // Set the default response to false
-    boolean withdrawalMade = false;
+      // Check whether a customer is loaded and that the account belongs to the current user
+      boolean ownershipVerified = validateAccountOwnership(accountId);
     
-    // Check whether a customer is loaded and that the account belongs to the current user
-    boolean ownershipVerified = validateAccountOwnership(accountId);
+      // Check whether a customer is authenticated
+      boolean userAuthenticated = customerAuthenticated;
     
-    // Check whether a customer is authenticated
-    boolean userAuthenticated = customerAuthenticated;
+      // Validate the withdrawal amount is positive
+      boolean validWithdrawal = (amount.compareTo(BigDecimal.ZERO) == 1);
     
-    // Validate the withdrawal amount is positive
-    boolean validWithdrawal = (amount.compareTo(BigDecimal.ZERO) == 1);
+      // Check if the account is a "balance owing" account
+      boolean isBalanceOwing = accTypes.getAccTypeName(DatabaseSelectHelper.getAccountType(
+          accountId)).equals("balance owing") ;
     
-    // Check if the account is a "balance owing" account
-    boolean isBalanceOwing = accTypes.getAccTypeName(DatabaseSelectHelper.getAccountType(
-        accountId)).equals("balance owing") ;
+      // If the withdrawal is not valid AND it isn't a balance owing account, throw an exception
+      if (!(validWithdrawal) && !(isBalanceOwing)) {
+        throw new IllegalAmountException();
+      }
+      
+      // If the user is not authenticated, throw an exception
+      if (!(userAuthenticated)) {
+        throw new InsufficientPrivilegesException();
+      }
     
-    // If the withdrawal is not valid AND it isn't a balance owing account, throw an exception
-    if (!(validWithdrawal) && !(isBalanceOwing)) {
-      throw new IllegalAmountException();
-    }
+      // If the ownership has been verified, the amount is greater than 0, and authenticated:
+      if (ownershipVerified && validWithdrawal && userAuthenticated) {
       
-    // If the user is not authenticated, throw an exception
-    if (!(userAuthenticated)) {
-      throw new InsufficientPrivilegesException();
+        // Take the funds out in a single update, which refuses to overdraw anything but a balance
+        // owing account
+        BigDecimal newBalance = DatabaseUpdateHelper.updateAccountBalanceBy(amount.negate(),
+            accountId);
+      
+        // If the update was refused, there was not enough money in the account
+        if (newBalance == null) {
+          throw new InsufficientFundsException();
+        }
+        withdrawalMade = true;
+      
+        AccountTypesMap accTypeMap = new AccountTypesMap();
+        // Check if the given account is a Savings account.
+        int accountType = DatabaseSelectHelper.getAccountType(accountId);
+        String accType = accTypeMap.getAccTypeName(accountType);
+        // If it is, determine if the balance is less than $1000
+        if ((accType.equalsIgnoreCase("savings"))) {
+        
+          // If less than $1000, convert to cheqing account
+          if (Money.of(newBalance).isLessThan(MINIMUM_SAVINGS_BALANCE)) {
+            this.convertSavingsToChequing(accountId);
+          }
+        }   
+      }
+      // Return the response
+      return withdrawalMade && unit.commit();
+    } finally {
+      unit.close();
     }
-    
-    // If the ownership has been verified, the amount is greater than 0, and authenticated:
-    if (ownershipVerified && validWithdrawal && userAuthenticated) {
+  }
+  
+  
+  /**
+   * Moves money from one of the current customer's accounts to another. The debit and credit
+   * are made together, so the money is never missing from both accounts or present in both.
+   * @param amount is the amount to move
+   * @param fromAccountId is the ID of the account to take the money from
+   * @param toAccountId is the ID of the account to put the money in
+   * @return true if the transfer was completed, false otherwise
+   * @throws IllegalAmountException if the amount is less than or equal to 0, or both accounts
+   *     are the same
+   * @throws InsufficientFundsException if there is not enough money in the source account
+   * @throws InsufficientPrivilegesException if the user is not authenticated
+   */
+  public boolean makeTransfer(BigDecimal amount, int fromAccountId, int toAccountId)
+      throws IllegalAmountException, InsufficientFundsException, InsufficientPrivilegesException {
+    // Commit the transfer together with any conversion of the source account
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the changes could be left half made, so none are made
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      // Set the default response to false
+      boolean transferMade = false;
       
-      // Calculate the new balance, setting mode to withdraw
-      BigDecimal newBalance = calculateBalance(accountId, amount, "withdraw", isBalanceOwing);
+      // Validate the amount is positive and actually goes somewhere
+      if (!(amount.compareTo(BigDecimal.ZERO) == 1) || fromAccountId == toAccountId) {
+        throw new IllegalAmountException();
+      }
       
-      // Update the account balance through the database and get token
-      withdrawalMade = DatabaseUpdateHelper.updateAccountBalance(newBalance, accountId);
+      // If the user is not authenticated, throw an exception
+      if (!(customerAuthenticated)) {
+        throw new InsufficientPrivilegesException();
+      }
       
-      AccountTypesMap accTypeMap = new AccountTypesMap();
-      // Check if the given account is a Savings account.
-      int accountType = DatabaseSelectHelper.getAccountType(accountId);
-      String accType = accTypeMap.getAccTypeName(accountType);
-      // If it is, determine if the balance is less than $1000
-      if ((accType.equalsIgnoreCase("savings"))) {
+      // Both accounts must belong to the current customer
+      if (validateAccountOwnership(fromAccountId) && validateAccountOwnership(toAccountId)) {
+        
+        // Debit and credit in one step, which refuses to overdraw anything but a balance owing
+        // account
+        BigDecimal newBalance = DatabaseUpdateHelper.transferBalance(amount, fromAccountId,
+            toAccountId);
         
-        // If less than $1000, convert to cheqing account
-        BigDecimal minimumSavingsBalance = new BigDecimal(1000.00);
-        if (newBalance.compareTo(minimumSavingsBalance) == -1) {
-          this.convertSavingsToChequing(accountId);
+        // If the transfer was refused, there was not enough money in the source account
+        if (newBalance == null) {
+          throw new InsufficientFundsException();
         }
-      }   
+        transferMade = true;
+        
+        // A savings account left below $1000 becomes a chequing account, as with a withdrawal
+        AccountTypesMap accTypeMap = new AccountTypesMap();
+        String accType = accTypeMap.getAccTypeName(DatabaseSelectHelper.getAccountType(
+            fromAccountId));
+        if ("savings".equalsIgnoreCase(accType)
+            && Money.of(newBalance).isLessThan(MINIMUM_SAVINGS_BALANCE)) {
+          this.convertSavingsToChequing(fromAccountId);
+        }
+      }
+      // Return the response
+      return transferMade && unit.commit();
+    } finally {
+      unit.close();
     }
-    // Return the response
-    return withdrawalMade;
   }
   
   
@@ -343,22 +425,23 @@ public abstract class InteractionMachine {
     Account currentAccount = DatabaseSelectHelper.getAccountDetails(accountId);
     
     // Get the current balance
-    BigDecimal currentBalance = currentAccount.getBalance();
+    Money currentBalance = currentAccount.getBalanceMoney();
     // Set the default new balance to the current
-    BigDecimal newBalance = currentBalance;
+    Money newBalance = currentBalance;
     
     // If making a deposit
     if (mode.equals("deposit")) {
-      // Add the funds
-      newBalance = currentBalance.add(funding);
+      // Add the funds; the balance is whole cents, so rounding the funds up rounds the sum up
+      newBalance = currentBalance.plus(Money.of(funding, RoundingMode.CEILING));
     }
     
     // If making a withdrawal
     if (mode.equals("withdraw")) {
       
       // Check if the funding to subtract is greater than the balance and if it's a balance owing
-      // account
-      boolean outOfBounds = ((funding.compareTo(currentBalance) == 1) && !(balanceOwing));
+      // account. Funding is only greater than a whole number of cents if it is once rounded up
+      boolean outOfBounds = (Money.of(funding, RoundingMode.CEILING).isGreaterThan(
+          currentBalance) && !(balanceOwing));
       
       // If the funding is out of bounds and is not a balance owing account:
       if (outOfBounds) {
@@ -366,12 +449,12 @@ public abstract class InteractionMachine {
       
       // If the funding is in bounds:
       } else {
-        // Calculate the new balance
-        newBalance = currentBalance.subtract(funding);
+        // Calculate the new balance; rounding it up means rounding the funding taken down
+        newBalance = currentBalance.minus(Money.of(funding, RoundingMode.FLOOR));
       }
     }
-    // Return the new balance set to two decimal places
-    return newBalance.setScale(2, RoundingMode.CEILING);
+    // Return the new balance, which is held to two decimal places
+    return newBalance.toBigDecimal();
   }
   
 }
@@ -6,6 +6,7 @@ import com.bank.accounts.ChequingAccount;
 import com.bank.accounts.RestrictedSavings;
 import com.bank.accounts.SavingsAccount;
 import com.bank.accounts.Tfsa;
+import com.bank.database.UnitOfWork;
 import com.bank.databasehelper.DatabaseInsertHelper;
 import com.bank.databasehelper.DatabaseSelectHelper;
 import com.bank.databasehelper.DatabaseUpdateHelper;
@@ -20,6 +21,7 @@ import com.bank.users.Teller;
 import com.bank.users.User;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.List;
 
@@ -61,22 +63,32 @@ public class TellerTerminal extends InteractionMachine implements Terminal {
    * @return true if the account was added, false otherwise
    */
   public boolean makeNewAccount(String name, BigDecimal balance, int type) {
-    // Set the default response to false
-    boolean added = false;
+    // Create the account and link it to the customer in one transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the account could be left without an owner
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      // Set the default response to false
+      boolean added = false;
     
-    // Ensure that the current user and customer are both authenticated
-    if (this.currentUserAuthenticated && this.customerAuthenticated) {
-      // All Account Additions must be made through the database
-      int idNumber = DatabaseInsertHelper.insertAccount(name, balance, type);
+      // Ensure that the current user and customer are both authenticated
+      if (this.currentUserAuthenticated && this.customerAuthenticated) {
+        // All Account Additions must be made through the database
+        int idNumber = DatabaseInsertHelper.insertAccount(name, balance, type);
       
-      // Get the customer's ID number
-      int customerId = this.currentCustomer.getId();
+        // Get the customer's ID number
+        int customerId = this.currentCustomer.getId();
 
-      // Register this new account to the customer
-      added = (DatabaseInsertHelper.insertUserAccount(customerId, idNumber) == idNumber);
+        // Register this new account to the customer
+        added = (DatabaseInsertHelper.insertUserAccount(customerId, idNumber) == idNumber);
+      }
+      // Return the result of the attempt 
+      return added && unit.commit();
+    } finally {
+      unit.close();
     }
-    // Return the result of the attempt 
-    return added;
   }
   
   public void setCurrentCustomer(Customer customer) {
@@ -116,32 +128,42 @@ public class TellerTerminal extends InteractionMachine implements Terminal {
    * @param password is the customer's desired password.
    */
   public int makeNewUser(String name, int age, String address, String password) {
-    // Set the default ID number to -1
-    int idNumber = -1;
+    // Create the customer and their password in one transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the customer could be left without a password
+      if (!unit.isTransactional()) {
+        return -1;
+      }
+      // Set the default ID number to -1
+      int idNumber = -1;
     
-    // Check that the current user is authenticated
-    if (this.currentUserAuthenticated) {
-      // Locate the customer role ID
-      int roleId = locateCustomerRoleId();
-      // Create a Customer user in the database
-      int customerId = DatabaseInsertHelper.insertNewUser(name, age, address, roleId, password);
+      // Check that the current user is authenticated
+      if (this.currentUserAuthenticated) {
+        // Locate the customer role ID
+        int roleId = locateCustomerRoleId();
+        // Create a Customer user in the database
+        int customerId = DatabaseInsertHelper.insertNewUser(name, age, address, roleId, password);
       
-      // Get the customer object from the database
-      Customer customer = (Customer) DatabaseSelectHelper.getUserDetails(customerId);
-      // Set the new customer as the current
-      this.currentCustomer = customer;
+        // Get the customer object from the database
+        Customer customer = (Customer) DatabaseSelectHelper.getUserDetails(customerId);
+        // Set the new customer as the current
+        this.currentCustomer = customer;
       
-      // Have the customer authenticated by default after opening account
-      this.authenticateCurrentCustomer(password);
+        // Have the customer authenticated by default after opening account
+        this.authenticateCurrentCustomer(password);
       
-      // Authenticate the customer in the ATM as well
-      authenticate(customerId, password);
+        // Authenticate the customer in the ATM as well
+        authenticate(customerId, password);
       
-      // Get the customer's ID number
-      idNumber = customerId;
+        // Get the customer's ID number
+        idNumber = customerId;
+      }
+      // Return the ID number
+      return unit.commit() ? idNumber : -1;
+    } finally {
+      unit.close();
     }
-    // Return the ID number
-    return idNumber;
   }
  
   
@@ -149,108 +171,135 @@ public class TellerTerminal extends InteractionMachine implements Terminal {
    * Gives interest and updates the balance of the account with the specified ID if both the 
    * teller and customer are authenticated and the specified account belongs to the customer.
    * @param accountId is the ID of the account.
+   * @return true if the transaction was committed, false otherwise.
    */
-  public void giveInterest(int accountId) {
-    // Verify that the teller is authenticated
-    boolean tellerAuthenticated = this.currentUserAuthenticated;
-    // Verify that the customer is authenticated
-    boolean customerAuthenticated = this.customerAuthenticated;
+  public boolean giveInterest(int accountId) {
+    // Commit the new balance together with its message
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction the interest could be paid without its message
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      // Verify that the teller is authenticated
+      boolean tellerAuthenticated = this.currentUserAuthenticated;
+      // Verify that the customer is authenticated
+      boolean customerAuthenticated = this.customerAuthenticated;
     
-    // Verify that the account belongs to the current customer
-    boolean ownershipVerified = this.validateAccountOwnership(accountId);
+      // Verify that the account belongs to the current customer
+      boolean ownershipVerified = this.validateAccountOwnership(accountId);
     
-    // Initialize the account types enum map for us to be able to check the keys and values
-    AccountTypesMap accTypes = new AccountTypesMap();
+      // Initialize the account types enum map for us to be able to check the keys and values
+      AccountTypesMap accTypes = new AccountTypesMap();
     
-    // If both are authenticated and the customer is not null
-    if (tellerAuthenticated && customerAuthenticated && ownershipVerified) { 
+      // If both are authenticated and the customer is not null
+      if (tellerAuthenticated && customerAuthenticated && ownershipVerified) { 
       
-      // Get the account's type
-      int accountTypeId = DatabaseSelectHelper.getAccountType(accountId);
+        // Get the account's type
+        int accountTypeId = DatabaseSelectHelper.getAccountType(accountId);
       
-      // Get the name of the account type
-      String accountTypeName = accTypes.getAccTypeName(accountTypeId);
+        // Get the name of the account type
+        String accountTypeName = accTypes.getAccTypeName(accountTypeId);
       
-      // Cast the Account to the corresponding type 
-      // IF THE ACCOUNT IS A SAVINGS ACCOUNT
-      if (accountTypeName.equalsIgnoreCase(AccountTypes.CHEQUING.toString())) {
-        ChequingAccount customerAccount = 
-            (ChequingAccount) DatabaseSelectHelper.getAccountDetails(accountId);
+        // Cast the Account to the corresponding type 
+        // IF THE ACCOUNT IS A SAVINGS ACCOUNT
+        if (accountTypeName.equalsIgnoreCase(AccountTypes.CHEQUING.toString())) {
+          ChequingAccount customerAccount = 
+              (ChequingAccount) DatabaseSelectHelper.getAccountDetails(accountId);
         
-        // Get the account's interest rate
-        customerAccount.findAndSetInterestRate(); 
-        // Add interest to the account
-        customerAccount.addInterest();
+          // Get the account's interest rate
+          customerAccount.findAndSetInterestRate(); 
+          // Add interest to the account
+          customerAccount.addInterest();
         
-        // IF THE ACCOUNT IS A SAVINGS ACCOUNT
-      } else if (accountTypeName.equalsIgnoreCase(AccountTypes.SAVING.toString())) {
-        SavingsAccount customerAccount = 
-            (SavingsAccount) DatabaseSelectHelper.getAccountDetails(accountId);
+          // IF THE ACCOUNT IS A SAVINGS ACCOUNT
+        } else if (accountTypeName.equalsIgnoreCase(AccountTypes.SAVING.toString())) {
+          SavingsAccount customerAccount = 
+              (SavingsAccount) DatabaseSelectHelper.getAccountDetails(accountId);
         
-        // Get the account's interest rate
-        customerAccount.findAndSetInterestRate(); 
-        // Add interest to the account
-        customerAccount.addInterest();
+          // Get the account's interest rate
+          customerAccount.findAndSetInterestRate(); 
+          // Add interest to the account
+          customerAccount.addInterest();
       
-        // IF THE ACCOUNT IS A TAX FREE SAVINGS ACCOUNT
-      } else if (accountTypeName.equalsIgnoreCase(AccountTypes.TFSA.toString())) {
-        Tfsa customerAccount = (Tfsa) DatabaseSelectHelper.getAccountDetails(accountId);
+          // IF THE ACCOUNT IS A TAX FREE SAVINGS ACCOUNT
+        } else if (accountTypeName.equalsIgnoreCase(AccountTypes.TFSA.toString())) {
+          Tfsa customerAccount = (Tfsa) DatabaseSelectHelper.getAccountDetails(accountId);
         
-        // Get the account's interest rate
-        customerAccount.findAndSetInterestRate(); 
-        // Add interest to the account
-        customerAccount.addInterest();
-      } else if (accountTypeName.equalsIgnoreCase(AccountTypes.RESTRICTEDSAVINGS.toString())) {
-        RestrictedSavings customerAccount = (RestrictedSavings) 
-            DatabaseSelectHelper.getAccountDetails(accountId);
+          // Get the account's interest rate
+          customerAccount.findAndSetInterestRate(); 
+          // Add interest to the account
+          customerAccount.addInterest();
+        } else if (accountTypeName.equalsIgnoreCase(AccountTypes.RESTRICTEDSAVINGS.toString())) {
+          RestrictedSavings customerAccount = (RestrictedSavings) 
+              DatabaseSelectHelper.getAccountDetails(accountId);
         
-        // Get the account's interest rate
-        customerAccount.findAndSetInterestRate(); 
-        // Add interest to the account
-        customerAccount.addInterest();
-      } else if (accountTypeName.equalsIgnoreCase(AccountTypes.BALANCEOWING.toString())) {
-        BalanceOwing customerAccount = (BalanceOwing)
-            DatabaseSelectHelper.getAccountDetails(accountId);
+          // Get the account's interest rate
+          customerAccount.findAndSetInterestRate(); 
+          // Add interest to the account
+          customerAccount.addInterest();
+        } else if (accountTypeName.equalsIgnoreCase(AccountTypes.BALANCEOWING.toString())) {
+          BalanceOwing customerAccount = (BalanceOwing)
+              DatabaseSelectHelper.getAccountDetails(accountId);
         
-        // Get the account's interest rate
-        customerAccount.findAndSetInterestRate(); 
-        // Add interest to the account
-        customerAccount.addInterest();
+          // Get the account's interest rate
+          customerAccount.findAndSetInterestRate(); 
+          // Add interest to the account
+          customerAccount.addInterest();
         
+        }
+        DatabaseInsertHelper.insertMessage(this.currentCustomer.getId(), 
+            this.currentCustomer.getName() + "'s " + "Account " + accountId
+            + " has been given interest");
       }
-      DatabaseInsertHelper.insertMessage(this.currentCustomer.getId(), 
-          this.currentCustomer.getName() + "'s " + "Account " + accountId
-          + " has been given interest");
+      return unit.commit();
+    } finally {
+      unit.close();
     }
   }
   
   
   /**
    * Gives interest and updates the balance of all the current customer's accounts.
+   * @return true if the transaction was committed, false otherwise.
    */
-  public void giveInterest() {
-    // Verify that the teller is authenticated
-    boolean tellerAuthenticated = this.currentUserAuthenticated;
+  public boolean giveInterest() {
+    // Pay interest on every account in one transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction only some of the accounts could end up paid
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      // Verify that the teller is authenticated
+      boolean tellerAuthenticated = this.currentUserAuthenticated;
     
-    // Verify that the customer is authenticated
-    boolean customerAuthenticated = this.customerAuthenticated;
+      // Verify that the customer is authenticated
+      boolean customerAuthenticated = this.customerAuthenticated;
     
-    // If both are authenticated and the customer is not null
-    if (tellerAuthenticated && customerAuthenticated) {
+      // If both are authenticated and the customer is not null
+      if (tellerAuthenticated && customerAuthenticated) {
       
-      // Obtain a list of all the customer's accounts
-      List<Account> customerAccounts = this.currentCustomer.getAccounts();
-      if (!(customerAccounts == null)) {
-        for (Account custAccount : customerAccounts) {
-          // Find and give interest to each account that the customer owns
-          custAccount.findAndSetInterestRate();
-          custAccount.addInterest();
-          DatabaseInsertHelper.insertMessage(this.currentCustomer.getId(), 
-              this.currentCustomer.getName() + "'s " + "Account " + custAccount.getId()
-              + " has been given interest");
+        // Obtain a list of all the customer's accounts
+        List<Account> customerAccounts = this.currentCustomer.getAccounts();
+        if (!(customerAccounts == null)) {
+          List<Message> notices = new ArrayList<Message>();
+          for (Account custAccount : customerAccounts) {
+            // Find and give interest to each account that the customer owns
+            custAccount.findAndSetInterestRate();
+            custAccount.addInterest();
+            notices.add(new Message(this.currentCustomer.getId(), 
+                this.currentCustomer.getName() + "'s " + "Account " + custAccount.getId()
+                + " has been given interest"));
+          }
+          // Leave all of the notices with one batched insert
+          DatabaseInsertHelper.insertMessages(notices);
         }
-      }
-    }  
+      }  
+      return unit.commit();
+    } finally {
+      unit.close();
+    }
   }
  
   
@@ -260,16 +309,8 @@ public class TellerTerminal extends InteractionMachine implements Terminal {
    * @return the total balance of all the given user's accounts
    */
   public BigDecimal userTotalBalance(int userId) {
-    // Get the user's accounts from the database
-    List<Integer> userAccounts = DatabaseSelectHelper.getAccountIds(userId);
-    BigDecimal totalBalance = new BigDecimal(0);
-    // Iterate through the user's accounts
-    for (Integer userAcc : userAccounts) {
-      // Get the details of each account in order to get their balance. 
-      Account acc = DatabaseSelectHelper.getAccountDetails(userAcc);
-      totalBalance = totalBalance.add(acc.getBalance());
-    }
-    return totalBalance;
+    // Let the database add up the balances of the user's accounts
+    return DatabaseSelectHelper.getUserTotalBalance(userId);
   }
   
   
@@ -352,10 +393,20 @@ public class TellerTerminal extends InteractionMachine implements Terminal {
    * @return true if the update was successful, otherwise false
    */
   public boolean updateAllFields(String password, String address, String name, int userId) {
-    boolean successPass = this.updateUserPassword(password, userId);
-    boolean successAddress = this.updateUserAddress(address, userId);
-    boolean successName = this.updateUserName(name, userId);
-    return (successPass && successAddress && successName);
+    // Apply all three updates in one transaction
+    UnitOfWork unit = UnitOfWork.begin();
+    try {
+      // Without a transaction only some of the fields could end up updated
+      if (!unit.isTransactional()) {
+        return false;
+      }
+      boolean successPass = this.updateUserPassword(password, userId);
+      boolean successAddress = this.updateUserAddress(address, userId);
+      boolean successName = this.updateUserName(name, userId);
+      return (successPass && successAddress && successName) && unit.commit();
+    } finally {
+      unit.close();
+    }
   }
   
   
@@ -1,7 +1,6 @@
 package com.bank.messages;
 
 import com.bank.databasehelper.DatabaseSelectHelper;
-import com.bank.users.User;
 
 // A class to represent a user message
 public class Message {
@@ -87,11 +86,7 @@ public class Message {
    * @return true if it is in the database, false otherwise
    */
   private static boolean verifyUserId(int userId) {
-    // Obtain the User object
-    User validator = DatabaseSelectHelper.getUserDetails(userId);
-    // Verify the given user ID
-    boolean verified = !(validator == null);
-    // Return the result
-    return verified;
+    // Check for the ID without building the User object
+    return DatabaseSelectHelper.userExists(userId);
   }
 }
@@ -48,5 +48,27 @@ public class Admin extends User {
     // Automatically obtain Admin role ID from the database
     this.roleId = DatabaseSelectHelper.getUserRole(id);   
   }
+  
+  
+  /**
+   * Constructor method for Admin with a known role ID.
+   * @param id is the ID number assigned by the database
+   * @param name is the user's name
+   * @param age is the user's age
+   * @param address is the user's address
+   * @param roleId is the user's role ID
+   */
+  public Admin(int id, String name, int age, String address, int roleId) {
+    // Obtain the user ID from the database upon instantiation
+    this.id = id;
+    // Obtain the user's name from the database upon instantiation
+    this.name = name;
+    // Obtain the user's age from the database upon instantiation
+    this.age = age;
+    // Obtain the user's address from the database upon instantiation
+    this.address = address;
+    // Set the role ID that was read with the user
+    this.roleId = roleId;
+  }
 
 }
@@ -53,6 +53,28 @@ public class Customer extends User {
     // Automatically obtain Customer role ID from the database
     this.roleId = DatabaseSelectHelper.getUserRole(id);   
   }
+  
+  
+  /**
+   * Constructor method for Customer with its role ID already read.
+   * @param id is the ID number assigned by the database
+   * @param name is the user's name
+   * @param age is the user's age
+   * @param address is the user's address
+   * @param roleId is the user's role ID
+   */
+  public Customer(int id, String name, int age, String address, int roleId) {
+    // Obtain the user ID from the database upon instantiation
+    this.id = id;
+    // Obtain the user's name from the database upon instantiation
+    this.name = name;
+    // Obtain the user's age from the database upon instantiation
+    this.age = age;
+    // Obtain the user's address from the database upon instantiation
+    this.address = address;
+    // Set the role ID that was read with the user
+    this.roleId = roleId;
+  }
  
   
   /**
@@ -60,23 +82,12 @@ public class Customer extends User {
    * @return associatedAccounts is the list of all the customer's accounts 
    */
   public List<Account> getAccounts() {
-    // Get a list of IDs for the accounts associated with the customer
-    List<Integer> allAccountIds = DatabaseSelectHelper.getAccountIds(this.id);
+    // Load every account associated with the customer in one query
+    List<Account> associatedAccounts = DatabaseSelectHelper.getAccounts(this.id);
     
-    // Create a list to hold Account Objects
-    List<Account> associatedAccounts = new ArrayList<Account>();
-    // If there is a list to iterate through:
-    if (!(associatedAccounts == null)) {
-      // Iterate through all Account IDs, converting each into an account object
-      for (int accountId : allAccountIds) {
-        Account retrievedAccount = DatabaseSelectHelper.getAccountDetails(accountId);
-      
-        // If an account object is not null
-        if (!(retrievedAccount == null)) {
-          // Add it to the list of the user's associated accounts
-          associatedAccounts.add(retrievedAccount);
-        }
-      }
+    // If the accounts could not be read, the customer has no accounts to show
+    if (associatedAccounts == null) {
+      associatedAccounts = new ArrayList<Account>();
     }
     // Return the list of associated accounts
     return associatedAccounts;